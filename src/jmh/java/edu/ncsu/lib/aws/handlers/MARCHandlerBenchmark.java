@@ -0,0 +1,101 @@
+package edu.ncsu.lib.aws.handlers;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.lambda.runtime.events.S3Event;
+
+import edu.ncsu.lib.aws.s3.InMemoryS3Client;
+import edu.ncsu.lib.marc.SyntheticCorpus;
+
+/**
+ * Measures {@link MARCHandler#handleRequest(S3Event, com.amazonaws.services.lambda.runtime.Context)} end to end, against
+ * an {@link InMemoryS3Client} holding {@link SyntheticCorpus synthetic} source objects, in each of the handler's
+ * output modes.  Each invocation transforms {@link #objects} objects of {@link #fileSize} bytes; the
+ * <code>bytes</code> secondary result is the rate of source bytes transformed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MARCHandlerBenchmark {
+
+	/** The median record size, in bytes */
+	@Param({ "500", "2000", "10000" })
+	public int recordSize;
+
+	/** The size of each object, in bytes */
+	@Param({ "1048576", "16777216" })
+	public int fileSize;
+
+	/** The number of objects in each event */
+	@Param({ "4" })
+	public int objects;
+
+	@Param({ "streaming", "staged", "compressed", "sharded" })
+	public String mode;
+
+	private MARCHandler handler;
+
+	private S3Event event;
+
+	private long eventBytes;
+
+	/**
+	 * Counts what has been transformed, for JMH to report as a rate.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Volume {
+
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		InMemoryS3Client s3 = new InMemoryS3Client();
+		Object[] keysAndSizes = new Object[objects * 2];
+		eventBytes = 0;
+		for( int i = 0; i < objects; i++ ) {
+			byte[] corpus = new SyntheticCorpus(i).setRecordSize(recordSize).generate(fileSize);
+			String key = "benchmark/" + i + ".mrc";
+			s3.putBytes("ingest-source", key, corpus);
+			keysAndSizes[i * 2] = key;
+			keysAndSizes[i * 2 + 1] = corpus.length;
+			eventBytes += corpus.length;
+		}
+		event = S3Events.put("ingest-source", keysAndSizes);
+		handler = new MARCHandler()
+				.setStreamingUpload( !"staged".equals(mode) )
+				.setCompressOutput( "compressed".equals(mode) )
+				.setShardedOutput( "sharded".equals(mode) );
+		handler.setClient(s3);
+	}
+
+	@Benchmark
+	public String handleRequest(Volume volume) {
+		String result = handler.handleRequest(event, new LocalContext());
+		volume.bytes += eventBytes;
+		return result;
+	}
+}
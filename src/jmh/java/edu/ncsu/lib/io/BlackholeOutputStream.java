@@ -0,0 +1,39 @@
+package edu.ncsu.lib.io;
+
+import java.io.OutputStream;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * An output stream that hands everything written to it to a JMH <code>Blackhole</code>, so that the writes can't be
+ * optimized away, and counts the bytes.
+ */
+public class BlackholeOutputStream extends OutputStream {
+
+	private final Blackhole blackhole;
+
+	private long count = 0;
+
+	public BlackholeOutputStream(Blackhole blackhole) {
+		this.blackhole = blackhole;
+	}
+
+	@Override
+	public void write(int b) {
+		blackhole.consume(b);
+		count++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		// the last byte depends on the whole of the copy into b
+		if ( len > 0 ) {
+			blackhole.consume(b[off + len - 1]);
+		}
+		count += len;
+	}
+
+	public long getCount() {
+		return count;
+	}
+}
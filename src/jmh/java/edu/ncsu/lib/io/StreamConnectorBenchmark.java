@@ -0,0 +1,111 @@
+package edu.ncsu.lib.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.io.ByteStreams;
+
+import edu.ncsu.lib.marc.MarcTransformer;
+import edu.ncsu.lib.marc.SyntheticCorpus;
+
+/**
+ * Measures what {@link StreamConnector#transformStream(InputStream, java.util.function.BiFunction)} costs: a plain copy
+ * and a MARC transformation, each done directly on the calling thread and through the connector's pipe, on
+ * {@link SyntheticCorpus synthetic records} held in memory.  The difference between the direct and piped versions is
+ * the cost of the pipe and the hand-off between threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamConnectorBenchmark {
+
+	/** The median record size, in bytes */
+	@Param({ "500", "2000", "10000" })
+	public int recordSize;
+
+	/** The size of the input, in bytes */
+	@Param({ "1048576", "16777216" })
+	public int fileSize;
+
+	private byte[] corpus;
+
+	private MarcTransformer transformer;
+
+	private StreamConnector connector;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		corpus = new SyntheticCorpus(1).setRecordSize(recordSize).generate(fileSize);
+		transformer = new MarcTransformer();
+		connector = new StreamConnector();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		connector.close();
+	}
+
+	@Benchmark
+	public long directCopy(Blackhole blackhole) throws IOException {
+		return ByteStreams.copy(new ByteArrayInputStream(corpus), new BlackholeOutputStream(blackhole));
+	}
+
+	@Benchmark
+	public long pipedCopy(Blackhole blackhole) throws IOException {
+		return drain( connector.transformStream(new ByteArrayInputStream(corpus), StreamConnectorBenchmark::copy), blackhole );
+	}
+
+	@Benchmark
+	public long directTransform(Blackhole blackhole) throws IOException {
+		return transformer.toJSON(new ByteArrayInputStream(corpus), new BlackholeOutputStream(blackhole));
+	}
+
+	@Benchmark
+	public long pipedTransform(Blackhole blackhole) throws IOException {
+		return drain( connector.transformStream(new ByteArrayInputStream(corpus), this::transform), blackhole );
+	}
+
+	private static long drain(InputStream piped, Blackhole blackhole) throws IOException {
+		try( InputStream input = piped ) {
+			return ByteStreams.copy(input, new BlackholeOutputStream(blackhole));
+		}
+	}
+
+	private static Long copy(InputStream input, OutputStream output) {
+		try {
+			return ByteStreams.copy(input, output);
+		} catch( IOException iox ) {
+			throw new UncheckedIOException(iox);
+		}
+	}
+
+	private Long transform(InputStream input, OutputStream output) {
+		try {
+			return transformer.toJSON(input, output);
+		} catch( IOException iox ) {
+			throw new UncheckedIOException(iox);
+		}
+	}
+}
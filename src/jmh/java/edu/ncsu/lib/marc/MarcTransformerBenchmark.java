@@ -0,0 +1,90 @@
+package edu.ncsu.lib.marc;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.marc4j.MarcJsonWriter;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.ncsu.lib.io.BlackholeOutputStream;
+
+/**
+ * Measures {@link MarcTransformer#toJSON(java.io.InputStream, java.io.OutputStream)} on {@link SyntheticCorpus synthetic
+ * records} of a range of sizes, held in memory.  Besides transformations per second, JMH reports the records and
+ * input bytes transformed per second (the <code>records</code> and <code>bytes</code> secondary results); run with
+ * <code>-prof gc</code> for the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MarcTransformerBenchmark {
+
+	/** The median record size, in bytes */
+	@Param({ "500", "2000", "10000" })
+	public int recordSize;
+
+	/** The size of the input, in bytes */
+	@Param({ "1048576", "16777216" })
+	public int fileSize;
+
+	@Param({ "1", "4" })
+	public int threads;
+
+	@Param({ "MARC_JSON", "MARC_IN_JSON" })
+	public String format;
+
+	private byte[] corpus;
+
+	private MarcTransformer transformer;
+
+	/**
+	 * Counts what has been transformed, for JMH to report as rates.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Volume {
+
+		public long records;
+
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			records = 0;
+			bytes = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		corpus = new SyntheticCorpus(1).setRecordSize(recordSize).generate(fileSize);
+		transformer = new MarcTransformer()
+				.setThreads(threads)
+				.setFormat( "MARC_JSON".equals(format) ? MarcJsonWriter.MARC_JSON : MarcJsonWriter.MARC_IN_JSON );
+	}
+
+	@Benchmark
+	public long toJSON(Volume volume, Blackhole blackhole) throws IOException {
+		long records = transformer.toJSON(new ByteArrayInputStream(corpus), new BlackholeOutputStream(blackhole));
+		volume.records += records;
+		volume.bytes += corpus.length;
+		return records;
+	}
+}
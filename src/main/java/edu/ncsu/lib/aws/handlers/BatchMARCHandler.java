@@ -0,0 +1,631 @@
+package edu.ncsu.lib.aws.handlers;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.ToLongFunction;
+
+import org.marc4j.MarcJsonWriter;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.S3Event;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.event.S3EventNotification;
+import com.amazonaws.services.s3.event.S3EventNotification.S3EventNotificationRecord;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.util.json.Jackson;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.LimitInputStream;
+
+import edu.ncsu.lib.aws.s3.MultipartUploadOutputStream;
+import edu.ncsu.lib.io.CloseShieldOutputStream;
+import edu.ncsu.lib.io.Compression;
+import edu.ncsu.lib.io.IOMonitor;
+import edu.ncsu.lib.marc.MarcTransformer;
+import edu.ncsu.lib.marc.RawRecordReader;
+
+/**
+ * Lambda function that transforms many small MARC21 uploads at once, for buckets whose notifications go to an SQS
+ * queue that the function is subscribed to.
+ * <p>
+ *  Where {@link MARCHandler} takes one invocation, one temporary buffer and one upload per object, which for files of a
+ *  few kilobytes costs far more than the transformation, this takes a batch of queued notifications, fetches the
+ *  objects they name {@link #setConcurrency(int) concurrently} and runs all their records through a single pass of one
+ *  {@link MarcTransformer}, into a single newline-delimited JSON object (one MARC-in-JSON record per line) in the
+ *  output bucket, under <code>batches/</code> followed by the request ID.  Next to it, under
+ *  <code>key + ".manifest.json"</code>, a {@link Manifest} lists the objects in the order their records appear, with
+ *  the number of records each contributed; it is written last, so its presence means the output is complete.  Objects
+ *  are decompressed as {@link MARCHandler} does.
+ * </p>
+ * <p>
+ *  A batch whose objects add up to more than {@link #setMaxBatchBytes(long) maxBatchBytes} is split into several
+ *  outputs, numbered from 1.  The objects are grouped by their sizes in the event before any are fetched, and each
+ *  group is fetched and transformed before the next is fetched, so that only one group is held in memory at a time; a
+ *  group whose objects turn out larger once decompressed is split again.  Objects larger than
+ *  {@link #setMaxObjectSize(long) maxObjectSize}, according to the event or once decompressed, and checkpoints, are
+ *  handed to a {@link #getLargeObjectHandler() MARCHandler} instead, and transformed on their own as usual.
+ * </p>
+ * <p>
+ *  Messages are reported as failed individually, in an {@link SQSBatchResponse} (the event source mapping must have
+ *  <code>ReportBatchItemFailures</code> turned on), so that only they are retried: those that can't be read, and those
+ *  with an object that couldn't be fetched or transformed.  The objects of a message that has failed are left out of
+ *  the output when the failure is known in time; otherwise an object can appear in more than one output, and the
+ *  latest should be taken.
+ * </p>
+ * @see SQSBatchEvent
+ */
+public class BatchMARCHandler implements RequestHandler<SQSBatchEvent, SQSBatchResponse> {
+
+	/** The prefix of the keys of combined output */
+	public static final String BATCH_PREFIX = "batches/";
+
+	/** The suffix of manifest keys */
+	public static final String MANIFEST_SUFFIX = ".manifest.json";
+
+	/** The default number of objects fetched concurrently; fetching small objects is mostly waiting */
+	public static final int DEFAULT_CONCURRENCY = 16;
+
+	/** The default size above which an object is transformed on its own: 8MB */
+	public static final long DEFAULT_MAX_OBJECT_SIZE = 8L * 1024 * 1024;
+
+	/** The default amount of (decompressed) source combined into one output: 64MB */
+	public static final long DEFAULT_MAX_BATCH_BYTES = 64L * 1024 * 1024;
+
+	private static final byte[] TERMINATOR = { RawRecordReader.RECORD_TERMINATOR };
+
+	static {
+		WarmResources.prime();
+	}
+
+	private AmazonS3Client client = null;
+
+	private int concurrency = DEFAULT_CONCURRENCY;
+
+	private long maxObjectSize = DEFAULT_MAX_OBJECT_SIZE;
+
+	private long maxBatchBytes = Math.min(DEFAULT_MAX_BATCH_BYTES, Runtime.getRuntime().maxMemory() / 4);
+
+	private String metricsNamespace = MARCHandler.DEFAULT_METRICS_NAMESPACE;
+
+	private final MARCHandler largeObjects = new MARCHandler();
+
+	/**
+	 * Main handler function.
+	 * @param input a batch of SQS messages, each of which should be an S3 event.
+	 * @param context the Lambda context.
+	 * @return the messages that failed, in the order of the batch.
+	 */
+	@Override
+	public SQSBatchResponse handleRequest(SQSBatchEvent input, Context context) {
+		WarmResources.invocationStarted();
+		LambdaLogger logger = context.getLogger();
+		SQSBatchResponse response = new SQSBatchResponse();
+		List<SQSBatchEvent.Message> messages = input.getRecords();
+		if ( messages == null || messages.isEmpty() ) {
+			return response;
+		}
+
+		// the IDs of messages with anything that wasn't transformed
+		Set<String> failed = new HashSet<>();
+		List<Item> small = new ArrayList<>();
+		List<Item> large = new ArrayList<>();
+		for( SQSBatchEvent.Message message : messages ) {
+			List<S3EventNotificationRecord> records;
+			try {
+				records = S3EventNotification.parseJson(message.getBody()).getRecords();
+			} catch( RuntimeException rx ) {
+				logger.log("Unable to read message " + message.getMessageId() + ": " + rx);
+				failed.add(message.getMessageId());
+				continue;
+			}
+			// the test event S3 sends when notifications are set up has no records
+			if ( records != null ) {
+				for( S3EventNotificationRecord action : records ) {
+					Item item = new Item(message.getMessageId(), action);
+					boolean alone = item.size > maxObjectSize || item.key.startsWith(largeObjects.getCheckpointPrefix())
+							|| item.key.startsWith(largeObjects.getPartialPrefix());
+					( alone ? large : small ).add(item);
+				}
+			}
+		}
+
+		if ( !small.isEmpty() ) {
+			transformAll(small, large, failed, context, logger);
+		}
+
+		if ( !large.isEmpty() ) {
+			List<S3EventNotificationRecord> actions = new ArrayList<>();
+			for( Item item : large ) {
+				actions.add(item.action);
+			}
+			if ( client != null ) {
+				largeObjects.setClient(client);
+			}
+			// entries for anything that was stored, checkpointed or skipped don't need retrying
+			List<String> results = largeObjects.transformObjects(new S3Event(actions), context);
+			for( int i = 0; i < large.size(); i++ ) {
+				if ( results.get(i).startsWith("FAILED:") || results.get(i).startsWith("UNFINISHED:") ) {
+					failed.add(large.get(i).messageId);
+				}
+			}
+		}
+
+		for( SQSBatchEvent.Message message : messages ) {
+			if ( failed.contains(message.getMessageId()) ) {
+				response.fail(message.getMessageId());
+			}
+		}
+		logger.log("Transformed batch of " + messages.size() + " messages (" + small.size() + " small objects, " + large.size() + " large); " + failed.size() + " failed");
+		logger.log( WarmResources.describe() );
+		return response;
+	}
+
+	/**
+	 * Fetches small objects concurrently, noting the messages of those that can't be fetched.  Objects larger than
+	 * {@link #setMaxObjectSize(long) maxObjectSize} once decompressed are only read that far, and marked oversized.
+	 */
+	private void fetch(List<Item> items, Set<String> failed, LambdaLogger logger) {
+		if ( items.isEmpty() ) {
+			return;
+		}
+		ExecutorService fetchers = Executors.newFixedThreadPool(Math.min(concurrency, items.size()), (r) -> {
+			Thread t = new Thread(r, "batch-handler-fetcher");
+			t.setDaemon(true);
+			return t;
+		});
+		try {
+			List<Future<?>> fetches = new ArrayList<>();
+			for( Item item : items ) {
+				fetches.add( fetchers.submit( () -> {
+					item.fetch(getClient(), maxObjectSize);
+					return null;
+				}));
+			}
+			for( int i = 0; i < items.size(); i++ ) {
+				try {
+					fetches.get(i).get();
+				} catch( ExecutionException ex ) {
+					logger.log("Unable to fetch " + items.get(i).describe() + ": " + ex.getCause());
+					failed.add(items.get(i).messageId);
+				} catch( InterruptedException ix ) {
+					Thread.currentThread().interrupt();
+					failed.add(items.get(i).messageId);
+				}
+			}
+		} finally {
+			fetchers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Fetches and transforms small objects a group at a time, into as many outputs as
+	 * {@link #setMaxBatchBytes(long) maxBatchBytes} calls for, noting the messages of any output that couldn't be
+	 * stored.  Objects that turn out to be too large to combine are added to <code>large</code>.
+	 */
+	private void transformAll(List<Item> items, List<Item> large, Set<String> failed, Context context, LambdaLogger logger) {
+		// by size as stored: the decompressed sizes aren't known until the objects are fetched
+		List<List<Item>> groups = group(items, (item) -> item.size);
+
+		String batchId = context.getAwsRequestId() != null ? context.getAwsRequestId() : UUID.randomUUID().toString();
+		int outputCount = 0;
+		final MarcTransformer transformer = WarmResources.transformers().acquire();
+		try {
+			transformer.getStatistics().reset();
+			// one record per line, so that records from different objects can be told apart
+			transformer.setFormat(MarcJsonWriter.MARC_IN_JSON)
+				.setGzip(false);
+			for( List<Item> fetching : groups ) {
+				fetch(fetching, failed, logger);
+				List<Item> included = new ArrayList<>();
+				for( Item item : fetching ) {
+					if ( item.oversized ) {
+						logger.log("Handing " + item.describe() + " to the large object handler: more than " + maxObjectSize + " bytes decompressed");
+						large.add(item);
+					} else if ( !failed.contains(item.messageId) ) {
+						included.add(item);
+					}
+				}
+				List<List<Item>> outputs = group(included, (item) -> item.content.length);
+				for( List<Item> output : outputs ) {
+					outputCount++;
+					String key = BATCH_PREFIX + batchId + ( groups.size() > 1 || outputs.size() > 1 ? "-" + outputCount : "" );
+					long start = System.currentTimeMillis();
+					IOMonitor monitor = new IOMonitor();
+					Manifest manifest = null;
+					try {
+						manifest = transform(transformer, output, key, monitor, logger);
+					} catch( IOException | AmazonClientException ex ) {
+						logger.log("Unable to transform batch " + MARCHandler.OUTPUT_BUCKET + "/" + key + ": " + ex);
+						for( Item item : output ) {
+							failed.add(item.messageId);
+						}
+					}
+					logMetrics(key, output, manifest, monitor, System.currentTimeMillis() - start, context, logger);
+				}
+				// done with, before the next group is fetched
+				for( Item item : fetching ) {
+					item.content = null;
+				}
+			}
+		} finally {
+			WarmResources.transformers().release(transformer);
+		}
+	}
+
+	/**
+	 * Splits objects, in order, into groups of no more than {@link #setMaxBatchBytes(long) maxBatchBytes} each, with
+	 * anything larger in a group of its own.
+	 */
+	private List<List<Item>> group(List<Item> items, ToLongFunction<Item> size) {
+		List<List<Item>> groups = new ArrayList<>();
+		List<Item> group = null;
+		long groupBytes = 0;
+		for( Item item : items ) {
+			long itemBytes = size.applyAsLong(item);
+			if ( group == null || groupBytes + itemBytes > maxBatchBytes ) {
+				groups.add( group = new ArrayList<>() );
+				groupBytes = 0;
+			}
+			group.add(item);
+			groupBytes += itemBytes;
+		}
+		return groups;
+	}
+
+	/**
+	 * Transforms a group of objects in one pass, uploading the output while the transformation runs, then stores the
+	 * manifest.  If the transformation fails, the upload is aborted and no manifest is written.
+	 */
+	private Manifest transform(MarcTransformer transformer, List<Item> group, String key, IOMonitor monitor, LambdaLogger logger) throws IOException {
+		Manifest manifest = new Manifest(MARCHandler.OUTPUT_BUCKET + "/" + key);
+		List<InputStream> parts = new ArrayList<>();
+		for( Item item : group ) {
+			parts.add( new ByteArrayInputStream(item.content) );
+			// a truncated last record would otherwise run into the next object's first
+			if ( !item.terminated ) {
+				parts.add( new ByteArrayInputStream(TERMINATOR) );
+			}
+			manifest.add(item);
+		}
+
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentType("application/x-ndjson");
+		MultipartUploadOutputStream upload = new MultipartUploadOutputStream(getClient(), MARCHandler.OUTPUT_BUCKET, key, metadata);
+		long records;
+		boolean transformed = false;
+		try {
+			records = transformer.toJSON(new SequenceInputStream(Collections.enumeration(parts)), new CloseShieldOutputStream(upload), null, null, monitor);
+			transformed = true;
+		} finally {
+			if ( !transformed ) {
+				upload.abort();
+			}
+		}
+		upload.close();
+		if ( records != manifest.getRecords() ) {
+			// damaged records the permissive reader split or dropped; the objects' line ranges are off
+			logger.log("Transformed " + records + " records of " + manifest.getRecords() + " read into " + MARCHandler.OUTPUT_BUCKET + "/" + key);
+		}
+		logger.log("Uploaded " + upload.getBytesWritten() + " bytes (" + records + " records from " + group.size() + " objects) to " + MARCHandler.OUTPUT_BUCKET + "/" + key);
+
+		byte[] json = Jackson.toJsonPrettyString(manifest).getBytes(StandardCharsets.UTF_8);
+		ObjectMetadata manifestMetadata = new ObjectMetadata();
+		manifestMetadata.setContentType("application/json");
+		manifestMetadata.setContentLength(json.length);
+		getClient().putObject( new PutObjectRequest(MARCHandler.OUTPUT_BUCKET, key + MANIFEST_SUFFIX, new ByteArrayInputStream(json), manifestMetadata) );
+		return manifest;
+	}
+
+	/**
+	 * Logs the metrics of an output in CloudWatch's embedded metric format, unless there is no metrics namespace.
+	 * @param manifest the output's manifest, or <code>null</code> if it failed.
+	 */
+	private void logMetrics(String key, List<Item> group, Manifest manifest, IOMonitor monitor, long elapsed, Context context, LambdaLogger logger) {
+		if ( metricsNamespace == null ) {
+			return;
+		}
+		long sourceBytes = 0;
+		long fetchNanos = 0;
+		for( Item item : group ) {
+			sourceBytes += item.sourceBytes;
+			fetchNanos += item.fetchNanos;
+		}
+		EmbeddedMetrics line = new EmbeddedMetrics(metricsNamespace)
+				.dimension("FunctionName", context.getFunctionName())
+				.dimension("OutputMode", "batch")
+				.property("RequestId", context.getAwsRequestId())
+				.property("Object", MARCHandler.OUTPUT_BUCKET + "/" + key)
+				.property("Outcome", manifest != null ? "STORED" : "FAILED")
+				.metric("Objects", group.size(), EmbeddedMetrics.COUNT)
+				.metric("SourceBytes", sourceBytes, EmbeddedMetrics.BYTES)
+				.metric("OutputBytes", monitor.getBytesWritten(), EmbeddedMetrics.BYTES)
+				.metric("Records", monitor.getRecords(), EmbeddedMetrics.COUNT)
+				.metric("Duration", elapsed, EmbeddedMetrics.MILLISECONDS)
+				// fetched before the transformation started, so not part of its duration
+				.metric("FetchTime", fetchNanos / 1000000, EmbeddedMetrics.MILLISECONDS)
+				.metric("TransformTime", monitor.getTime(IOMonitor.Phase.TRANSFORM) / 1000000, EmbeddedMetrics.MILLISECONDS)
+				.metric("UploadTime", monitor.getTime(IOMonitor.Phase.UPLOAD) / 1000000, EmbeddedMetrics.MILLISECONDS)
+				.metric("RecordLatencyP50", monitor.getLatencies().getPercentile(50) / 1000, EmbeddedMetrics.MICROSECONDS)
+				.metric("RecordLatencyP99", monitor.getLatencies().getPercentile(99) / 1000, EmbeddedMetrics.MICROSECONDS);
+		int remaining = context.getRemainingTimeInMillis();
+		if ( remaining > 0 ) {
+			line.metric("RemainingTime", remaining, EmbeddedMetrics.MILLISECONDS);
+		}
+		logger.log( line.toString() );
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	/**
+	 * Sets the maximum number of objects fetched at the same time.
+	 * @param concurrency
+	 * @return
+	 */
+	public BatchMARCHandler setConcurrency(int concurrency) {
+		this.concurrency = Math.max(1, concurrency);
+		return this;
+	}
+
+	public long getMaxObjectSize() {
+		return maxObjectSize;
+	}
+
+	/**
+	 * Sets the size, according to the event or once decompressed, above which an object is transformed on its own by
+	 * the {@link #getLargeObjectHandler() large object handler} rather than combined with others.  An object found to
+	 * be too large only once it is decompressed has been fetched once already.
+	 * @param maxObjectSize
+	 * @return
+	 */
+	public BatchMARCHandler setMaxObjectSize(long maxObjectSize) {
+		this.maxObjectSize = maxObjectSize;
+		return this;
+	}
+
+	public long getMaxBatchBytes() {
+		return maxBatchBytes;
+	}
+
+	/**
+	 * Sets the amount of decompressed source combined into one output.  Everything that is combined is held in memory
+	 * until it has been transformed; so is each group of objects fetched together, which is limited to this much as
+	 * stored, with each object limited to {@link #setMaxObjectSize(long) maxObjectSize} once decompressed.
+	 * @param maxBatchBytes
+	 * @return
+	 */
+	public BatchMARCHandler setMaxBatchBytes(long maxBatchBytes) {
+		this.maxBatchBytes = Math.max(1, maxBatchBytes);
+		return this;
+	}
+
+	/**
+	 * Sets the CloudWatch namespace of the metrics logged for each output.
+	 * @param metricsNamespace the namespace, or <code>null</code> not to log metrics.
+	 * @return
+	 */
+	public BatchMARCHandler setMetricsNamespace(String metricsNamespace) {
+		this.metricsNamespace = metricsNamespace;
+		return this;
+	}
+
+	public String getMetricsNamespace() {
+		return metricsNamespace;
+	}
+
+	/**
+	 * Gets the handler that large objects and checkpoints are given to, which can be configured like any other.
+	 * @return
+	 */
+	public MARCHandler getLargeObjectHandler() {
+		return largeObjects;
+	}
+
+	/**
+	 * Gets the S3 client: the one set with {@link #setClient(AmazonS3Client)}, or the one
+	 * {@link WarmResources#s3Client() shared} by every handler in the JVM.
+	 * @return
+	 */
+	protected AmazonS3Client getClient() {
+		return this.client != null ? this.client : WarmResources.s3Client();
+	}
+
+	protected BatchMARCHandler setClient(final AmazonS3Client client) {
+		this.client = client;
+		return this;
+	}
+
+	/**
+	 * An object named in a message, and once it is fetched, its content.
+	 */
+	private static class Item {
+
+		final String messageId;
+
+		final S3EventNotificationRecord action;
+
+		final String bucket;
+
+		final String key;
+
+		final String eTag;
+
+		// according to the event
+		final long size;
+
+		// decompressed
+		byte[] content;
+
+		// bytes of the object read, before any decompression
+		long sourceBytes;
+
+		long fetchNanos;
+
+		// counted as the transformer will split them
+		long records;
+
+		// whether the last record ends with a record terminator
+		boolean terminated = true;
+
+		// larger than the limit once decompressed, so not fetched in full
+		boolean oversized = false;
+
+		Item(String messageId, S3EventNotificationRecord action) {
+			this.messageId = messageId;
+			this.action = action;
+			this.bucket = action.getS3().getBucket().getName();
+			this.key = action.getS3().getObject().getKey();
+			this.eTag = action.getS3().getObject().geteTag();
+			Long size = action.getS3().getObject().getSizeAsLong();
+			this.size = size != null ? size : 0;
+		}
+
+		/**
+		 * Reads the object, unless it is more than <code>maxSize</code> bytes once decompressed.
+		 */
+		void fetch(AmazonS3Client client, long maxSize) throws IOException {
+			long started = System.nanoTime();
+			S3Object object = client.getObject(bucket, key);
+			try( CountingInputStream raw = new CountingInputStream(object.getObjectContent()) ) {
+				InputStream buffered = new BufferedInputStream(raw);
+				try( InputStream decompressed = Compression.detect(buffered).decompress(buffered) ) {
+					content = ByteStreams.toByteArray( new LimitInputStream(decompressed, maxSize + 1) );
+				}
+				sourceBytes = raw.getCount();
+			}
+			fetchNanos = System.nanoTime() - started;
+			if ( content.length > maxSize ) {
+				oversized = true;
+				content = null;
+				return;
+			}
+			try( RawRecordReader reader = new RawRecordReader(new ByteArrayInputStream(content)) ) {
+				byte[] record;
+				while( ( record = reader.next() ) != null ) {
+					terminated = record[record.length - 1] == RawRecordReader.RECORD_TERMINATOR;
+				}
+				records = reader.getRecordCount();
+			}
+		}
+
+		String describe() {
+			return bucket + "/" + key;
+		}
+	}
+
+	/**
+	 * The manifest stored next to a combined output: the objects whose records it holds, in order.  Serialized as JSON.
+	 */
+	public static class Manifest {
+
+		private final String output;
+
+		private final List<Entry> objects = new ArrayList<>();
+
+		private long records = 0;
+
+		Manifest(String output) {
+			this.output = output;
+		}
+
+		void add(Item item) {
+			objects.add( new Entry(item.describe(), item.eTag, item.messageId, item.sourceBytes, records, item.records) );
+			records += item.records;
+		}
+
+		/**
+		 * Gets the bucket and key of the output.
+		 * @return
+		 */
+		public String getOutput() {
+			return output;
+		}
+
+		public List<Entry> getObjects() {
+			return Collections.unmodifiableList(objects);
+		}
+
+		public long getRecords() {
+			return records;
+		}
+	}
+
+	/**
+	 * An object, as listed in a manifest.
+	 */
+	public static class Entry {
+
+		private final String source;
+
+		private final String eTag;
+
+		private final String messageId;
+
+		private final long bytes;
+
+		private final long firstRecord;
+
+		private final long records;
+
+		/**
+		 * @param source the bucket and key of the object.
+		 * @param eTag the object's ETag, according to the event.
+		 * @param messageId the ID of the message that named it.
+		 * @param bytes the size of the object as stored, before any decompression.
+		 * @param firstRecord the line of the output its first record is on, counting from 0.
+		 * @param records the number of records it holds.
+		 */
+		public Entry(String source, String eTag, String messageId, long bytes, long firstRecord, long records) {
+			this.source = source;
+			this.eTag = eTag;
+			this.messageId = messageId;
+			this.bytes = bytes;
+			this.firstRecord = firstRecord;
+			this.records = records;
+		}
+
+		public String getSource() {
+			return source;
+		}
+
+		public String getETag() {
+			return eTag;
+		}
+
+		public String getMessageId() {
+			return messageId;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		public long getFirstRecord() {
+			return firstRecord;
+		}
+
+		public long getRecords() {
+			return records;
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package edu.ncsu.lib.aws.handlers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+
+import edu.ncsu.lib.aws.s3.MultipartUploadOutputStream.UploadState;
+
+/**
+ * The saved progress of a transformation that did not finish within one invocation.
+ * <p>
+ *  A checkpoint records how far through the source object the transformation got (a byte offset at a record boundary,
+ *  and the number of records written up to it), which version of the source it was reading, and the state of the
+ *  suspended multipart upload of the output: the upload ID, the ETags of the parts uploaded, and the output written
+ *  since the last part.  It is stored as a small binary S3 object; the pending output makes up most of it.
+ * </p>
+ */
+public class Checkpoint {
+
+	private static final int MAGIC = 0x4D4A4350;
+
+	private static final int VERSION = 1;
+
+	private final String sourceKey;
+
+	private final String sourceETag;
+
+	private final long sourceLength;
+
+	private final long offset;
+
+	private final long records;
+
+	private final UploadState upload;
+
+	/**
+	 * @param sourceKey the key of the object being transformed.
+	 * @param sourceETag the ETag of the version being transformed, if known.
+	 * @param sourceLength the length of the object being transformed.
+	 * @param offset the offset of the first record not yet transformed.
+	 * @param records the number of records transformed so far.
+	 * @param upload the state of the output upload.
+	 */
+	public Checkpoint(String sourceKey, String sourceETag, long sourceLength, long offset, long records, UploadState upload) {
+		this.sourceKey = sourceKey;
+		this.sourceETag = sourceETag;
+		this.sourceLength = sourceLength;
+		this.offset = offset;
+		this.records = records;
+		this.upload = upload;
+	}
+
+	public String getSourceKey() {
+		return sourceKey;
+	}
+
+	public String getSourceETag() {
+		return sourceETag;
+	}
+
+	public long getSourceLength() {
+		return sourceLength;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public long getRecords() {
+		return records;
+	}
+
+	public UploadState getUpload() {
+		return upload;
+	}
+
+	/**
+	 * Stores this checkpoint in S3.
+	 * @param client the S3 client.
+	 * @param bucket the bucket to store the checkpoint in.
+	 * @param key the key to store the checkpoint under.
+	 * @throws IOException if the checkpoint could not be stored.
+	 */
+	public void save(AmazonS3 client, String bucket, String key) throws IOException {
+		byte[] data = toBytes();
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentType("application/octet-stream");
+		metadata.setContentLength(data.length);
+		try {
+			client.putObject( new PutObjectRequest(bucket, key, new ByteArrayInputStream(data), metadata) );
+		} catch( AmazonClientException acx ) {
+			throw new IOException("Unable to save checkpoint to " + bucket + "/" + key, acx);
+		}
+	}
+
+	/**
+	 * Reads a checkpoint from S3.
+	 * @param client the S3 client.
+	 * @param bucket the bucket the checkpoint is stored in.
+	 * @param key the key of the checkpoint.
+	 * @return the checkpoint, or <code>null</code> if there isn't one.
+	 * @throws IOException if the checkpoint exists but could not be read.
+	 */
+	public static Checkpoint load(AmazonS3 client, String bucket, String key) throws IOException {
+		try {
+			if ( !client.doesObjectExist(bucket, key) ) {
+				return null;
+			}
+			S3Object object = client.getObject(bucket, key);
+			try( InputStream input = object.getObjectContent() ) {
+				return read( new DataInputStream(input) );
+			}
+		} catch( AmazonClientException acx ) {
+			throw new IOException("Unable to load checkpoint from " + bucket + "/" + key, acx);
+		}
+	}
+
+	/**
+	 * Removes a checkpoint from S3.
+	 * @param client the S3 client.
+	 * @param bucket the bucket the checkpoint is stored in.
+	 * @param key the key of the checkpoint.
+	 */
+	public static void delete(AmazonS3 client, String bucket, String key) {
+		client.deleteObject(bucket, key);
+	}
+
+	byte[] toBytes() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream( upload.getPending().length + 256 );
+		DataOutputStream output = new DataOutputStream(bytes);
+		output.writeInt(MAGIC);
+		output.writeInt(VERSION);
+		output.writeUTF(sourceKey);
+		writeNullable(output, sourceETag);
+		output.writeLong(sourceLength);
+		output.writeLong(offset);
+		output.writeLong(records);
+		writeNullable(output, upload.getUploadId());
+		output.writeInt( upload.getParts().size() );
+		for( PartETag part : upload.getParts() ) {
+			output.writeInt( part.getPartNumber() );
+			output.writeUTF( part.getETag() );
+		}
+		output.writeLong( upload.getBytesWritten() );
+		output.writeInt( upload.getPending().length );
+		output.write( upload.getPending() );
+		output.flush();
+		return bytes.toByteArray();
+	}
+
+	static Checkpoint read(DataInputStream input) throws IOException {
+		if ( input.readInt() != MAGIC ) {
+			throw new IOException("Not a checkpoint");
+		}
+		int version = input.readInt();
+		if ( version != VERSION ) {
+			throw new IOException("Unsupported checkpoint version " + version);
+		}
+		String sourceKey = input.readUTF();
+		String sourceETag = readNullable(input);
+		long sourceLength = input.readLong();
+		long offset = input.readLong();
+		long records = input.readLong();
+		String uploadId = readNullable(input);
+		int partCount = input.readInt();
+		List<PartETag> parts = new ArrayList<>(partCount);
+		for( int i = 0; i < partCount; i++ ) {
+			int partNumber = input.readInt();
+			parts.add( new PartETag(partNumber, input.readUTF()) );
+		}
+		long bytesWritten = input.readLong();
+		byte[] pending = new byte[input.readInt()];
+		input.readFully(pending);
+		return new Checkpoint(sourceKey, sourceETag, sourceLength, offset, records, new UploadState(uploadId, parts, pending, bytesWritten));
+	}
+
+	private static void writeNullable(DataOutputStream output, String value) throws IOException {
+		output.writeBoolean(value != null);
+		if ( value != null ) {
+			output.writeUTF(value);
+		}
+	}
+
+	private static String readNullable(DataInputStream input) throws IOException {
+		return input.readBoolean() ? input.readUTF() : null;
+	}
+}
@@ -0,0 +1,138 @@
+package edu.ncsu.lib.aws.handlers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.amazonaws.util.json.Jackson;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Builds a log line in CloudWatch's embedded metric format, which CloudWatch Logs turns into metrics without any
+ * agent or API calls: the handler just logs it.
+ * <p>
+ *  A line is a JSON object with a <code>_aws</code> member that names the namespace, the dimensions and the metrics
+ *  (with their units) it carries; the values of the dimensions and metrics are members of the object itself, alongside
+ *  any other properties, which are kept in the log but don't become metrics.  Dimensions and properties are strings;
+ *  metrics are numbers.  Keep dimensions few and of low cardinality (every combination of their values is a separate
+ *  metric, and is charged for); anything that identifies a single object, such as its key, belongs in a property.
+ * </p>
+ * <p>
+ *  Not thread-safe; build a line on one thread and log it.
+ * </p>
+ * @see <a href="https://docs.aws.amazon.com/AmazonCloudWatch/latest/monitoring/CloudWatch_Embedded_Metric_Format_Specification.html">the specification</a>
+ */
+public class EmbeddedMetrics {
+
+	/** The unit <code>Bytes</code> */
+	public static final String BYTES = "Bytes";
+
+	/** The unit <code>Megabytes</code> */
+	public static final String MEGABYTES = "Megabytes";
+
+	/** The unit <code>Milliseconds</code> */
+	public static final String MILLISECONDS = "Milliseconds";
+
+	/** The unit <code>Microseconds</code> */
+	public static final String MICROSECONDS = "Microseconds";
+
+	/** The unit <code>Percent</code> */
+	public static final String PERCENT = "Percent";
+
+	/** The unit <code>Count</code> */
+	public static final String COUNT = "Count";
+
+	private final String namespace;
+
+	private final long timestamp;
+
+	private final Map<String, String> dimensions = new LinkedHashMap<>();
+
+	private final Map<String, String> properties = new LinkedHashMap<>();
+
+	private final Map<String, Number> values = new LinkedHashMap<>();
+
+	private final Map<String, String> units = new LinkedHashMap<>();
+
+	/**
+	 * Starts a line, timestamped now.
+	 * @param namespace the CloudWatch namespace the metrics go in.
+	 */
+	public EmbeddedMetrics(String namespace) {
+		this.namespace = namespace;
+		this.timestamp = System.currentTimeMillis();
+	}
+
+	/**
+	 * Adds a dimension, which every metric in the line is reported under.
+	 * @param name the dimension's name.
+	 * @param value its value; <code>null</code> is recorded as <code>"none"</code>, since CloudWatch needs a value.
+	 * @return this line.
+	 */
+	public EmbeddedMetrics dimension(String name, String value) {
+		dimensions.put(name, value != null ? value : "none");
+		return this;
+	}
+
+	/**
+	 * Adds a metric.
+	 * @param name the metric's name.
+	 * @param value its value.
+	 * @param unit its unit, such as {@link #BYTES}.
+	 * @return this line.
+	 */
+	public EmbeddedMetrics metric(String name, Number value, String unit) {
+		values.put(name, value);
+		units.put(name, unit);
+		return this;
+	}
+
+	/**
+	 * Adds a property, which is logged but isn't a metric.
+	 * @param name the property's name.
+	 * @param value its value; properties that are <code>null</code> are left out.
+	 * @return this line.
+	 */
+	public EmbeddedMetrics property(String name, Object value) {
+		if ( value != null ) {
+			properties.put(name, value.toString());
+		}
+		return this;
+	}
+
+	/**
+	 * Renders the line.
+	 * @return a single line of JSON.
+	 */
+	@Override
+	public String toString() {
+		ObjectNode line = Jackson.getObjectMapper().createObjectNode();
+		ObjectNode aws = line.putObject("_aws");
+		aws.put("Timestamp", timestamp);
+		ObjectNode directive = aws.putArray("CloudWatchMetrics").addObject();
+		directive.put("Namespace", namespace);
+		ArrayNode dimensionSet = directive.putArray("Dimensions").addArray();
+		for( String dimension : dimensions.keySet() ) {
+			dimensionSet.add(dimension);
+		}
+		ArrayNode metrics = directive.putArray("Metrics");
+		for( Map.Entry<String, String> unit : units.entrySet() ) {
+			metrics.addObject().put("Name", unit.getKey()).put("Unit", unit.getValue());
+		}
+		for( Map.Entry<String, String> dimension : dimensions.entrySet() ) {
+			line.put(dimension.getKey(), dimension.getValue());
+		}
+		for( Map.Entry<String, String> property : properties.entrySet() ) {
+			line.put(property.getKey(), property.getValue());
+		}
+		for( Map.Entry<String, Number> value : values.entrySet() ) {
+			Number number = value.getValue();
+			if ( number instanceof Double || number instanceof Float ) {
+				line.put(value.getKey(), number.doubleValue());
+			} else {
+				line.put(value.getKey(), number.longValue());
+			}
+		}
+		return Jackson.toJsonString(line);
+	}
+}
@@ -1,100 +1,1309 @@
 package edu.ncsu.lib.aws.handlers;
 
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.StringJoiner;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Timer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 
-import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import org.marc4j.MarcJsonWriter;
+
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.S3Event;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.event.S3EventNotification.S3EventNotificationRecord;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.PutObjectResult;
 import com.amazonaws.services.s3.model.S3Object;
+import com.google.common.io.ByteStreams;
 
+import edu.ncsu.lib.aws.s3.MultipartUploadOutputStream;
+import edu.ncsu.lib.aws.s3.RangedObjectInputStream;
+import edu.ncsu.lib.aws.s3.ShardedUploadOutputStream;
+import edu.ncsu.lib.io.BytePipe;
+import edu.ncsu.lib.io.CloseShieldOutputStream;
+import edu.ncsu.lib.io.Compression;
+import edu.ncsu.lib.io.IOMonitor;
+import edu.ncsu.lib.io.MemoryMonitor;
+import edu.ncsu.lib.io.ParallelGzipOutputStream;
+import edu.ncsu.lib.io.SpillBuffer;
+import edu.ncsu.lib.io.StreamPipeline;
+import edu.ncsu.lib.marc.ChangedRecordFilter;
 import edu.ncsu.lib.marc.MarcTransformer;
+import edu.ncsu.lib.marc.RecordHashes;
+import edu.ncsu.lib.marc.RecordIndex;
+import edu.ncsu.lib.marc.RecordIndexingOutputStream;
 
 /**
  * Sample event-driven AWS Lambda function that transforms MARC21 files uploaded to an S3 bucket into JSON then stores them into
  * a second S3 bucket.
+ * <p>
+ *  By default, output is uploaded to the second bucket while the transformation runs, in fixed-size parts of a
+ *  multipart upload; see {@link MultipartUploadOutputStream}.  Memory use is bounded by the part size and the number of
+ *  parts in flight, rather than growing with the size of the output, and nothing is written to local storage.  Large
+ *  source objects are likewise read with several concurrent ranged requests; see {@link RangedObjectInputStream}.
+ * </p>
+ * <p>
+ *  With {@link #setCompressOutput(boolean)}, the JSON is gzipped before it is uploaded, and stored with a
+ *  <code>Content-Encoding</code> of <code>gzip</code> under the same key, so clients that honour the header see the
+ *  same JSON as before.
+ * </p>
+ * <p>
+ *  Source objects that are gzipped or zlib-compressed (<code>.mrc.gz</code> uploads, for example) are recognized by
+ *  their first bytes and decompressed as they are read, whatever their key or metadata says.
+ * </p>
+ * <p>
+ *  With {@link #setShardedOutput(boolean)}, each object is instead written as newline-delimited JSON (one
+ *  MARC-in-JSON record per line) to a series of shards under <code>key + "/"</code>, each uploaded as soon as it is
+ *  full, followed by a manifest; see {@link ShardedUploadOutputStream}.  Sharded transformations are not
+ *  checkpointed.
+ * </p>
+ * <p>
+ *  With {@link #setRecordIndex(boolean)}, a {@link RecordIndex} of the records in each object is stored next to it,
+ *  under <code>key + ".idx"</code>, so that single records can be fetched by control number with ranged reads.  Only
+ *  uncompressed, unsharded output is indexed.
+ * </p>
+ * <p>
+ *  With {@link #setIncremental(boolean)}, only the records that are new or have changed since the object was last
+ *  transformed are transformed, and they are written under <code>key + ".delta"</code>, so that the full output under
+ *  <code>key</code> (and its index) is left as it was.  A {@link RecordHashes} table of every record's control number
+ *  and a hash of its raw bytes is stored under <code>key + ".hashes"</code> to compare the next version with, and the
+ *  control numbers of records that have disappeared are listed, one per line, under <code>key + ".deleted"</code>.
+ *  An object with no table yet, such as one transformed for the first time, is transformed in full, to
+ *  <code>key</code> as usual.
+ * </p>
+ * <p>
+ *  The S3 client and the transformers (with their converters and buffers) are kept in {@link WarmResources} between
+ *  invocations, so that a warm container does not set them up again, and are primed when the class is loaded, so that
+ *  a cold one has done most of its class loading before the first invocation.
+ * </p>
+ * <p>
+ *  For every object it transforms, the handler logs a line of metrics in CloudWatch's embedded metric format (see
+ *  {@link EmbeddedMetrics}) under the {@link #setMetricsNamespace(String) metrics namespace}: bytes read and stored,
+ *  records, the time spent fetching, transforming and uploading, per-record latency, the peak heap in use relative to
+ *  the function's memory, and the time left when it finished.
+ * </p>
  * @author adam_constabaris@ncsu.edu
  */
 public class MARCHandler implements RequestHandler<S3Event, String> {
 
+	/** The bucket transformed output is written to */
+	public static final String OUTPUT_BUCKET = "ingest-packages";
+
+	/** The default number of objects transformed concurrently */
+	public static final int DEFAULT_CONCURRENCY = 4;
+
+	/** The default throughput assumed before any object has been transformed: 4MB per second */
+	public static final long DEFAULT_EXPECTED_THROUGHPUT = 4L * 1024 * 1024;
+
+	/** The default time left before the function times out when the handler returns: 1 second */
+	public static final long DEFAULT_DEADLINE_MARGIN = 1000L;
+
+	/** The default size at which objects are read in concurrent ranges: 32MB */
+	public static final long DEFAULT_RANGED_GET_THRESHOLD = 32L * 1024 * 1024;
+
+	/** The default prefix of checkpoint keys */
+	public static final String DEFAULT_CHECKPOINT_PREFIX = "checkpoints/";
+
+	/** The default prefix of the keys of the partial index and hashes saved with checkpoints */
+	public static final String DEFAULT_PARTIAL_PREFIX = "checkpoint-parts/";
+
+	/** The default time before the deadline at which transformations stop and save their progress: 10 seconds */
+	public static final long DEFAULT_CHECKPOINT_MARGIN = 10000L;
+
+	/** The suffix of record index keys */
+	public static final String INDEX_SUFFIX = ".idx";
+
+	/** The suffix of record hash table keys */
+	public static final String HASHES_SUFFIX = ".hashes";
+
+	/** The suffix of deleted record list keys */
+	public static final String DELETIONS_SUFFIX = ".deleted";
+
+	/** The suffix of the key of the new and changed records in an incremental transformation */
+	public static final String DELTA_SUFFIX = ".delta";
+
+	/** The default CloudWatch namespace of the metrics logged for each object */
+	public static final String DEFAULT_METRICS_NAMESPACE = "MARCHandler";
+
+	// the ratio of output to input size assumed when preallocating staged output
+	private static final int EXPECTED_EXPANSION = 3;
+
+	static {
+		// loaded during the function's initialization, so this is done before the first invocation arrives
+		WarmResources.prime();
+	}
+
 	private AmazonS3Client client = null;
 
+	private boolean streamingUpload = true;
+
+	private int partSize = MultipartUploadOutputStream.DEFAULT_PART_SIZE;
+
+	private int partsInFlight = MultipartUploadOutputStream.DEFAULT_PARTS_IN_FLIGHT;
+
+	private int concurrency = DEFAULT_CONCURRENCY;
+
+	private long expectedThroughput = DEFAULT_EXPECTED_THROUGHPUT;
+
+	private long deadlineMargin = DEFAULT_DEADLINE_MARGIN;
+
+	private boolean checkpointing = false;
+
+	private String checkpointPrefix = DEFAULT_CHECKPOINT_PREFIX;
+
+	private String partialPrefix = DEFAULT_PARTIAL_PREFIX;
+
+	private long checkpointMargin = DEFAULT_CHECKPOINT_MARGIN;
+
+	private long rangedGetThreshold = DEFAULT_RANGED_GET_THRESHOLD;
+
+	private int rangeSize = RangedObjectInputStream.DEFAULT_RANGE_SIZE;
+
+	private int rangePrefetch = RangedObjectInputStream.DEFAULT_PREFETCH;
+
+	private long uploadMemoryLimit = Math.min(64L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 4);
+
+	private long spillThreshold = 0;
+
+	private boolean compressOutput = false;
+
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+	private int compressionBlockSize = ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE;
+
+	private boolean shardedOutput = false;
+
+	private long shardRecords = ShardedUploadOutputStream.DEFAULT_MAX_RECORDS;
+
+	private int shardBytes = ShardedUploadOutputStream.DEFAULT_MAX_BYTES;
+
+	private int shardsInFlight = ShardedUploadOutputStream.DEFAULT_SHARDS_IN_FLIGHT;
+
+	private boolean recordIndex = false;
+
+	private boolean incremental = false;
+
+	private String metricsNamespace = DEFAULT_METRICS_NAMESPACE;
+
 	/**
 	 * Main handler function.
+	 * <p>
+	 *  The objects named in the event are transformed concurrently, up to {@link #setConcurrency(int) concurrency} at a
+	 *  time, largest first (according to the sizes in the event), so the longest transformation does not end up
+	 *  starting last.  An object is only started if it can be expected to finish before the function times out, based
+	 *  on the throughput of the objects finished so far (or {@link #setExpectedThroughput(long) expectedThroughput}
+	 *  before any have finished).  The handler returns shortly before the timeout whether or not everything has
+	 *  finished.
+	 * </p>
+	 * <p>
+	 *  With {@link #setCheckpointing(boolean) checkpointing} (when streaming), objects are started whatever their size,
+	 *  and a transformation that is still running {@link #setCheckpointMargin(long) checkpointMargin} before the
+	 *  deadline stops at the next batch of records and saves a {@link Checkpoint} to the source bucket, under the
+	 *  {@link #setCheckpointPrefix(String) checkpoint prefix} followed by the object's key.  Saving the checkpoint is
+	 *  the hand-off: the function's S3 trigger must cover the checkpoint keys, so that the next invocation receives an
+	 *  event for the checkpoint and resumes the transformation from the saved offset with a ranged read, appending to
+	 *  the same multipart upload.  An event for the object itself always starts from the beginning, abandoning any
+	 *  transformation of it that is in progress.  The partial record index and hashes saved with a checkpoint go under
+	 *  the {@link #setPartialPrefix(String) partial prefix} instead, which the trigger should not cover; events for
+	 *  them are skipped.
+	 * </p>
 	 * @param input an event that may contain one or more S3 upload notifications.
 	 * @param context the Lambda context.
+	 * @return a comma-separated list with an entry for each object in the event, in order: the result of the upload,
+	 *   <code>FAILED:bucket/key</code> if the transformation failed, <code>UNFINISHED:bucket/key</code> if it was not
+	 *   started or did not finish in time, <code>CONTINUED:bucket/key@offset</code> if it was checkpointed, or
+	 *   <code>SKIPPED:bucket/key</code> for a checkpoint that no longer exists or a partial index or hashes saved with
+	 *   one.
 	 */
 	@Override
 	public String handleRequest(S3Event input, Context context) {
-		AmazonS3Client client = getClient();
+		return String.join(",", transformObjects(input, context));
+	}
+
+	/**
+	 * Transforms the objects named in an event, as {@link #handleRequest(S3Event, Context)} describes.
+	 * @return the entries of the handler's result, one for each object in the event, in order.
+	 */
+	List<String> transformObjects(S3Event input, Context context) {
+		final long started = System.currentTimeMillis();
+		final int remaining = context.getRemainingTimeInMillis();
+		// contexts that don't report a deadline (such as local test harnesses) are given all the time they need
+		final long deadline = remaining > 0 ? started + remaining - deadlineMargin : Long.MAX_VALUE;
+
+		WarmResources.invocationStarted();
+		LambdaLogger logger = context.getLogger();
+
+		List<S3EventNotificationRecord> actions = input.getRecords();
+		if ( actions == null || actions.isEmpty() ) {
+			return new ArrayList<>();
+		}
 
 		/**
-		 * sample transformation; this writes incoming MARC21 data to MARC-In-JSON format
+		 * sample transformation; this writes incoming MARC21 data to MARC-In-JSON format.  Transformers are kept between
+		 * invocations, so every setting is made here, whatever the last invocation left behind.
 		 */
-		MarcTransformer transformer = new MarcTransformer();
-		
-		LambdaLogger logger = context.getLogger();
-		
-		List<PutObjectResult> results = new ArrayList<>();
+		final MarcTransformer transformer = WarmResources.transformers().acquire();
+		transformer.getStatistics().reset();
+		// in sharded mode, one record per line, so that every line of a shard is a JSON document
+		transformer.setFormat( shardedOutput ? MarcJsonWriter.MARC_IN_JSON : MarcJsonWriter.MARC_JSON )
+			.setGzip( compressOutput && !shardedOutput );
+		if ( compressOutput && !shardedOutput ) {
+			// objects are compressed side by side, so they share the processors between them
+			transformer.setCompressionLevel(compressionLevel)
+				.setCompressionBlockSize(compressionBlockSize)
+				.setCompressionThreads( Runtime.getRuntime().availableProcessors() / Math.min(concurrency, actions.size()) );
+		}
+		List<S3EventNotificationRecord> schedule = new ArrayList<>(actions);
+		schedule.sort( Comparator.comparingLong(MARCHandler::objectSize).reversed() );
 
-		input.getRecords().forEach((action) -> {
-			logger.log("Action: " + action.toString());
-			String bucket = action.getS3().getBucket().getName();
-			String s3Key = action.getS3().getObject().getKey();
-			logger.log("Retrieving " + s3Key + " from bucket " + bucket);
+		final Throughput throughput = new Throughput();
+		final long memoryPerObject = uploadMemoryLimit / Math.min(concurrency, actions.size());
+		final long spillPerObject = getSpillThreshold(context) / Math.min(concurrency, actions.size());
+		// the heap is shared, so its peak is the invocation's rather than any one object's
+		final MemoryMonitor memory = new MemoryMonitor(64);
+		final Timer memoryTimer = metricsNamespace != null ? new Timer("memory-monitor", true) : null;
+		if ( memoryTimer != null ) {
+			memoryTimer.schedule(memory, 0, 100);
+		}
+		ExecutorService workers = Executors.newFixedThreadPool(Math.min(concurrency, actions.size()), (r) -> {
+			Thread t = new Thread(r, "marc-handler-worker");
+			t.setDaemon(true);
+			return t;
+		});
+		Map<S3EventNotificationRecord, Future<String>> pending = new IdentityHashMap<>();
+		try {
+			for( S3EventNotificationRecord action : schedule ) {
+				pending.put(action, workers.submit( () -> {
+					long size = objectSize(action);
+					long start = System.currentTimeMillis();
+					// with checkpoints, anything can be started so long as there is time to save its progress
+					long needed = throughput.estimateMillis(size);
+					if ( isCheckpointing() ) {
+						needed = Math.min(needed, checkpointMargin);
+					}
+					if ( start + needed > deadline ) {
+						logger.log("Not enough time left to transform " + describe(action) + " (" + size + " bytes)");
+						return null;
+					}
+					ObjectMetrics metrics = new ObjectMetrics();
+					String result = null;
+					try {
+						result = transform(transformer, action, memoryPerObject, spillPerObject, deadline, metrics, logger);
+					} finally {
+						logMetrics(action, result, metrics, System.currentTimeMillis() - start, memory, context, logger);
+					}
+					if ( !result.startsWith("CONTINUED:") ) {
+						throughput.add(size, System.currentTimeMillis() - start);
+					}
+					return result;
+				}));
+			}
 
-			/**
-			 * S3 PUT contents will be buffered unless we set the content-length in the metadata
-			 * ahead of time.  We can't do that without storing the stream somewhere, so to reduce
-			 * memory needs we will send the transformed output to a temporary file before uploading
-			 * the result to the next bucket.
-			 */
-			File tempFile = null;
+			List<String> results = new ArrayList<>(actions.size());
+			for( S3EventNotificationRecord action : actions ) {
+				Future<String> result = pending.get(action);
+				try {
+					String r = deadline == Long.MAX_VALUE
+							? result.get()
+							: result.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+					results.add( r != null ? r : "UNFINISHED:" + describe(action) );
+				} catch( TimeoutException tx ) {
+					result.cancel(true);
+					logger.log("Ran out of time transforming " + describe(action));
+					results.add("UNFINISHED:" + describe(action));
+				} catch( ExecutionException ex ) {
+					logger.log("Unable to transform " + describe(action) + ": " + ex.getCause());
+					results.add("FAILED:" + describe(action));
+				} catch( InterruptedException ix ) {
+					Thread.currentThread().interrupt();
+					results.add("UNFINISHED:" + describe(action));
+				}
+			}
+			return results;
+		} finally {
+			workers.shutdownNow();
+			// a transformation that ran out of time may still be using the transformer, in which case it isn't kept
+			boolean idle;
 			try {
-				tempFile = File.createTempFile("lambda-transform-", ".json");
-			} catch (IOException iox) {
-				logger.log("unable to create temporary file to buffer output:" + iox.getMessage());
-				tempFile = null;
-			}
-			if (tempFile != null) {
-				S3Object object = client.getObject(bucket, s3Key);
-				object.getObjectMetadata().getContentLength();
-
-				try (BufferedOutputStream output = new BufferedOutputStream(new FileOutputStream(tempFile))) {
-					transformer.toJSON(object.getObjectContent(), output);
-					output.flush();
-					logger.log("Temporary file created.  Starting PUT to ingest-packages bucket");
-					ObjectMetadata metadata = new ObjectMetadata();
-					metadata.setContentType("application/json");
-					PutObjectResult result = client.putObject(new PutObjectRequest("ingest-packages", s3Key, tempFile));
-					results.add(result);
-				} catch (IOException iox) {
-					logger.log("Unable to transform input: " + iox.getMessage());
+				idle = workers.awaitTermination(100, TimeUnit.MILLISECONDS);
+			} catch( InterruptedException ix ) {
+				Thread.currentThread().interrupt();
+				idle = false;
+			}
+			if ( idle ) {
+				WarmResources.transformers().release(transformer);
+			}
+			if ( memoryTimer != null ) {
+				memoryTimer.cancel();
+			}
+			logger.log( WarmResources.describe() );
+		}
+	}
+
+	/**
+	 * Transforms a single object, or resumes the transformation saved in a checkpoint.
+	 * @return the entry for the object in the handler's result.
+	 */
+	private String transform(MarcTransformer transformer, S3EventNotificationRecord action, long memoryLimit, long spillThreshold, long deadline, ObjectMetrics metrics, LambdaLogger logger) throws IOException {
+		logger.log("Action: " + action.toString());
+		String bucket = action.getS3().getBucket().getName();
+		String s3Key = action.getS3().getObject().getKey();
+		ObjectMetadata metadata = new ObjectMetadata();
+		if ( shardedOutput ) {
+			// each shard is compressed on its own, once it is full
+			metadata.setContentType("application/x-ndjson");
+		} else {
+			metadata.setContentType("application/json");
+			if ( compressOutput ) {
+				metadata.setContentEncoding("gzip");
+			}
+		}
+
+		if ( !isCheckpointing() ) {
+			logger.log("Retrieving " + s3Key + " from bucket " + bucket);
+			Source source = openSource(bucket, s3Key, objectSize(action), 0);
+			RecordHashes previous = incremental ? loadHashes(OUTPUT_BUCKET, s3Key + HASHES_SUFFIX) : null;
+			ChangedRecordFilter changes = incremental ? new ChangedRecordFilter(previous, new RecordHashes.Builder()) : null;
+			String outputKey = outputKey(s3Key, previous);
+			PutObjectResult result;
+			if ( shardedOutput ) {
+				result = transformSharded(transformer, source.input, bucket + "/" + s3Key, outputKey, metadata, memoryLimit, changes, metrics, logger);
+			} else {
+				// the index is of the full output, which a delta leaves alone
+				RecordIndex.Builder index = isIndexing() && previous == null ? new RecordIndex.Builder() : null;
+				result = streamingUpload
+						? transformStreaming(transformer, source.input, outputKey, metadata, memoryLimit, index, changes, metrics, logger)
+						: transformStaged(transformer, source, outputKey, metadata, spillThreshold, objectSize(action), index, changes, metrics, logger);
+				if ( index != null ) {
+					saveIndex(index, OUTPUT_BUCKET, s3Key + INDEX_SUFFIX, logger);
+				}
+			}
+			if ( changes != null ) {
+				saveChanges(changes, s3Key, logger);
+			}
+			source.log(bucket + "/" + s3Key, logger);
+			metrics.read(source);
+			return result.toString();
+		}
+
+		if ( s3Key.startsWith(partialPrefix) ) {
+			// saved alongside a checkpoint, and only read when it is resumed
+			logger.log("Skipping " + bucket + "/" + s3Key + ", which is part of a checkpoint");
+			return "SKIPPED:" + bucket + "/" + s3Key;
+		}
+		Checkpoint checkpoint = null;
+		if ( s3Key.startsWith(checkpointPrefix) ) {
+			// a continuation: the checkpoint saved by an earlier invocation says where to pick up
+			checkpoint = Checkpoint.load(getClient(), bucket, s3Key);
+			if ( checkpoint == null ) {
+				logger.log("Checkpoint " + bucket + "/" + s3Key + " is gone; the transformation has finished or been superseded");
+				return "SKIPPED:" + bucket + "/" + s3Key;
+			}
+			s3Key = checkpoint.getSourceKey();
+		} else {
+			// a new version of the object supersedes any transformation of an older one that is still in progress
+			discard( Checkpoint.load(getClient(), bucket, checkpointPrefix + s3Key), bucket, checkpointPrefix + s3Key );
+		}
+		ObjectMetadata current = getClient().getObjectMetadata(bucket, s3Key);
+		if ( checkpoint != null && !( Objects.equals(current.getETag(), checkpoint.getSourceETag()) && current.getContentLength() == checkpoint.getSourceLength() ) ) {
+			logger.log("Source " + bucket + "/" + s3Key + " has changed since it was checkpointed; starting over");
+			discard(checkpoint, bucket, checkpointPrefix + s3Key);
+			checkpoint = null;
+		}
+		long startOffset = checkpoint != null ? checkpoint.getOffset() : 0;
+		long startRecords = checkpoint != null ? checkpoint.getRecords() : 0;
+		logger.log("Retrieving " + s3Key + " from bucket " + bucket + ( startOffset > 0 ? " starting at " + startOffset : "" ));
+		Source source = openSource(bucket, s3Key, current.getContentLength(), startOffset);
+
+		// the table isn't replaced until the transformation finishes, so every invocation picks the same output
+		RecordHashes previous = incremental ? loadHashes(OUTPUT_BUCKET, s3Key + HASHES_SUFFIX) : null;
+		final String outputKey = outputKey(s3Key, previous);
+		MultipartUploadOutputStream upload = new MultipartUploadOutputStream(getClient(), OUTPUT_BUCKET, outputKey, metadata)
+				.setPartSize(partSize)
+				.setPartsInFlight(partsInFlight)
+				.setMemoryLimit(memoryLimit);
+		final long stopAt = deadline == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - checkpointMargin;
+		final long[] progress = { startOffset, startRecords };
+		final boolean[] stopped = { false };
+		// the index of the output so far travels with the checkpoint
+		final String partialIndexKey = partialPrefix + s3Key + INDEX_SUFFIX;
+		RecordIndex.Builder index = null;
+		if ( isIndexing() && previous == null ) {
+			index = new RecordIndex.Builder();
+			byte[] partial = checkpoint != null ? loadSidecar(bucket, partialIndexKey) : null;
+			if ( partial != null ) {
+				index.addAll( new RecordIndex(ByteBuffer.wrap(partial)) );
+			}
+		}
+		// as do the hashes of the records read so far
+		final String partialHashesKey = partialPrefix + s3Key + HASHES_SUFFIX;
+		ChangedRecordFilter changes = null;
+		if ( incremental ) {
+			changes = new ChangedRecordFilter(previous, new RecordHashes.Builder());
+			RecordHashes partial = checkpoint != null ? loadHashes(bucket, partialHashesKey) : null;
+			if ( partial != null ) {
+				changes.getHashes().addAll(partial);
+			}
+		}
+		boolean transformed = false;
+		try {
+			if ( checkpoint != null ) {
+				upload.resume( checkpoint.getUpload() );
+			}
+			OutputStream output = new CloseShieldOutputStream(upload);
+			if ( index != null ) {
+				output = new RecordIndexingOutputStream(output, index, upload.getBytesWritten());
+			}
+			transformer.toJSON(source.input, output, (offset, records) -> {
+				progress[0] = startOffset + offset;
+				progress[1] = startRecords + records;
+				stopped[0] = System.currentTimeMillis() >= stopAt;
+				return !stopped[0];
+			}, changes, metrics.monitor);
+			metrics.read(source);
+			// the decompressed length isn't known, so a compressed source stopped at its very end gets an empty continuation
+			if ( stopped[0] && ( source.compression != Compression.NONE || progress[0] < current.getContentLength() ) ) {
+				Checkpoint next = new Checkpoint(s3Key, current.getETag(), current.getContentLength(), progress[0], progress[1], upload.suspend());
+				// saved first, so that the checkpoint never triggers a continuation without it
+				if ( index != null ) {
+					saveSidecar(index.toByteArray(), "application/octet-stream", bucket, partialIndexKey);
+				}
+				if ( changes != null ) {
+					saveSidecar(changes.getHashes().toByteArray(), "application/octet-stream", bucket, partialHashesKey);
 				}
+				next.save(getClient(), bucket, checkpointPrefix + s3Key);
+				transformed = true;
+				source.log(bucket + "/" + s3Key, logger);
+				logger.log("Stopped " + bucket + "/" + s3Key + " at " + progress[0] + " of " + current.getContentLength() + " bytes (" + progress[1] + " records); continuing from " + checkpointPrefix + s3Key);
+				return "CONTINUED:" + bucket + "/" + s3Key + "@" + progress[0];
+			}
+			transformed = true;
+		} finally {
+			if ( !transformed ) {
+				upload.abort();
 			}
+		}
+		upload.close();
+		if ( index != null ) {
+			saveIndex(index, OUTPUT_BUCKET, s3Key + INDEX_SUFFIX, logger);
+		}
+		if ( changes != null ) {
+			saveChanges(changes, s3Key, logger);
+		}
+		if ( checkpoint != null ) {
+			Checkpoint.delete(getClient(), bucket, checkpointPrefix + s3Key);
+			getClient().deleteObject(bucket, partialIndexKey);
+			getClient().deleteObject(bucket, partialHashesKey);
+		}
+		source.log(bucket + "/" + s3Key, logger);
+		logger.log("Uploaded " + upload.getBytesWritten() + " bytes (" + progress[1] + " records) to " + OUTPUT_BUCKET + "/" + outputKey);
+		return upload.getResult().toString();
+	}
 
+	/**
+	 * Opens an object for transformation, decompressing it if it is gzipped or deflated.
+	 * <p>
+	 *  Compressed objects are recognized by their first bytes, and decompressed on a stage of a {@link StreamPipeline}
+	 *  of their own, so that decompression overlaps with conversion.  Offsets into a compressed object are offsets
+	 *  into its decompressed content: as a compressed stream can't be entered partway through, resuming reads the
+	 *  object from the start and skips the content already transformed.
+	 * </p>
+	 * @param length the length of the object, if known, or of the event's version of it.
+	 * @param offset the offset to start reading at.
+	 */
+	private Source openSource(String bucket, String s3Key, long length, long offset) throws IOException {
+		Compression compression;
+		InputStream opened;
+		if ( offset == 0 ) {
+			opened = new BufferedInputStream( open(bucket, s3Key, length, 0) );
+			compression = Compression.detect(opened);
+		} else {
+			compression = sniff(bucket, s3Key);
+			opened = open(bucket, s3Key, length, compression == Compression.NONE ? offset : 0);
+		}
+		if ( compression == Compression.NONE ) {
+			return new Source(opened, compression, null);
+		}
+		final InputStream raw = opened;
+		StreamPipeline pipeline = new StreamPipeline( () -> raw, BytePipe.DEFAULT_CAPACITY );
+		StreamPipeline.Stage<Long> decompression = pipeline.addStage("decompress", (in, out) -> {
+			try( InputStream decompressed = compression.decompress(in) ) {
+				return ByteStreams.copy(decompressed, out);
+			}
 		});
-		StringJoiner joiner = new StringJoiner(",");
-		results.forEach((r) -> joiner.add(r.toString()));
-		return joiner.toString();
+		InputStream content;
+		try {
+			content = pipeline.start();
+		} catch( InterruptedException ix ) {
+			Thread.currentThread().interrupt();
+			raw.close();
+			throw new InterruptedIOException("Interrupted waiting to decompress " + bucket + "/" + s3Key);
+		}
+		if ( offset > 0 ) {
+			ByteStreams.skipFully(content, offset);
+		}
+		return new Source(content, compression, decompression);
 	}
 
-	protected AmazonS3Client getClient() {
-		if (this.client == null) {
-			this.client = new AmazonS3Client(new DefaultAWSCredentialsProviderChain());
+	/**
+	 * Reads just enough of the start of an object to tell whether it is compressed.
+	 */
+	private Compression sniff(String bucket, String s3Key) throws IOException {
+		S3Object head = getClient().getObject( new GetObjectRequest(bucket, s3Key).withRange(0, Compression.MAGIC_LENGTH - 1) );
+		try( InputStream input = head.getObjectContent() ) {
+			byte[] magic = new byte[Compression.MAGIC_LENGTH];
+			return Compression.detect(magic, ByteStreams.read(input, magic, 0, magic.length));
+		}
+	}
+
+	/**
+	 * Opens an object for reading, in concurrent ranges if it is large enough.
+	 * @param length the length of the object, if known, or of the event's version of it.
+	 * @param offset the offset to start reading at.
+	 */
+	private InputStream open(String bucket, String s3Key, long length, long offset) {
+		if ( offset > 0 && offset >= length ) {
+			return new ByteArrayInputStream(new byte[0]);
+		}
+		if ( length >= rangedGetThreshold ) {
+			// the event's size may be stale if the object has since been replaced, so let the stream look it up
+			return new RangedObjectInputStream(getClient(), bucket, s3Key, -1)
+					.setRangeSize(rangeSize)
+					.setPrefetch(rangePrefetch)
+					.setStartOffset(offset);
+		}
+		GetObjectRequest request = new GetObjectRequest(bucket, s3Key);
+		if ( offset > 0 ) {
+			request.setRange(offset);
+		}
+		return getClient().getObject(request).getObjectContent();
+	}
+
+	/**
+	 * Abandons the transformation saved in a checkpoint, if there is one.
+	 */
+	private void discard(Checkpoint checkpoint, String bucket, String checkpointKey) {
+		if ( checkpoint == null ) {
+			return;
+		}
+		if ( checkpoint.getUpload().getUploadId() != null ) {
+			// the upload is of the delta if the object had been transformed incrementally before
+			for( String outputKey : new String[] { checkpoint.getSourceKey(), checkpoint.getSourceKey() + DELTA_SUFFIX } ) {
+				try {
+					getClient().abortMultipartUpload( new AbortMultipartUploadRequest(OUTPUT_BUCKET, outputKey, checkpoint.getUpload().getUploadId()) );
+				} catch( AmazonClientException acx ) {
+					// already completed or aborted, or not the upload's key
+				}
+			}
+		}
+		Checkpoint.delete(getClient(), bucket, checkpointKey);
+		getClient().deleteObject(bucket, partialPrefix + checkpoint.getSourceKey() + INDEX_SUFFIX);
+		getClient().deleteObject(bucket, partialPrefix + checkpoint.getSourceKey() + HASHES_SUFFIX);
+	}
+
+	/**
+	 * Stores the finished record index of an object next to it.
+	 */
+	private void saveIndex(RecordIndex.Builder index, String bucket, String key, LambdaLogger logger) throws IOException {
+		saveSidecar(index.toByteArray(), "application/octet-stream", bucket, key);
+		logger.log("Indexed " + index.size() + " records in " + bucket + "/" + key);
+	}
+
+	/**
+	 * Stores the record hashes and the list of deleted records of an object once it has been read in full.  The
+	 * hashes are stored last, so that the deletions are never lost if the function fails in between.
+	 */
+	private void saveChanges(ChangedRecordFilter changes, String s3Key, LambdaLogger logger) throws IOException {
+		List<String> deletions = changes.getDeletions();
+		StringBuilder list = new StringBuilder();
+		for( String controlNumber : deletions ) {
+			list.append(controlNumber).append('\n');
+		}
+		saveSidecar(list.toString().getBytes(StandardCharsets.UTF_8), "text/plain; charset=UTF-8", OUTPUT_BUCKET, s3Key + DELETIONS_SUFFIX);
+		saveSidecar(changes.getHashes().toByteArray(), "application/octet-stream", OUTPUT_BUCKET, s3Key + HASHES_SUFFIX);
+		logger.log("Records of " + OUTPUT_BUCKET + "/" + s3Key + ": " + changes + ", deleted=" + deletions.size());
+	}
+
+	/**
+	 * Gets the key the output of an object goes to: the object's own, or that of the delta if there is a table of its
+	 * records to compare with.
+	 */
+	private static String outputKey(String s3Key, RecordHashes previous) {
+		return previous != null ? s3Key + DELTA_SUFFIX : s3Key;
+	}
+
+	private RecordHashes loadHashes(String bucket, String key) throws IOException {
+		byte[] data = loadSidecar(bucket, key);
+		return data != null ? new RecordHashes(ByteBuffer.wrap(data)) : null;
+	}
+
+	/**
+	 * Stores a small object that accompanies the output or a checkpoint.
+	 */
+	private void saveSidecar(byte[] data, String contentType, String bucket, String key) throws IOException {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentType(contentType);
+		metadata.setContentLength(data.length);
+		try {
+			getClient().putObject( new PutObjectRequest(bucket, key, new ByteArrayInputStream(data), metadata) );
+		} catch( AmazonClientException acx ) {
+			throw new IOException("Unable to save " + bucket + "/" + key, acx);
+		}
+	}
+
+	/**
+	 * Reads a small object that accompanies the output or a checkpoint.
+	 * @return the object's content, or <code>null</code> if there is no such object.
+	 */
+	private byte[] loadSidecar(String bucket, String key) throws IOException {
+		try {
+			if ( !getClient().doesObjectExist(bucket, key) ) {
+				return null;
+			}
+			try( InputStream input = getClient().getObject(bucket, key).getObjectContent() ) {
+				return ByteStreams.toByteArray(input);
+			}
+		} catch( AmazonClientException acx ) {
+			throw new IOException("Unable to load " + bucket + "/" + key, acx);
+		}
+	}
+
+	/**
+	 * Adds records written to an output to an index, if there is one.
+	 */
+	private static OutputStream indexed(OutputStream output, RecordIndex.Builder index) {
+		return index != null ? new RecordIndexingOutputStream(output, index) : output;
+	}
+
+	/**
+	 * Transforms an object while uploading the output as a multipart upload, with bounded memory and no temporary
+	 * file.  If the transformation fails, the upload is aborted.
+	 */
+	private PutObjectResult transformStreaming(MarcTransformer transformer, InputStream source, String s3Key, ObjectMetadata metadata, long memoryLimit, RecordIndex.Builder index, ChangedRecordFilter changes, ObjectMetrics metrics, LambdaLogger logger) throws IOException {
+		MultipartUploadOutputStream upload = new MultipartUploadOutputStream(getClient(), OUTPUT_BUCKET, s3Key, metadata)
+				.setPartSize(partSize)
+				.setPartsInFlight(partsInFlight)
+				.setMemoryLimit(memoryLimit);
+		boolean transformed = false;
+		try {
+			// the transformer closes its output even when it fails, so keep it from completing the upload
+			transformer.toJSON(source, indexed(new CloseShieldOutputStream(upload), index), null, changes, metrics.monitor);
+			transformed = true;
+		} finally {
+			if ( !transformed ) {
+				upload.abort();
+			}
+		}
+		upload.close();
+		logger.log("Uploaded " + upload.getBytesWritten() + " bytes to " + OUTPUT_BUCKET + "/" + s3Key);
+		return upload.getResult();
+	}
+
+	/**
+	 * Transforms an object to newline-delimited JSON shards under <code>s3Key + "/"</code>, uploading each shard while
+	 * the transformation continues.  If the transformation fails, no manifest is written.
+	 * @return the result of uploading the manifest.
+	 */
+	private PutObjectResult transformSharded(MarcTransformer transformer, InputStream source, String description, String s3Key, ObjectMetadata metadata, long memoryLimit, ChangedRecordFilter changes, ObjectMetrics metrics, LambdaLogger logger) throws IOException {
+		ShardedUploadOutputStream shards = new ShardedUploadOutputStream(getClient(), OUTPUT_BUCKET, s3Key + "/", metadata)
+				.setMaxRecords(shardRecords)
+				.setMaxBytes(shardBytes)
+				.setShardsInFlight(shardsInFlight)
+				.setMemoryLimit(memoryLimit)
+				.setGzip(compressOutput)
+				.setCompressionLevel(compressionLevel)
+				.setSource(description);
+		boolean transformed = false;
+		try {
+			transformer.toJSON(source, new CloseShieldOutputStream(shards), null, changes, metrics.monitor);
+			transformed = true;
+		} finally {
+			if ( !transformed ) {
+				shards.abort();
+			}
+		}
+		shards.close();
+		// shards are compressed after the transformer has written them
+		metrics.stored = shards.getBytesWritten();
+		logger.log("Uploaded " + shards.getBytesWritten() + " bytes (" + shards.getRecords() + " records) in " + shards.getShardCount() + " shards to " + OUTPUT_BUCKET + "/" + s3Key + "/");
+		return shards.getResult();
+	}
+
+	/**
+	 * Transforms an object into a {@link SpillBuffer}, then uploads the buffer.
+	 * <p>
+	 *  S3 PUT contents will be buffered unless we set the content-length in the metadata ahead of time, and we can't
+	 *  know that without storing the stream somewhere.  Output up to <code>spillThreshold</code> bytes is kept in
+	 *  memory, so small objects never touch the disk; anything more goes to a temporary file, which needs as much
+	 *  temporary storage as the rest of the output takes up.
+	 * </p>
+	 */
+	private PutObjectResult transformStaged(MarcTransformer transformer, Source source, String s3Key, ObjectMetadata metadata, long spillThreshold, long size, RecordIndex.Builder index, ChangedRecordFilter changes, ObjectMetrics metrics, LambdaLogger logger) throws IOException {
+		SpillBuffer buffer = new SpillBuffer(spillThreshold);
+		if ( source.compression == Compression.NONE && !compressOutput ) {
+			buffer.setExpectedLength(size * EXPECTED_EXPANSION);
+		}
+		try {
+			try( OutputStream output = indexed(buffer, index) ) {
+				transformer.toJSON(source.input, output, null, changes, metrics.monitor);
+			}
+			logger.log("Staged " + buffer.length() + " bytes (" + buffer.getFileLength() + " on disk).  Starting PUT to " + OUTPUT_BUCKET + " bucket");
+			metadata.setContentLength(buffer.length());
+			long started = System.nanoTime();
+			try( InputStream content = buffer.openStream() ) {
+				return getClient().putObject(new PutObjectRequest(OUTPUT_BUCKET, s3Key, content, metadata));
+			} finally {
+				// the transformation only wrote to the buffer; this is the upload
+				metrics.monitor.addTime(IOMonitor.Phase.UPLOAD, System.nanoTime() - started);
+			}
+		} finally {
+			buffer.release();
+		}
+	}
+
+	/**
+	 * Gets the amount of output staged in memory before it spills to disk, shared among the objects transformed at the
+	 * same time.
+	 */
+	private long getSpillThreshold(Context context) {
+		if ( spillThreshold > 0 ) {
+			return spillThreshold;
+		}
+		// the heap is what actually holds it, and it's somewhat smaller than the function's memory
+		long heap = Runtime.getRuntime().maxMemory() / 4;
+		int memoryMB = context.getMemoryLimitInMB();
+		return memoryMB > 0 ? Math.min(heap, memoryMB * 1024L * 1024 / 4) : heap;
+	}
+
+	public boolean isCompressOutput() {
+		return compressOutput;
+	}
+
+	/**
+	 * Enables or disables gzip compression of the output.  Compressed output is stored with a
+	 * <code>Content-Encoding</code> of <code>gzip</code>.
+	 * @param compressOutput
+	 * @return this handler.
+	 */
+	public MARCHandler setCompressOutput(boolean compressOutput) {
+		this.compressOutput = compressOutput;
+		return this;
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * Sets the compression level used when the output is compressed.
+	 * @param compressionLevel 0 (none) to 9 (best), or <code>Deflater.DEFAULT_COMPRESSION</code>.
+	 * @return this handler.
+	 */
+	public MARCHandler setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+		return this;
+	}
+
+	public int getCompressionBlockSize() {
+		return compressionBlockSize;
+	}
+
+	/**
+	 * Sets the amount of output compressed as a unit when the output is compressed.
+	 * @param compressionBlockSize the block size in bytes.
+	 * @return this handler.
+	 * @see ParallelGzipOutputStream#setBlockSize(int)
+	 */
+	public MARCHandler setCompressionBlockSize(int compressionBlockSize) {
+		this.compressionBlockSize = compressionBlockSize;
+		return this;
+	}
+
+	public boolean isShardedOutput() {
+		return shardedOutput;
+	}
+
+	/**
+	 * Sets whether each object is written as a series of newline-delimited JSON shards with a manifest, rather than
+	 * as a single JSON object.  Shards are compressed individually if the output is compressed.
+	 * @param shardedOutput
+	 * @return this handler.
+	 * @see ShardedUploadOutputStream
+	 */
+	public MARCHandler setShardedOutput(boolean shardedOutput) {
+		this.shardedOutput = shardedOutput;
+		return this;
+	}
+
+	public long getShardRecords() {
+		return shardRecords;
+	}
+
+	/**
+	 * Sets the number of records after which a shard is cut, for sharded output.
+	 * @param shardRecords the number of records, or 0 for no limit.
+	 * @return this handler.
+	 */
+	public MARCHandler setShardRecords(long shardRecords) {
+		this.shardRecords = shardRecords;
+		return this;
+	}
+
+	public int getShardBytes() {
+		return shardBytes;
+	}
+
+	/**
+	 * Sets the size after which a shard is cut, for sharded output.
+	 * @param shardBytes the size in bytes, before compression.
+	 * @return this handler.
+	 */
+	public MARCHandler setShardBytes(int shardBytes) {
+		this.shardBytes = shardBytes;
+		return this;
+	}
+
+	public int getShardsInFlight() {
+		return shardsInFlight;
+	}
+
+	/**
+	 * Sets the maximum number of shards uploaded concurrently, for sharded output.
+	 * @param shardsInFlight
+	 * @return this handler.
+	 */
+	public MARCHandler setShardsInFlight(int shardsInFlight) {
+		this.shardsInFlight = shardsInFlight;
+		return this;
+	}
+
+	public boolean isRecordIndex() {
+		return recordIndex;
+	}
+
+	/**
+	 * Sets whether a {@link RecordIndex} of each object's records is stored under <code>key + ".idx"</code> in the
+	 * output bucket.  Has no effect on compressed or sharded output, where record offsets can't be used for ranged
+	 * reads.
+	 * @param recordIndex
+	 * @return this handler.
+	 */
+	public MARCHandler setRecordIndex(boolean recordIndex) {
+		this.recordIndex = recordIndex;
+		return this;
+	}
+
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * Sets whether only the records that are new or have changed since an object was last transformed are written, to
+	 * a delta next to the output, along with a list of the records that have been deleted.  The first transformation of
+	 * an object in this mode writes every record, to the output itself, which later ones leave alone.
+	 * @param incremental
+	 * @return this handler.
+	 * @see ChangedRecordFilter
+	 */
+	public MARCHandler setIncremental(boolean incremental) {
+		this.incremental = incremental;
+		return this;
+	}
+
+	private boolean isIndexing() {
+		return recordIndex && !compressOutput && !shardedOutput;
+	}
+
+	/**
+	 * Sets the CloudWatch namespace of the metrics logged for each object transformed.
+	 * @param metricsNamespace the namespace, or <code>null</code> not to log metrics.
+	 * @return this handler.
+	 */
+	public MARCHandler setMetricsNamespace(String metricsNamespace) {
+		this.metricsNamespace = metricsNamespace;
+		return this;
+	}
+
+	public String getMetricsNamespace() {
+		return metricsNamespace;
+	}
+
+	/**
+	 * Sets the amount of output held in memory, shared among the objects transformed at the same time, before the rest
+	 * is staged on disk, when output is not streamed.  The default is a quarter of the function's memory, or of the
+	 * maximum heap size if that is smaller.
+	 * @param spillThreshold the threshold in bytes, or 0 for the default.
+	 * @return this handler.
+	 * @see SpillBuffer
+	 */
+	public MARCHandler setSpillThreshold(long spillThreshold) {
+		this.spillThreshold = Math.max(0, spillThreshold);
+		return this;
+	}
+
+	public long getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	public boolean isStreamingUpload() {
+		return streamingUpload;
+	}
+
+	/**
+	 * Sets whether output is uploaded as it is produced (the default), or staged first, in memory or, past the
+	 * {@link #setSpillThreshold(long) spill threshold}, a temporary file.
+	 * @param streamingUpload
+	 * @return
+	 */
+	public MARCHandler setStreamingUpload(boolean streamingUpload) {
+		this.streamingUpload = streamingUpload;
+		return this;
+	}
+
+	public int getPartSize() {
+		return partSize;
+	}
+
+	/**
+	 * Sets the size of the parts output is uploaded in when streaming.
+	 * @param partSize the part size in bytes; S3 requires at least 5MB.
+	 * @return
+	 */
+	public MARCHandler setPartSize(int partSize) {
+		this.partSize = partSize;
+		return this;
+	}
+
+	public int getPartsInFlight() {
+		return partsInFlight;
+	}
+
+	/**
+	 * Sets the maximum number of parts uploaded concurrently when streaming.
+	 * @param partsInFlight
+	 * @return
+	 */
+	public MARCHandler setPartsInFlight(int partsInFlight) {
+		this.partsInFlight = partsInFlight;
+		return this;
+	}
+
+	public long getUploadMemoryLimit() {
+		return uploadMemoryLimit;
+	}
+
+	/**
+	 * Sets the ceiling on memory used to buffer parts when streaming, shared among the objects transformed at the same
+	 * time.  The default is 64MB, or a quarter of the maximum heap size if that is smaller.
+	 * @param uploadMemoryLimit the limit in bytes.
+	 * @return
+	 */
+	public MARCHandler setUploadMemoryLimit(long uploadMemoryLimit) {
+		this.uploadMemoryLimit = uploadMemoryLimit;
+		return this;
+	}
+
+	public boolean isCheckpointing() {
+		return checkpointing && streamingUpload && !shardedOutput;
+	}
+
+	/**
+	 * Sets whether transformations that run out of time save their progress to be resumed by another invocation.
+	 * Only applies to streaming uploads, and not to sharded output.  Off by default: it costs two more requests per
+	 * object (to look for a checkpoint to abandon, and for the object's current version), and needs a source bucket
+	 * that the function can write to and whose S3 trigger covers the {@link #setCheckpointPrefix(String) checkpoint
+	 * prefix}, or checkpointed transformations are never resumed and their multipart uploads are left behind.
+	 * @param checkpointing
+	 * @return
+	 */
+	public MARCHandler setCheckpointing(boolean checkpointing) {
+		this.checkpointing = checkpointing;
+		return this;
+	}
+
+	public String getCheckpointPrefix() {
+		return checkpointPrefix;
+	}
+
+	/**
+	 * Sets the prefix of the keys checkpoints are saved under in the source bucket.
+	 * @param checkpointPrefix
+	 * @return
+	 */
+	public MARCHandler setCheckpointPrefix(String checkpointPrefix) {
+		this.checkpointPrefix = checkpointPrefix;
+		return this;
+	}
+
+	public String getPartialPrefix() {
+		return partialPrefix;
+	}
+
+	/**
+	 * Sets the prefix of the keys that the partial record index and hashes of a checkpointed transformation are saved
+	 * under in the source bucket.  It should not be covered by the function's S3 trigger; events for keys under it are
+	 * skipped in any case.
+	 * @param partialPrefix
+	 * @return
+	 */
+	public MARCHandler setPartialPrefix(String partialPrefix) {
+		this.partialPrefix = partialPrefix;
+		return this;
+	}
+
+	public long getCheckpointMargin() {
+		return checkpointMargin;
+	}
+
+	/**
+	 * Sets how long before the handler's deadline transformations stop to save their progress.  This needs to cover
+	 * uploading the parts in flight and saving the checkpoint.
+	 * @param checkpointMargin the margin in milliseconds.
+	 * @return
+	 */
+	public MARCHandler setCheckpointMargin(long checkpointMargin) {
+		this.checkpointMargin = Math.max(0, checkpointMargin);
+		return this;
+	}
+
+	public long getRangedGetThreshold() {
+		return rangedGetThreshold;
+	}
+
+	/**
+	 * Sets the size (according to the event) at which objects are read with concurrent ranged requests rather than a
+	 * single GET; see {@link RangedObjectInputStream}.
+	 * @param rangedGetThreshold the size in bytes; <code>Long.MAX_VALUE</code> turns ranged reads off.
+	 * @return
+	 */
+	public MARCHandler setRangedGetThreshold(long rangedGetThreshold) {
+		this.rangedGetThreshold = rangedGetThreshold;
+		return this;
+	}
+
+	public int getRangeSize() {
+		return rangeSize;
+	}
+
+	/**
+	 * Sets the size of each ranged request for objects read in ranges.
+	 * @param rangeSize
+	 * @return
+	 */
+	public MARCHandler setRangeSize(int rangeSize) {
+		this.rangeSize = rangeSize;
+		return this;
+	}
+
+	public int getRangePrefetch() {
+		return rangePrefetch;
+	}
+
+	/**
+	 * Sets the number of ranges requested ahead of the transformation for objects read in ranges.  Each object read
+	 * in ranges holds up to this many ranges, plus the one being read, in memory.
+	 * @param rangePrefetch
+	 * @return
+	 */
+	public MARCHandler setRangePrefetch(int rangePrefetch) {
+		this.rangePrefetch = rangePrefetch;
+		return this;
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	/**
+	 * Sets the maximum number of objects transformed at the same time.
+	 * @param concurrency
+	 * @return
+	 */
+	public MARCHandler setConcurrency(int concurrency) {
+		this.concurrency = Math.max(1, concurrency);
+		return this;
+	}
+
+	public long getExpectedThroughput() {
+		return expectedThroughput;
+	}
+
+	/**
+	 * Sets the rate, in bytes of input per second per object, used to decide whether there is time to transform an
+	 * object before any object has been transformed.
+	 * @param expectedThroughput
+	 * @return
+	 */
+	public MARCHandler setExpectedThroughput(long expectedThroughput) {
+		this.expectedThroughput = Math.max(1, expectedThroughput);
+		return this;
+	}
+
+	public long getDeadlineMargin() {
+		return deadlineMargin;
+	}
+
+	/**
+	 * Sets how long before the function times out the handler stops waiting for transformations and returns.
+	 * @param deadlineMargin the margin in milliseconds.
+	 * @return
+	 */
+	public MARCHandler setDeadlineMargin(long deadlineMargin) {
+		this.deadlineMargin = Math.max(0, deadlineMargin);
+		return this;
+	}
+
+	private static long objectSize(S3EventNotificationRecord action) {
+		Long size = action.getS3().getObject().getSizeAsLong();
+		return size != null ? size : 0;
+	}
+
+	private static String describe(S3EventNotificationRecord action) {
+		return action.getS3().getBucket().getName() + "/" + action.getS3().getObject().getKey();
+	}
+
+	/**
+	 * Logs the metrics of an object's transformation, unless there is no metrics namespace.
+	 * @param result the object's entry in the handler's result, or <code>null</code> if the transformation failed.
+	 * @param elapsed the time the object took, in milliseconds.
+	 */
+	private void logMetrics(S3EventNotificationRecord action, String result, ObjectMetrics metrics, long elapsed, MemoryMonitor memory, Context context, LambdaLogger logger) {
+		if ( metricsNamespace == null ) {
+			return;
+		}
+		IOMonitor monitor = metrics.monitor;
+		logger.log("Transformed " + describe(action) + ": " + monitor);
+		memory.run();
+		String outcome = result == null ? "FAILED" : result.startsWith("CONTINUED:") || result.startsWith("SKIPPED:") ? result.substring(0, result.indexOf(':')) : "STORED";
+		EmbeddedMetrics line = new EmbeddedMetrics(metricsNamespace)
+				.dimension("FunctionName", context.getFunctionName())
+				.dimension("OutputMode", shardedOutput ? "sharded" : !streamingUpload ? "staged" : compressOutput ? "compressed" : "streaming")
+				.property("RequestId", context.getAwsRequestId())
+				.property("Object", describe(action))
+				.property("Outcome", outcome)
+				.metric("SourceBytes", metrics.sourceBytes, EmbeddedMetrics.BYTES)
+				.metric("OutputBytes", metrics.stored >= 0 ? metrics.stored : monitor.getBytesWritten(), EmbeddedMetrics.BYTES)
+				.metric("Records", monitor.getRecords(), EmbeddedMetrics.COUNT)
+				.metric("Duration", elapsed, EmbeddedMetrics.MILLISECONDS)
+				.metric("FetchTime", monitor.getTime(IOMonitor.Phase.FETCH) / 1000000, EmbeddedMetrics.MILLISECONDS)
+				.metric("TransformTime", monitor.getTime(IOMonitor.Phase.TRANSFORM) / 1000000, EmbeddedMetrics.MILLISECONDS)
+				.metric("UploadTime", monitor.getTime(IOMonitor.Phase.UPLOAD) / 1000000, EmbeddedMetrics.MILLISECONDS)
+				.metric("RecordLatencyP50", monitor.getLatencies().getPercentile(50) / 1000, EmbeddedMetrics.MICROSECONDS)
+				.metric("RecordLatencyP99", monitor.getLatencies().getPercentile(99) / 1000, EmbeddedMetrics.MICROSECONDS)
+				.metric("PeakHeapUsed", memory.getMax() >> 20, EmbeddedMetrics.MEGABYTES);
+		int memoryMB = context.getMemoryLimitInMB();
+		if ( memoryMB > 0 ) {
+			line.metric("PeakHeapUtilization", Math.round( memory.getMax() * 1000.0 / ( memoryMB * 1024L * 1024 ) ) / 10.0, EmbeddedMetrics.PERCENT);
+		}
+		int remaining = context.getRemainingTimeInMillis();
+		if ( remaining > 0 ) {
+			line.metric("RemainingTime", remaining, EmbeddedMetrics.MILLISECONDS);
+		}
+		logger.log( line.toString() );
+	}
+
+	/**
+	 * What is measured of a single object's transformation.
+	 */
+	private static class ObjectMetrics {
+
+		final IOMonitor monitor = new IOMonitor();
+
+		// bytes of the object read, before any decompression
+		long sourceBytes = 0;
+
+		// bytes stored in the output bucket, when they aren't what the transformer wrote; -1 if they are
+		long stored = -1;
+
+		void read(Source source) {
+			sourceBytes = source.decompression != null ? source.decompression.getBytesRead() : monitor.getBytesRead();
+		}
+	}
+
+	/**
+	 * An object's content, as opened for transformation.
+	 */
+	private static class Source {
+
+		final InputStream input;
+
+		final Compression compression;
+
+		// counts the compressed bytes read and the decompressed bytes produced; null for uncompressed objects
+		final StreamPipeline.Stage<Long> decompression;
+
+		Source(InputStream input, Compression compression, StreamPipeline.Stage<Long> decompression) {
+			this.input = input;
+			this.compression = compression;
+			this.decompression = decompression;
 		}
-		return this.client;
+
+		void log(String description, LambdaLogger logger) {
+			if ( decompression != null ) {
+				logger.log("Decompressed " + decompression.getBytesRead() + " bytes of " + compression + " input from " + description + " to " + decompression.getBytesWritten() + " bytes");
+			}
+		}
+	}
+
+	/**
+	 * Tracks the throughput of the transformations finished so far in an invocation.  Because transformations run
+	 * concurrently, this is throughput per object, which is what matters for estimating how long the next one takes.
+	 */
+	private class Throughput {
+
+		private final AtomicLong bytes = new AtomicLong();
+
+		private final AtomicLong millis = new AtomicLong();
+
+		void add(long size, long elapsed) {
+			if ( size > 0 ) {
+				bytes.addAndGet(size);
+				millis.addAndGet(Math.max(1, elapsed));
+			}
+		}
+
+		long estimateMillis(long size) {
+			long measuredBytes = bytes.get();
+			long measuredMillis = millis.get();
+			if ( measuredBytes > 0 ) {
+				return (long)( (double)size * measuredMillis / measuredBytes );
+			}
+			return size * 1000 / expectedThroughput;
+		}
+	}
+
+	/**
+	 * Gets the S3 client: the one set with {@link #setClient(AmazonS3Client)}, or the one
+	 * {@link WarmResources#s3Client() shared} by every handler in the JVM.
+	 * @return
+	 */
+	protected AmazonS3Client getClient() {
+		return this.client != null ? this.client : WarmResources.s3Client();
 	}
 
 	protected MARCHandler setClient(final AmazonS3Client client) {
@@ -0,0 +1,93 @@
+package edu.ncsu.lib.aws.handlers;
+
+import java.util.List;
+
+/**
+ * A batch of SQS messages, as Lambda delivers them to a function subscribed to a queue.
+ * <p>
+ *  Only the members the handlers use are mapped; Lambda's serializer ignores the rest.  Lambda matches the
+ *  <code>Records</code> member of the event to {@link #setRecords(List)} regardless of case.
+ * </p>
+ * @see BatchMARCHandler
+ */
+public class SQSBatchEvent {
+
+	private List<Message> records;
+
+	public SQSBatchEvent() {
+	}
+
+	public SQSBatchEvent(List<Message> records) {
+		this.records = records;
+	}
+
+	public List<Message> getRecords() {
+		return records;
+	}
+
+	public void setRecords(List<Message> records) {
+		this.records = records;
+	}
+
+	/**
+	 * A single message of the batch.
+	 */
+	public static class Message {
+
+		private String messageId;
+
+		private String receiptHandle;
+
+		private String body;
+
+		private String eventSourceARN;
+
+		public Message() {
+		}
+
+		public Message(String messageId, String body) {
+			this.messageId = messageId;
+			this.body = body;
+		}
+
+		/**
+		 * Gets the message's ID, by which it is reported as having failed.
+		 * @return
+		 */
+		public String getMessageId() {
+			return messageId;
+		}
+
+		public void setMessageId(String messageId) {
+			this.messageId = messageId;
+		}
+
+		public String getReceiptHandle() {
+			return receiptHandle;
+		}
+
+		public void setReceiptHandle(String receiptHandle) {
+			this.receiptHandle = receiptHandle;
+		}
+
+		/**
+		 * Gets the message's body; for S3 notifications sent to a queue, the JSON of an S3 event.
+		 * @return
+		 */
+		public String getBody() {
+			return body;
+		}
+
+		public void setBody(String body) {
+			this.body = body;
+		}
+
+		public String getEventSourceARN() {
+			return eventSourceARN;
+		}
+
+		public void setEventSourceARN(String eventSourceARN) {
+			this.eventSourceARN = eventSourceARN;
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package edu.ncsu.lib.aws.handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The partial batch response of a function subscribed to an SQS queue: the messages that failed, which go back to the
+ * queue to be retried, while the rest of the batch is deleted.
+ * <p>
+ *  Lambda only reads the response if the event source mapping has <code>ReportBatchItemFailures</code> turned on;
+ *  otherwise a batch is either deleted in full (when the function returns) or retried in full (when it throws).
+ * </p>
+ * @see BatchMARCHandler
+ */
+public class SQSBatchResponse {
+
+	private final List<ItemFailure> batchItemFailures = new ArrayList<>();
+
+	/**
+	 * Reports a message as having failed.
+	 * @param messageId the message's ID.
+	 * @return this response.
+	 */
+	public SQSBatchResponse fail(String messageId) {
+		batchItemFailures.add( new ItemFailure(messageId) );
+		return this;
+	}
+
+	public List<ItemFailure> getBatchItemFailures() {
+		return batchItemFailures;
+	}
+
+	/**
+	 * A message that failed.
+	 */
+	public static class ItemFailure {
+
+		private final String itemIdentifier;
+
+		public ItemFailure(String itemIdentifier) {
+			this.itemIdentifier = itemIdentifier;
+		}
+
+		/**
+		 * Gets the ID of the message.
+		 * @return
+		 */
+		public String getItemIdentifier() {
+			return itemIdentifier;
+		}
+	}
+}
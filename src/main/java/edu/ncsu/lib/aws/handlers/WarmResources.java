@@ -0,0 +1,266 @@
+package edu.ncsu.lib.aws.handlers;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.marc4j.MarcJsonWriter;
+
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.services.s3.AmazonS3Client;
+
+import edu.ncsu.lib.io.ResourcePool;
+import edu.ncsu.lib.marc.MarcTransformer;
+
+/**
+ * Resources that are expensive to set up and are kept for the life of the JVM, so that a warm Lambda container reuses
+ * them from one invocation to the next instead of creating them again.
+ * <p>
+ *  Lambda keeps a container (and its static state) around between invocations, but nothing says an invocation gets the
+ *  same handler instance as the last one, so the resources live here rather than in the handler.  They are:
+ * </p>
+ * <ul>
+ *  <li>the S3 client, created on first use with the default credentials chain; it is thread-safe and holds the
+ *      connection pool, so reusing it also reuses open connections.</li>
+ *  <li>a pool of {@link MarcTransformer}s, each of which keeps its own converters (encoders and character tables)
+ *      between transformations.</li>
+ *  <li>the {@link ResourcePool#buffers() shared buffer pool}, used by the record reader and staged output.</li>
+ * </ul>
+ * <p>
+ *  Everything here is thread-safe.  The counts of resources created and reused are reported by {@link #describe()}.
+ * </p>
+ * <p>
+ *  {@link #prime()}, which {@link MARCHandler} calls when it is loaded (during the function's initialization, before
+ *  the first invocation), runs two tiny embedded records through every path of {@link MarcTransformer#toJSON(InputStream, java.io.OutputStream)}
+ *  the handler uses, so that the classes of marc4j, Guava and the transformer are loaded and their tables built before
+ *  anything is waiting on them.  In Lambda it creates the S3 client as well.  Priming can be turned off by setting the
+ *  <code>edu.ncsu.lib.aws.prime</code> system property to <code>false</code>.
+ * </p>
+ * <p>
+ *  The classes loaded by priming are also what goes into the class-data sharing archive built by
+ *  <code>./gradlew appCds</code>, which runs <code>WarmResources prime</code>.  <code>WarmResources benchmark</code>
+ *  measures cold starts with and without them; see {@link #main(String[])}.
+ * </p>
+ */
+public final class WarmResources {
+
+	/** The system property that turns priming off when it is <code>false</code> */
+	public static final String PRIME_PROPERTY = "edu.ncsu.lib.aws.prime";
+
+	// a Unicode record with one non-ASCII character; its bytes are the chars of the string
+	private static final String PRIMER = "00129nam a2200061 a 4500001000700000008004100007245001900048\u001eprimer\u001e"
+			+ "160826s2016    ncu           000 0 eng d\u001e10\u001faCaf\u00c3\u00a9 /\u001fcNCSU.\u001e\u001d";
+
+	// the same record in MARC-8, where the accent is a combining character of the same length
+	private static final String MARC8_PRIMER = PRIMER.substring(0, 9) + " " + PRIMER.substring(10).replace("\u00c3\u00a9", "\u00e2e");
+
+	private static final ResourcePool<MarcTransformer> TRANSFORMERS = new ResourcePool<>("transformers", MarcTransformer::new, 4);
+
+	private static final AtomicLong invocations = new AtomicLong();
+
+	private static final AtomicLong clientsCreated = new AtomicLong();
+
+	private static volatile AmazonS3Client client = null;
+
+	private static volatile long primingMillis = -1;
+
+	private WarmResources() {
+	}
+
+	/**
+	 * Counts an invocation of a handler.
+	 * @return the number of invocations in this JVM so far, including this one; more than 1 means the container is warm.
+	 */
+	public static long invocationStarted() {
+		return invocations.incrementAndGet();
+	}
+
+	/**
+	 * Gets the shared S3 client, creating it if need be.
+	 * @return
+	 */
+	public static AmazonS3Client s3Client() {
+		AmazonS3Client shared = client;
+		if ( shared == null ) {
+			synchronized( WarmResources.class ) {
+				shared = client;
+				if ( shared == null ) {
+					shared = new AmazonS3Client(new DefaultAWSCredentialsProviderChain());
+					clientsCreated.incrementAndGet();
+					client = shared;
+				}
+			}
+		}
+		return shared;
+	}
+
+	/**
+	 * Gets the pool of transformers.  Transformers are not reset when they are released, so whoever acquires one should
+	 * configure everything it depends on.
+	 * @return
+	 */
+	public static ResourcePool<MarcTransformer> transformers() {
+		return TRANSFORMERS;
+	}
+
+	/**
+	 * Loads and initializes what the first invocation would otherwise have to, by transforming a couple of embedded
+	 * records in each of the output formats, with and without compression, on a transformer from the pool.  In Lambda
+	 * (when <code>AWS_LAMBDA_FUNCTION_NAME</code> is set), the S3 client is created too.  Only the first call does
+	 * anything, and nothing is done if the {@link #PRIME_PROPERTY} system property is <code>false</code>.
+	 * @return the time taken by the first call, in milliseconds, or -1 if priming is turned off.
+	 */
+	public static synchronized long prime() {
+		if ( primingMillis >= 0 || "false".equalsIgnoreCase( System.getProperty(PRIME_PROPERTY) ) ) {
+			return primingMillis;
+		}
+		long start = System.currentTimeMillis();
+		byte[] records = ( PRIMER + MARC8_PRIMER ).getBytes(StandardCharsets.ISO_8859_1);
+		MarcTransformer transformer = TRANSFORMERS.acquire();
+		try {
+			for( int format : new int[] { MarcJsonWriter.MARC_IN_JSON, MarcJsonWriter.MARC_JSON } ) {
+				for( boolean gzip : new boolean[] { true, false } ) {
+					// the last combination is the transformer's default, which it is left in
+					transformer.setFormat(format).setGzip(gzip).setCompressionThreads(1);
+					transformer.toJSON(new ByteArrayInputStream(records), new ByteArrayOutputStream());
+				}
+			}
+			transformer.setCompressionThreads( Runtime.getRuntime().availableProcessors() );
+			transformer.getStatistics().reset();
+			TRANSFORMERS.release(transformer);
+		} catch( IOException | RuntimeException ex ) {
+			// nothing is lost but time: the first invocation does whatever wasn't done here
+			System.err.println("Unable to prime the transformer: " + ex);
+		}
+		if ( System.getenv("AWS_LAMBDA_FUNCTION_NAME") != null ) {
+			s3Client();
+		}
+		primingMillis = System.currentTimeMillis() - start;
+		return primingMillis;
+	}
+
+	/**
+	 * Gets the number of invocations counted by {@link #invocationStarted()}.
+	 * @return
+	 */
+	public static long getInvocations() {
+		return invocations.get();
+	}
+
+	/**
+	 * Gets the number of S3 clients created: 1 once the shared client exists, and 0 before.
+	 * @return
+	 */
+	public static long getClientsCreated() {
+		return clientsCreated.get();
+	}
+
+	/**
+	 * Describes the resources, and how often they have been created and reused, for logging.
+	 * @return
+	 */
+	public static String describe() {
+		return "Warm resources after " + invocations.get() + " invocation(s): primed in " + primingMillis
+				+ "ms; s3 clients: created=" + clientsCreated.get() + "; " + TRANSFORMERS + "; " + ResourcePool.buffers();
+	}
+
+	/**
+	 * Primes and exits, or measures cold starts.
+	 * <p>
+	 *  Usage: <code>WarmResources prime</code> primes, as the handler does, and exits; it is the workload the
+	 *  class-data sharing archive is dumped from.
+	 * </p>
+	 * <p>
+	 *  Usage: <code>WarmResources benchmark [runs] [marcfile] [archive.jsa]</code> starts <code>runs</code> (default
+	 *  10) fresh JVMs, with this JVM's <code>java</code> and class path, for each of: no priming, priming, and (if an
+	 *  archive is given) priming with the archive.  Each of them stands in for a new container: it primes, unless
+	 *  priming is off, then times a first "invocation" transforming <code>marcfile</code> (by default, the embedded
+	 *  records, as when <code>marcfile</code> is empty) to memory.  S3 isn't involved.  The median and worst of the time from JVM start to the end of the
+	 *  first invocation are reported, along with the median initialization and invocation times.
+	 * </p>
+	 */
+	public static void main(String[] args) throws Exception {
+		String command = args.length > 0 ? args[0] : "";
+		if ( "prime".equals(command) ) {
+			System.out.println("Primed in " + prime() + "ms");
+		} else if ( "first-invocation".equals(command) ) {
+			firstInvocation(args.length > 1 ? args[1] : null);
+		} else if ( "benchmark".equals(command) ) {
+			int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+			String marcfile = args.length > 2 && !args[2].isEmpty() ? args[2] : null;
+			String archive = args.length > 3 ? args[3] : null;
+			benchmark("no priming", runs, marcfile, "-D" + PRIME_PROPERTY + "=false");
+			benchmark("priming", runs, marcfile);
+			if ( archive != null ) {
+				benchmark("priming + CDS", runs, marcfile, "-XX:SharedArchiveFile=" + archive);
+			}
+		} else {
+			System.err.println("Usage: WarmResources prime | benchmark [runs] [marcfile] [archive.jsa]");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Runs in a fresh JVM for the benchmark, and prints the JVM's startup, initialization and invocation times.
+	 */
+	private static void firstInvocation(String marcfile) throws IOException {
+		long initStart = System.currentTimeMillis();
+		prime();
+		long invocationStart = System.currentTimeMillis();
+		MarcTransformer transformer = TRANSFORMERS.acquire();
+		try( InputStream input = marcfile != null ? new FileInputStream( new File(marcfile) )
+				: new ByteArrayInputStream( PRIMER.getBytes(StandardCharsets.ISO_8859_1) ) ) {
+			transformer.toJSON(input, new ByteArrayOutputStream());
+		}
+		long end = System.currentTimeMillis();
+		long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+		System.out.println( (end - jvmStart) + " " + (invocationStart - initStart) + " " + (end - invocationStart) );
+	}
+
+	private static void benchmark(String name, int runs, String marcfile, String... options) throws IOException, InterruptedException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		List<Long> totals = new ArrayList<>();
+		List<Long> inits = new ArrayList<>();
+		List<Long> invocations = new ArrayList<>();
+		for( int run = 0; run < runs; run++ ) {
+			List<String> command = new ArrayList<>();
+			command.add(java);
+			command.addAll( Arrays.asList(options) );
+			command.addAll( Arrays.asList("-cp", System.getProperty("java.class.path"), WarmResources.class.getName(), "first-invocation") );
+			if ( marcfile != null ) {
+				command.add(marcfile);
+			}
+			Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+			String last = null;
+			try( BufferedReader output = new BufferedReader( new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8) ) ) {
+				for( String line = output.readLine(); line != null; line = output.readLine() ) {
+					last = line;
+				}
+			}
+			if ( process.waitFor() != 0 || last == null ) {
+				throw new IOException(name + " run failed: " + last);
+			}
+			String[] times = last.trim().split(" ");
+			totals.add( Long.parseLong(times[0]) );
+			inits.add( Long.parseLong(times[1]) );
+			invocations.add( Long.parseLong(times[2]) );
+		}
+		Collections.sort(totals);
+		Collections.sort(inits);
+		Collections.sort(invocations);
+		System.out.printf("%-14s JVM start to end of first invocation: median %5dms, worst %5dms | init %5dms | first invocation %5dms%n",
+				name, totals.get(runs / 2), totals.get(runs - 1), inits.get(runs / 2), invocations.get(runs / 2));
+	}
+}
@@ -0,0 +1,481 @@
+package edu.ncsu.lib.aws.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/**
+ * An output stream that uploads what is written to it to S3 as it goes, using a multipart upload.
+ * <p>
+ *  Output is collected into fixed-size part buffers.  Each time a buffer fills it is handed to a background thread for
+ *  upload and writing continues into the next one, so the producer and the upload overlap.  At most
+ *  {@link #setPartsInFlight(int) partsInFlight} parts are uploaded at once, and no more than
+ *  {@link #setMemoryLimit(long) memoryLimit} bytes of buffers are ever allocated: when every buffer is in use, writes
+ *  block until an upload finishes and its buffer can be reused.  Memory use is therefore bounded no matter how much is
+ *  written, and nothing is staged on disk.
+ * </p>
+ * <p>
+ *  Closing the stream uploads the final part and completes the upload.  Output that never fills a single part is sent
+ *  with a plain <code>PutObject</code> instead, which saves two requests for small objects.  If anything goes wrong,
+ *  or if the producer fails, {@link #abort()} discards the parts uploaded so far; note that S3 keeps (and charges for)
+ *  the parts of multipart uploads that are neither completed nor aborted.
+ * </p>
+ * <p>
+ *  An upload that cannot be finished in one process can be {@link #suspend() suspended}: the parts that are full are
+ *  uploaded, and the upload ID, their ETags and whatever has been written since the last full part are returned as an
+ *  {@link UploadState}, which can be saved and later {@link #resume(UploadState) resumed} by another stream.
+ * </p>
+ * <p>
+ *  S3 requires every part but the last to be at least 5MB; smaller part sizes are only useful for testing.  Instances
+ *  are not thread-safe.
+ * </p>
+ */
+public class MultipartUploadOutputStream extends OutputStream {
+
+	/** The default part size: 8MB */
+	public static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+
+	/** The smallest part size S3 accepts for any part but the last */
+	public static final int MINIMUM_PART_SIZE = 5 * 1024 * 1024;
+
+	/** The default number of parts uploaded concurrently */
+	public static final int DEFAULT_PARTS_IN_FLIGHT = 4;
+
+	private final AmazonS3 client;
+
+	private final String bucket;
+
+	private final String key;
+
+	private final ObjectMetadata metadata;
+
+	private int partSize = DEFAULT_PART_SIZE;
+
+	private int partsInFlight = DEFAULT_PARTS_IN_FLIGHT;
+
+	private long memoryLimit = Long.MAX_VALUE;
+
+	// limits the number of part buffers in use (filling or uploading)
+	private Semaphore buffers;
+
+	// buffers whose uploads have finished, ready for reuse
+	private final ConcurrentLinkedQueue<byte[]> freeBuffers = new ConcurrentLinkedQueue<>();
+
+	private ExecutorService uploader;
+
+	private byte[] current;
+
+	private int position = 0;
+
+	private String uploadId;
+
+	private final List<Future<PartETag>> parts = new ArrayList<>();
+
+	private long bytesWritten = 0;
+
+	private boolean closed = false;
+
+	private PutObjectResult result;
+
+	/**
+	 * Creates a stream that will upload to the given location.
+	 * @param client the S3 client to upload with.
+	 * @param bucket the destination bucket.
+	 * @param key the destination key.
+	 * @param metadata metadata (content type and so on) for the new object; may be <code>null</code>.
+	 */
+	public MultipartUploadOutputStream(AmazonS3 client, String bucket, String key, ObjectMetadata metadata) {
+		this.client = client;
+		this.bucket = bucket;
+		this.key = key;
+		this.metadata = metadata != null ? metadata : new ObjectMetadata();
+	}
+
+	/**
+	 * Sets the size of each uploaded part.  Must be called before anything is written.
+	 * @param partSize the part size in bytes.
+	 * @return this stream.
+	 */
+	public MultipartUploadOutputStream setPartSize(int partSize) {
+		checkNotStarted();
+		if ( partSize < 1 ) {
+			throw new IllegalArgumentException("Part size must be positive: " + partSize);
+		}
+		this.partSize = partSize;
+		return this;
+	}
+
+	public int getPartSize() {
+		return partSize;
+	}
+
+	/**
+	 * Sets the maximum number of parts uploaded at the same time.  Must be called before anything is written.
+	 * @param partsInFlight the number of concurrent part uploads.
+	 * @return this stream.
+	 */
+	public MultipartUploadOutputStream setPartsInFlight(int partsInFlight) {
+		checkNotStarted();
+		this.partsInFlight = Math.max(1, partsInFlight);
+		return this;
+	}
+
+	/**
+	 * Gets the number of parts that may actually be in flight, taking the memory limit into account: the limit has to
+	 * cover the buffer being filled as well as the ones being uploaded.
+	 * @return
+	 */
+	public int getPartsInFlight() {
+		long affordable = memoryLimit / partSize - 1;
+		return (int)Math.max(1, Math.min(partsInFlight, affordable));
+	}
+
+	/**
+	 * Sets the ceiling on memory used for part buffers.  Whatever the limit, at least two buffers are allowed (one
+	 * being filled and one being uploaded).  Must be called before anything is written.
+	 * @param memoryLimit the limit in bytes.
+	 * @return this stream.
+	 */
+	public MultipartUploadOutputStream setMemoryLimit(long memoryLimit) {
+		checkNotStarted();
+		this.memoryLimit = memoryLimit;
+		return this;
+	}
+
+	public long getMemoryLimit() {
+		return memoryLimit;
+	}
+
+	/**
+	 * Gets the number of bytes written to this stream so far.
+	 * @return
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Gets the result of the upload, once the stream has been closed.  For multipart uploads, the result carries the
+	 * ETag and version of the completed object.
+	 * @return the result, or <code>null</code> if the upload has not completed.
+	 */
+	public PutObjectResult getResult() {
+		return result;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureBuffer();
+		current[position++] = (byte)b;
+		bytesWritten++;
+		if ( position == partSize ) {
+			uploadPart();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while ( len > 0 ) {
+			ensureBuffer();
+			int count = Math.min(len, partSize - position);
+			System.arraycopy(b, off, current, position, count);
+			position += count;
+			bytesWritten += count;
+			off += count;
+			len -= count;
+			if ( position == partSize ) {
+				uploadPart();
+			}
+		}
+	}
+
+	/**
+	 * Uploads whatever has not been uploaded yet and completes the upload.  If that fails, the upload is aborted.
+	 * @throws IOException if any part of the upload failed.
+	 */
+	@Override
+	public void close() throws IOException {
+		if ( closed ) {
+			return;
+		}
+		try {
+			if ( uploadId == null ) {
+				putObject();
+			} else {
+				if ( position > 0 ) {
+					uploadPart();
+				}
+				completeUpload();
+			}
+			closed = true;
+		} catch( IOException | RuntimeException e ) {
+			abort();
+			throw e;
+		} finally {
+			shutdown();
+		}
+	}
+
+	/**
+	 * Stops writing without completing the upload, so it can be resumed later.  Waits for the parts already handed off
+	 * to finish uploading; output written since the last full part is not uploaded but returned as part of the state.
+	 * The stream is closed afterwards.  If anything goes wrong, the upload is aborted.
+	 * @return the state needed to resume the upload.
+	 * @throws IOException if any part of the upload failed.
+	 */
+	public UploadState suspend() throws IOException {
+		if ( closed ) {
+			throw new IOException("Stream closed");
+		}
+		try {
+			List<PartETag> eTags = new ArrayList<>( parts.size() );
+			for( Future<PartETag> part : parts ) {
+				eTags.add( partETag(part) );
+			}
+			byte[] pending = current != null ? Arrays.copyOf(current, position) : new byte[0];
+			closed = true;
+			return new UploadState(uploadId, eTags, pending, bytesWritten);
+		} catch( IOException | RuntimeException e ) {
+			abort();
+			throw e;
+		} finally {
+			shutdown();
+		}
+	}
+
+	/**
+	 * Continues an upload suspended by another stream.  Must be called before anything is written, and the stream
+	 * must be for the same bucket and key.
+	 * @param state the state returned by {@link #suspend()}.
+	 * @return this stream.
+	 * @throws IOException if the pending output could not be written.
+	 */
+	public MultipartUploadOutputStream resume(UploadState state) throws IOException {
+		checkNotStarted();
+		if ( state.getUploadId() != null ) {
+			uploadId = state.getUploadId();
+			for( PartETag eTag : state.getParts() ) {
+				parts.add( CompletableFuture.completedFuture(eTag) );
+			}
+		}
+		bytesWritten = state.getBytesWritten() - state.getPending().length;
+		write( state.getPending() );
+		return this;
+	}
+
+	/**
+	 * Abandons the upload: stops uploading parts and discards any that have already been uploaded.  Has no effect once
+	 * the upload has completed.
+	 */
+	public void abort() {
+		if ( closed ) {
+			return;
+		}
+		closed = true;
+		for( Future<PartETag> part : parts ) {
+			part.cancel(true);
+		}
+		shutdown();
+		if ( uploadId != null ) {
+			try {
+				client.abortMultipartUpload( new AbortMultipartUploadRequest(bucket, key, uploadId) );
+			} catch( AmazonClientException acx ) {
+				// nothing more can be done; S3 lifecycle rules can clean up after us
+			}
+		}
+		current = null;
+		freeBuffers.clear();
+	}
+
+	private void checkNotStarted() {
+		if ( buffers != null || uploadId != null ) {
+			throw new IllegalStateException("Upload has already started");
+		}
+	}
+
+	/**
+	 * Makes sure there is a buffer to write into, waiting for an upload to finish if all the buffers are in use.
+	 */
+	private void ensureBuffer() throws IOException {
+		if ( closed ) {
+			throw new IOException("Stream closed");
+		}
+		if ( current != null ) {
+			return;
+		}
+		if ( buffers == null ) {
+			buffers = new Semaphore( getPartsInFlight() + 1 );
+		}
+		checkParts();
+		try {
+			buffers.acquire();
+		} catch( InterruptedException ix ) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for a part upload to finish");
+		}
+		byte[] buffer = freeBuffers.poll();
+		current = buffer != null ? buffer : new byte[partSize];
+		position = 0;
+	}
+
+	/**
+	 * Hands the current buffer off for upload.
+	 */
+	private void uploadPart() throws IOException {
+		if ( uploadId == null ) {
+			try {
+				uploadId = client.initiateMultipartUpload( new InitiateMultipartUploadRequest(bucket, key, metadata) ).getUploadId();
+			} catch( AmazonClientException acx ) {
+				throw new IOException("Unable to start upload to " + bucket + "/" + key, acx);
+			}
+		}
+		if ( uploader == null ) {
+			uploader = Executors.newFixedThreadPool(getPartsInFlight(), (r) -> {
+				Thread t = new Thread(r, "s3-part-upload");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		final byte[] buffer = current;
+		final int length = position;
+		final int partNumber = parts.size() + 1;
+		final UploadPartRequest request = new UploadPartRequest()
+				.withBucketName(bucket)
+				.withKey(key)
+				.withUploadId(uploadId)
+				.withPartNumber(partNumber)
+				.withPartSize(length)
+				.withInputStream( new ByteArrayInputStream(buffer, 0, length) );
+		current = null;
+		position = 0;
+		parts.add( uploader.submit( () -> {
+			try {
+				return client.uploadPart(request).getPartETag();
+			} finally {
+				freeBuffers.offer(buffer);
+				buffers.release();
+			}
+		}));
+	}
+
+	/**
+	 * Fails fast if any part upload that has already finished was unsuccessful.
+	 */
+	private void checkParts() throws IOException {
+		for( Future<PartETag> part : parts ) {
+			if ( part.isDone() ) {
+				partETag(part);
+			}
+		}
+	}
+
+	private void completeUpload() throws IOException {
+		List<PartETag> eTags = new ArrayList<>( parts.size() );
+		for( Future<PartETag> part : parts ) {
+			eTags.add( partETag(part) );
+		}
+		try {
+			CompleteMultipartUploadResult completed = client.completeMultipartUpload( new CompleteMultipartUploadRequest(bucket, key, uploadId, eTags) );
+			result = new PutObjectResult();
+			result.setETag( completed.getETag() );
+			result.setVersionId( completed.getVersionId() );
+		} catch( AmazonClientException acx ) {
+			throw new IOException("Unable to complete upload to " + bucket + "/" + key, acx);
+		}
+	}
+
+	private void putObject() throws IOException {
+		ObjectMetadata single = metadata.clone();
+		single.setContentLength(position);
+		byte[] data = current != null ? current : new byte[0];
+		try {
+			result = client.putObject( new PutObjectRequest(bucket, key, new ByteArrayInputStream(data, 0, position), single) );
+		} catch( AmazonClientException acx ) {
+			throw new IOException("Unable to upload to " + bucket + "/" + key, acx);
+		}
+		current = null;
+	}
+
+	private PartETag partETag(Future<PartETag> part) throws IOException {
+		try {
+			return part.get();
+		} catch( InterruptedException ix ) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for a part upload to finish");
+		} catch( ExecutionException ex ) {
+			throw new IOException("Unable to upload part to " + bucket + "/" + key, ex.getCause());
+		}
+	}
+
+	/**
+	 * The state of a suspended upload.
+	 */
+	public static class UploadState {
+
+		private final String uploadId;
+
+		private final List<PartETag> parts;
+
+		private final byte[] pending;
+
+		private final long bytesWritten;
+
+		/**
+		 * @param uploadId the ID of the multipart upload, or <code>null</code> if none was started.
+		 * @param parts the ETags of the parts uploaded, in order.
+		 * @param pending output that has not been uploaded.
+		 * @param bytesWritten the total number of bytes written, including the pending output.
+		 */
+		public UploadState(String uploadId, List<PartETag> parts, byte[] pending, long bytesWritten) {
+			this.uploadId = uploadId;
+			this.parts = parts;
+			this.pending = pending;
+			this.bytesWritten = bytesWritten;
+		}
+
+		public String getUploadId() {
+			return uploadId;
+		}
+
+		public List<PartETag> getParts() {
+			return parts;
+		}
+
+		public byte[] getPending() {
+			return pending;
+		}
+
+		public long getBytesWritten() {
+			return bytesWritten;
+		}
+	}
+
+	private void shutdown() {
+		if ( uploader != null ) {
+			uploader.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,250 @@
+package edu.ncsu.lib.aws.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * An input stream that reads a large S3 object as a series of byte ranges fetched concurrently.
+ * <p>
+ *  A single GET of a large object is limited to the throughput of one connection.  This stream instead requests
+ *  consecutive ranges of {@link #setRangeSize(int) rangeSize} bytes, keeping up to {@link #setPrefetch(int) prefetch}
+ *  requests in flight, and returns their content in order, so the bytes read are exactly those of the object.  Reading
+ *  through the <code>InputStream</code> methods hands out each range as it was fetched, without copying it, so memory
+ *  use is bounded by the range size times one more than the prefetch window, whatever the content.
+ * </p>
+ * <p>
+ *  Instances are not thread-safe.
+ * </p>
+ */
+public class RangedObjectInputStream extends InputStream {
+
+	/** The default range size: 8MB */
+	public static final int DEFAULT_RANGE_SIZE = 8 * 1024 * 1024;
+
+	/** The default number of ranges requested ahead of the reader */
+	public static final int DEFAULT_PREFETCH = 4;
+
+	private final AmazonS3 client;
+
+	private final String bucket;
+
+	private final String key;
+
+	private long length;
+
+	private int rangeSize = DEFAULT_RANGE_SIZE;
+
+	private int prefetch = DEFAULT_PREFETCH;
+
+	private ExecutorService fetcher;
+
+	private final ArrayDeque<Future<byte[]>> ranges = new ArrayDeque<>();
+
+	// offset of the next range to request; starts at the start offset
+	private long requested = 0;
+
+	// the range being read
+	private byte[] range;
+
+	private int position = 0;
+
+	private boolean closed = false;
+
+	/**
+	 * Creates a stream over an object of known length.
+	 * @param client the S3 client to read with.
+	 * @param bucket the object's bucket.
+	 * @param key the object's key.
+	 * @param length the length of the object, or a negative number to look it up.
+	 */
+	public RangedObjectInputStream(AmazonS3 client, String bucket, String key, long length) {
+		this.client = client;
+		this.bucket = bucket;
+		this.key = key;
+		this.length = length;
+	}
+
+	/**
+	 * Sets the size of each ranged request.  Must be called before anything is read.
+	 * @param rangeSize the range size in bytes.
+	 * @return this stream.
+	 */
+	public RangedObjectInputStream setRangeSize(int rangeSize) {
+		checkNotStarted();
+		if ( rangeSize < 1 ) {
+			throw new IllegalArgumentException("Range size must be positive: " + rangeSize);
+		}
+		this.rangeSize = rangeSize;
+		return this;
+	}
+
+	public int getRangeSize() {
+		return rangeSize;
+	}
+
+	/**
+	 * Sets the number of ranges requested at once, ahead of the reader.  Must be called before anything is read.
+	 * @param prefetch the number of concurrent requests.
+	 * @return this stream.
+	 */
+	public RangedObjectInputStream setPrefetch(int prefetch) {
+		checkNotStarted();
+		this.prefetch = Math.max(1, prefetch);
+		return this;
+	}
+
+	public int getPrefetch() {
+		return prefetch;
+	}
+
+	/**
+	 * Starts reading partway through the object, for resuming an interrupted transformation from a record boundary.
+	 * Must be called before anything is read.
+	 * @param startOffset the offset of the first byte to read.
+	 * @return this stream.
+	 */
+	public RangedObjectInputStream setStartOffset(long startOffset) {
+		checkNotStarted();
+		this.requested = Math.max(0, startOffset);
+		return this;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if ( !ensureRange() ) {
+			return -1;
+		}
+		return range[position++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if ( len == 0 ) {
+			return 0;
+		}
+		if ( !ensureRange() ) {
+			return -1;
+		}
+		int count = Math.min(len, range.length - position);
+		System.arraycopy(range, position, b, off, count);
+		position += count;
+		return count;
+	}
+
+	@Override
+	public int available() {
+		return range != null ? range.length - position : 0;
+	}
+
+	@Override
+	public void close() {
+		if ( closed ) {
+			return;
+		}
+		closed = true;
+		for( Future<byte[]> range : ranges ) {
+			range.cancel(true);
+		}
+		ranges.clear();
+		if ( fetcher != null ) {
+			fetcher.shutdownNow();
+		}
+		range = null;
+	}
+
+	/**
+	 * Moves on to the next range once the current one has been read.
+	 * @return <code>false</code> at the end of the object.
+	 */
+	private boolean ensureRange() throws IOException {
+		if ( closed ) {
+			throw new IOException("Stream closed");
+		}
+		if ( fetcher == null ) {
+			start();
+		}
+		while( range == null || position == range.length ) {
+			position = 0;
+			if ( !ranges.isEmpty() ) {
+				range = take( ranges.removeFirst() );
+				fill();
+			} else {
+				range = null;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void checkNotStarted() {
+		if ( fetcher != null ) {
+			throw new IllegalStateException("Reading has already started");
+		}
+	}
+
+	private void start() throws IOException {
+		if ( length < 0 ) {
+			try {
+				length = client.getObjectMetadata(bucket, key).getContentLength();
+			} catch( AmazonClientException acx ) {
+				throw new IOException("Unable to read " + bucket + "/" + key, acx);
+			}
+		}
+		fetcher = Executors.newFixedThreadPool(prefetch, (r) -> {
+			Thread t = new Thread(r, "s3-range-get");
+			t.setDaemon(true);
+			return t;
+		});
+		fill();
+	}
+
+	/**
+	 * Requests ranges until the prefetch window is full or the whole object has been requested.
+	 */
+	private void fill() {
+		while( ranges.size() < prefetch && requested < length ) {
+			final long start = requested;
+			final long end = Math.min(length, start + rangeSize);
+			ranges.addLast( fetcher.submit( () -> fetch(start, end) ) );
+			requested = end;
+		}
+	}
+
+	private byte[] fetch(long start, long end) throws IOException {
+		byte[] data = new byte[(int)(end - start)];
+		S3Object object = client.getObject( new GetObjectRequest(bucket, key).withRange(start, end - 1) );
+		try( InputStream input = object.getObjectContent() ) {
+			int pos = 0;
+			int read;
+			while( pos < data.length && ( read = input.read(data, pos, data.length - pos) ) != -1 ) {
+				pos += read;
+			}
+			if ( pos < data.length ) {
+				throw new IOException("Expected " + data.length + " bytes from " + bucket + "/" + key + " at " + start + ", got " + pos);
+			}
+		}
+		return data;
+	}
+
+	private byte[] take(Future<byte[]> range) throws IOException {
+		try {
+			return range.get();
+		} catch( InterruptedException ix ) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for " + bucket + "/" + key);
+		} catch( ExecutionException ex ) {
+			throw new IOException("Unable to read " + bucket + "/" + key, ex.getCause());
+		}
+	}
+}
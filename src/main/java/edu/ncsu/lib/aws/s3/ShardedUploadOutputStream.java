@@ -0,0 +1,585 @@
+package edu.ncsu.lib.aws.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.util.json.Jackson;
+
+/**
+ * An output stream that splits newline-delimited records into a series of S3 objects (shards), uploading each shard
+ * as soon as it is complete, followed by a manifest listing them.
+ * <p>
+ *  A shard is cut at the first line end after it reaches {@link #setMaxRecords(long) maxRecords} lines or
+ *  {@link #setMaxBytes(int) maxBytes} bytes, so no record is ever split between shards and a shard is never more than
+ *  one record over the byte limit.  Complete shards are uploaded on background threads, up to
+ *  {@link #setShardsInFlight(int) shardsInFlight} at a time, while writing continues into the next one; when every
+ *  shard buffer is in use, writes block until an upload finishes, which bounds memory use.  Shards are named
+ *  <code>prefix + "part-00000.ndjson"</code>, <code>prefix + "part-00001.ndjson"</code> and so on, and can be
+ *  consumed as soon as they appear.
+ * </p>
+ * <p>
+ *  Closing the stream uploads the last shard, waits for all of them, then writes <code>prefix + "manifest.json"</code>
+ *  (see {@link Manifest}).  The manifest is written last, so consumers that need a complete set of shards can wait
+ *  for it.  If anything goes wrong, {@link #abort()} stops uploading and no manifest is written.
+ * </p>
+ * <p>
+ *  With {@link #setGzip(boolean)}, each shard is compressed on its upload thread and stored with a
+ *  <code>Content-Encoding</code> of <code>gzip</code>.  Instances are not thread-safe.
+ * </p>
+ */
+public class ShardedUploadOutputStream extends OutputStream {
+
+	/** The default maximum size of a shard: 16MB */
+	public static final int DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+	/** The default maximum number of records in a shard */
+	public static final long DEFAULT_MAX_RECORDS = 100000L;
+
+	/** The default number of shards uploaded concurrently */
+	public static final int DEFAULT_SHARDS_IN_FLIGHT = 4;
+
+	/** The name of the manifest, after the key prefix */
+	public static final String MANIFEST_NAME = "manifest.json";
+
+	private static final byte LINE_END = '\n';
+
+	private final AmazonS3 client;
+
+	private final String bucket;
+
+	private final String prefix;
+
+	private final ObjectMetadata metadata;
+
+	private long maxRecords = DEFAULT_MAX_RECORDS;
+
+	private int maxBytes = DEFAULT_MAX_BYTES;
+
+	private int shardsInFlight = DEFAULT_SHARDS_IN_FLIGHT;
+
+	private long memoryLimit = Long.MAX_VALUE;
+
+	private boolean gzip = false;
+
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+	private String source;
+
+	private ExecutorService uploader;
+
+	private Semaphore buffers;
+
+	private final List<Future<Shard>> shards = new ArrayList<>();
+
+	private ShardBuffer current;
+
+	private long currentRecords = 0;
+
+	private long records = 0;
+
+	private long bytesWritten = 0;
+
+	private PutObjectResult result;
+
+	private boolean closed = false;
+
+	private final byte[] single = new byte[1];
+
+	/**
+	 * Creates a stream.
+	 * @param client the S3 client to upload with.
+	 * @param bucket the bucket to upload to.
+	 * @param prefix the prefix of the shard and manifest keys; usually ends with a <code>/</code>.
+	 * @param metadata the metadata of each shard.  The content length and encoding are filled in for each one.
+	 */
+	public ShardedUploadOutputStream(AmazonS3 client, String bucket, String prefix, ObjectMetadata metadata) {
+		this.client = client;
+		this.bucket = bucket;
+		this.prefix = prefix;
+		this.metadata = metadata != null ? metadata : new ObjectMetadata();
+	}
+
+	/**
+	 * Sets the number of records after which a shard is cut.  Must be called before anything is written.
+	 * @param maxRecords the number of records, or 0 for no limit.
+	 * @return this stream.
+	 */
+	public ShardedUploadOutputStream setMaxRecords(long maxRecords) {
+		checkNotStarted();
+		this.maxRecords = Math.max(0, maxRecords);
+		return this;
+	}
+
+	public long getMaxRecords() {
+		return maxRecords;
+	}
+
+	/**
+	 * Sets the size after which a shard is cut, at the end of the record that reaches it.  Must be called before
+	 * anything is written.
+	 * @param maxBytes the size in bytes.
+	 * @return this stream.
+	 */
+	public ShardedUploadOutputStream setMaxBytes(int maxBytes) {
+		checkNotStarted();
+		if ( maxBytes < 1 ) {
+			throw new IllegalArgumentException("Shard size must be positive: " + maxBytes);
+		}
+		this.maxBytes = maxBytes;
+		return this;
+	}
+
+	public int getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Sets the number of shards that may be uploading at once.  Must be called before anything is written.
+	 * @param shardsInFlight the number of concurrent uploads.
+	 * @return this stream.
+	 */
+	public ShardedUploadOutputStream setShardsInFlight(int shardsInFlight) {
+		checkNotStarted();
+		this.shardsInFlight = Math.max(1, shardsInFlight);
+		return this;
+	}
+
+	/**
+	 * Gets the number of shards that may be uploading at once, taking the memory limit into account.
+	 * @return
+	 */
+	public int getShardsInFlight() {
+		long affordable = memoryLimit / maxBytes - 1;
+		return (int)Math.max(1, Math.min(shardsInFlight, affordable));
+	}
+
+	/**
+	 * Sets the ceiling on memory used for shard buffers.  Whatever the limit, at least two buffers are allowed (one
+	 * being filled and one being uploaded).  Must be called before anything is written.
+	 * @param memoryLimit the limit in bytes.
+	 * @return this stream.
+	 */
+	public ShardedUploadOutputStream setMemoryLimit(long memoryLimit) {
+		checkNotStarted();
+		this.memoryLimit = memoryLimit;
+		return this;
+	}
+
+	public long getMemoryLimit() {
+		return memoryLimit;
+	}
+
+	/**
+	 * Enables or disables gzip compression of each shard.  Must be called before anything is written.
+	 * @param gzip
+	 * @return this stream.
+	 */
+	public ShardedUploadOutputStream setGzip(boolean gzip) {
+		checkNotStarted();
+		this.gzip = gzip;
+		return this;
+	}
+
+	public boolean isGzip() {
+		return gzip;
+	}
+
+	/**
+	 * Sets the compression level used when shards are compressed.  Must be called before anything is written.
+	 * @param compressionLevel 0 (none) to 9 (best), or {@link Deflater#DEFAULT_COMPRESSION}.
+	 * @return this stream.
+	 */
+	public ShardedUploadOutputStream setCompressionLevel(int compressionLevel) {
+		checkNotStarted();
+		this.compressionLevel = compressionLevel;
+		return this;
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * Sets a description of where the records came from, recorded in the manifest.
+	 * @param source for example, the bucket and key of the source object.
+	 * @return this stream.
+	 */
+	public ShardedUploadOutputStream setSource(String source) {
+		this.source = source;
+		return this;
+	}
+
+	/**
+	 * Gets the number of bytes written to the stream so far.
+	 * @return
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Gets the number of records (complete lines) written to the stream so far.
+	 * @return
+	 */
+	public long getRecords() {
+		return records;
+	}
+
+	/**
+	 * Gets the number of shards cut so far, including any still uploading.
+	 * @return
+	 */
+	public int getShardCount() {
+		return shards.size();
+	}
+
+	/**
+	 * Gets the result of uploading the manifest, once the stream has been closed.
+	 * @return the result, or <code>null</code> if the stream has not been closed.
+	 */
+	public PutObjectResult getResult() {
+		return result;
+	}
+
+	/**
+	 * Gets the key of the manifest.
+	 * @return
+	 */
+	public String getManifestKey() {
+		return prefix + MANIFEST_NAME;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		single[0] = (byte)b;
+		write(single, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while( len > 0 ) {
+			ensureBuffer();
+			int end = off;
+			int limit = off + len;
+			while( end < limit && b[end] != LINE_END ) {
+				end++;
+			}
+			boolean lineEnded = end < limit;
+			int count = ( lineEnded ? end + 1 : end ) - off;
+			current.write(b, off, count);
+			bytesWritten += count;
+			off += count;
+			len -= count;
+			if ( lineEnded ) {
+				currentRecords++;
+				records++;
+				if ( current.size() >= maxBytes || ( maxRecords > 0 && currentRecords >= maxRecords ) ) {
+					uploadShard();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Uploads the last shard, waits for every shard to be uploaded and writes the manifest.  A last line with no line
+	 * end is still included.
+	 */
+	@Override
+	public void close() throws IOException {
+		if ( closed ) {
+			return;
+		}
+		boolean finished = false;
+		try {
+			if ( current != null && current.size() > 0 ) {
+				if ( current.endsWithPartialLine() ) {
+					// a final line without a line end is a record all the same
+					currentRecords++;
+					records++;
+				}
+				uploadShard();
+			}
+			Manifest manifest = new Manifest(source);
+			for( Future<Shard> shard : shards ) {
+				manifest.add( shard(shard) );
+			}
+			byte[] json = Jackson.toJsonPrettyString(manifest).getBytes(StandardCharsets.UTF_8);
+			ObjectMetadata manifestMetadata = new ObjectMetadata();
+			manifestMetadata.setContentType("application/json");
+			manifestMetadata.setContentLength(json.length);
+			try {
+				result = client.putObject( new PutObjectRequest(bucket, getManifestKey(), new ByteArrayInputStream(json), manifestMetadata) );
+			} catch( AmazonClientException acx ) {
+				throw new IOException("Unable to upload manifest to " + bucket + "/" + getManifestKey(), acx);
+			}
+			finished = true;
+		} finally {
+			if ( finished ) {
+				closed = true;
+				shutdown();
+			} else {
+				abort();
+			}
+		}
+	}
+
+	/**
+	 * Abandons the output: stops uploading shards and writes no manifest.  Shards that have already been uploaded are
+	 * left in place.  Has no effect once the stream has been closed.
+	 */
+	public void abort() {
+		if ( closed ) {
+			return;
+		}
+		closed = true;
+		for( Future<Shard> shard : shards ) {
+			shard.cancel(true);
+		}
+		shutdown();
+		current = null;
+	}
+
+	private void shutdown() {
+		if ( uploader != null ) {
+			uploader.shutdownNow();
+		}
+	}
+
+	private void checkNotStarted() {
+		if ( buffers != null ) {
+			throw new IllegalStateException("Upload has already started");
+		}
+	}
+
+	/**
+	 * Makes sure there is a buffer to write into, waiting for an upload to finish if all the buffers are in use.
+	 */
+	private void ensureBuffer() throws IOException {
+		if ( closed ) {
+			throw new IOException("Stream closed");
+		}
+		if ( current != null ) {
+			return;
+		}
+		if ( buffers == null ) {
+			buffers = new Semaphore( getShardsInFlight() + 1 );
+		}
+		checkShards();
+		try {
+			buffers.acquire();
+		} catch( InterruptedException ix ) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for a shard upload to finish");
+		}
+		current = new ShardBuffer( Math.min(maxBytes, 1024 * 1024) );
+		currentRecords = 0;
+	}
+
+	/**
+	 * Hands the current shard off for upload.
+	 */
+	private void uploadShard() {
+		if ( uploader == null ) {
+			uploader = Executors.newFixedThreadPool(getShardsInFlight(), (r) -> {
+				Thread t = new Thread(r, "s3-shard-upload");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		final ShardBuffer buffer = current;
+		final long shardRecords = currentRecords;
+		final String key = prefix + String.format("part-%05d.ndjson", shards.size());
+		current = null;
+		currentRecords = 0;
+		shards.add( uploader.submit( () -> {
+			try {
+				return upload(key, buffer, shardRecords);
+			} finally {
+				buffers.release();
+			}
+		}));
+	}
+
+	private Shard upload(String key, ShardBuffer buffer, long shardRecords) throws IOException {
+		ObjectMetadata shardMetadata = metadata.clone();
+		InputStream content;
+		long length;
+		if ( gzip ) {
+			ShardBuffer compressed = new ShardBuffer( buffer.size() / 4 + 64 );
+			try( GZIPOutputStream output = new GZIPOutputStream(compressed, 64 * 1024) { { def.setLevel(compressionLevel); } } ) {
+				buffer.writeTo(output);
+			}
+			shardMetadata.setContentEncoding("gzip");
+			content = compressed.toInputStream();
+			length = compressed.size();
+		} else {
+			content = buffer.toInputStream();
+			length = buffer.size();
+		}
+		shardMetadata.setContentLength(length);
+		try {
+			PutObjectResult put = client.putObject( new PutObjectRequest(bucket, key, content, shardMetadata) );
+			return new Shard(key, shardRecords, buffer.size(), length, put.getETag());
+		} catch( AmazonClientException acx ) {
+			throw new IOException("Unable to upload shard to " + bucket + "/" + key, acx);
+		}
+	}
+
+	/**
+	 * Fails fast if any shard upload that has already finished was unsuccessful.
+	 */
+	private void checkShards() throws IOException {
+		for( Future<Shard> shard : shards ) {
+			if ( shard.isDone() ) {
+				shard(shard);
+			}
+		}
+	}
+
+	private Shard shard(Future<Shard> shard) throws IOException {
+		try {
+			return shard.get();
+		} catch( InterruptedException ix ) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for a shard upload to finish");
+		} catch( ExecutionException ex ) {
+			Throwable cause = ex.getCause();
+			if ( cause instanceof IOException ) {
+				throw (IOException)cause;
+			}
+			throw new IOException("Unable to upload shard to " + bucket, cause);
+		}
+	}
+
+	/**
+	 * A shard's content, readable without copying.
+	 */
+	private static class ShardBuffer extends ByteArrayOutputStream {
+
+		ShardBuffer(int size) {
+			super(size);
+		}
+
+		InputStream toInputStream() {
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+
+		boolean endsWithPartialLine() {
+			return count > 0 && buf[count - 1] != LINE_END;
+		}
+	}
+
+	/**
+	 * A shard, as listed in the manifest.
+	 */
+	public static class Shard {
+
+		private final String key;
+
+		private final long records;
+
+		private final long bytes;
+
+		private final long storedBytes;
+
+		private final String eTag;
+
+		/**
+		 * @param key the shard's key.
+		 * @param records the number of records in the shard.
+		 * @param bytes the size of the shard's content.
+		 * @param storedBytes the size of the shard as stored, after any compression.
+		 * @param eTag the shard's ETag.
+		 */
+		public Shard(String key, long records, long bytes, long storedBytes, String eTag) {
+			this.key = key;
+			this.records = records;
+			this.bytes = bytes;
+			this.storedBytes = storedBytes;
+			this.eTag = eTag;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public long getRecords() {
+			return records;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		public long getStoredBytes() {
+			return storedBytes;
+		}
+
+		public String getETag() {
+			return eTag;
+		}
+	}
+
+	/**
+	 * The manifest written when the stream is closed: the shards in order, with their record counts and sizes, and the
+	 * totals.  Serialized as JSON.
+	 */
+	public static class Manifest {
+
+		private final String source;
+
+		private final List<Shard> shards = new ArrayList<>();
+
+		Manifest(String source) {
+			this.source = source;
+		}
+
+		void add(Shard shard) {
+			shards.add(shard);
+		}
+
+		public String getSource() {
+			return source;
+		}
+
+		public List<Shard> getShards() {
+			return Collections.unmodifiableList(shards);
+		}
+
+		public long getRecords() {
+			long total = 0;
+			for( Shard shard : shards ) {
+				total += shard.getRecords();
+			}
+			return total;
+		}
+
+		public long getBytes() {
+			long total = 0;
+			for( Shard shard : shards ) {
+				total += shard.getBytes();
+			}
+			return total;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package edu.ncsu.lib.io;
+
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link StageExecutor} backed by a pool with a fixed maximum number of threads.
+ * <p>
+ *  Each group of tasks reserves a thread per task before any of them is started, so a pipeline never starts unless
+ *  every one of its stages can run, and concurrent transformations queue for threads rather than adding more.  Threads
+ *  are daemons and are let go after a period of idleness, so an idle pool in a warm container or a long-running JVM
+ *  costs nothing and doesn't keep the JVM alive.
+ * </p>
+ */
+public class BoundedStageExecutor implements StageExecutor {
+
+	/** How long an idle thread is kept, in seconds */
+	public static final long KEEP_ALIVE_SECONDS = 30;
+
+	private static final AtomicInteger POOLS = new AtomicInteger();
+
+	private final int maxThreads;
+
+	private final Semaphore threads;
+
+	private final ThreadPoolExecutor pool;
+
+	/**
+	 * Creates an executor.
+	 * @param maxThreads the most threads the executor will use at once.
+	 */
+	public BoundedStageExecutor(int maxThreads) {
+		if ( maxThreads < 1 ) {
+			throw new IllegalArgumentException("Need at least one thread: " + maxThreads);
+		}
+		this.maxThreads = maxThreads;
+		this.threads = new Semaphore(maxThreads, true);
+		final String prefix = "stream-stage-" + POOLS.incrementAndGet() + "-";
+		final AtomicInteger count = new AtomicInteger();
+		// tasks only queue for the moment between one finishing and its thread being free for the next
+		this.pool = new ThreadPoolExecutor(maxThreads, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), (r) -> {
+			Thread t = new Thread(r, prefix + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		this.pool.allowCoreThreadTimeOut(true);
+	}
+
+	public int getMaxThreads() {
+		return maxThreads;
+	}
+
+	/**
+	 * Gets the number of threads currently reserved by running (or about to run) tasks.
+	 * @return
+	 */
+	public int getActiveThreads() {
+		return maxThreads - threads.availablePermits();
+	}
+
+	@Override
+	public void execute(Map<String, Runnable> tasks) throws InterruptedException {
+		if ( tasks.size() > maxThreads ) {
+			throw new IllegalArgumentException(tasks.size() + " tasks can never run at once on " + maxThreads + " threads");
+		}
+		if ( pool.isShutdown() ) {
+			throw new IllegalStateException("Executor closed");
+		}
+		threads.acquire( tasks.size() );
+		int submitted = 0;
+		try {
+			for( Map.Entry<String, Runnable> task : tasks.entrySet() ) {
+				final String name = task.getKey();
+				final Runnable runnable = task.getValue();
+				pool.execute( () -> {
+					Thread current = Thread.currentThread();
+					String poolName = current.getName();
+					current.setName(name);
+					try {
+						runnable.run();
+					} finally {
+						current.setName(poolName);
+						threads.release();
+					}
+				});
+				submitted++;
+			}
+		} catch( RejectedExecutionException rx ) {
+			threads.release( tasks.size() - submitted );
+			throw new IllegalStateException("Executor closed", rx);
+		}
+	}
+
+	@Override
+	public void close() {
+		pool.shutdown();
+	}
+}
@@ -0,0 +1,352 @@
+package edu.ncsu.lib.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single-producer, single-consumer byte pipe backed by a ring buffer.
+ * <p>
+ *  A replacement for <code>PipedInputStream</code>/<code>PipedOutputStream</code> pairs, which use a fixed 1KB buffer,
+ *  synchronize every call and wait for each other by polling once a second.  Here the writer and reader share nothing but
+ *  two positions in the buffer: each side only ever writes its own position, so no locks are needed, and a side that
+ *  has to wait (the writer on a full buffer, the reader on an empty one) yields briefly, then parks until the other side
+ *  makes progress.
+ * </p>
+ * <p>
+ *  The writer ends the stream by closing its {@link #getOutputStream() output stream}, or by reporting an error with
+ *  {@link #fail(Throwable)}, in which case the reader gets an <code>IOException</code> once it has read everything written
+ *  before the failure.  If the reader closes its stream, further writes fail rather than blocking forever.
+ * </p>
+ * <p>
+ *  Exactly one thread may write and one thread may read at a time.
+ * </p>
+ */
+public class BytePipe {
+
+	/** The default capacity: 64KB */
+	public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+	// upper bound on a single park, in case a wakeup is missed
+	private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	// times to check again (yielding in between) before parking; the other side is usually about to make progress
+	private static final int SPINS = 64;
+
+	private final byte[] buffer;
+
+	private final int mask;
+
+	// total bytes written; only updated by the writer
+	private volatile long writePosition = 0;
+
+	// total bytes read; only updated by the reader
+	private volatile long readPosition = 0;
+
+	private volatile boolean writerClosed = false;
+
+	private volatile boolean readerClosed = false;
+
+	private volatile Throwable failure;
+
+	private volatile Thread waitingWriter;
+
+	private volatile Thread waitingReader;
+
+	private final InputStream input = new PipeInputStream();
+
+	private final OutputStream output = new PipeOutputStream();
+
+	public BytePipe() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a pipe.
+	 * @param capacity the size of the buffer, rounded up to a power of two.
+	 */
+	public BytePipe(int capacity) {
+		if ( capacity < 1 || capacity > 1 << 30 ) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+		int size = Integer.highestOneBit(capacity);
+		if ( size < capacity ) {
+			size <<= 1;
+		}
+		this.buffer = new byte[size];
+		this.mask = size - 1;
+	}
+
+	public int getCapacity() {
+		return buffer.length;
+	}
+
+	/**
+	 * Gets the stream the consumer reads from.
+	 * @return
+	 */
+	public InputStream getInputStream() {
+		return input;
+	}
+
+	/**
+	 * Gets the stream the producer writes to.
+	 * @return
+	 */
+	public OutputStream getOutputStream() {
+		return output;
+	}
+
+	/**
+	 * Ends the stream with an error.  The reader gets the data written so far, followed by an <code>IOException</code>
+	 * caused by <code>cause</code>.
+	 * @param cause the error the producer encountered.
+	 */
+	public void fail(Throwable cause) {
+		failure = cause;
+		writerClosed = true;
+		wake(waitingReader);
+	}
+
+	/**
+	 * Thrown to a writer when the reader has closed the pipe.  This usually means the reader has failed or
+	 * finished early, rather than anything being wrong with the writer.
+	 */
+	public static class PipeClosedException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public PipeClosedException() {
+			super("Pipe closed by reader");
+		}
+	}
+
+	private static void wake(Thread waiting) {
+		if ( waiting != null ) {
+			LockSupport.unpark(waiting);
+		}
+	}
+
+	private class PipeOutputStream extends OutputStream {
+
+		private final byte[] single = new byte[1];
+
+		@Override
+		public void write(int b) throws IOException {
+			single[0] = (byte)b;
+			write(single, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if ( writerClosed ) {
+				throw new IOException("Pipe closed");
+			}
+			long position = writePosition;
+			while( len > 0 ) {
+				int free = awaitSpace(position);
+				int count = Math.min(len, free);
+				int start = (int)position & mask;
+				int first = Math.min(count, buffer.length - start);
+				System.arraycopy(b, off, buffer, start, first);
+				if ( first < count ) {
+					System.arraycopy(b, off + first, buffer, 0, count - first);
+				}
+				position += count;
+				off += count;
+				len -= count;
+				writePosition = position;
+				wake(waitingReader);
+			}
+		}
+
+		/**
+		 * Waits until there is room in the buffer.
+		 * @return the number of bytes free.
+		 */
+		private int awaitSpace(long position) throws IOException {
+			int free = buffer.length - (int)(position - readPosition);
+			for( int spin = 0; free == 0 && spin < SPINS && !readerClosed; spin++ ) {
+				Thread.yield();
+				free = buffer.length - (int)(position - readPosition);
+			}
+			if ( free > 0 && !readerClosed ) {
+				return free;
+			}
+			Thread current = Thread.currentThread();
+			waitingWriter = current;
+			try {
+				while( true ) {
+					if ( readerClosed ) {
+						throw new PipeClosedException();
+					}
+					// check again after announcing we're waiting, so the reader can't miss us
+					free = buffer.length - (int)(position - readPosition);
+					if ( free > 0 ) {
+						return free;
+					}
+					LockSupport.parkNanos(this, PARK_NANOS);
+					if ( Thread.interrupted() ) {
+						throw new InterruptedIOException("Interrupted waiting for the reader");
+					}
+				}
+			} finally {
+				waitingWriter = null;
+			}
+		}
+
+		@Override
+		public void close() {
+			writerClosed = true;
+			wake(waitingReader);
+		}
+	}
+
+	private class PipeInputStream extends InputStream {
+
+		private final byte[] single = new byte[1];
+
+		@Override
+		public int read() throws IOException {
+			return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if ( readerClosed ) {
+				throw new IOException("Pipe closed");
+			}
+			if ( len == 0 ) {
+				return 0;
+			}
+			long position = readPosition;
+			int available = awaitData(position);
+			if ( available == 0 ) {
+				return -1;
+			}
+			int count = Math.min(len, available);
+			int start = (int)position & mask;
+			int first = Math.min(count, buffer.length - start);
+			System.arraycopy(buffer, start, b, off, first);
+			if ( first < count ) {
+				System.arraycopy(buffer, 0, b, off + first, count - first);
+			}
+			readPosition = position + count;
+			wake(waitingWriter);
+			return count;
+		}
+
+		/**
+		 * Waits until there is data in the buffer or the writer has finished.
+		 * @return the number of bytes available, or 0 at the end of the stream.
+		 */
+		private int awaitData(long position) throws IOException {
+			int available = (int)(writePosition - position);
+			for( int spin = 0; available == 0 && spin < SPINS && !writerClosed; spin++ ) {
+				Thread.yield();
+				available = (int)(writePosition - position);
+			}
+			if ( available > 0 ) {
+				return available;
+			}
+			Thread current = Thread.currentThread();
+			waitingReader = current;
+			try {
+				while( true ) {
+					// read the flag before the position, so data written just before closing isn't missed
+					boolean finished = writerClosed;
+					available = (int)(writePosition - position);
+					if ( available > 0 ) {
+						return available;
+					}
+					if ( finished ) {
+						Throwable cause = failure;
+						if ( cause != null ) {
+							throw new IOException("Producer failed", cause);
+						}
+						return 0;
+					}
+					LockSupport.parkNanos(this, PARK_NANOS);
+					if ( Thread.interrupted() ) {
+						throw new InterruptedIOException("Interrupted waiting for the writer");
+					}
+				}
+			} finally {
+				waitingReader = null;
+			}
+		}
+
+		@Override
+		public int available() {
+			return (int)(writePosition - readPosition);
+		}
+
+		@Override
+		public void close() {
+			readerClosed = true;
+			wake(waitingWriter);
+		}
+	}
+
+	/**
+	 * Compares the throughput of a <code>BytePipe</code> with that of a <code>PipedInputStream</code>/
+	 * <code>PipedOutputStream</code> pair, for a range of write sizes.
+	 * <p>
+	 *  Usage: <code>BytePipe [megabytes] [capacity]</code>
+	 * </p>
+	 */
+	public static void main(String[] args) throws Exception {
+		long total = ( args.length > 0 ? Long.parseLong(args[0]) : 256L ) * 1024 * 1024;
+		int capacity = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CAPACITY;
+		for( int chunk : new int[] { 16, 512, 8192, 65536 } ) {
+			// warm up, then measure
+			for( int round = 0; round < 2; round++ ) {
+				PipedInputStream pipedInput = new PipedInputStream();
+				long piped = transfer(new PipedOutputStream(pipedInput), pipedInput, total, chunk);
+				BytePipe pipe = new BytePipe(capacity);
+				long ring = transfer(pipe.getOutputStream(), pipe.getInputStream(), total, chunk);
+				if ( round == 1 ) {
+					System.out.printf("%6d byte writes: piped streams %8.1f MB/s, byte pipe %8.1f MB/s (%.1fx)%n",
+							chunk, rate(total, piped), rate(total, ring), (double)piped / ring);
+				}
+			}
+		}
+	}
+
+	private static long transfer(OutputStream output, InputStream input, long total, int chunk) throws Exception {
+		Thread producer = new Thread( () -> {
+			byte[] data = new byte[chunk];
+			try {
+				for( long written = 0; written < total; written += chunk ) {
+					output.write(data, 0, (int)Math.min(chunk, total - written));
+				}
+				output.close();
+			} catch( IOException iox ) {
+				iox.printStackTrace();
+			}
+		}, "pipe-benchmark-producer");
+		long start = System.nanoTime();
+		producer.start();
+		byte[] buffer = new byte[64 * 1024];
+		long read = 0;
+		int count;
+		while( ( count = input.read(buffer) ) != -1 ) {
+			read += count;
+		}
+		long elapsed = System.nanoTime() - start;
+		producer.join();
+		if ( read != total ) {
+			throw new IllegalStateException("Read " + read + " of " + total + " bytes");
+		}
+		return elapsed;
+	}
+
+	private static double rate(long bytes, long nanos) {
+		return bytes / 1048576.0 / ( nanos / 1e9 );
+	}
+}
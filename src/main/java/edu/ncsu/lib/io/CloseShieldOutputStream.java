@@ -0,0 +1,33 @@
+package edu.ncsu.lib.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream wrapper that flushes, rather than closes, the underlying stream when it is closed.
+ * <p>
+ *  Useful for handing a stream to code that closes it when it is done (as {@link edu.ncsu.lib.marc.MarcTransformer}
+ *  does, even on failure) when the caller needs to decide what closing means: for example, completing an upload only
+ *  if the transformation succeeded, and abandoning it otherwise.
+ * </p>
+ */
+public class CloseShieldOutputStream extends FilterOutputStream {
+
+	public CloseShieldOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+	}
+
+	/**
+	 * Flushes the underlying stream but leaves it open.
+	 */
+	@Override
+	public void close() throws IOException {
+		out.flush();
+	}
+}
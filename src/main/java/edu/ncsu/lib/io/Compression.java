@@ -0,0 +1,100 @@
+package edu.ncsu.lib.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The compressed formats recognized in input, identified by their magic bytes.
+ * <p>
+ *  MARC21 starts with the five digits of a record length, so it can't be mistaken for either format: the only pair of
+ *  digits that passes the zlib header checksum, <code>"80"</code>, would ask for a preset dictionary, which isn't
+ *  accepted.  Raw deflate data has no header and can't be detected.
+ * </p>
+ */
+public enum Compression {
+
+	/** Not compressed, or not in a recognized format */
+	NONE,
+
+	/** gzip (RFC 1952), possibly with several members */
+	GZIP,
+
+	/** zlib-wrapped deflate (RFC 1950) */
+	DEFLATE;
+
+	/** The number of bytes needed to recognize a format */
+	public static final int MAGIC_LENGTH = 2;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Identifies the format of data from its first bytes.
+	 * @param head the start of the data.
+	 * @param length the number of bytes of <code>head</code> that hold data.
+	 * @return the format.
+	 */
+	public static Compression detect(byte[] head, int length) {
+		if ( length < MAGIC_LENGTH ) {
+			return NONE;
+		}
+		int first = head[0] & 0xFF;
+		int second = head[1] & 0xFF;
+		if ( first == 0x1f && second == 0x8b ) {
+			return GZIP;
+		}
+		// deflate with a window of at most 32KB, no preset dictionary (which ordinary zlib streams never have, and which
+		// rules out the digits "80"), and a header checksum that makes the first two bytes a multiple of 31
+		if ( ( first & 0x0F ) == 8 && ( first >> 4 ) <= 7 && ( second & 0x20 ) == 0 && ( first * 256 + second ) % 31 == 0 ) {
+			return DEFLATE;
+		}
+		return NONE;
+	}
+
+	/**
+	 * Identifies the format of a stream without consuming any of it.
+	 * @param input the stream, which must support <code>mark</code> and <code>reset</code>.
+	 * @return the format.
+	 * @throws IOException if the stream could not be read.
+	 */
+	public static Compression detect(InputStream input) throws IOException {
+		if ( !input.markSupported() ) {
+			throw new IllegalArgumentException("Detection needs a stream that supports mark and reset");
+		}
+		byte[] head = new byte[MAGIC_LENGTH];
+		input.mark(MAGIC_LENGTH);
+		int length = 0;
+		int read;
+		while( length < head.length && ( read = input.read(head, length, head.length - length) ) != -1 ) {
+			length += read;
+		}
+		input.reset();
+		return detect(head, length);
+	}
+
+	/**
+	 * Wraps a stream in this format so that reading it returns the decompressed content.
+	 * @param input the compressed stream.
+	 * @return a stream of the decompressed content, or <code>input</code> itself for {@link #NONE}.
+	 * @throws IOException if the stream's header could not be read.
+	 */
+	public InputStream decompress(InputStream input) throws IOException {
+		switch( this ) {
+			case GZIP:
+				return new GZIPInputStream(input, BUFFER_SIZE);
+			case DEFLATE:
+				return new InflaterInputStream(input, new Inflater(), BUFFER_SIZE) {
+					@Override
+					public void close() throws IOException {
+						// a stream given its own inflater doesn't free it
+						super.close();
+						inf.end();
+					}
+				};
+			default:
+				return input;
+		}
+	}
+}
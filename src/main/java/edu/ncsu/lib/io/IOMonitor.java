@@ -1,77 +1,351 @@
 package edu.ncsu.lib.io;
 
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
 
 /**
- * Utility class that monitors the number of bytes read and written from an input/output stream pair, and tracks the amount of time
- * spent in such operations.
- * 
+ * Records the throughput and latency of transformations: bytes read and written, records converted, how long each
+ * record took, and how the time was divided between fetching input, transforming it and uploading the output.
+ *
+ * <p>
+ * 	Bytes and fetch and upload times are measured by {@link #monitoredInput(InputStream) wrapping} the source and
+ * 	{@link #monitoredOutput(OutputStream) destination} of a transformation: time spent in their <code>read</code> and
+ * 	<code>write</code> calls is time spent waiting for the input to arrive or the output to be taken away.  Transform
+ * 	time and per-record latencies are reported by whatever does the converting.  Phase times are summed over every
+ * 	thread, so when transformations run side by side, or fetching, converting and uploading overlap, they add up to more
+ * 	than the elapsed time; what they show is where the time went.
+ * </p>
+ * <p>
+ * 	Everything is lock-free and may be updated from any number of threads, so one monitor can be shared by concurrent
+ * 	transformations and left on all the time.  The timer runs from the first {@link #start()} to the last
+ * 	{@link #finish()} since it was {@link #reset()}.
+ * </p>
  * <p>
  * 	All time-based measurements for this class are calculated using <code>System.nanoTime()</code>, whose resolution is OS dependent.
  * </p>
  * @author adam_constabaris
  */
 public class IOMonitor {
-	
-	
-	long bytesRead = 0;
-	
-	long startTime = 0;
-	
-	long lastInterval = 0;
-	
-	long endTime = 0;
-	
+
+	/**
+	 * The stages a transformation spends its time in.
+	 */
+	public enum Phase {
+		/** waiting for input */
+		FETCH,
+		/** parsing and converting records */
+		TRANSFORM,
+		/** waiting for output to be accepted */
+		UPLOAD
+	}
+
+	private final LongAdder bytesRead = new LongAdder();
+
+	private final LongAdder bytesWritten = new LongAdder();
+
+	private final LongAdder records = new LongAdder();
+
+	private final LongAdder[] phaseNanos = new LongAdder[Phase.values().length];
+
+	private final LatencyHistogram latencies = new LatencyHistogram();
+
+	private final AtomicLong startTime = new AtomicLong();
+
+	private final AtomicLong lastInterval = new AtomicLong();
+
+	private final AtomicLong endTime = new AtomicLong();
+
 	public IOMonitor() {
-		endTime = bytesRead = startTime = 0;
+		for( int i = 0; i < phaseNanos.length; i++ ) {
+			phaseNanos[i] = new LongAdder();
+		}
 	}
-	
+
 	/**
-	 * Start the timer and resets the bytes read counter.
+	 * Starts the timer, unless it is already running.
 	 */
 	public void start() {
-		endTime = bytesRead = 0;
-		lastInterval = startTime = System.nanoTime();
+		long now = System.nanoTime();
+		if ( startTime.compareAndSet(0, now) ) {
+			lastInterval.set(now);
+		}
 	}
-	
+
 	/**
 	 * Notes an interval and returns the time elapsed since the previous one.
 	 * <p>
 	 * You can think of this as a "lap counter" on a stop watch.
 	 * </p>
 	 * @return the number of nanoseconds elapsed since the previous time this method was called, or
-	 * since <code>start()</code> was called if this method has not yet been called. 
+	 * since <code>start()</code> was called if this method has not yet been called.
 	 */
 	public long interval() {
-		long tick = lastInterval;
-		lastInterval = System.nanoTime();
-		return lastInterval - tick;
+		long now = System.nanoTime();
+		return now - lastInterval.getAndSet(now);
 	}
-	
+
 	/**
-	 * Sets the number of bytes read.
-	 * @param bytesRead the number of bytes read.
+	 * Notes the end of a transformation.  The duration runs to the latest call.
+	 * @return the duration so far, in nanoseconds.
 	 */
-	public void setRead(long bytesRead) {
-		this.bytesRead = bytesRead;
+	public long finish() {
+		endTime.accumulateAndGet(System.nanoTime(), Math::max);
+		return getDuration();
 	}
-	
+
 	/**
-	 * Completes monitoring.  Sets <code>endTime</code>
-	 * @return
+	 * Gets the time from the first <code>start()</code> to the last <code>finish()</code>, or to now if nothing has
+	 * finished yet.
+	 * @return the duration in nanoseconds, or 0 if the timer hasn't been started.
 	 */
-	public long finish() {
-		endTime = System.nanoTime();
-		return endTime = startTime;
-	}
-	
-	
 	public long getDuration() {
-		return endTime = startTime;
+		long start = startTime.get();
+		if ( start == 0 ) {
+			return 0;
+		}
+		long end = endTime.get();
+		return ( end != 0 ? end : System.nanoTime() ) - start;
+	}
+
+	/**
+	 * Clears every measurement and stops the timer.
+	 */
+	public void reset() {
+		startTime.set(0);
+		endTime.set(0);
+		bytesRead.reset();
+		bytesWritten.reset();
+		records.reset();
+		for( LongAdder nanos : phaseNanos ) {
+			nanos.reset();
+		}
+		latencies.reset();
+	}
+
+	/**
+	 * Wraps the source of a transformation, to count the bytes read from it and the time spent waiting for them.
+	 * @param input the source, or <code>null</code>.
+	 * @return a stream that reads from <code>input</code>, or <code>null</code> if it is.
+	 */
+	public MonitoredInputStream monitoredInput(InputStream input) {
+		return input != null ? new MonitoredInputStream(input) : null;
+	}
+
+	/**
+	 * Wraps the destination of a transformation, to count the bytes written to it and the time spent writing them.
+	 * @param output the destination, or <code>null</code>.
+	 * @return a stream that writes to <code>output</code>, or <code>null</code> if it is.
+	 */
+	public MonitoredOutputStream monitoredOutput(OutputStream output) {
+		return output != null ? new MonitoredOutputStream(output) : null;
+	}
+
+	/**
+	 * Adds to the number of records converted.
+	 * @param count the number of records.
+	 */
+	public void addRecords(long count) {
+		records.add(count);
+	}
+
+	/**
+	 * Adds time to a phase.
+	 * @param phase the phase.
+	 * @param nanos the time spent in it.
+	 */
+	public void addTime(Phase phase, long nanos) {
+		phaseNanos[phase.ordinal()].add(nanos);
+	}
+
+	/**
+	 * Gets the time spent in a phase, summed over every thread.
+	 * @param phase the phase.
+	 * @return the time in nanoseconds.
+	 */
+	public long getTime(Phase phase) {
+		return phaseNanos[phase.ordinal()].sum();
+	}
+
+	/**
+	 * Gets the histogram of the time each record took to convert.
+	 * @return
+	 */
+	public LatencyHistogram getLatencies() {
+		return latencies;
 	}
-	
+
 	public long getBytesRead() {
-		return bytesRead;
+		return bytesRead.sum();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	public long getRecords() {
+		return records.sum();
+	}
+
+	/**
+	 * Gets the number of records converted per second over the {@link #getDuration() duration}.
+	 * @return
+	 */
+	public double getRecordsPerSecond() {
+		return perSecond(getRecords());
+	}
+
+	/**
+	 * Gets the number of bytes read per second over the {@link #getDuration() duration}.
+	 * @return
+	 */
+	public double getBytesReadPerSecond() {
+		return perSecond(getBytesRead());
+	}
+
+	/**
+	 * Gets the number of bytes written per second over the {@link #getDuration() duration}.
+	 * @return
+	 */
+	public double getBytesWrittenPerSecond() {
+		return perSecond(getBytesWritten());
+	}
+
+	private double perSecond(long amount) {
+		long duration = getDuration();
+		return duration > 0 ? amount * 1e9 / duration : 0;
 	}
-}
 
+	/**
+	 * Summarizes the measurements, for logging.
+	 */
+	@Override
+	public String toString() {
+		return String.format("%d records, %d bytes in, %d bytes out in %dms (%.0f records/s, %.2f MB/s in, %.2f MB/s out); "
+				+ "fetch %dms, transform %dms, upload %dms; per record: %s",
+				getRecords(), getBytesRead(), getBytesWritten(), getDuration() / 1000000, getRecordsPerSecond(),
+				getBytesReadPerSecond() / ( 1024 * 1024 ), getBytesWrittenPerSecond() / ( 1024 * 1024 ),
+				getTime(Phase.FETCH) / 1000000, getTime(Phase.TRANSFORM) / 1000000, getTime(Phase.UPLOAD) / 1000000, latencies);
+	}
+
+	/**
+	 * A source whose reads are counted and timed.  Besides adding to the monitor, it keeps its own total of the time
+	 * spent reading, so that whoever reads from it can tell that time apart from their own; the total is only meant to
+	 * be read by the thread doing the reading.
+	 */
+	public class MonitoredInputStream extends FilterInputStream {
+
+		private long nanos = 0;
+
+		MonitoredInputStream(InputStream in) {
+			super(in);
+		}
+
+		/**
+		 * Gets the time spent in reads of this stream.
+		 * @return the time in nanoseconds.
+		 */
+		public long getNanos() {
+			return nanos;
+		}
+
+		@Override
+		public int read() throws IOException {
+			long start = System.nanoTime();
+			int b = in.read();
+			timed(start, b < 0 ? 0 : 1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			long start = System.nanoTime();
+			int count = in.read(b, off, len);
+			timed(start, Math.max(0, count));
+			return count;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long start = System.nanoTime();
+			long skipped = in.skip(n);
+			timed(start, skipped);
+			return skipped;
+		}
+
+		private void timed(long start, long count) {
+			long elapsed = System.nanoTime() - start;
+			nanos += elapsed;
+			phaseNanos[Phase.FETCH.ordinal()].add(elapsed);
+			if ( count > 0 ) {
+				bytesRead.add(count);
+			}
+		}
+	}
+
+	/**
+	 * A destination whose writes are counted and timed, closing and flushing included.  Like
+	 * {@link MonitoredInputStream}, it keeps its own total of the time spent writing.
+	 */
+	public class MonitoredOutputStream extends FilterOutputStream {
+
+		private long nanos = 0;
+
+		MonitoredOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		/**
+		 * Gets the time spent in writes to this stream.
+		 * @return the time in nanoseconds.
+		 */
+		public long getNanos() {
+			return nanos;
+		}
 
+		@Override
+		public void write(int b) throws IOException {
+			long start = System.nanoTime();
+			out.write(b);
+			timed(start, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			long start = System.nanoTime();
+			out.write(b, off, len);
+			timed(start, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			long start = System.nanoTime();
+			out.flush();
+			timed(start, 0);
+		}
+
+		@Override
+		public void close() throws IOException {
+			long start = System.nanoTime();
+			try {
+				out.close();
+			} finally {
+				timed(start, 0);
+			}
+		}
+
+		private void timed(long start, long count) {
+			long elapsed = System.nanoTime() - start;
+			nanos += elapsed;
+			phaseNanos[Phase.UPLOAD.ordinal()].add(elapsed);
+			if ( count > 0 ) {
+				bytesWritten.add(count);
+			}
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package edu.ncsu.lib.io;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds, in a fixed amount of memory, from which percentiles can be read at any time.
+ * <p>
+ *  Values are counted in buckets whose width grows with the value: every power of two is split into 16 buckets, so a
+ *  percentile is accurate to within about 6% whatever the scale, from nanoseconds up to the largest value tracked
+ *  (2<sup>40</sup>ns, about 18 minutes; anything longer is counted as that).  The counts take {@value #BUCKETS} longs.
+ *  The exact maximum and sum are kept as well.
+ * </p>
+ * <p>
+ *  Recording is lock-free and may be done from any number of threads.  Where values are recorded in a tight loop, a
+ *  {@link Batch} collects them on a single thread without any atomic operations and adds them to the histogram in one
+ *  go.
+ * </p>
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private static final long MAX_VALUE = ( 1L << 40 ) - 1;
+
+	/** The number of buckets */
+	public static final int BUCKETS = bucketOf(MAX_VALUE) + 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	private final LongAdder count = new LongAdder();
+
+	private final LongAdder sum = new LongAdder();
+
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Records a value.
+	 * @param nanos the duration.
+	 */
+	public void record(long nanos) {
+		record(nanos, 1);
+	}
+
+	/**
+	 * Records the same value a number of times, such as the average duration of a group of operations timed together.
+	 * @param nanos the duration.
+	 * @param times the number of times to count it.
+	 */
+	public void record(long nanos, long times) {
+		if ( times <= 0 ) {
+			return;
+		}
+		nanos = Math.max(0, nanos);
+		counts.addAndGet(bucketOf(nanos), times);
+		count.add(times);
+		sum.add(nanos * times);
+		max.accumulate(nanos);
+	}
+
+	/**
+	 * Gets the number of values recorded.
+	 * @return
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Gets the largest value recorded.
+	 * @return the value, or 0 if there are none.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Gets the mean of the values recorded.
+	 * @return the mean, or 0 if there are none.
+	 */
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double)sum.sum() / n;
+	}
+
+	/**
+	 * Gets a percentile of the values recorded.  Values still being recorded may or may not be included.
+	 * @param percentile from 0 to 100.
+	 * @return the upper bound of the bucket the percentile falls in (but no more than the maximum), or 0 if there are
+	 *   no values.
+	 */
+	public long getPercentile(double percentile) {
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for( int i = 0; i < BUCKETS; i++ ) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if ( total == 0 ) {
+			return 0;
+		}
+		long rank = Math.max(1, (long)Math.ceil( Math.min(100, Math.max(0, percentile)) / 100 * total ));
+		long seen = 0;
+		for( int i = 0; i < BUCKETS; i++ ) {
+			seen += snapshot[i];
+			if ( seen >= rank ) {
+				return Math.min(upperBound(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Clears the histogram.  Values recorded at the same time may or may not survive.
+	 */
+	public void reset() {
+		for( int i = 0; i < BUCKETS; i++ ) {
+			counts.set(i, 0);
+		}
+		count.reset();
+		sum.reset();
+		max.reset();
+	}
+
+	/**
+	 * Describes the distribution in microseconds, for logging.
+	 */
+	@Override
+	public String toString() {
+		return String.format("n=%d, mean=%.1fus, p50=%.1fus, p95=%.1fus, p99=%.1fus, max=%.1fus", getCount(), getMean() / 1000,
+				getPercentile(50) / 1000.0, getPercentile(95) / 1000.0, getPercentile(99) / 1000.0, getMax() / 1000.0);
+	}
+
+	/**
+	 * Gets the bucket a value is counted in.  Values below 16 have a bucket each; above that, each power of two is split
+	 * into 16.
+	 */
+	static int bucketOf(long nanos) {
+		long value = Math.min(nanos, MAX_VALUE);
+		if ( value < SUB_BUCKETS ) {
+			return (int)value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int)( value >>> ( exponent - SUB_BITS ) ) & ( SUB_BUCKETS - 1 );
+		return ( exponent - SUB_BITS + 1 ) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Gets the largest value counted in a bucket.
+	 */
+	static long upperBound(int bucket) {
+		if ( bucket < SUB_BUCKETS ) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long width = 1L << ( exponent - SUB_BITS );
+		return ( (long)( SUB_BUCKETS + bucket % SUB_BUCKETS ) << ( exponent - SUB_BITS ) ) + width - 1;
+	}
+
+	/**
+	 * Collects values on a single thread, to be added to a histogram all at once.  Not thread-safe.
+	 */
+	public static class Batch {
+
+		private final long[] counts = new long[BUCKETS];
+
+		private long count = 0;
+
+		private long sum = 0;
+
+		private long max = 0;
+
+		/**
+		 * Records a value.
+		 * @param nanos the duration.
+		 */
+		public void record(long nanos) {
+			record(nanos, 1);
+		}
+
+		/**
+		 * Records the same value a number of times.
+		 * @param nanos the duration.
+		 * @param times the number of times to count it.
+		 */
+		public void record(long nanos, long times) {
+			if ( times <= 0 ) {
+				return;
+			}
+			nanos = Math.max(0, nanos);
+			counts[bucketOf(nanos)] += times;
+			count += times;
+			sum += nanos * times;
+			max = Math.max(max, nanos);
+		}
+
+		/**
+		 * Adds the values collected so far to a histogram, and clears the batch.
+		 * @param histogram the histogram, or <code>null</code> to just clear the batch.
+		 */
+		public void flushTo(LatencyHistogram histogram) {
+			if ( count == 0 ) {
+				return;
+			}
+			for( int i = 0; i < BUCKETS; i++ ) {
+				if ( counts[i] != 0 ) {
+					if ( histogram != null ) {
+						histogram.counts.addAndGet(i, counts[i]);
+					}
+					counts[i] = 0;
+				}
+			}
+			if ( histogram != null ) {
+				histogram.count.add(count);
+				histogram.sum.add(sum);
+				histogram.max.accumulate(max);
+			}
+			count = sum = max = 0;
+		}
+	}
+}
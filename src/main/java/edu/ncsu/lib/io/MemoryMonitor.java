@@ -1,8 +1,17 @@
 package edu.ncsu.lib.io;
 
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TimerTask;
 
 /**
@@ -12,73 +21,353 @@ import java.util.TimerTask;
  * the <code>run()</code> method every time you wish to record a measurement.
  * </p>
  * <p>
+ * Each measurement records the heap in use (not just committed), the committed heap, the number of garbage collections
+ * and the time they took so far, and the bytes allocated by the threads seen so far.  Measurements go into a ring buffer
+ * of primitive arrays of a fixed {@link #MemoryMonitor(int) capacity}, so the monitor doesn't grow the heap it is
+ * measuring: once the buffer is full the oldest are overwritten.  The lowest and highest heap in use, and the
+ * garbage collection and allocation totals, cover every measurement since the last {@link #reset()}, whatever the
+ * buffer still holds.  Allocation is measured per thread, where the JVM supports it (HotSpot does), and the threads that
+ * allocated the most are reported with {@link #getThreadAllocations()}.
+ * </p>
+ * <p>
+ * At the end of a run, {@link #summarize()} describes the whole run and {@link #writeCsv(Appendable)} exports the
+ * measurements the buffer holds.  Measuring and reading are synchronized, so the monitor can be read while a
+ * <code>Timer</code> runs it.
+ * </p>
+ * <p>
  * Use of this utility should be limited; it provides a simple means of access to a very coarse measurement over time.  Production deployments should use a profiling or JMX-
  * based tool such as <code>jvisualvm</code> or <code>jmc</code>.
  * </p>
  * @author adam_constabaris
  */
 public class MemoryMonitor extends TimerTask {
-	
-	
-	private List<Long> measurements = new ArrayList<>();
-	
+
+	/** The number of measurements kept by default */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private final Runtime runtime = Runtime.getRuntime();
+
+	private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+
+	// HotSpot's extension, which reports bytes allocated by each thread; null if it isn't available
+	private final com.sun.management.ThreadMXBean threads;
+
+	// the ring buffer: column by column, with the oldest measurement at next once it has wrapped
+	private final long[] times;
+
+	private final long[] used;
+
+	private final long[] committed;
+
+	private final long[] gcCounts;
+
+	private final long[] gcMillis;
+
+	private final long[] allocated;
+
+	private int next = 0;
+
+	private int size = 0;
+
+	private long count = 0;
+
 	private long min = Long.MAX_VALUE;
-	
+
 	private long max = 0;
-	
-	private Runtime runtime = Runtime.getRuntime();
-	
+
+	private long startNanos;
+
+	private long startGcCount;
+
+	private long startGcMillis;
+
+	// per-thread allocation of the live threads, by thread id: the bytes allocated when the thread was first and last
+	// seen, and the measurement it was last seen at
+	private final Map<Long, long[]> threadAllocations = new HashMap<>();
+
+	private final Map<Long, String> threadNames = new HashMap<>();
+
+	// what threads that have finished allocated, by name, so that the maps above don't grow with every thread started
+	private final Map<String, Long> finishedAllocations = new HashMap<>();
+
+	private long finishedAllocated = 0;
+
 	public MemoryMonitor() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a monitor.
+	 * @param capacity the number of measurements to keep.
+	 */
+	public MemoryMonitor(int capacity) {
+		capacity = Math.max(1, capacity);
+		times = new long[capacity];
+		used = new long[capacity];
+		committed = new long[capacity];
+		gcCounts = new long[capacity];
+		gcMillis = new long[capacity];
+		allocated = new long[capacity];
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean hotspot = null;
+		if ( bean instanceof com.sun.management.ThreadMXBean ) {
+			hotspot = (com.sun.management.ThreadMXBean)bean;
+			try {
+				if ( hotspot.isThreadAllocatedMemorySupported() && !hotspot.isThreadAllocatedMemoryEnabled() ) {
+					hotspot.setThreadAllocatedMemoryEnabled(true);
+				}
+				if ( !hotspot.isThreadAllocatedMemorySupported() ) {
+					hotspot = null;
+				}
+			} catch( UnsupportedOperationException | SecurityException ex ) {
+				hotspot = null;
+			}
+		}
+		threads = hotspot;
 		reset();
 	}
-	
+
 	/**
 	 * Records a memory usage measurement.  Sets <code>max</code> or <code>min</code> as appropriate.
 	 */
 	@Override
-	public void run() {
+	public synchronized void run() {
 		long total = runtime.totalMemory();
-		this.measurements.add(total);
-		if ( total < min ) {
-			min = total; 
+		long inUse = total - runtime.freeMemory();
+		times[next] = System.nanoTime() - startNanos;
+		used[next] = inUse;
+		committed[next] = total;
+		gcCounts[next] = gcCount() - startGcCount;
+		gcMillis[next] = gcMillis() - startGcMillis;
+		allocated[next] = allocatedSinceReset(false);
+		next = ( next + 1 ) % times.length;
+		size = Math.min(size + 1, times.length);
+		count++;
+		if ( inUse < min ) {
+			min = inUse;
 		}
-		if ( total > max ) {
-			max = total;
+		if ( inUse > max ) {
+			max = inUse;
 		}
 	}
-	
+
 	/**
-	 * Gets the lowest recorded measurement so far.
+	 * Gets the lowest heap in use measured so far.
 	 * @return
 	 */
-	public long getMin() {
+	public synchronized long getMin() {
 		return min;
 	}
-	
+
 	/**
-	 * Get the highest recorded measurement so far.
+	 * Get the highest heap in use measured so far.
 	 * @return
 	 */
-	public long getMax() {
+	public synchronized long getMax() {
 		return max;
 	}
-	
+
 	/**
-	 * Get all recorded measurements.
+	 * Gets the number of measurements made since the last reset, including any the buffer no longer holds.
 	 * @return
 	 */
-	public List<Long> getMeasurements() {
-		return Collections.unmodifiableList(measurements);
+	public synchronized long getCount() {
+		return count;
 	}
-	
+
+	/**
+	 * Get the heap in use at each of the measurements the buffer holds, oldest first.
+	 * @return
+	 */
+	public synchronized long[] getMeasurements() {
+		return ordered(used);
+	}
+
+	/**
+	 * Gets the number of garbage collections since the last reset, as of the last measurement.
+	 * @return
+	 */
+	public synchronized long getGcCount() {
+		return size == 0 ? 0 : gcCounts[last()];
+	}
+
+	/**
+	 * Gets the time spent in garbage collection since the last reset, as of the last measurement.
+	 * @return the time in milliseconds.
+	 */
+	public synchronized long getGcMillis() {
+		return size == 0 ? 0 : gcMillis[last()];
+	}
+
+	/**
+	 * Gets the bytes allocated since the last reset by the threads seen at measurements, as of the last measurement.
+	 * Threads that start and finish between two measurements aren't seen.
+	 * @return the number of bytes, or -1 if the JVM doesn't measure allocation by thread.
+	 */
+	public synchronized long getAllocated() {
+		return threads == null ? -1 : size == 0 ? 0 : allocated[last()];
+	}
+
+	/**
+	 * Gets the bytes allocated by each thread seen since the last reset, as of the last measurement.
+	 * @return the bytes allocated by thread name, largest first; threads with the same name are added together.  Empty if
+	 *   the JVM doesn't measure allocation by thread.
+	 */
+	public synchronized Map<String, Long> getThreadAllocations() {
+		Map<String, Long> byName = new HashMap<>(finishedAllocations);
+		for( Map.Entry<Long, long[]> thread : threadAllocations.entrySet() ) {
+			long bytes = thread.getValue()[1] - thread.getValue()[0];
+			byName.merge(threadNames.get(thread.getKey()), bytes, Long::sum);
+		}
+		List<Map.Entry<String, Long>> entries = new ArrayList<>(byName.entrySet());
+		entries.sort( (a, b) -> Long.compare(b.getValue(), a.getValue()) );
+		Map<String, Long> sorted = new LinkedHashMap<>();
+		for( Map.Entry<String, Long> entry : entries ) {
+			sorted.put(entry.getKey(), entry.getValue());
+		}
+		return sorted;
+	}
+
+	/**
+	 * Describes the run since the last reset: the heap in use (lowest, median of the measurements held, and highest),
+	 * the largest committed heap, garbage collections and the share of the time they took, and the allocation rate, in
+	 * total and for the threads that allocated the most.
+	 * @return
+	 */
+	public synchronized String summarize() {
+		if ( size == 0 ) {
+			return "no measurements";
+		}
+		long elapsedNanos = Math.max(1, times[last()]);
+		long[] sorted = ordered(used);
+		Arrays.sort(sorted);
+		StringBuilder summary = new StringBuilder();
+		summary.append( String.format("%d measurements over %dms; heap used: min %.1fMB, median %.1fMB, max %.1fMB; committed max %.1fMB of %.1fMB; "
+				+ "%d GCs taking %dms (%.1f%%)", count, elapsedNanos / 1000000, min / 1048576.0, sorted[sorted.length / 2] / 1048576.0,
+				max / 1048576.0, maxOf(committed) / 1048576.0, runtime.maxMemory() / 1048576.0, getGcCount(), getGcMillis(),
+				getGcMillis() * 1e8 / elapsedNanos) );
+		if ( threads != null ) {
+			summary.append( String.format("; allocated %.1fMB (%.1fMB/s)", getAllocated() / 1048576.0, getAllocated() / 1048576.0 * 1e9 / elapsedNanos) );
+			int shown = 0;
+			for( Map.Entry<String, Long> thread : getThreadAllocations().entrySet() ) {
+				if ( shown++ == 5 || thread.getValue() == 0 ) {
+					break;
+				}
+				summary.append( shown == 1 ? ": " : ", " ).append( String.format("%s %.1fMB/s", thread.getKey(), thread.getValue() / 1048576.0 * 1e9 / elapsedNanos) );
+			}
+		}
+		return summary.toString();
+	}
+
+	/**
+	 * Writes the measurements the buffer holds as CSV, oldest first, with a header: milliseconds since the reset, heap
+	 * in use, committed heap, garbage collections and their time in milliseconds, and bytes allocated.
+	 * @param output where to write.
+	 * @throws IOException if the output can't be written to.
+	 */
+	public synchronized void writeCsv(Appendable output) throws IOException {
+		output.append("millis,used,committed,gc_count,gc_millis,allocated\n");
+		int first = size < times.length ? 0 : next;
+		for( int i = 0; i < size; i++ ) {
+			int at = ( first + i ) % times.length;
+			output.append( String.format("%d,%d,%d,%d,%d,%d%n", times[at] / 1000000, used[at], committed[at], gcCounts[at], gcMillis[at],
+					threads == null ? -1 : allocated[at]) );
+		}
+	}
+
 	/**
 	 * Resets the monitor, clearing all measurements and resetting <code>min</code> and <code>max</code>
 	 */
-	public void reset() {
-		this.measurements.clear();
+	public synchronized void reset() {
+		next = size = 0;
+		count = 0;
 		this.min = Long.MAX_VALUE;
 		this.max = 0;
-				
+		startNanos = System.nanoTime();
+		startGcCount = gcCount();
+		startGcMillis = gcMillis();
+		threadAllocations.clear();
+		threadNames.clear();
+		finishedAllocations.clear();
+		finishedAllocated = 0;
+		// the threads running now start from what they have already allocated
+		allocatedSinceReset(true);
+	}
+
+	private int last() {
+		return ( next + times.length - 1 ) % times.length;
+	}
+
+	private long[] ordered(long[] column) {
+		long[] values = new long[size];
+		int first = size < times.length ? 0 : next;
+		for( int i = 0; i < size; i++ ) {
+			values[i] = column[( first + i ) % times.length];
+		}
+		return values;
+	}
+
+	private long maxOf(long[] column) {
+		long largest = 0;
+		for( int i = 0; i < size; i++ ) {
+			largest = Math.max(largest, column[i]);
+		}
+		return largest;
 	}
 
+	private long gcCount() {
+		long total = 0;
+		for( GarbageCollectorMXBean collector : collectors ) {
+			total += Math.max(0, collector.getCollectionCount());
+		}
+		return total;
+	}
+
+	private long gcMillis() {
+		long total = 0;
+		for( GarbageCollectorMXBean collector : collectors ) {
+			total += Math.max(0, collector.getCollectionTime());
+		}
+		return total;
+	}
+
+	/**
+	 * Brings the per-thread allocation up to date, and adds it up over every thread seen since the reset.
+	 * @param resetting whether the threads seen now were already running at the reset, rather than started since.
+	 */
+	private long allocatedSinceReset(boolean resetting) {
+		if ( threads == null ) {
+			return -1;
+		}
+		long[] ids = threads.getAllThreadIds();
+		long[] bytes = threads.getThreadAllocatedBytes(ids);
+		for( int i = 0; i < ids.length; i++ ) {
+			if ( bytes[i] < 0 ) {
+				// it finished in the meantime
+				continue;
+			}
+			long[] seen = threadAllocations.get(ids[i]);
+			if ( seen == null ) {
+				ThreadInfo info = threads.getThreadInfo(ids[i]);
+				threadAllocations.put(ids[i], new long[] { resetting ? bytes[i] : 0, bytes[i], count });
+				threadNames.put(ids[i], info != null ? info.getThreadName() : "thread-" + ids[i]);
+			} else {
+				seen[1] = bytes[i];
+				seen[2] = count;
+			}
+		}
+		long total = finishedAllocated;
+		for( Iterator<Map.Entry<Long, long[]>> entries = threadAllocations.entrySet().iterator(); entries.hasNext(); ) {
+			Map.Entry<Long, long[]> entry = entries.next();
+			long[] seen = entry.getValue();
+			total += seen[1] - seen[0];
+			if ( seen[2] != count ) {
+				// gone: what it allocated since it was last seen is lost
+				finishedAllocated += seen[1] - seen[0];
+				finishedAllocations.merge(threadNames.remove(entry.getKey()), seen[1] - seen[0], Long::sum);
+				entries.remove();
+			}
+		}
+		return total;
+	}
 }
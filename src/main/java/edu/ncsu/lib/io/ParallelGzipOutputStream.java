@@ -0,0 +1,432 @@
+package edu.ncsu.lib.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import edu.ncsu.lib.marc.MarcTransformer;
+
+/**
+ * An output stream that gzips its content, compressing blocks of it on several threads at once.
+ * <p>
+ *  The technique is the one used by <code>pigz</code>: the input is cut into {@link #setBlockSize(int) blocks}, each
+ *  block is deflated independently on a pool of workers, primed with the last 32KB of the block before it so the
+ *  compression ratio is close to that of a single deflater, and ended with a sync flush so that the compressed blocks
+ *  can simply be concatenated.  The result is a single, standard gzip member that any gzip reader can decompress.  The
+ *  CRC of the content is computed on the writing thread, which costs little next to compression.
+ * </p>
+ * <p>
+ *  At most {@link #setWindow(int) window} blocks are compressed or waiting to be written at once, which bounds memory
+ *  use to about twice the block size times the window.  With a single thread, blocks are compressed on the writing
+ *  thread.  Instances are not thread-safe.
+ * </p>
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+	/** The default block size: 128KB */
+	public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+	// the most history a deflate stream can refer back to
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+
+	private static final byte[] HEADER = { 0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+	private final OutputStream out;
+
+	private int level = Deflater.DEFAULT_COMPRESSION;
+
+	private int blockSize = DEFAULT_BLOCK_SIZE;
+
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	// 0 means twice the number of threads
+	private int window = 0;
+
+	private ExecutorService workers;
+
+	private final ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+
+	private final CRC32 crc = new CRC32();
+
+	private byte[] block;
+
+	private int fill = 0;
+
+	// the block submitted last, whose tail primes the next one
+	private byte[] previous;
+
+	private int previousLength = 0;
+
+	private long bytesIn = 0;
+
+	private long bytesOut = 0;
+
+	private boolean started = false;
+
+	private boolean closed = false;
+
+	private final byte[] single = new byte[1];
+
+	/**
+	 * Creates a stream.
+	 * @param out the stream the compressed content is written to.  It is closed when this stream is closed.
+	 */
+	public ParallelGzipOutputStream(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Sets the compression level.  Must be called before anything is written.
+	 * @param level 0 (none) to 9 (best), or {@link Deflater#DEFAULT_COMPRESSION}.
+	 * @return this stream.
+	 */
+	public ParallelGzipOutputStream setLevel(int level) {
+		checkNotStarted();
+		if ( ( level < 0 || level > 9 ) && level != Deflater.DEFAULT_COMPRESSION ) {
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		}
+		this.level = level;
+		return this;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Sets the amount of content compressed by a worker at a time.  Larger blocks compress slightly better; smaller
+	 * blocks use less memory and spread the work more evenly.  Must be called before anything is written.
+	 * @param blockSize the block size in bytes; at least 32KB.
+	 * @return this stream.
+	 */
+	public ParallelGzipOutputStream setBlockSize(int blockSize) {
+		checkNotStarted();
+		if ( blockSize < DICTIONARY_SIZE ) {
+			throw new IllegalArgumentException("Block size must be at least " + DICTIONARY_SIZE + ": " + blockSize);
+		}
+		this.blockSize = blockSize;
+		return this;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Sets the number of threads that compress blocks.  Must be called before anything is written.
+	 * @param threads the number of worker threads; values less than 2 compress on the writing thread.
+	 * @return this stream.
+	 */
+	public ParallelGzipOutputStream setThreads(int threads) {
+		checkNotStarted();
+		this.threads = Math.max(1, threads);
+		return this;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Sets the maximum number of blocks being compressed or waiting to be written.  Must be called before anything is
+	 * written.
+	 * @param window the number of blocks, or 0 to use twice the number of threads.
+	 * @return this stream.
+	 */
+	public ParallelGzipOutputStream setWindow(int window) {
+		checkNotStarted();
+		this.window = Math.max(0, window);
+		return this;
+	}
+
+	public int getWindow() {
+		return window > 0 ? window : threads * 2;
+	}
+
+	/**
+	 * Gets the number of bytes written to this stream so far.
+	 * @return
+	 */
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	/**
+	 * Gets the number of compressed bytes written to the underlying stream so far.
+	 * @return
+	 */
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		single[0] = (byte)b;
+		write(single, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if ( closed ) {
+			throw new IOException("Stream closed");
+		}
+		start();
+		while( len > 0 ) {
+			int count = Math.min(len, blockSize - fill);
+			System.arraycopy(b, off, block, fill, count);
+			fill += count;
+			off += count;
+			len -= count;
+			bytesIn += count;
+			if ( fill == blockSize ) {
+				submit(false);
+			}
+		}
+	}
+
+	/**
+	 * Writes out the compressed blocks that are ready.  Content in a block that is still being filled stays there until
+	 * the block is full or the stream is closed, as compressing it early would hurt the compression ratio.
+	 */
+	@Override
+	public void flush() throws IOException {
+		while( !inFlight.isEmpty() && inFlight.peekFirst().isDone() ) {
+			writeBlock( inFlight.removeFirst() );
+		}
+		out.flush();
+	}
+
+	/**
+	 * Compresses the rest of the content, writes the gzip trailer and closes the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		if ( closed ) {
+			return;
+		}
+		closed = true;
+		try {
+			start();
+			// the final block ends the deflate stream, even if it is empty
+			submit(true);
+			while( !inFlight.isEmpty() ) {
+				writeBlock( inFlight.removeFirst() );
+			}
+			byte[] trailer = new byte[8];
+			writeIntLE(trailer, 0, (int)crc.getValue());
+			writeIntLE(trailer, 4, (int)bytesIn);
+			out.write(trailer);
+			bytesOut += trailer.length;
+			out.flush();
+		} finally {
+			for( Future<byte[]> pending : inFlight ) {
+				pending.cancel(true);
+			}
+			inFlight.clear();
+			if ( workers != null ) {
+				workers.shutdownNow();
+			}
+			block = null;
+			previous = null;
+			out.close();
+		}
+	}
+
+	private void checkNotStarted() {
+		if ( started ) {
+			throw new IllegalStateException("Compression has already started");
+		}
+	}
+
+	private void start() throws IOException {
+		if ( started ) {
+			return;
+		}
+		started = true;
+		out.write(HEADER);
+		bytesOut += HEADER.length;
+		block = new byte[blockSize];
+		if ( threads > 1 ) {
+			workers = Executors.newFixedThreadPool(threads, (r) -> {
+				Thread t = new Thread(r, "gzip-worker");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+
+	/**
+	 * Hands the current block to a worker, first writing out the oldest block if the window is full.
+	 */
+	private void submit(boolean last) throws IOException {
+		final byte[] data = block;
+		final int length = fill;
+		final byte[] dictionary = previous;
+		final int dictionaryLength = previousLength;
+		crc.update(data, 0, length);
+		if ( workers == null ) {
+			byte[] compressed = compress(data, length, dictionary, dictionaryLength, last);
+			out.write(compressed);
+			bytesOut += compressed.length;
+		} else {
+			if ( inFlight.size() >= getWindow() ) {
+				writeBlock( inFlight.removeFirst() );
+			}
+			inFlight.addLast( workers.submit( () -> compress(data, length, dictionary, dictionaryLength, last) ) );
+		}
+		// the block now belongs to the worker (and to the next block, as its dictionary)
+		previous = data;
+		previousLength = length;
+		block = last ? null : new byte[blockSize];
+		fill = 0;
+	}
+
+	private void writeBlock(Future<byte[]> pending) throws IOException {
+		byte[] compressed;
+		try {
+			compressed = pending.get();
+		} catch( InterruptedException ix ) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for compression", ix);
+		} catch( ExecutionException ex ) {
+			throw new IOException("Unable to compress", ex.getCause());
+		}
+		out.write(compressed);
+		bytesOut += compressed.length;
+	}
+
+	/**
+	 * Deflates one block as part of a larger deflate stream.
+	 * @param dictionary the previous block, whose tail the block may refer back to, or <code>null</code> for the first.
+	 * @param last whether this block ends the stream; other blocks end with a sync flush, on a byte boundary.
+	 * @return the raw deflate data.
+	 */
+	private byte[] compress(byte[] data, int length, byte[] dictionary, int dictionaryLength, boolean last) {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			if ( dictionary != null && dictionaryLength > 0 ) {
+				int size = Math.min(DICTIONARY_SIZE, dictionaryLength);
+				deflater.setDictionary(dictionary, dictionaryLength - size, size);
+			}
+			deflater.setInput(data, 0, length);
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream( length / 2 + 64 );
+			byte[] chunk = new byte[64 * 1024];
+			int count;
+			if ( last ) {
+				deflater.finish();
+				while( !deflater.finished() ) {
+					count = deflater.deflate(chunk);
+					compressed.write(chunk, 0, count);
+				}
+			} else {
+				// a full chunk means there may be more to come
+				do {
+					count = deflater.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+					compressed.write(chunk, 0, count);
+				} while( count == chunk.length );
+			}
+			return compressed.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static void writeIntLE(byte[] b, int off, int value) {
+		b[off] = (byte)value;
+		b[off + 1] = (byte)( value >>> 8 );
+		b[off + 2] = (byte)( value >>> 16 );
+		b[off + 3] = (byte)( value >>> 24 );
+	}
+
+	/**
+	 * Reports the throughput and compression ratio of <code>GZIPOutputStream</code> and of this stream with one and
+	 * with several threads, at a range of compression levels, on MARC-in-JSON made by repeating the conversion of a
+	 * MARC21 file.
+	 * <p>
+	 *  Usage: <code>ParallelGzipOutputStream marcfile [megabytes] [threads] [blocksize]</code>
+	 * </p>
+	 */
+	public static void main(String[] args) throws Exception {
+		if ( args.length < 1 ) {
+			System.err.println("Need an input filename");
+			System.exit(1);
+		}
+		long size = ( args.length > 1 ? Long.parseLong(args[1]) : 64L ) * 1024 * 1024;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		int blockSize = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_BLOCK_SIZE;
+
+		ByteArrayOutputStream converted = new ByteArrayOutputStream();
+		try( FileInputStream input = new FileInputStream( new File(args[0]) ) ) {
+			new MarcTransformer().toJSON(input, converted);
+		}
+		byte[] json = converted.toByteArray();
+		byte[] corpus = new byte[(int)Math.min(size, Integer.MAX_VALUE - 8)];
+		for( int pos = 0; pos < corpus.length; pos += json.length ) {
+			System.arraycopy(json, 0, corpus, pos, Math.min(json.length, corpus.length - pos));
+		}
+		System.out.printf("%d bytes of MARC-in-JSON, %d byte blocks%n", corpus.length, blockSize);
+
+		for( int level : new int[] { 1, 6, 9 } ) {
+			// warm up, then measure
+			for( int round = 0; round < 2; round++ ) {
+				long[] gzip = measure(corpus, (out) -> new GZIPOutputStream(out, 64 * 1024) { { def.setLevel(level); } });
+				long[] serial = measure(corpus, (out) -> new ParallelGzipOutputStream(out).setLevel(level).setBlockSize(blockSize).setThreads(1));
+				long[] parallel = measure(corpus, (out) -> new ParallelGzipOutputStream(out).setLevel(level).setBlockSize(blockSize).setThreads(threads));
+				if ( round == 1 ) {
+					System.out.printf("level %d: GZIPOutputStream %7.1f MB/s ratio %.3f | 1 thread %7.1f MB/s ratio %.3f | %d threads %7.1f MB/s ratio %.3f%n",
+							level, rate(corpus.length, gzip[0]), (double)gzip[1] / corpus.length,
+							rate(corpus.length, serial[0]), (double)serial[1] / corpus.length,
+							threads, rate(corpus.length, parallel[0]), (double)parallel[1] / corpus.length);
+				}
+			}
+		}
+	}
+
+	@FunctionalInterface
+	private interface Compressor {
+		OutputStream wrap(OutputStream out) throws IOException;
+	}
+
+	/**
+	 * @return the elapsed time in nanoseconds and the compressed size.
+	 */
+	private static long[] measure(byte[] corpus, Compressor compressor) throws IOException {
+		long start = System.nanoTime();
+		CountingOutputStream counter = new CountingOutputStream();
+		try( OutputStream out = compressor.wrap(counter) ) {
+			for( int pos = 0; pos < corpus.length; pos += 8192 ) {
+				out.write(corpus, pos, Math.min(8192, corpus.length - pos));
+			}
+		}
+		return new long[] { System.nanoTime() - start, counter.count };
+	}
+
+	private static double rate(long bytes, long nanos) {
+		return bytes / 1048576.0 / ( nanos / 1e9 );
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+
+		long count = 0;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
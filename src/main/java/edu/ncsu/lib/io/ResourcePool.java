@@ -0,0 +1,137 @@
+package edu.ncsu.lib.io;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * A thread-safe pool of reusable objects that are expensive to create, such as large buffers or converters with
+ * tables of their own.
+ * <p>
+ *  {@link #acquire()} hands out an idle object if there is one and creates a new one otherwise; {@link #release(Object)}
+ *  takes it back, unless the pool already holds {@link #getMaxIdle() maxIdle} idle objects, in which case it is left for
+ *  the garbage collector.  Objects are not reset in between, so they must be reusable as they are.  The counts of
+ *  objects created and reused show how well the pool is working: in a warm Lambda container, reuse should dominate.
+ * </p>
+ * @param <T> the type of object pooled.
+ */
+public class ResourcePool<T> {
+
+	/** The size of the buffers in {@link #buffers()} */
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	// at most an eighth of the heap, and no more than 64MB
+	private static final ResourcePool<byte[]> BUFFERS = new ResourcePool<>("buffers", () -> new byte[BUFFER_SIZE],
+			(int)( Math.min(64L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 8) / BUFFER_SIZE ));
+
+	private final String name;
+
+	private final Supplier<T> factory;
+
+	private final int maxIdle;
+
+	private final ConcurrentLinkedQueue<T> idle = new ConcurrentLinkedQueue<>();
+
+	private final AtomicInteger idleCount = new AtomicInteger();
+
+	private final AtomicLong created = new AtomicLong();
+
+	private final AtomicLong reused = new AtomicLong();
+
+	/**
+	 * Creates a pool.
+	 * @param name the name of the pool, used in its description.
+	 * @param factory creates objects when there are none idle.
+	 * @param maxIdle the maximum number of idle objects kept.
+	 */
+	public ResourcePool(String name, Supplier<T> factory, int maxIdle) {
+		this.name = name;
+		this.factory = factory;
+		this.maxIdle = Math.max(0, maxIdle);
+	}
+
+	/**
+	 * Gets the pool of {@link #BUFFER_SIZE} byte buffers shared by everything in the JVM.
+	 * @return
+	 */
+	public static ResourcePool<byte[]> buffers() {
+		return BUFFERS;
+	}
+
+	/**
+	 * Takes an idle object from the pool, or creates one.
+	 * @return the object, which belongs to the caller until it is released.
+	 */
+	public T acquire() {
+		T object = idle.poll();
+		if ( object != null ) {
+			idleCount.decrementAndGet();
+			reused.incrementAndGet();
+			return object;
+		}
+		created.incrementAndGet();
+		return factory.get();
+	}
+
+	/**
+	 * Returns an object to the pool.  The caller must not use it afterwards.
+	 * @param object an object from {@link #acquire()}, or <code>null</code>, which is ignored.
+	 */
+	public void release(T object) {
+		if ( object == null ) {
+			return;
+		}
+		if ( idleCount.incrementAndGet() <= maxIdle ) {
+			idle.offer(object);
+		} else {
+			idleCount.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Discards every idle object.
+	 */
+	public void clear() {
+		while( idle.poll() != null ) {
+			idleCount.decrementAndGet();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getMaxIdle() {
+		return maxIdle;
+	}
+
+	/**
+	 * Gets the number of idle objects in the pool.
+	 * @return
+	 */
+	public int getIdle() {
+		return idleCount.get();
+	}
+
+	/**
+	 * Gets the number of objects created because none were idle.
+	 * @return
+	 */
+	public long getCreated() {
+		return created.get();
+	}
+
+	/**
+	 * Gets the number of times an idle object was handed out instead of a new one.
+	 * @return
+	 */
+	public long getReused() {
+		return reused.get();
+	}
+
+	@Override
+	public String toString() {
+		return name + ": created=" + created.get() + ", reused=" + reused.get() + ", idle=" + idleCount.get();
+	}
+}
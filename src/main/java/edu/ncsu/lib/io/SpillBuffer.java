@@ -0,0 +1,328 @@
+package edu.ncsu.lib.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stages output of unknown length, such as the body of an S3 PUT, in memory while it is small and in a temporary file
+ * once it grows past a threshold.
+ * <p>
+ *  Output is held in fixed-size chunks taken from the {@link ResourcePool#buffers() shared buffer pool}, so a warm Lambda container
+ *  reuses the same chunks from one invocation to the next instead of allocating (and zeroing) new ones.  Once the
+ *  chunks in memory reach the {@link #SpillBuffer(long) threshold}, the rest of the output goes to a temporary file
+ *  through a <code>FileChannel</code>, one chunk at a time; what is already in memory stays there.  The file can be
+ *  {@link #setExpectedLength(long) sized up front} to spare the file system from growing it a chunk at a time.  Output
+ *  that never reaches the threshold never touches the disk.
+ * </p>
+ * <p>
+ *  When writing is finished and the buffer is closed, {@link #openStream()} reads the content back, from memory and
+ *  then from the file, without copying it anywhere else first.  The streams support <code>mark</code> and
+ *  <code>reset</code> with no read limit, so a client can retry a request with them.  {@link #release()} returns the
+ *  chunks to the pool and deletes the file.  Writing is not thread-safe; streams may be read concurrently.
+ * </p>
+ */
+public class SpillBuffer extends OutputStream {
+
+	/** The size of the chunks output is held in */
+	public static final int CHUNK_SIZE = ResourcePool.BUFFER_SIZE;
+
+	private static final ResourcePool<byte[]> POOL = ResourcePool.buffers();
+
+	private final int maxChunks;
+
+	private final List<byte[]> chunks = new ArrayList<>();
+
+	private File directory = null;
+
+	private long expectedLength = 0;
+
+	// the chunk being filled: the last in memory or, once spilled, the file's write buffer
+	private byte[] current;
+
+	private int position = 0;
+
+	private long memoryLength = 0;
+
+	private File file;
+
+	private RandomAccessFile raf;
+
+	private FileChannel channel;
+
+	private long fileLength = 0;
+
+	private boolean closed = false;
+
+	private boolean released = false;
+
+	/**
+	 * Creates a buffer.
+	 * @param threshold the amount of output held in memory before the rest goes to a file, rounded down to whole
+	 *   chunks.  0 sends everything to the file.
+	 */
+	public SpillBuffer(long threshold) {
+		this.maxChunks = (int)Math.min(Integer.MAX_VALUE, Math.max(0, threshold) / CHUNK_SIZE);
+	}
+
+	/**
+	 * Sets the directory the temporary file is created in.
+	 * @param directory the directory, or <code>null</code> for the system default.
+	 * @return this buffer.
+	 */
+	public SpillBuffer setDirectory(File directory) {
+		this.directory = directory;
+		return this;
+	}
+
+	/**
+	 * Sets the expected total length of the output.  If the output spills to a file, the file is created at this
+	 * length, less what is in memory, and trimmed to the actual length when the buffer is closed.
+	 * @param expectedLength the length in bytes, or 0 if it isn't known.
+	 * @return this buffer.
+	 */
+	public SpillBuffer setExpectedLength(long expectedLength) {
+		this.expectedLength = Math.max(0, expectedLength);
+		return this;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if ( current == null || position == CHUNK_SIZE ) {
+			nextChunk();
+		}
+		current[position++] = (byte)b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while( len > 0 ) {
+			if ( current == null || position == CHUNK_SIZE ) {
+				nextChunk();
+			}
+			int count = Math.min(len, CHUNK_SIZE - position);
+			System.arraycopy(b, off, current, position, count);
+			position += count;
+			off += count;
+			len -= count;
+		}
+	}
+
+	/**
+	 * Finishes writing.  The content can then be read with {@link #openStream()}.
+	 */
+	@Override
+	public void close() throws IOException {
+		if ( closed ) {
+			return;
+		}
+		checkNotReleased();
+		if ( channel != null ) {
+			flushChunk();
+			// drop any preallocated space that wasn't used
+			channel.truncate(fileLength);
+		} else if ( current != null ) {
+			memoryLength += position;
+		}
+		closed = true;
+	}
+
+	/**
+	 * Gets the number of bytes written.
+	 * @return
+	 */
+	public long length() {
+		return memoryLength + fileLength + ( closed || current == null ? 0 : position );
+	}
+
+	/**
+	 * Gets the number of bytes held in memory, once the buffer has been closed.
+	 * @return
+	 */
+	public long getMemoryLength() {
+		return memoryLength;
+	}
+
+	/**
+	 * Gets the number of bytes held in the file, once the buffer has been closed.
+	 * @return
+	 */
+	public long getFileLength() {
+		return fileLength;
+	}
+
+	/**
+	 * Tells whether the output outgrew memory.
+	 * @return
+	 */
+	public boolean isSpilled() {
+		return channel != null;
+	}
+
+	/**
+	 * Opens a stream over the content.
+	 * @return a stream that reads the whole content from the start.
+	 * @throws IllegalStateException if the buffer has not been closed, or has been released.
+	 */
+	public InputStream openStream() {
+		if ( !closed ) {
+			throw new IllegalStateException("The buffer is still being written");
+		}
+		checkNotReleased();
+		return new ContentStream();
+	}
+
+	/**
+	 * Returns the chunks to the pool, and deletes the file.  Streams over the content can no longer be read.
+	 */
+	public void release() {
+		if ( released ) {
+			return;
+		}
+		released = true;
+		closed = true;
+		for( byte[] chunk : chunks ) {
+			POOL.release(chunk);
+		}
+		chunks.clear();
+		if ( current != null && channel != null ) {
+			// the file's write buffer isn't in the list
+			POOL.release(current);
+		}
+		current = null;
+		if ( channel != null ) {
+			try {
+				raf.close();
+			} catch( IOException iox ) {
+				// nothing more to do with it
+			}
+		}
+		if ( file != null ) {
+			file.delete();
+		}
+	}
+
+	private void nextChunk() throws IOException {
+		if ( closed ) {
+			throw new IOException("Buffer closed");
+		}
+		if ( channel != null ) {
+			flushChunk();
+			return;
+		}
+		if ( current != null ) {
+			memoryLength += position;
+		}
+		if ( chunks.size() < maxChunks ) {
+			current = POOL.acquire();
+			chunks.add(current);
+		} else {
+			spill();
+		}
+		position = 0;
+	}
+
+	/**
+	 * Opens the file, with a chunk of its own to buffer writes.
+	 */
+	private void spill() throws IOException {
+		file = File.createTempFile("spill-", ".tmp", directory);
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		if ( expectedLength > memoryLength ) {
+			raf.setLength(expectedLength - memoryLength);
+		}
+		current = POOL.acquire();
+	}
+
+	private void flushChunk() throws IOException {
+		ByteBuffer data = ByteBuffer.wrap(current, 0, position);
+		while( data.hasRemaining() ) {
+			fileLength += channel.write(data, fileLength);
+		}
+		position = 0;
+	}
+
+	private void checkNotReleased() {
+		if ( released ) {
+			throw new IllegalStateException("The buffer has been released");
+		}
+	}
+
+	/**
+	 * Reads the content by position, from the chunks and then the file.
+	 */
+	private class ContentStream extends InputStream {
+
+		private long offset = 0;
+
+		private long mark = 0;
+
+		private final byte[] single = new byte[1];
+
+		@Override
+		public int read() throws IOException {
+			return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if ( released ) {
+				throw new IOException("The buffer has been released");
+			}
+			if ( len == 0 ) {
+				return 0;
+			}
+			if ( offset >= memoryLength + fileLength ) {
+				return -1;
+			}
+			int count;
+			if ( offset < memoryLength ) {
+				byte[] chunk = chunks.get( (int)( offset / CHUNK_SIZE ) );
+				int start = (int)( offset % CHUNK_SIZE );
+				count = (int)Math.min( Math.min(len, CHUNK_SIZE - start), memoryLength - offset );
+				System.arraycopy(chunk, start, b, off, count);
+			} else {
+				count = channel.read( ByteBuffer.wrap(b, off, (int)Math.min(len, memoryLength + fileLength - offset)), offset - memoryLength );
+				if ( count < 0 ) {
+					throw new IOException("Spill file is shorter than expected");
+				}
+			}
+			offset += count;
+			return count;
+		}
+
+		@Override
+		public long skip(long n) {
+			long skipped = Math.max(0, Math.min(n, memoryLength + fileLength - offset));
+			offset += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return (int)Math.min(Integer.MAX_VALUE, memoryLength + fileLength - offset);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public synchronized void mark(int readlimit) {
+			mark = offset;
+		}
+
+		@Override
+		public synchronized void reset() {
+			offset = mark;
+		}
+	}
+}
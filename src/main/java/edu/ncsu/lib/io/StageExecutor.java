@@ -0,0 +1,34 @@
+package edu.ncsu.lib.io;
+
+import java.io.Closeable;
+import java.util.Map;
+
+/**
+ * Runs the stages of a {@link StreamConnector} transformation or {@link StreamPipeline}.
+ * <p>
+ *  The stages of a pipeline feed each other through bounded pipes, so they can only make progress if they all run at
+ *  once: an executor must never start some of a group of tasks and leave the rest waiting for a thread that one of the
+ *  started ones is holding.  Implementations therefore accept a group of tasks at a time, and either start all of them
+ *  or wait until they can.
+ * </p>
+ * <p>
+ *  See {@link StageExecutors} for the standard implementations.
+ * </p>
+ */
+public interface StageExecutor extends Closeable {
+
+	/**
+	 * Runs a group of tasks concurrently, waiting if necessary until there are threads for all of them.
+	 * @param tasks the tasks, keyed by a name used for the thread that runs each one.
+	 * @throws InterruptedException if interrupted while waiting for threads; none of the tasks will have started.
+	 * @throws IllegalArgumentException if the group is larger than the executor could ever run at once.
+	 * @throws IllegalStateException if the executor has been closed.
+	 */
+	void execute(Map<String, Runnable> tasks) throws InterruptedException;
+
+	/**
+	 * Stops accepting tasks.  Tasks that have started are allowed to finish.
+	 */
+	@Override
+	void close();
+}
@@ -0,0 +1,94 @@
+package edu.ncsu.lib.io;
+
+import java.util.Map;
+
+/**
+ * The standard {@link StageExecutor}s.
+ * <p>
+ *  By default, transformations share a single {@link BoundedStageExecutor} for the whole JVM, sized by the
+ *  <code>edu.ncsu.lib.io.maxStageThreads</code> system property (by default, four threads per processor and at least
+ *  sixteen).  When the <code>edu.ncsu.lib.io.virtualThreads</code> system property is <code>true</code> and the
+ *  classes built for newer JDKs are present (see the <code>virtualThreads</code> build property), each stage runs on a
+ *  virtual thread of its own instead, which lets thousands of small transformations run at once without a pool of
+ *  platform threads to size.
+ * </p>
+ */
+public final class StageExecutors {
+
+	/** System property giving the size of the shared pool */
+	public static final String MAX_THREADS_PROPERTY = "edu.ncsu.lib.io.maxStageThreads";
+
+	/** System property selecting virtual threads, where available */
+	public static final String VIRTUAL_THREADS_PROPERTY = "edu.ncsu.lib.io.virtualThreads";
+
+	private static final String VIRTUAL_THREAD_EXECUTOR = "edu.ncsu.lib.io.VirtualThreadStageExecutor";
+
+	private StageExecutors() {
+	}
+
+	/**
+	 * Gets the executor transformations use unless they are given another.
+	 * @return the virtual thread executor if it has been asked for and is available, otherwise the shared pool.
+	 */
+	public static StageExecutor defaultExecutor() {
+		if ( Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY) ) {
+			StageExecutor virtual = virtualThreads();
+			if ( virtual != null ) {
+				return virtual;
+			}
+		}
+		return shared();
+	}
+
+	/**
+	 * Gets the JVM-wide shared pool.  Closing it has no effect.
+	 * @return
+	 */
+	public static StageExecutor shared() {
+		return Shared.INSTANCE;
+	}
+
+	/**
+	 * Gets an executor that runs each task on a new virtual thread.
+	 * @return the executor, or <code>null</code> if this build or JVM doesn't support virtual threads.
+	 */
+	public static StageExecutor virtualThreads() {
+		return Virtual.INSTANCE;
+	}
+
+	private static class Shared implements StageExecutor {
+
+		static final Shared INSTANCE = new Shared();
+
+		private final BoundedStageExecutor pool;
+
+		private Shared() {
+			int defaultSize = Math.max(16, Runtime.getRuntime().availableProcessors() * 4);
+			this.pool = new BoundedStageExecutor( Integer.getInteger(MAX_THREADS_PROPERTY, defaultSize) );
+		}
+
+		@Override
+		public void execute(Map<String, Runnable> tasks) throws InterruptedException {
+			pool.execute(tasks);
+		}
+
+		@Override
+		public void close() {
+			// shared by every connector: its threads are daemons and time out when idle
+		}
+	}
+
+	private static class Virtual {
+
+		static final StageExecutor INSTANCE = load();
+
+		private static StageExecutor load() {
+			try {
+				return (StageExecutor)Class.forName(VIRTUAL_THREAD_EXECUTOR).getConstructor().newInstance();
+			} catch( ReflectiveOperationException | LinkageError e ) {
+				// not built for, or not running on, a JDK with virtual threads
+				return null;
+			}
+		}
+	}
+}
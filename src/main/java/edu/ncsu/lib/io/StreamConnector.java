@@ -1,17 +1,14 @@
 package edu.ncsu.lib.io;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
-import java.util.concurrent.Callable;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Collections;
 import java.util.function.BiFunction;
 import java.util.function.Supplier;
 
@@ -30,14 +27,22 @@ import edu.ncsu.lib.marc.MarcTransformer;
  *   This utility was originally developed to reduce memory usage for an AWS Lambda function that transforms large input streams (from S3 buckets) to large output streams (in different
  *   S3 buckets), but it turns out the S3 APIs buffer streams in memory in order to determine the amount of data.  As a result, the implementation had to be switched to use
  *   a temporary file.  Nonetheless, the technique may prove useful in other contexts.  Java provides a feature for doing this via <code>PipedInput/OutputStream</code> pairs objects,
- *   but their use requires that the reader and writer use different threads.  This class handles the piped stream setup and threading.
+ *   but their use requires that the reader and writer use different threads, and their small, fully synchronized buffer throttles fast
+ *   producers.  This class handles the threading, and connects the two sides with a {@link BytePipe} instead.
  *   </p> 
+ * <p>
+ *  Transformations run on a {@link StageExecutor}: by default the one from {@link StageExecutors#defaultExecutor()},
+ *  which is shared by every connector, so creating a connector per file costs no threads of its own.  A connector given
+ *  an executor with {@link #setExecutor(StageExecutor)} closes it when the connector is closed.
+ * </p>
  * 
  * 
  */
-public class StreamConnector {
+public class StreamConnector implements Closeable {
 	
-	private ExecutorService executorService = Executors.newSingleThreadExecutor();
+	private StageExecutor executor = StageExecutors.defaultExecutor();
+	
+	private int pipeCapacity = BytePipe.DEFAULT_CAPACITY;
 		
 	/**
 	 * Transforms an input stream using a supplied function to a new stream that can be read from, without using a large intermediate buffer.  Delegates to
@@ -57,7 +62,10 @@ public class StreamConnector {
 	 * Transforms an input stream using a supplied function to a new stream that can be read from, without using a large intermediate buffer.
 	 * 
 	 * <p>
-	 *  Uses a PipedInput/Output stream in a background thread
+	 *  Runs the transformer in a background thread, writing to a {@link BytePipe} of {@link #setPipeCapacity(int) pipeCapacity}
+	 *  bytes.  The pipe is closed when the transformer returns; if it throws instead, the exception is passed on to
+	 *  the reader of the returned stream (as the cause of an <code>IOException</code>) rather than leaving it waiting.
+	 *  Closing the returned stream early makes the transformer's writes fail, so it doesn't block forever either.
 	 * </p>
 	 * @param streamSupplier a function or method that returns an input strema to read the initial data from.  
 	 * @param transformer a function or method that converts data read from an <code>InputStream</code> to an <code>OutputStream</code>.
@@ -65,14 +73,71 @@ public class StreamConnector {
 	 * @throws IOException
 	 */
 	public InputStream transformStream(Supplier<InputStream> streamSupplier, BiFunction<InputStream,OutputStream, ?> transformer) throws IOException {		
-		final PipedInputStream pipedInput = new PipedInputStream();
-		final PipedOutputStream pipedOutput = new PipedOutputStream(pipedInput);
-		final Callable<?> copier = () -> {
-			return transformer.apply(streamSupplier.get(), pipedOutput);
-			
+		final BytePipe pipe = new BytePipe(pipeCapacity);
+		final Runnable copier = () -> {
+			try {
+				transformer.apply(streamSupplier.get(), pipe.getOutputStream());
+				pipe.getOutputStream().close();
+			} catch( Throwable t ) {
+				pipe.fail(t);
+			}
 		};
-		executorService.submit( copier );
-		return pipedInput;
+		try {
+			executor.execute( Collections.singletonMap("stream-transform", copier) );
+		} catch( InterruptedException ix ) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for a thread to run the transformer");
+		}
+		return pipe.getInputStream();
+	}
+	
+	/**
+	 * Sets the executor that runs transformations, in place of the shared default.  The connector takes ownership of
+	 * the executor, and closes it when the connector is closed.
+	 * @param executor the executor.
+	 * @return this connector.
+	 */
+	public StreamConnector setExecutor(StageExecutor executor) {
+		this.executor = executor;
+		return this;
+	}
+	
+	public StageExecutor getExecutor() {
+		return executor;
+	}
+	
+	/**
+	 * Closes the connector's executor.  Transformations already started run to completion; the shared default executor
+	 * is unaffected.
+	 */
+	@Override
+	public void close() {
+		executor.close();
+	}
+	
+	/**
+	 * Sets the size of the buffer between the transformer and the reader.
+	 * @param pipeCapacity the capacity in bytes.
+	 * @return this connector.
+	 */
+	public StreamConnector setPipeCapacity(int pipeCapacity) {
+		this.pipeCapacity = pipeCapacity;
+		return this;
+	}
+	
+	public int getPipeCapacity() {
+		return pipeCapacity;
+	}
+	
+	/**
+	 * Creates a pipeline of transformations that each run on their own thread, connected by pipes of
+	 * {@link #setPipeCapacity(int) pipeCapacity} bytes.
+	 * @param streamSupplier a function or method that returns an input stream to read the initial data from.
+	 * @return a pipeline to add stages to.
+	 * @see StreamPipeline
+	 */
+	public StreamPipeline pipeline(Supplier<InputStream> streamSupplier) {
+		return new StreamPipeline(streamSupplier, pipeCapacity, executor);
 	}
 	
 	public static void main(String[] args) throws Exception {
@@ -80,35 +145,27 @@ public class StreamConnector {
 		InputStream input = new FileInputStream(args[0]);
 		
 		/**
-		 * example : capture the output value of the transformer function
+		 * example : the pipeline captures the output value of the transformer function
 		 */
-		CompletableFuture<Long> countPromise = new CompletableFuture<>();
-		
 		File output = File.createTempFile("marc-transorm-",  ".json");
 		output.deleteOnExit();
 		FileOutputStream outputStream = new FileOutputStream(output);
 		
 		long start = System.nanoTime();
 		
-		
-		InputStream reader = new StreamConnector().transformStream(input, (t, u) -> {
-			try {				
-				long recordCount = transformer.toJSON(t, u);
-				countPromise.complete(recordCount);
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			return -1L;
-		});
+		StreamPipeline pipeline = new StreamConnector().pipeline( () -> input );
+		StreamPipeline.Stage<Long> transform = pipeline.addStage("marc-json", transformer::toJSON);
+		InputStream reader = pipeline.start();
 		ByteStreams.copy( reader, outputStream );
-		long count = countPromise.get();
+		outputStream.close();
+		long count = transform.getResult();
 		long end = System.nanoTime();
 		long duration = end-start;
 		
 		long durationMS = duration / 1000000;
 		
 		System.out.printf("Operation took %dms for %d records (%.4fms/record)%n", durationMS, count, (double)durationMS/(double)count); 
+		System.out.println(transform);
 		
 		
 	}
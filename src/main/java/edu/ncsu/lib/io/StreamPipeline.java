@@ -0,0 +1,319 @@
+package edu.ncsu.lib.io;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * A chain of stream transformations, each running on its own thread, connected by bounded {@link BytePipe}s.
+ * <p>
+ *  Stages are added in order with {@link #addStage(String, StreamFunction)}; the first reads from the pipeline's input
+ *  and each of the others reads what the one before it writes.  {@link #start()} starts every stage and returns a
+ *  stream over the output of the last one.  Because each pipe holds a limited amount of data, a slow stage holds back
+ *  the ones ahead of it rather than letting data pile up in memory, while stages that keep up run in parallel: for
+ *  example, decompression, MARC to JSON conversion and compression can each have a core to themselves.
+ * </p>
+ * <p>
+ *  Each stage's return value, failure and byte counts are available from the {@link Stage} returned when it was
+ *  added.  When a stage fails, the stage after it sees the failure as an <code>IOException</code> from its input, and
+ *  the stage before it finds its output closed, so the whole pipeline winds down rather than stalling.
+ * </p>
+ * <p>
+ *  The stages run on a {@link StageExecutor}, which starts them all together or not at all: a pipeline whose stages
+ *  were only partly started would stall waiting for the rest.
+ * </p>
+ */
+public class StreamPipeline {
+
+	/**
+	 * A transformation from one stream to another that produces a result.
+	 * @param <T> the type of the result.
+	 */
+	@FunctionalInterface
+	public interface StreamFunction<T> {
+
+		/**
+		 * Transforms the content of <code>input</code>, writing the result to <code>output</code>.  The streams are
+		 * closed after the function returns, so it does not have to close them itself.
+		 * @param input the stage's input.
+		 * @param output the stage's output.
+		 * @return a result; may be <code>null</code>.
+		 * @throws IOException if an error is encountered reading or writing.
+		 */
+		T apply(InputStream input, OutputStream output) throws IOException;
+	}
+
+	/**
+	 * One stage of a pipeline: its result and its progress.
+	 * @param <T> the type of the stage's result.
+	 */
+	public static class Stage<T> {
+
+		private final String name;
+
+		private final StreamFunction<T> function;
+
+		private final CompletableFuture<T> result = new CompletableFuture<>();
+
+		private volatile long bytesRead = 0;
+
+		private volatile long bytesWritten = 0;
+
+		Stage(String name, StreamFunction<T> function) {
+			this.name = name;
+			this.function = function;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Waits for the stage to finish and gets its result.
+		 * @return the value returned by the stage's function.
+		 * @throws ExecutionException if the stage failed.
+		 * @throws InterruptedException if interrupted while waiting.
+		 */
+		public T getResult() throws ExecutionException, InterruptedException {
+			return result.get();
+		}
+
+		/**
+		 * Gets the stage's result as a future, for waiting with a timeout or chaining further work.
+		 * @return
+		 */
+		public CompletableFuture<T> getFuture() {
+			return result;
+		}
+
+		public boolean isDone() {
+			return result.isDone();
+		}
+
+		/**
+		 * Gets the exception that ended the stage, if it failed.
+		 * @return the exception, or <code>null</code> if the stage is still running or succeeded.
+		 */
+		public Throwable getFailure() {
+			if ( !result.isCompletedExceptionally() ) {
+				return null;
+			}
+			try {
+				result.get();
+				return null;
+			} catch( ExecutionException ex ) {
+				return ex.getCause();
+			} catch( Exception e ) {
+				return e;
+			}
+		}
+
+		/**
+		 * Gets the number of bytes the stage has read so far.
+		 * @return
+		 */
+		public long getBytesRead() {
+			return bytesRead;
+		}
+
+		/**
+		 * Gets the number of bytes the stage has written so far.
+		 * @return
+		 */
+		public long getBytesWritten() {
+			return bytesWritten;
+		}
+
+		@Override
+		public String toString() {
+			return name + ": " + bytesRead + " bytes in, " + bytesWritten + " bytes out" + ( isDone() ? getFailure() != null ? " (failed)" : " (done)" : "" );
+		}
+
+		/**
+		 * Runs the stage on the current thread.
+		 */
+		void run(InputStream input, BytePipe pipe) {
+			InputStream counted = new FilterInputStream(input) {
+				@Override
+				public int read() throws IOException {
+					int b = super.read();
+					if ( b != -1 ) {
+						bytesRead++;
+					}
+					return b;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int count = super.read(b, off, len);
+					if ( count > 0 ) {
+						bytesRead += count;
+					}
+					return count;
+				}
+			};
+			OutputStream counting = new FilterOutputStream(pipe.getOutputStream()) {
+				@Override
+				public void write(int b) throws IOException {
+					out.write(b);
+					bytesWritten++;
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+					bytesWritten += len;
+				}
+			};
+			try {
+				T value = function.apply(counted, counting);
+				pipe.getOutputStream().close();
+				result.complete(value);
+			} catch( Throwable t ) {
+				pipe.fail(t);
+				result.completeExceptionally(t);
+			} finally {
+				try {
+					// if the stage stopped reading early, this makes the stage before it stop writing
+					input.close();
+				} catch( IOException iox ) {
+
+				}
+			}
+		}
+	}
+
+	private final Supplier<InputStream> source;
+
+	private final int pipeCapacity;
+
+	private final StageExecutor executor;
+
+	private final List<Stage<?>> stages = new ArrayList<>();
+
+	private boolean started = false;
+
+	/**
+	 * Creates a pipeline.
+	 * @param source supplies the input to the first stage; called on the first stage's thread.
+	 * @param pipeCapacity the size of the buffer after each stage.
+	 */
+	public StreamPipeline(Supplier<InputStream> source, int pipeCapacity) {
+		this(source, pipeCapacity, StageExecutors.defaultExecutor());
+	}
+
+	/**
+	 * Creates a pipeline that runs its stages on the given executor.
+	 * @param source supplies the input to the first stage; called on the first stage's thread.
+	 * @param pipeCapacity the size of the buffer after each stage.
+	 * @param executor runs the stages.
+	 */
+	public StreamPipeline(Supplier<InputStream> source, int pipeCapacity, StageExecutor executor) {
+		this.source = source;
+		this.pipeCapacity = pipeCapacity;
+		this.executor = executor;
+	}
+
+	/**
+	 * Adds a stage to the end of the pipeline.
+	 * @param name a name for the stage, used for its thread.
+	 * @param function the transformation the stage performs.
+	 * @return the stage, for getting its result once the pipeline has started.
+	 */
+	public <T> Stage<T> addStage(String name, StreamFunction<T> function) {
+		if ( started ) {
+			throw new IllegalStateException("Pipeline has already started");
+		}
+		Stage<T> stage = new Stage<>(name, function);
+		stages.add(stage);
+		return stage;
+	}
+
+	/**
+	 * Gets the pipeline's stages, in order.
+	 * @return
+	 */
+	public List<Stage<?>> getStages() {
+		return Collections.unmodifiableList(stages);
+	}
+
+	/**
+	 * Starts every stage on a thread of its own, waiting if the executor has no threads to spare.
+	 * @return a stream over the output of the last stage.  If a stage fails, reading this stream will throw an
+	 *   <code>IOException</code> after the output produced before the failure.
+	 * @throws InterruptedException if interrupted while waiting for threads; no stage will have started.
+	 */
+	public InputStream start() throws InterruptedException {
+		if ( started ) {
+			throw new IllegalStateException("Pipeline has already started");
+		}
+		if ( stages.isEmpty() ) {
+			throw new IllegalStateException("Pipeline has no stages");
+		}
+		started = true;
+		Map<String, Runnable> tasks = new LinkedHashMap<>();
+		BytePipe previous = null;
+		for( Stage<?> stage : stages ) {
+			final BytePipe pipe = new BytePipe(pipeCapacity);
+			final BytePipe upstream = previous;
+			String name = "pipeline-" + stage.getName();
+			if ( tasks.containsKey(name) ) {
+				// stage names needn't be unique, but each task needs its own key
+				name += "-" + tasks.size();
+			}
+			tasks.put(name, () -> {
+				InputStream input;
+				try {
+					input = upstream != null ? upstream.getInputStream() : source.get();
+				} catch( RuntimeException rx ) {
+					pipe.fail(rx);
+					stage.result.completeExceptionally(rx);
+					return;
+				}
+				stage.run(input, pipe);
+			});
+			previous = pipe;
+		}
+		try {
+			executor.execute(tasks);
+		} catch( InterruptedException | RuntimeException x ) {
+			for( Stage<?> stage : stages ) {
+				stage.result.completeExceptionally(x);
+			}
+			throw x;
+		}
+		return previous.getInputStream();
+	}
+
+	/**
+	 * Waits for every stage to finish.
+	 * @throws ExecutionException with the failure of the first stage that failed, if any did.  A stage that failed
+	 *   only because a later stage stopped reading is passed over in favour of the later stage.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public void await() throws ExecutionException, InterruptedException {
+		ExecutionException first = null;
+		for( Stage<?> stage : stages ) {
+			try {
+				stage.getResult();
+			} catch( ExecutionException ex ) {
+				if ( first == null || first.getCause() instanceof BytePipe.PipeClosedException ) {
+					first = ex;
+				}
+			}
+		}
+		if ( first != null ) {
+			throw first;
+		}
+	}
+}
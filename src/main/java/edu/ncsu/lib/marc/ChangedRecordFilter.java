@@ -0,0 +1,107 @@
+package edu.ncsu.lib.marc;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.marc4j.MarcException;
+
+/**
+ * Accepts only the records that are new or have changed since an earlier version of the same file was transformed,
+ * judged by the control number and {@link RecordHashes#hash(byte[]) hash} of each raw record.
+ * <p>
+ *  Every record's hash is added to a {@link RecordHashes.Builder}, whether it is accepted or not, so that once the
+ *  whole file has been read the builder holds the table to compare the next version with, and
+ *  {@link #getDeletions()} can list the records that have gone.  Records with no control number, or too damaged to
+ *  find it, can't be tracked and are always accepted.  Not thread-safe.
+ * </p>
+ */
+public class ChangedRecordFilter implements RecordFilter {
+
+	private final RecordHashes previous;
+
+	private final RecordHashes.Builder current;
+
+	private long added = 0;
+
+	private long changed = 0;
+
+	private long unchanged = 0;
+
+	private long untracked = 0;
+
+	/**
+	 * Creates a filter.
+	 * @param previous the table for the earlier version of the file, or <code>null</code> if there wasn't one, in
+	 *   which case every record is accepted.
+	 * @param current the builder to add this version's hashes to.
+	 */
+	public ChangedRecordFilter(RecordHashes previous, RecordHashes.Builder current) {
+		this.previous = previous;
+		this.current = current;
+	}
+
+	@Override
+	public boolean accept(byte[] record) {
+		String controlNumber;
+		try {
+			controlNumber = new MarcRecordView(record).getControlNumber();
+		} catch( MarcException mx ) {
+			controlNumber = null;
+		}
+		if ( controlNumber == null ) {
+			untracked++;
+			return true;
+		}
+		long hash = RecordHashes.hash(record);
+		current.add(controlNumber, hash);
+		int i = previous != null ? previous.indexOf(controlNumber) : -1;
+		if ( i < 0 ) {
+			added++;
+			return true;
+		}
+		if ( previous.getHash(i) != hash ) {
+			changed++;
+			return true;
+		}
+		unchanged++;
+		return false;
+	}
+
+	/**
+	 * Lists the records in the earlier version of the file that are not in this one.  Only meaningful once the whole
+	 * file has been read.
+	 * @return the control numbers of the deleted records, in order.
+	 */
+	public List<String> getDeletions() {
+		return previous != null ? previous.missingFrom(current.build()) : Collections.emptyList();
+	}
+
+	/**
+	 * Gets the builder the hashes of this version of the file are added to.
+	 * @return
+	 */
+	public RecordHashes.Builder getHashes() {
+		return current;
+	}
+
+	public long getAdded() {
+		return added;
+	}
+
+	public long getChanged() {
+		return changed;
+	}
+
+	public long getUnchanged() {
+		return unchanged;
+	}
+
+	public long getUntracked() {
+		return untracked;
+	}
+
+	@Override
+	public String toString() {
+		return "added=" + added + ", changed=" + changed + ", unchanged=" + unchanged + ", untracked=" + untracked;
+	}
+}
@@ -0,0 +1,277 @@
+package edu.ncsu.lib.marc;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The binary layout shared by {@link RecordIndex} and {@link RecordHashes}: a header, a table of fixed-width entries
+ * sorted by control number, and the control numbers themselves, UTF-8 encoded and concatenated.  Each entry starts with
+ * the offset and length of its control number, and goes on with a payload of the owner's.  All numbers are big-endian.
+ * <pre>
+ *  int   magic
+ *  int   version
+ *  int   number of entries
+ *  int   length of the control numbers, in bytes
+ *  entries, each:
+ *    int   offset of the control number in the control numbers
+ *    int   length of the control number, in bytes
+ *    payload
+ *  control numbers
+ * </pre>
+ * <p>
+ *  Control numbers are compared as unsigned bytes.  Entries with the same control number are kept in the order they
+ *  were added.  Instances are immutable and thread-safe.
+ * </p>
+ */
+class ControlNumberTable {
+
+	static final int HEADER_LENGTH = 16;
+
+	/** The length of the part of an entry before the payload */
+	static final int KEY_LENGTH = 8;
+
+	private final ByteBuffer data;
+
+	private final int entryLength;
+
+	private final int size;
+
+	private final int keysStart;
+
+	private final String name;
+
+	/**
+	 * Reads a table from its binary form.
+	 * @param data the table; it is not copied, and must not be changed afterwards.
+	 * @param magic the owner's magic number.
+	 * @param version the owner's version.
+	 * @param entryLength the length of an entry, payload included.
+	 * @param name what the owner calls a table, for messages.
+	 * @throws IOException if <code>data</code> is not such a table.
+	 */
+	ControlNumberTable(ByteBuffer data, int magic, int version, int entryLength, String name) throws IOException {
+		this.data = data.duplicate();
+		this.entryLength = entryLength;
+		this.name = name;
+		if ( data.remaining() < HEADER_LENGTH || this.data.getInt(0) != magic ) {
+			throw new IOException("Not a " + name);
+		}
+		int actualVersion = this.data.getInt(4);
+		if ( actualVersion != version ) {
+			throw new IOException("Unsupported " + name + " version " + actualVersion);
+		}
+		this.size = this.data.getInt(8);
+		this.keysStart = HEADER_LENGTH + size * entryLength;
+		if ( size < 0 || (long)keysStart + this.data.getInt(12) > data.remaining() ) {
+			throw new IOException("Truncated " + name);
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	ByteBuffer data() {
+		return data;
+	}
+
+	/**
+	 * Finds a control number.
+	 * @param key the control number, UTF-8 encoded.
+	 * @return the position of the first entry with that control number, or -1 if there isn't one.
+	 */
+	int indexOf(byte[] key) {
+		int low = 0;
+		int high = size - 1;
+		int found = -1;
+		while( low <= high ) {
+			int middle = ( low + high ) >>> 1;
+			int comparison = compareKey(middle, key);
+			if ( comparison < 0 ) {
+				low = middle + 1;
+			} else {
+				// keep going left, to the first of any duplicates
+				if ( comparison == 0 ) {
+					found = middle;
+				}
+				high = middle - 1;
+			}
+		}
+		return found;
+	}
+
+	String getControlNumber(int i) {
+		int entry = entry(i);
+		byte[] key = new byte[data.getInt(entry + 4)];
+		for( int k = 0; k < key.length; k++ ) {
+			key[k] = data.get(keysStart + data.getInt(entry) + k);
+		}
+		return new String(key, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Gets the position of an entry's payload in {@link #data()}.
+	 * @param i the entry, from 0 to <code>size() - 1</code>.
+	 */
+	int payload(int i) {
+		return entry(i) + KEY_LENGTH;
+	}
+
+	private int entry(int i) {
+		if ( i < 0 || i >= size ) {
+			throw new IndexOutOfBoundsException("No entry " + i + " in a " + name + " of " + size);
+		}
+		return HEADER_LENGTH + i * entryLength;
+	}
+
+	/**
+	 * Compares the control number of an entry with a key, as unsigned bytes.
+	 */
+	private int compareKey(int i, byte[] key) {
+		int entry = HEADER_LENGTH + i * entryLength;
+		int start = keysStart + data.getInt(entry);
+		int length = data.getInt(entry + 4);
+		int common = Math.min(length, key.length);
+		for( int k = 0; k < common; k++ ) {
+			int difference = ( data.get(start + k) & 0xFF ) - ( key[k] & 0xFF );
+			if ( difference != 0 ) {
+				return difference;
+			}
+		}
+		return length - key.length;
+	}
+
+	/**
+	 * Writes the payload of an entry.
+	 */
+	@FunctionalInterface
+	interface PayloadWriter {
+
+		/**
+		 * @param data the destination.
+		 * @param i the position the entry was added at.
+		 */
+		void write(DataOutputStream data, int i) throws IOException;
+	}
+
+	/**
+	 * Accumulates control numbers in primitive arrays, for an owner that keeps its payloads in arrays of its own
+	 * indexed the same way, and writes them out sorted.  Not thread-safe.
+	 */
+	static class Builder {
+
+		private byte[] keys = new byte[4096];
+
+		private int keysLength = 0;
+
+		private int[] keyStarts = new int[256];
+
+		private int[] keyLengths = new int[256];
+
+		private int size = 0;
+
+		/**
+		 * Adds a control number.
+		 * @param key the control number, UTF-8 encoded.
+		 * @return the position it was added at, which the owner's payload goes at.
+		 */
+		int add(byte[] key) {
+			if ( size == keyStarts.length ) {
+				int capacity = size * 2;
+				keyStarts = Arrays.copyOf(keyStarts, capacity);
+				keyLengths = Arrays.copyOf(keyLengths, capacity);
+			}
+			if ( keysLength + key.length > keys.length ) {
+				keys = Arrays.copyOf(keys, Math.max(keys.length * 2, keysLength + key.length));
+			}
+			System.arraycopy(key, 0, keys, keysLength, key.length);
+			keyStarts[size] = keysLength;
+			keyLengths[size] = key.length;
+			keysLength += key.length;
+			return size++;
+		}
+
+		int size() {
+			return size;
+		}
+
+		/**
+		 * Gets the length of the table once written.
+		 * @param entryLength the length of an entry, payload included.
+		 */
+		int length(int entryLength) {
+			return HEADER_LENGTH + size * entryLength + keysLength;
+		}
+
+		/**
+		 * Writes the table, sorted by control number.
+		 * @param output the destination, which is not closed.
+		 * @param magic the owner's magic number.
+		 * @param version the owner's version.
+		 * @param payload writes the rest of each entry.
+		 * @throws IOException if the table could not be written.
+		 */
+		void writeTo(OutputStream output, int magic, int version, PayloadWriter payload) throws IOException {
+			int[] order = sortedOrder();
+			DataOutputStream data = new DataOutputStream(output);
+			data.writeInt(magic);
+			data.writeInt(version);
+			data.writeInt(size);
+			data.writeInt(keysLength);
+			int keyOffset = 0;
+			for( int i : order ) {
+				data.writeInt(keyOffset);
+				data.writeInt(keyLengths[i]);
+				payload.write(data, i);
+				keyOffset += keyLengths[i];
+			}
+			for( int i : order ) {
+				data.write(keys, keyStarts[i], keyLengths[i]);
+			}
+			data.flush();
+		}
+
+		/**
+		 * Sorts the positions of the entries by control number with a bottom-up merge sort, which is stable, so that
+		 * duplicates stay in the order they were added, and needs no boxing.
+		 */
+		int[] sortedOrder() {
+			int[] order = new int[size];
+			for( int i = 0; i < size; i++ ) {
+				order[i] = i;
+			}
+			int[] merged = new int[size];
+			for( int width = 1; width < size; width *= 2 ) {
+				for( int low = 0; low < size; low += 2 * width ) {
+					int middle = Math.min(low + width, size);
+					int high = Math.min(low + 2 * width, size);
+					int a = low;
+					int b = middle;
+					for( int k = low; k < high; k++ ) {
+						// ties go to the earlier run
+						merged[k] = b >= high || ( a < middle && compare(order[a], order[b]) <= 0 ) ? order[a++] : order[b++];
+					}
+				}
+				int[] swap = order;
+				order = merged;
+				merged = swap;
+			}
+			return order;
+		}
+
+		private int compare(int a, int b) {
+			int common = Math.min(keyLengths[a], keyLengths[b]);
+			for( int k = 0; k < common; k++ ) {
+				int difference = ( keys[keyStarts[a] + k] & 0xFF ) - ( keys[keyStarts[b] + k] & 0xFF );
+				if ( difference != 0 ) {
+					return difference;
+				}
+			}
+			return keyLengths[a] - keyLengths[b];
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package edu.ncsu.lib.marc;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the records converted by a {@link MarcTransformer}, broken down by the character conversion path each record
+ * took.  Counters may be updated from several worker threads at once.
+ */
+public class ConversionStatistics {
+
+	/**
+	 * The ways a record can be converted to MARC-In-JSON.
+	 */
+	public enum Path {
+		/** Unicode (or plain ASCII) data, copied through without any character conversion */
+		UNICODE,
+		/** MARC-8 data, converted with the precomputed tables in {@link Marc8Decoder} */
+		MARC8,
+		/** records parsed, converted and serialized by marc4j */
+		MARC4J
+	}
+
+	private final LongAdder[] counts = new LongAdder[Path.values().length];
+
+	public ConversionStatistics() {
+		for( int i = 0; i < counts.length; i++ ) {
+			counts[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Adds to the number of records that took a given path.
+	 * @param path the conversion path.
+	 * @param records the number of records.
+	 */
+	public void add(Path path, long records) {
+		if ( records != 0 ) {
+			counts[path.ordinal()].add(records);
+		}
+	}
+
+	/**
+	 * Gets the number of records that took a given path.
+	 * @param path the conversion path.
+	 * @return
+	 */
+	public long get(Path path) {
+		return counts[path.ordinal()].sum();
+	}
+
+	/**
+	 * Gets the total number of records counted.
+	 * @return
+	 */
+	public long getTotal() {
+		long total = 0;
+		for( LongAdder count : counts ) {
+			total += count.sum();
+		}
+		return total;
+	}
+
+	/**
+	 * Resets all of the counters to zero.
+	 */
+	public void reset() {
+		for( LongAdder count : counts ) {
+			count.reset();
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for( Path path : Path.values() ) {
+			if ( sb.length() > 0 ) {
+				sb.append(", ");
+			}
+			sb.append(path.name().toLowerCase()).append('=').append( get(path) );
+		}
+		return sb.toString();
+	}
+}
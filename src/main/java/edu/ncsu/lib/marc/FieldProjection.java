@@ -0,0 +1,167 @@
+package edu.ncsu.lib.marc;
+
+import java.util.Arrays;
+
+/**
+ * Describes the subset of a MARC record's fields (and, optionally, subfields) that a consumer is interested in.
+ * <p>
+ *  A projection is built from a comma-separated list of tag patterns, each optionally followed by the subfield codes to
+ *  keep, e.g. <code>001,245abc,9xx</code>.  An <code>x</code> in a tag pattern matches any digit, so <code>9xx</code> selects
+ *  all of the local holdings fields.  A tag pattern without subfield codes keeps all of the subfields of matching fields.
+ *  Subfield codes are ignored for control fields, which have no subfields.
+ * </p>
+ * <p>
+ *  Lookups are done against a table indexed by numeric tag, so testing a field against a projection is a single array
+ *  access.  Non-numeric tags are only matched by {@link #ALL}.
+ * </p>
+ */
+public class FieldProjection {
+
+	/** A projection that keeps every field and subfield */
+	public static final FieldProjection ALL = new FieldProjection(true);
+
+	private static final long ALL_SUBFIELDS = -1L;
+
+	// bit used for subfield codes outside a-z, A-Z and 0-9
+	private static final long OTHER_SUBFIELD = 1L << 63;
+
+	// per-tag bitmask of included subfield codes; 0 means the tag is excluded
+	private final long[] subfieldMasks = new long[1000];
+
+	private final boolean all;
+
+	public FieldProjection() {
+		this(false);
+	}
+
+	private FieldProjection(boolean all) {
+		this.all = all;
+		if ( all ) {
+			Arrays.fill(subfieldMasks, ALL_SUBFIELDS);
+		}
+	}
+
+	/**
+	 * Parses a projection specification such as <code>001,245abc,9xx</code>.
+	 * @param spec a comma-separated list of tag patterns, each optionally followed by subfield codes.
+	 * @return a new projection.
+	 * @throws IllegalArgumentException if any of the tag patterns is malformed.
+	 */
+	public static FieldProjection parse(String spec) {
+		FieldProjection projection = new FieldProjection();
+		for( String entry : spec.split(",") ) {
+			String trimmed = entry.trim();
+			if ( trimmed.isEmpty() ) {
+				continue;
+			}
+			if ( trimmed.length() < 3 ) {
+				throw new IllegalArgumentException("Tag pattern too short: " + trimmed);
+			}
+			projection.include(trimmed.substring(0, 3), trimmed.length() > 3 ? trimmed.substring(3) : null);
+		}
+		return projection;
+	}
+
+	/**
+	 * Adds all subfields of the tags matching a pattern.
+	 * @param tagPattern a three character tag, where <code>x</code> matches any digit.
+	 * @return this projection.
+	 */
+	public FieldProjection include(String tagPattern) {
+		return include(tagPattern, null);
+	}
+
+	/**
+	 * Adds the given subfields of the tags matching a pattern.
+	 * @param tagPattern a three character tag, where <code>x</code> matches any digit.
+	 * @param subfieldCodes the subfield codes to keep, or <code>null</code> (or an empty string) to keep all subfields.
+	 * @return this projection.
+	 */
+	public FieldProjection include(String tagPattern, String subfieldCodes) {
+		if ( all ) {
+			throw new IllegalStateException("FieldProjection.ALL cannot be modified");
+		}
+		if ( tagPattern.length() != 3 ) {
+			throw new IllegalArgumentException("Tag pattern must be three characters: " + tagPattern);
+		}
+		long mask = 0;
+		if ( subfieldCodes == null || subfieldCodes.isEmpty() ) {
+			mask = ALL_SUBFIELDS;
+		} else {
+			for( int i = 0; i < subfieldCodes.length(); i++ ) {
+				mask |= subfieldBit(subfieldCodes.charAt(i));
+			}
+		}
+		for( int tag = 0; tag < subfieldMasks.length; tag++ ) {
+			if ( matches(tagPattern, tag) ) {
+				subfieldMasks[tag] |= mask;
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Checks whether fields with a given tag are part of this projection.
+	 * @param tag the numeric value of the tag, or -1 for a tag that is not numeric.
+	 * @return
+	 */
+	public boolean includesTag(int tag) {
+		if ( tag < 0 || tag >= subfieldMasks.length ) {
+			return all;
+		}
+		return subfieldMasks[tag] != 0;
+	}
+
+	/**
+	 * Checks whether a subfield of a field with a given tag is part of this projection.
+	 * @param tag the numeric value of the tag, or -1 for a tag that is not numeric.
+	 * @param code the subfield code.
+	 * @return
+	 */
+	public boolean includesSubfield(int tag, int code) {
+		if ( tag < 0 || tag >= subfieldMasks.length ) {
+			return all;
+		}
+		return ( subfieldMasks[tag] & subfieldBit(code) ) != 0;
+	}
+
+	/**
+	 * Checks whether this projection keeps every field and subfield.
+	 * @return
+	 */
+	public boolean isAll() {
+		return all;
+	}
+
+	private static boolean matches(String pattern, int tag) {
+		int divisor = 100;
+		for( int i = 0; i < 3; i++ ) {
+			char p = pattern.charAt(i);
+			int digit = ( tag / divisor ) % 10;
+			divisor /= 10;
+			if ( p == 'x' || p == 'X' ) {
+				continue;
+			}
+			if ( p < '0' || p > '9' ) {
+				throw new IllegalArgumentException("Invalid tag pattern: " + pattern);
+			}
+			if ( p - '0' != digit ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long subfieldBit(int code) {
+		if ( code >= 'a' && code <= 'z' ) {
+			return 1L << ( code - 'a' );
+		}
+		if ( code >= 'A' && code <= 'Z' ) {
+			return 1L << ( 26 + code - 'A' );
+		}
+		if ( code >= '0' && code <= '9' ) {
+			return 1L << ( 52 + code - '0' );
+		}
+		return OTHER_SUBFIELD;
+	}
+}
@@ -0,0 +1,567 @@
+package edu.ncsu.lib.marc;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.marc4j.MarcException;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+import info.freelibrary.marc4j.converter.impl.AnselToUnicode;
+import info.freelibrary.marc4j.converter.impl.CodeTableHandler;
+
+/**
+ * Table-driven MARC-8 to Unicode decoder.
+ * <p>
+ *  marc4j's <code>AnselToUnicode</code> looks every character up in a set of boxed <code>HashMap</code>s and, because it
+ *  never finds its generated code table, re-parses the MARC-8 code table XML for every converter it creates.  This class
+ *  parses the same XML once, flattens each single-byte character set into a 256 entry array (plus a parallel table of
+ *  combining flags), and keeps the East Asian (EACC) multibyte set in an open-addressed primitive hash table.
+ * </p>
+ * <p>
+ *  Decoding follows the rules <code>AnselToUnicode</code> applies on behalf of <code>MarcPermissiveStreamReader</code>:
+ *  G0 starts as Basic Latin and G1 as ANSEL, escape sequences switch either set (or select the multibyte set), and
+ *  combining diacritics, which MARC-8 puts ahead of their base character, are moved after it.  Data that would send the
+ *  permissive reader into one of its repair heuristics (malformed or unknown escape sequences, broken multibyte
+ *  characters, stray Greek punctuation, numeric character references and so on) is rejected rather than guessed at, so
+ *  for every element it accepts the result is the same string marc4j would produce.
+ * </p>
+ * <p>
+ *  The tables are shared and built the first time a decoder is used; decoder instances hold a reusable output buffer and
+ *  are not thread-safe.
+ * </p>
+ */
+public class Marc8Decoder {
+
+	private static final int ESCAPE = 0x1B;
+
+	// character set codes, as used in MARC-8 escape sequences
+	private static final int BASIC_LATIN = 'B';
+
+	private static final int ANSEL = 'E';
+
+	private static final int GREEK = 'S';
+
+	private static final int EACC = '1';
+
+	private static final String CHARSET_CODES = "34BE1NQS2";
+
+	private char[] chars = new char[256];
+
+	private int length = 0;
+
+	// decoding state for the element being decoded
+	private byte[] data;
+
+	private int offset;
+
+	private int end;
+
+	private int g0;
+
+	private int g1;
+
+	private boolean multibyte;
+
+	// combining characters waiting for their base character
+	private char[] diacritics = new char[16];
+
+	/**
+	 * Decodes a MARC-8 data element.  On success the result can be retrieved with {@link #getChars()} and
+	 * {@link #getLength()}.
+	 * @param data a buffer containing the element.
+	 * @param start the offset of the first byte of the element.
+	 * @param end the offset following the last byte of the element.
+	 * @return <code>true</code> if the element was decoded, <code>false</code> if marc4j would treat it as damaged.
+	 */
+	public boolean decode(byte[] data, int start, int end) {
+		this.data = data;
+		this.offset = start;
+		this.end = end;
+		this.length = 0;
+		this.g0 = BASIC_LATIN;
+		this.g1 = ANSEL;
+		this.multibyte = false;
+		// worst case: every byte becomes a <U+xxxx> placeholder
+		if ( chars.length < 8 * ( end - start ) ) {
+			chars = new char[8 * ( end - start )];
+		}
+		// the permissive reader rewrites elements containing these before converting them
+		for( int i = start; i < end; i++ ) {
+			if ( ( data[i] & 0xFF ) == 0xAF ) {
+				return false;
+			}
+			if ( data[i] == 'b' && i + 3 < end && data[i + 1] == '-' && data[i + 2] == ESCAPE && data[i + 3] == 's' ) {
+				return false;
+			}
+		}
+		if ( !checkMode() ) {
+			return false;
+		}
+		int diacriticCount = 0;
+		while ( offset < end ) {
+			int b = data[offset] & 0xFF;
+			if ( isCombining(b) && hasNext() ) {
+				while ( offset < end && isCombining(data[offset] & 0xFF) && hasNext() ) {
+					int c = nextChar();
+					if ( c < 0 ) {
+						return false;
+					}
+					if ( c != 0 ) {
+						if ( diacriticCount == diacritics.length ) {
+							diacritics = Arrays.copyOf(diacritics, diacriticCount * 2);
+						}
+						diacritics[diacriticCount++] = (char)c;
+					}
+					if ( !checkMode() ) {
+						return false;
+					}
+				}
+				if ( offset >= end ) {
+					// a diacritic with nothing to decorate
+					return false;
+				}
+				int base = nextChar();
+				if ( base < 0 || !checkMode() ) {
+					return false;
+				}
+				if ( base != 0 ) {
+					chars[length++] = (char)base;
+				}
+				System.arraycopy(diacritics, 0, chars, length, diacriticCount);
+				length += diacriticCount;
+				diacriticCount = 0;
+			} else if ( multibyte ) {
+				if ( b == ESCAPE || !decodeMultibyte() ) {
+					return false;
+				}
+			} else {
+				if ( g0 == GREEK && b > ' ' && b < '@' ) {
+					// marc4j second-guesses punctuation in the Greek set
+					return false;
+				}
+				int c = nextChar();
+				if ( c < 0 ) {
+					return false;
+				}
+				if ( c != 0 ) {
+					chars[length++] = (char)c;
+				} else {
+					appendPlaceholder(b);
+				}
+			}
+			if ( hasNext() && !checkMode() ) {
+				return false;
+			}
+		}
+		for( int i = 0; i < length; i++ ) {
+			// numeric character references and HTML entities are rewritten by the permissive reader
+			if ( chars[i] == '&' && ( ( i + 1 < length && chars[i + 1] == '#' ) || isEntity(i + 1) ) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the buffer holding the most recently decoded element.  The buffer is reused by the next call to
+	 * <code>decode</code>.
+	 * @return
+	 */
+	public char[] getChars() {
+		return chars;
+	}
+
+	/**
+	 * Gets the number of characters in the most recently decoded element.
+	 * @return
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Checks that the subfield delimiter repairs <code>MarcPermissiveStreamReader</code> makes to MARC-8 data fields before
+	 * parsing them would leave a field untouched.  The repairs depend on whether the permissive reader's shared code table
+	 * happens to have the multibyte set loaded at the time, so the field is checked both ways.
+	 * @param data a buffer containing the field.
+	 * @param start the offset of the field's first indicator.
+	 * @param terminator the offset of the field's terminator.
+	 * @return
+	 */
+	static boolean isUnchangedByRepair(byte[] data, int start, int terminator) {
+		return isUnchangedByRepair(data, start, terminator, true) && isUnchangedByRepair(data, start, terminator, false);
+	}
+
+	private static boolean isUnchangedByRepair(byte[] data, int start, int terminator, boolean multibyteLoaded) {
+		boolean hasEscape = false;
+		boolean inMultibyte = false;
+		boolean inCyrillic = false;
+		int multibyteOffset = 0;
+		int runLength = 0;
+		for( int i = start; i < terminator; i++ ) {
+			byte b = data[i];
+			if ( b == ESCAPE ) {
+				hasEscape = true;
+				if ( "(,)-'".indexOf( (char)data[i + 1] ) != -1 ) {
+					inMultibyte = false;
+					inCyrillic = i + 2 <= terminator && data[i + 2] == 'N';
+				} else if ( i + 2 <= terminator && data[i + 1] == '$' && data[i + 2] == '1' ) {
+					inMultibyte = true;
+					multibyteOffset = 3;
+				} else if ( i + 3 <= terminator && ( data[i + 1] == '$' || data[i + 2] == '$' ) && ( data[i + 2] == '1' || data[i + 3] == '1' ) ) {
+					inMultibyte = true;
+					multibyteOffset = 4;
+				}
+			} else if ( inMultibyte && b != ' ' && b >= 0 ) {
+				multibyteOffset = multibyteOffset == 0 ? 2 : multibyteOffset - 1;
+			}
+			if ( inMultibyte && multibyteOffset == 0 && i + 2 <= terminator && b > 0 ) {
+				boolean spaced = data[i + 1] == ' ' || data[i + 2] == ' ';
+				if ( spaced && i + 3 > terminator ) {
+					// marc4j runs off the end of the field
+					return false;
+				}
+				int f2 = data[i + 1] == ' ' ? data[i + 2] : data[i + 1];
+				int f3 = spaced ? data[i + 3] : data[i + 2];
+				int code = multibyteCode( (char)( b == 0x1F ? 0x7C : b ), (char)( f2 == 0x1F ? 0x7C : f2 ), (char)( f3 == 0x1F ? 0x7C : f3 ) );
+				char c = multibyteLoaded ? Tables.eaccChar(code) : (char)code;
+				if ( c == 0 ) {
+					inMultibyte = false;
+				}
+			}
+			if ( b == RawRecordReader.SUBFIELD_DELIMITER ) {
+				byte next = data[i + 1];
+				if ( inMultibyte && multibyteOffset != 0 ) {
+					return false;
+				} else if ( hasEscape && inCyrillic ) {
+					if ( runLength == 0 || next < 'a' || next > 'z'
+							|| ( runLength == 4 && data[i - 3] == ESCAPE && data[i - 2] == '(' && data[i - 1] == 'N' ) ) {
+						return false;
+					}
+				} else if ( hasEscape && !( ( next >= 'a' && next <= 'z' ) || ( next >= '0' && next <= '9' ) ) ) {
+					return false;
+				} else if ( hasEscape && next == '0' ) {
+					return false;
+				} else if ( next == RawRecordReader.SUBFIELD_DELIMITER && data[i + 2] == RawRecordReader.SUBFIELD_DELIMITER ) {
+					return false;
+				}
+				runLength = 0;
+				continue;
+			}
+			runLength++;
+		}
+		return true;
+	}
+
+	/**
+	 * Processes any escape sequences at the current offset.
+	 * @return <code>false</code> if an escape sequence is malformed, or selects a character set in a way marc4j doesn't
+	 * handle consistently.
+	 */
+	private boolean checkMode() {
+		while ( offset < end && data[offset] == ESCAPE ) {
+			if ( offset + 1 == end ) {
+				return false;
+			}
+			switch( data[offset + 1] ) {
+				case '(':
+				case ',':
+					if ( !designate(true, offset + 2, false) ) {
+						return false;
+					}
+					break;
+				case ')':
+				case '-':
+					if ( !designate(false, offset + 2, false) ) {
+						return false;
+					}
+					break;
+				case '$':
+					if ( offset + 2 >= end ) {
+						return false;
+					}
+					switch( data[offset + 2] ) {
+						case ')':
+						case '-':
+							if ( !designate(false, offset + 3, true) ) {
+								return false;
+							}
+							break;
+						case ',':
+							if ( !designate(true, offset + 3, true) ) {
+								return false;
+							}
+							break;
+						case '1':
+							g0 = EACC;
+							offset += 3;
+							multibyte = true;
+							break;
+						default:
+							return false;
+					}
+					break;
+				case 'b':
+				case 'g':
+				case 'p':
+					g0 = data[offset + 1];
+					offset += 2;
+					multibyte = false;
+					break;
+				case 's':
+					g0 = BASIC_LATIN;
+					offset += 2;
+					multibyte = false;
+					break;
+				default:
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Handles the final character of an escape sequence designating the G0 or G1 set.
+	 */
+	private boolean designate(boolean graphic0, int position, boolean multibyteSet) {
+		if ( position >= end ) {
+			return false;
+		}
+		if ( data[position] == '!' ) {
+			// the ESC ( ! E form of the ANSEL designation
+			if ( position + 1 >= end || data[position + 1] != 'E' ) {
+				return false;
+			}
+			position++;
+		}
+		int code = data[position];
+		if ( CHARSET_CODES.indexOf(code) == -1 ) {
+			return false;
+		}
+		if ( code == EACC && !multibyteSet ) {
+			// marc4j's answer depends on which of its code tables happens to be loaded
+			return false;
+		}
+		if ( graphic0 ) {
+			g0 = code;
+		} else {
+			g1 = code;
+		}
+		offset = position + 1;
+		multibyte = multibyteSet;
+		return true;
+	}
+
+	/**
+	 * Decodes a run of multibyte characters, up to the next escape or the end of the element.
+	 */
+	private boolean decodeMultibyte() {
+		int runLength = 0;
+		int spaces = 0;
+		for( int i = offset; i < end && data[i] != ESCAPE; i++ ) {
+			runLength++;
+			if ( data[i] == ' ' ) {
+				spaces++;
+			}
+		}
+		while ( offset < end && data[offset] != ESCAPE ) {
+			int b = data[offset] & 0xFF;
+			if ( b == ' ' ) {
+				chars[length++] = ' ';
+				offset++;
+				runLength--;
+				spaces--;
+				continue;
+			}
+			if ( b >= 0x80 ) {
+				if ( g1 == EACC ) {
+					return false;
+				}
+				// marc4j appends whatever the lookup returns, even nothing at all
+				chars[length++] = Tables.charFor(g1, b);
+				offset++;
+				runLength--;
+				continue;
+			}
+			if ( ( runLength - spaces ) % 3 != 0 || offset + 3 > end || data[offset + 1] == ' ' || data[offset + 2] == ' ' ) {
+				return false;
+			}
+			char c = Tables.eaccChar( multibyteCode( (char)b, (char)( data[offset + 1] & 0xFF ), (char)( data[offset + 2] & 0xFF ) ) );
+			if ( c == 0 ) {
+				return false;
+			}
+			chars[length++] = c;
+			offset += 3;
+			runLength -= 3;
+		}
+		return true;
+	}
+
+	/**
+	 * Looks up the character at the current offset in G0 or G1 and advances past it.
+	 * @return the character, 0 if it has no mapping, or -1 if the element must be rejected.
+	 */
+	private int nextChar() {
+		int b = data[offset] & 0xFF;
+		int set = b <= 126 ? g0 : g1;
+		if ( set == EACC ) {
+			return -1;
+		}
+		char c = Tables.charFor(set, b);
+		if ( c == '&' && offset + 1 < end && data[offset + 1] == '#' ) {
+			// looks like a numeric character reference
+			return -1;
+		}
+		offset++;
+		return c;
+	}
+
+	private boolean isCombining(int b) {
+		return Tables.isCombining(b <= 126 ? g0 : g1, b);
+	}
+
+	private boolean hasNext() {
+		return offset < end - 1;
+	}
+
+	private void appendPlaceholder(int b) {
+		String hex = Integer.toHexString(b);
+		chars[length++] = '<';
+		chars[length++] = 'U';
+		chars[length++] = '+';
+		for( int i = hex.length(); i < 4; i++ ) {
+			chars[length++] = '0';
+		}
+		for( int i = 0; i < hex.length(); i++ ) {
+			chars[length++] = hex.charAt(i);
+		}
+		chars[length++] = '>';
+	}
+
+	private boolean isEntity(int start) {
+		int i = start;
+		while ( i < length && chars[i] >= 'a' && chars[i] <= 'z' ) {
+			i++;
+		}
+		return i < length && chars[i] == ';';
+	}
+
+	/**
+	 * Combines three bytes into a multibyte character code the way <code>AnselToUnicode.makeMultibyte</code> does.
+	 */
+	private static int multibyteCode(char c1, char c2, char c3) {
+		return ( c1 << 16 ) | ( c2 << 8 ) | c3;
+	}
+
+	/**
+	 * The character set tables, built from marc4j's code table on first use.
+	 */
+	private static class Tables {
+
+		// single-byte sets indexed by character set code, then by byte
+		private static final char[][] CHARS = new char[128][];
+
+		private static final boolean[][] COMBINING = new boolean[128][];
+
+		// open-addressed EACC table; codes are never 0, so 0 marks an empty slot
+		private static final int[] EACC_CODES;
+
+		private static final char[] EACC_CHARS;
+
+		private static final int EACC_MASK;
+
+		static {
+			CodeTableHandler handler = new CodeTableHandler();
+			try( InputStream xml = AnselToUnicode.class.getResourceAsStream("resources/codetables.xml") ) {
+				SAXParserFactory factory = SAXParserFactory.newInstance();
+				factory.setNamespaceAware(true);
+				factory.setValidating(false);
+				XMLReader reader = factory.newSAXParser().getXMLReader();
+				reader.setContentHandler(handler);
+				reader.parse( new InputSource(xml) );
+			} catch( Exception e ) {
+				throw new MarcException("Unable to load MARC-8 code tables", e);
+			}
+			HashMap<Integer, HashMap<Integer, Character>> charsets = handler.getCharSets();
+			HashMap<Integer, Vector<Integer>> combining = handler.getCombiningChars();
+			for( int set = 0; set < CHARS.length; set++ ) {
+				HashMap<Integer, Character> charset = charsets.get(set);
+				if ( charset == null || set == EACC ) {
+					continue;
+				}
+				// same lookup rules as CodeTable.getChar: try the byte, then the byte in the other half of the table
+				CHARS[set] = new char[256];
+				COMBINING[set] = new boolean[256];
+				for( int b = 0; b < 256; b++ ) {
+					Character c = charset.get(b);
+					if ( c == null ) {
+						c = charset.get( b < 128 ? b + 128 : b - 128 );
+					}
+					CHARS[set][b] = b == ' ' ? ' ' : c == null ? 0 : c.charValue();
+				}
+				Vector<Integer> combiningChars = combining.get(set);
+				if ( combiningChars != null ) {
+					for( Integer b : combiningChars ) {
+						if ( b >= 0 && b < 256 ) {
+							COMBINING[set][b] = true;
+						}
+					}
+				}
+			}
+			HashMap<Integer, Character> eacc = charsets.get(EACC);
+			int capacity = Integer.highestOneBit( Math.max(16, eacc.size() * 3) );
+			EACC_CODES = new int[capacity];
+			EACC_CHARS = new char[capacity];
+			EACC_MASK = capacity - 1;
+			for( Map.Entry<Integer, Character> entry : eacc.entrySet() ) {
+				int slot = slot(entry.getKey());
+				while ( EACC_CODES[slot] != 0 ) {
+					slot = ( slot + 1 ) & EACC_MASK;
+				}
+				EACC_CODES[slot] = entry.getKey();
+				EACC_CHARS[slot] = entry.getValue();
+			}
+		}
+
+		static char charFor(int set, int b) {
+			char[] table = set < CHARS.length ? CHARS[set] : null;
+			// like CodeTable, an unknown character set passes bytes through unchanged
+			return table == null ? (char)b : table[b];
+		}
+
+		static boolean isCombining(int set, int b) {
+			boolean[] table = set < COMBINING.length ? COMBINING[set] : null;
+			return table != null && table[b];
+		}
+
+		static char eaccChar(int code) {
+			char c = lookup(code);
+			if ( c == 0 ) {
+				c = lookup( code < 128 ? code + 128 : code - 128 );
+			}
+			return c;
+		}
+
+		private static char lookup(int code) {
+			int slot = slot(code);
+			while ( EACC_CODES[slot] != 0 ) {
+				if ( EACC_CODES[slot] == code ) {
+					return EACC_CHARS[slot];
+				}
+				slot = ( slot + 1 ) & EACC_MASK;
+			}
+			return 0;
+		}
+
+		private static int slot(int code) {
+			int hash = code * 0x9E3779B1;
+			return ( hash ^ ( hash >>> 16 ) ) & EACC_MASK;
+		}
+	}
+}
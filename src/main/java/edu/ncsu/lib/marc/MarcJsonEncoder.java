@@ -0,0 +1,635 @@
+package edu.ncsu.lib.marc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.marc4j.MarcJsonWriter;
+
+/**
+ * Encodes raw MARC21 records directly to the <code>MarcJsonWriter.MARC_JSON</code> or <code>MARC_IN_JSON</code>
+ * format, without building a marc4j <code>Record</code> or any intermediate <code>String</code>s.
+ * <p>
+ *  The encoder only accepts records it can reproduce exactly: for every record it accepts, the output is byte-identical
+ *  to what <code>MarcPermissiveStreamReader</code> (in permissive, convert-to-UTF-8 mode) followed by
+ *  <code>MarcJsonWriter</code> would produce.  In practice that means well-formed records containing none of the oddities
+ *  the permissive reader would try to repair (HTML character entities, invalid subfield codes, directory entries that
+ *  don't match the field data and so on), in one of two encodings:
+ * </p>
+ * <ul>
+ *  <li>Unicode: records flagged as Unicode (leader position 9 = <code>a</code>), and unflagged records without MARC-8
+ *  escape sequences, that contain strictly valid UTF-8.  These are copied through without any character conversion.</li>
+ *  <li>MARC-8: unflagged records containing MARC-8 escape sequences, which the permissive reader always treats as MARC-8.
+ *  These are converted with a {@link Marc8Decoder}.</li>
+ * </ul>
+ * <p>
+ *  Anything else (including unflagged records with high-bit characters but no escapes, which marc4j tries decoding
+ *  several ways before picking one) is rejected, and callers are expected to fall back to the marc4j path.
+ *  {@link #getPath()} reports which of the paths was taken for the most recent record.
+ * </p>
+ * <p>
+ *  Validation, UTF-8 decoding and JSON escaping are done in a single pass over the record bytes.  Output is accumulated
+ *  in a buffer owned by the encoder and reused from record to record, so a warmed-up encoder does not allocate.
+ *  Instances are not thread-safe.
+ * </p>
+ */
+public class MarcJsonEncoder {
+
+	private static final byte[] HEX = ascii("0123456789abcdef");
+
+	private static final byte[] RECORD_START = ascii("{leader:\"");
+
+	private static final byte[] CONTROL_FIELDS_START = ascii("\",controlfield:[");
+
+	private static final byte[] CONTROL_FIELD_START = ascii("{ tag : \"");
+
+	private static final byte[] CONTROL_FIELD_DATA = ascii("\", data : \"");
+
+	private static final byte[] FIELD_END = ascii("\" }");
+
+	private static final byte[] DATA_FIELDS_START = ascii("]datafield :[");
+
+	private static final byte[] DATA_FIELD_START = ascii("{tag : \"");
+
+	private static final byte[] DATA_FIELD_INDICATORS = ascii("\", ind : \"");
+
+	private static final byte[] SUBFIELDS_START = ascii("\",subfield :[");
+
+	private static final byte[] SUBFIELD_START = ascii("{ code : \"");
+
+	private static final byte[] DATA_FIELD_END = ascii("]}");
+
+	private static final byte[] RECORD_END = ascii("]}\n");
+
+	// MARC_IN_JSON: control and data fields share one array, and indicators follow the subfields
+	private static final byte[] IN_JSON_RECORD_START = ascii("{\"leader\":\"");
+
+	private static final byte[] IN_JSON_FIELDS_START = ascii("\",\"fields\":[");
+
+	private static final byte[] IN_JSON_FIELD_START = ascii("{\"");
+
+	private static final byte[] IN_JSON_FIELD_DATA = ascii("\":\"");
+
+	private static final byte[] IN_JSON_FIELD_END = ascii("\"}");
+
+	private static final byte[] IN_JSON_SUBFIELDS_START = ascii("\":{\"subfields\":[");
+
+	private static final byte[] IN_JSON_INDICATOR_1 = ascii("],\"ind1\":\"");
+
+	private static final byte[] IN_JSON_INDICATOR_2 = ascii("\",\"ind2\":\"");
+
+	private static final byte[] IN_JSON_DATA_FIELD_END = ascii("\"}}");
+
+	private static final byte ESCAPE = 0x1B;
+
+	// characters that can follow ESC in a MARC-8 escape sequence, as recognised by the permissive reader
+	private static final String ESCAPE_SEQUENCE_CHARACTERS = "-(,)$bsp";
+
+	private final Marc8Decoder marc8 = new Marc8Decoder();
+
+	// whether to write MARC_IN_JSON rather than MARC_JSON
+	private final boolean marcInJson;
+
+	// the conversion path taken by the record being encoded
+	private ConversionStatistics.Path path = ConversionStatistics.Path.MARC4J;
+
+	private byte[] buffer = new byte[16 * 1024];
+
+	private int length = 0;
+
+	// per-field scratch space, reused between records
+	private int[] fieldStarts = new int[64];
+
+	private int[] fieldEnds = new int[64];
+
+	private int fieldCount = 0;
+
+	// offset of the leader of the record being encoded
+	private int recordOffset = 0;
+
+	/**
+	 * Creates an encoder for the <code>MarcJsonWriter.MARC_JSON</code> format.
+	 */
+	public MarcJsonEncoder() {
+		this(MarcJsonWriter.MARC_JSON);
+	}
+
+	/**
+	 * Creates an encoder for one of marc4j's JSON formats.
+	 * @param format <code>MarcJsonWriter.MARC_JSON</code>, or <code>MarcJsonWriter.MARC_IN_JSON</code>, which unlike
+	 *   <code>MARC_JSON</code> is strict JSON.
+	 */
+	public MarcJsonEncoder(int format) {
+		if ( format != MarcJsonWriter.MARC_JSON && format != MarcJsonWriter.MARC_IN_JSON ) {
+			throw new IllegalArgumentException("Unknown JSON format: " + format);
+		}
+		this.marcInJson = format == MarcJsonWriter.MARC_IN_JSON;
+	}
+
+	/**
+	 * Encodes a complete raw record.
+	 * @param record the record bytes, including leader and terminator.
+	 * @return <code>true</code> if the record was encoded, <code>false</code> if it must be handled by the marc4j path.
+	 */
+	public boolean encode(byte[] record) {
+		return encode(record, 0, record.length);
+	}
+
+	/**
+	 * Encodes a raw record held in part of a larger buffer.  On success the encoded record can be retrieved with
+	 * {@link #writeTo(OutputStream)}, {@link #getBuffer()} and {@link #getLength()}; on failure the encoder's output is
+	 * empty.
+	 * @param data the buffer containing the record.
+	 * @param offset the offset of the record's leader in <code>data</code>.
+	 * @param count the length of the record, including its terminator.
+	 * @return <code>true</code> if the record was encoded, <code>false</code> if it must be handled by the marc4j path.
+	 */
+	public boolean encode(byte[] data, int offset, int count) {
+		length = 0;
+		if ( !parseStructure(data, offset, count) ) {
+			return reject();
+		}
+		// worst case: every data byte becomes a six byte \\u escape, plus the per-field boilerplate
+		ensureCapacity( 6 * count + 48 * fieldCount + 64 );
+
+		append(marcInJson ? IN_JSON_RECORD_START : RECORD_START);
+		System.arraycopy(data, offset, buffer, length, RawRecordReader.LEADER_LENGTH);
+		// marc4j flags everything it converts as Unicode
+		buffer[length + 9] = 'a';
+		length += RawRecordReader.LEADER_LENGTH;
+		append(marcInJson ? IN_JSON_FIELDS_START : CONTROL_FIELDS_START);
+
+		// marc4j always moves the 001 to the front of the control fields
+		boolean first = true;
+		int controlNumber = -1;
+		for( int i = 0; i < fieldCount; i++ ) {
+			if ( isControlField(data, i) && isTag(data, i, '0', '0', '1') ) {
+				if ( controlNumber >= 0 ) {
+					// marc4j keeps only the last of several 001s
+					return reject();
+				}
+				controlNumber = i;
+			}
+		}
+		if ( controlNumber >= 0 ) {
+			if ( !appendControlField(data, controlNumber) ) {
+				return reject();
+			}
+			first = false;
+		}
+		for( int i = 0; i < fieldCount; i++ ) {
+			if ( i == controlNumber || !isControlField(data, i) ) {
+				continue;
+			}
+			if ( !first ) {
+				buffer[length++] = ',';
+			}
+			first = false;
+			if ( !appendControlField(data, i) ) {
+				return reject();
+			}
+		}
+
+		if ( !marcInJson ) {
+			append(DATA_FIELDS_START);
+			first = true;
+		}
+		for( int i = 0; i < fieldCount; i++ ) {
+			if ( isControlField(data, i) ) {
+				continue;
+			}
+			if ( !first ) {
+				buffer[length++] = ',';
+			}
+			first = false;
+			if ( !appendDataField(data, i) ) {
+				return reject();
+			}
+		}
+		append(RECORD_END);
+		return true;
+	}
+
+	/**
+	 * Writes the most recently encoded record.
+	 * @param output the destination.
+	 * @throws IOException if an error is encountered writing to <code>output</code>.
+	 */
+	public void writeTo(OutputStream output) throws IOException {
+		output.write(buffer, 0, length);
+	}
+
+	/**
+	 * Gets the buffer holding the most recently encoded record.  The buffer is reused by the next call to
+	 * <code>encode</code>.
+	 * @return
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Gets the length of the most recently encoded record.
+	 * @return
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Gets the conversion path taken by the most recently encoded record: {@link ConversionStatistics.Path#UNICODE} or
+	 * {@link ConversionStatistics.Path#MARC8} if it was encoded, or {@link ConversionStatistics.Path#MARC4J} if it was
+	 * rejected.
+	 * @return
+	 */
+	public ConversionStatistics.Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Validates the leader, directory and overall layout of a record, and records the location of each field.
+	 */
+	private boolean parseStructure(byte[] data, int offset, int count) {
+		int end = offset + count;
+		recordOffset = offset;
+		fieldCount = 0;
+		if ( count <= RawRecordReader.LEADER_LENGTH + 1 || data[end - 1] != RawRecordReader.RECORD_TERMINATOR ) {
+			return false;
+		}
+		if ( RawRecordReader.parseLength(data, offset) != count ) {
+			return false;
+		}
+		for( int i = offset; i < offset + RawRecordReader.LEADER_LENGTH; i++ ) {
+			if ( data[i] < 0x20 || data[i] > 0x7E ) {
+				return false;
+			}
+		}
+		// the indicator count, subfield code length, base address and entry map must all be numeric
+		if ( !isDigits(data, offset + 10, 2) || !isDigits(data, offset + 20, 4) ) {
+			return false;
+		}
+		int baseAddress = parseNumber(data, offset + 12, 5);
+		int directoryLength = baseAddress - RawRecordReader.LEADER_LENGTH - 1;
+		if ( baseAddress < 0 || baseAddress >= count || directoryLength < 0 || directoryLength % 12 != 0
+				|| data[offset + baseAddress - 1] != RawRecordReader.FIELD_TERMINATOR ) {
+			return false;
+		}
+		// records not flagged as Unicode are MARC-8 if they contain an escape sequence, and otherwise must be ASCII or UTF-8
+		boolean escapes = false;
+		for( int i = offset + RawRecordReader.LEADER_LENGTH; i < end; i++ ) {
+			byte b = data[i];
+			if ( b == ESCAPE ) {
+				if ( data[offset + 9] == 'a' ) {
+					// the permissive reader second-guesses Unicode records containing escapes
+					return false;
+				}
+				escapes |= ESCAPE_SEQUENCE_CHARACTERS.indexOf(data[i + 1]) != -1;
+			}
+			if ( b == '$' && i > offset && data[i - 1] == 'a' && i + 2 < end && data[i + 1] == '1' && data[i + 2] == '!' ) {
+				// ... and this broken MARC-8 sequence
+				return false;
+			}
+		}
+		if ( escapes ) {
+			path = ConversionStatistics.Path.MARC8;
+		} else {
+			for( int i = offset + RawRecordReader.LEADER_LENGTH; i < end; i++ ) {
+				if ( data[i] == ESCAPE ) {
+					return false;
+				}
+			}
+			path = ConversionStatistics.Path.UNICODE;
+		}
+		fieldCount = directoryLength / 12;
+		if ( fieldStarts.length < fieldCount ) {
+			fieldStarts = new int[fieldCount * 2];
+			fieldEnds = new int[fieldCount * 2];
+		}
+		// fields are read back to back in directory order, so the directory must describe exactly that layout
+		int position = offset + baseAddress;
+		for( int i = 0; i < fieldCount; i++ ) {
+			int entry = offset + RawRecordReader.LEADER_LENGTH + i * 12;
+			for( int t = entry; t < entry + 3; t++ ) {
+				if ( data[t] < 0x20 || data[t] > 0x7E ) {
+					return false;
+				}
+			}
+			int fieldLength = parseNumber(data, entry + 3, 4);
+			int fieldStart = parseNumber(data, entry + 7, 5);
+			if ( fieldLength < 1 || offset + baseAddress + fieldStart != position || position + fieldLength >= end ) {
+				return false;
+			}
+			int fieldEnd = position + fieldLength - 1;
+			for( int p = position; p < fieldEnd; p++ ) {
+				if ( data[p] == RawRecordReader.FIELD_TERMINATOR ) {
+					return false;
+				}
+			}
+			if ( data[fieldEnd] != RawRecordReader.FIELD_TERMINATOR ) {
+				return false;
+			}
+			fieldStarts[i] = position;
+			fieldEnds[i] = fieldEnd;
+			position = fieldEnd + 1;
+		}
+		return position == end - 1;
+	}
+
+	private boolean appendControlField(byte[] data, int field) {
+		append(marcInJson ? IN_JSON_FIELD_START : CONTROL_FIELD_START);
+		appendTag(data, field);
+		append(marcInJson ? IN_JSON_FIELD_DATA : CONTROL_FIELD_DATA);
+		if ( !appendData(data, fieldStarts[field], fieldEnds[field]) ) {
+			return false;
+		}
+		append(marcInJson ? IN_JSON_FIELD_END : FIELD_END);
+		return true;
+	}
+
+	private boolean appendDataField(byte[] data, int field) {
+		int pos = fieldStarts[field];
+		int end = fieldEnds[field];
+		if ( end - pos < 2 || data[pos] < 0x20 || data[pos] > 0x7E || data[pos + 1] < 0x20 || data[pos + 1] > 0x7E ) {
+			return false;
+		}
+		if ( path == ConversionStatistics.Path.MARC8 && !Marc8Decoder.isUnchangedByRepair(data, pos, end) ) {
+			return false;
+		}
+		final byte indicator1 = data[pos];
+		final byte indicator2 = data[pos + 1];
+		if ( marcInJson ) {
+			append(IN_JSON_FIELD_START);
+			appendTag(data, field);
+			append(IN_JSON_SUBFIELDS_START);
+		} else {
+			append(DATA_FIELD_START);
+			appendTag(data, field);
+			append(DATA_FIELD_INDICATORS);
+			buffer[length++] = indicator1;
+			buffer[length++] = indicator2;
+			append(SUBFIELDS_START);
+		}
+		pos += 2;
+		if ( pos < end && data[pos] != RawRecordReader.SUBFIELD_DELIMITER ) {
+			// marc4j silently drops data ahead of the first delimiter
+			return false;
+		}
+		boolean first = true;
+		while ( pos < end ) {
+			// data[pos] is a delimiter
+			if ( pos + 1 == end ) {
+				// a trailing delimiter is ignored
+				break;
+			}
+			byte code = data[pos + 1];
+			if ( !( code >= 'a' && code <= 'z' ) && !( code >= '0' && code <= '9' ) ) {
+				return false;
+			}
+			int subfieldStart = pos + 2;
+			int subfieldEnd = subfieldStart;
+			while ( subfieldEnd < end && data[subfieldEnd] != RawRecordReader.SUBFIELD_DELIMITER ) {
+				subfieldEnd++;
+			}
+			// zero-length subfields are dropped by the permissive reader
+			if ( subfieldEnd > subfieldStart ) {
+				if ( !first ) {
+					buffer[length++] = ',';
+				}
+				first = false;
+				append(marcInJson ? IN_JSON_FIELD_START : SUBFIELD_START);
+				buffer[length++] = code;
+				append(marcInJson ? IN_JSON_FIELD_DATA : CONTROL_FIELD_DATA);
+				if ( !appendData(data, subfieldStart, subfieldEnd) ) {
+					return false;
+				}
+				append(marcInJson ? IN_JSON_FIELD_END : FIELD_END);
+			}
+			pos = subfieldEnd;
+		}
+		if ( marcInJson ) {
+			append(IN_JSON_INDICATOR_1);
+			buffer[length++] = indicator1;
+			append(IN_JSON_INDICATOR_2);
+			buffer[length++] = indicator2;
+			append(IN_JSON_DATA_FIELD_END);
+		} else {
+			append(DATA_FIELD_END);
+		}
+		return true;
+	}
+
+	/**
+	 * Appends a data element, converting it from MARC-8 if the record is MARC-8 encoded.
+	 */
+	private boolean appendData(byte[] data, int start, int end) {
+		if ( path != ConversionStatistics.Path.MARC8 ) {
+			return appendEscaped(data, start, end);
+		}
+		if ( !marc8.decode(data, start, end) ) {
+			return false;
+		}
+		char[] chars = marc8.getChars();
+		int count = marc8.getLength();
+		// a MARC-8 byte can turn into as many as eight characters
+		ensureCapacity( length + 6 * count + 64 );
+		for( int i = 0; i < count; i++ ) {
+			char c = chars[i];
+			if ( c < 0x80 ) {
+				appendAscii(c);
+			} else if ( c <= 0xFF ) {
+				buffer[length++] = (byte)( 0xC0 | ( c >> 6 ) );
+				buffer[length++] = (byte)( 0x80 | ( c & 0x3F ) );
+			} else {
+				appendUnicodeEscape(c);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Decodes a UTF-8 data element and appends it with the same escaping rules as <code>MarcJsonWriter</code>: the JSON
+	 * short escapes, <code>\\u</code> escapes for characters below U+001F or above U+00FF, and everything else as UTF-8.
+	 * @return <code>false</code> if the element is not strictly valid UTF-8, or contains something that looks like an HTML
+	 * character entity (which the permissive reader would unescape).
+	 */
+	private boolean appendEscaped(byte[] data, int start, int end) {
+		int i = start;
+		while ( i < end ) {
+			int b = data[i] & 0xFF;
+			if ( b < 0x80 ) {
+				if ( b == '&' && isEntity(data, i + 1, end) ) {
+					return false;
+				}
+				appendAscii(b);
+				i++;
+			} else if ( b >= 0xC2 && b <= 0xDF ) {
+				if ( i + 1 >= end || !isContinuation(data[i + 1]) ) {
+					return false;
+				}
+				int cp = ( ( b & 0x1F ) << 6 ) | ( data[i + 1] & 0x3F );
+				if ( cp <= 0xFF ) {
+					buffer[length++] = data[i];
+					buffer[length++] = data[i + 1];
+				} else {
+					appendUnicodeEscape(cp);
+				}
+				i += 2;
+			} else if ( b >= 0xE0 && b <= 0xEF ) {
+				if ( i + 2 >= end || !isContinuation(data[i + 1]) || !isContinuation(data[i + 2]) ) {
+					return false;
+				}
+				int second = data[i + 1] & 0xFF;
+				// reject overlong encodings and encoded surrogates
+				if ( ( b == 0xE0 && second < 0xA0 ) || ( b == 0xED && second >= 0xA0 ) ) {
+					return false;
+				}
+				appendUnicodeEscape( ( ( b & 0x0F ) << 12 ) | ( ( second & 0x3F ) << 6 ) | ( data[i + 2] & 0x3F ) );
+				i += 3;
+			} else if ( b >= 0xF0 && b <= 0xF4 ) {
+				if ( i + 3 >= end || !isContinuation(data[i + 1]) || !isContinuation(data[i + 2]) || !isContinuation(data[i + 3]) ) {
+					return false;
+				}
+				int second = data[i + 1] & 0xFF;
+				if ( ( b == 0xF0 && second < 0x90 ) || ( b == 0xF4 && second >= 0x90 ) ) {
+					return false;
+				}
+				int cp = ( ( b & 0x07 ) << 18 ) | ( ( second & 0x3F ) << 12 ) | ( ( data[i + 2] & 0x3F ) << 6 ) | ( data[i + 3] & 0x3F );
+				// escaped as a UTF-16 surrogate pair, one char at a time
+				appendUnicodeEscape( Character.highSurrogate(cp) );
+				appendUnicodeEscape( Character.lowSurrogate(cp) );
+				i += 4;
+			} else {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks for the <code>&amp;name;</code> pattern that <code>MarcPermissiveStreamReader</code> looks for before
+	 * unescaping HTML entities.
+	 * @param start the position following the ampersand.
+	 */
+	private static boolean isEntity(byte[] data, int start, int end) {
+		int i = start;
+		while ( i < end && data[i] >= 'a' && data[i] <= 'z' ) {
+			i++;
+		}
+		return i < end && data[i] == ';';
+	}
+
+	/**
+	 * Appends an ASCII character, escaped the way <code>MarcJsonWriter</code> does.
+	 */
+	private void appendAscii(int c) {
+		switch( c ) {
+			case '"':
+				buffer[length++] = '\\';
+				buffer[length++] = '"';
+				break;
+			case '\\':
+				buffer[length++] = '\\';
+				buffer[length++] = '\\';
+				break;
+			case '\b':
+				buffer[length++] = '\\';
+				buffer[length++] = 'b';
+				break;
+			case '\f':
+				buffer[length++] = '\\';
+				buffer[length++] = 'f';
+				break;
+			case '\n':
+				buffer[length++] = '\\';
+				buffer[length++] = 'n';
+				break;
+			case '\r':
+				buffer[length++] = '\\';
+				buffer[length++] = 'r';
+				break;
+			case '\t':
+				buffer[length++] = '\\';
+				buffer[length++] = 't';
+				break;
+			default:
+				if ( c < 0x1F ) {
+					appendUnicodeEscape(c);
+				} else {
+					buffer[length++] = (byte)c;
+				}
+		}
+	}
+
+	private void appendUnicodeEscape(int c) {
+		buffer[length++] = '\\';
+		buffer[length++] = 'u';
+		buffer[length++] = HEX[( c >> 12 ) & 0xF];
+		buffer[length++] = HEX[( c >> 8 ) & 0xF];
+		buffer[length++] = HEX[( c >> 4 ) & 0xF];
+		buffer[length++] = HEX[c & 0xF];
+	}
+
+	private void appendTag(byte[] data, int field) {
+		System.arraycopy(data, tagPosition(field), buffer, length, 3);
+		length += 3;
+	}
+
+	private void append(byte[] bytes) {
+		System.arraycopy(bytes, 0, buffer, length, bytes.length);
+		length += bytes.length;
+	}
+
+	private boolean reject() {
+		length = 0;
+		path = ConversionStatistics.Path.MARC4J;
+		return false;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if ( buffer.length < capacity ) {
+			buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+		}
+	}
+
+	/**
+	 * Gets the position of a field's tag in the directory.
+	 */
+	private int tagPosition(int field) {
+		return recordOffset + RawRecordReader.LEADER_LENGTH + field * 12;
+	}
+
+	private boolean isControlField(byte[] data, int field) {
+		int tag = tagPosition(field);
+		return data[tag] == '0' && data[tag + 1] == '0' && data[tag + 2] >= '1' && data[tag + 2] <= '9';
+	}
+
+	private boolean isTag(byte[] data, int field, char c1, char c2, char c3) {
+		int tag = tagPosition(field);
+		return data[tag] == c1 && data[tag + 1] == c2 && data[tag + 2] == c3;
+	}
+
+	private static boolean isContinuation(byte b) {
+		return ( b & 0xC0 ) == 0x80;
+	}
+
+	private static boolean isDigits(byte[] data, int start, int count) {
+		return parseNumber(data, start, count) >= 0;
+	}
+
+	private static int parseNumber(byte[] data, int start, int digits) {
+		int value = 0;
+		for( int i = start; i < start + digits; i++ ) {
+			int digit = data[i] - '0';
+			if ( digit < 0 || digit > 9 ) {
+				return -1;
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,246 @@
+package edu.ncsu.lib.marc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.marc4j.MarcException;
+import org.marc4j.converter.CharConverter;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.Leader;
+import org.marc4j.marc.MarcFactory;
+import org.marc4j.marc.Record;
+
+/**
+ * A lightweight, read-only view of a single MARC21 record over its raw bytes.
+ * <p>
+ *  The leader and directory are parsed (and validated) when the view is created, but field data is left undecoded until it
+ *  is asked for.  Combined with a {@link FieldProjection}, this means a consumer that only needs a handful of fields never
+ *  pays for decoding, or allocating objects for, the rest of the record.
+ * </p>
+ * <p>
+ *  Field data is decoded as UTF-8 when leader position 9 is <code>a</code>, and otherwise with the supplied MARC-8
+ *  <code>CharConverter</code>.  Unlike <code>MarcPermissiveStreamReader</code>, this class makes no attempt to repair
+ *  damaged records: anything it can't parse is rejected with a <code>MarcException</code>, so callers can fall back to
+ *  the permissive reader for those records.
+ * </p>
+ */
+public class MarcRecordView {
+
+	private static final int DIRECTORY_ENTRY_LENGTH = 12;
+
+	private final byte[] data;
+
+	private final int offset;
+
+	private final int length;
+
+	// numeric tag values, or -1 for non-numeric tags
+	private final int[] tags;
+
+	// absolute offsets (into data) of the start of each field
+	private final int[] starts;
+
+	// field lengths, excluding the field terminator
+	private final int[] lengths;
+
+	/**
+	 * Creates a view over a complete record.
+	 * @param data the raw record, including its leader and terminator.
+	 * @throws MarcException if the leader or directory are malformed.
+	 */
+	public MarcRecordView(byte[] data) {
+		this(data, 0, data.length);
+	}
+
+	/**
+	 * Creates a view over a record held in part of a larger buffer.
+	 * @param data a buffer containing the raw record.
+	 * @param offset the offset of the record's leader in <code>data</code>.
+	 * @param length the length of the record, including its terminator.
+	 * @throws MarcException if the leader or directory are malformed.
+	 */
+	public MarcRecordView(byte[] data, int offset, int length) {
+		this.data = data;
+		this.offset = offset;
+		this.length = length;
+		if ( length <= RawRecordReader.LEADER_LENGTH || data[offset + length - 1] != RawRecordReader.RECORD_TERMINATOR ) {
+			throw new MarcException("Record is truncated or missing its terminator");
+		}
+		int baseAddress = parseNumber(offset + 12, 5);
+		int directoryLength = baseAddress - RawRecordReader.LEADER_LENGTH - 1;
+		if ( baseAddress < 0 || baseAddress >= length || directoryLength % DIRECTORY_ENTRY_LENGTH != 0
+				|| data[offset + baseAddress - 1] != RawRecordReader.FIELD_TERMINATOR ) {
+			throw new MarcException("Invalid base address of data in leader");
+		}
+		int size = directoryLength / DIRECTORY_ENTRY_LENGTH;
+		tags = new int[size];
+		starts = new int[size];
+		lengths = new int[size];
+		int dataStart = offset + baseAddress;
+		int dataEnd = offset + length - 1;
+		for( int i = 0; i < size; i++ ) {
+			int entry = offset + RawRecordReader.LEADER_LENGTH + i * DIRECTORY_ENTRY_LENGTH;
+			tags[i] = parseNumber(entry, 3);
+			int fieldLength = parseNumber(entry + 3, 4);
+			int fieldStart = parseNumber(entry + 7, 5);
+			if ( fieldLength < 1 || fieldStart < 0 || dataStart + fieldStart + fieldLength > dataEnd
+					|| data[dataStart + fieldStart + fieldLength - 1] != RawRecordReader.FIELD_TERMINATOR ) {
+				throw new MarcException("Invalid directory entry " + i);
+			}
+			starts[i] = dataStart + fieldStart;
+			lengths[i] = fieldLength - 1;
+		}
+	}
+
+	/**
+	 * Gets the record's leader.
+	 * @return
+	 */
+	public String getLeader() {
+		return new String(data, offset, RawRecordReader.LEADER_LENGTH, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Gets the character coding scheme from leader position 9; <code>a</code> indicates UCS/Unicode.
+	 * @return
+	 */
+	public char getCharCodingScheme() {
+		return (char)( data[offset + 9] & 0xFF );
+	}
+
+	/**
+	 * Gets the number of fields in the record.
+	 * @return
+	 */
+	public int getFieldCount() {
+		return tags.length;
+	}
+
+	/**
+	 * Gets the tag of a field.
+	 * @param field the index of the field in the directory.
+	 * @return
+	 */
+	public String getTag(int field) {
+		return new String(data, directoryEntry(field), 3, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Gets the numeric value of a field's tag.
+	 * @param field the index of the field in the directory.
+	 * @return the tag, or -1 if the tag is not numeric.
+	 */
+	public int getTagValue(int field) {
+		return tags[field];
+	}
+
+	/**
+	 * Checks whether a field is a control field (tags 001 through 009), which has data but no indicators or subfields.
+	 * @param field the index of the field in the directory.
+	 * @return
+	 */
+	public boolean isControlField(int field) {
+		return tags[field] >= 1 && tags[field] <= 9;
+	}
+
+	/**
+	 * Gets the data of a control field.
+	 * @param field the index of the field in the directory.
+	 * @param marc8 the converter to use for records that are not flagged as Unicode.
+	 * @return
+	 */
+	public String getData(int field, CharConverter marc8) {
+		return decode(starts[field], lengths[field], marc8);
+	}
+
+	/**
+	 * Gets the record's control number (001), without decoding any other field.
+	 * @return the control number, or <code>null</code> if the record has no 001.
+	 */
+	public String getControlNumber() {
+		for( int i = 0; i < tags.length; i++ ) {
+			if ( tags[i] == 1 && isControlField(i) ) {
+				// control numbers are ASCII in practice, so no converter is needed
+				return new String(data, starts[i], lengths[i], StandardCharsets.UTF_8);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Builds a marc4j record containing only the fields and subfields selected by a projection.  Fields that are not
+	 * selected are never decoded.  Data fields for which no subfields are selected are omitted.
+	 * @param projection the fields and subfields to include.
+	 * @param factory the factory used to create the record and its fields.
+	 * @param marc8 the converter to use for records that are not flagged as Unicode.
+	 * @return a new record whose leader indicates Unicode encoding.
+	 */
+	public Record toRecord(FieldProjection projection, MarcFactory factory, CharConverter marc8) {
+		Leader leader = factory.newLeader(getLeader());
+		leader.setCharCodingScheme('a');
+		Record record = factory.newRecord(leader);
+		for( int i = 0; i < tags.length; i++ ) {
+			int tag = tags[i];
+			if ( !projection.includesTag(tag) ) {
+				continue;
+			}
+			if ( isControlField(i) ) {
+				record.addVariableField( factory.newControlField(getTag(i), getData(i, marc8)) );
+				continue;
+			}
+			int start = starts[i];
+			int end = start + lengths[i];
+			if ( lengths[i] < 2 ) {
+				continue;
+			}
+			DataField field = factory.newDataField(getTag(i), (char)( data[start] & 0xFF ), (char)( data[start + 1] & 0xFF ));
+			int pos = start + 2;
+			// bytes ahead of the first delimiter are not part of any subfield
+			while ( pos < end && data[pos] != RawRecordReader.SUBFIELD_DELIMITER ) {
+				pos++;
+			}
+			while ( pos + 1 < end ) {
+				int code = data[pos + 1] & 0xFF;
+				int subfieldStart = pos + 2;
+				int subfieldEnd = subfieldStart;
+				while ( subfieldEnd < end && data[subfieldEnd] != RawRecordReader.SUBFIELD_DELIMITER ) {
+					subfieldEnd++;
+				}
+				if ( subfieldEnd > subfieldStart && projection.includesSubfield(tag, code) ) {
+					field.addSubfield( factory.newSubfield((char)code, decode(subfieldStart, subfieldEnd - subfieldStart, marc8)) );
+				}
+				pos = subfieldEnd;
+			}
+			if ( !field.getSubfields().isEmpty() ) {
+				record.addVariableField(field);
+			}
+		}
+		return record;
+	}
+
+	private int directoryEntry(int field) {
+		return offset + RawRecordReader.LEADER_LENGTH + field * DIRECTORY_ENTRY_LENGTH;
+	}
+
+	private String decode(int start, int count, CharConverter marc8) {
+		if ( getCharCodingScheme() == 'a' || marc8 == null ) {
+			return new String(data, start, count, StandardCharsets.UTF_8);
+		}
+		return marc8.convert( Arrays.copyOfRange(data, start, start + count) );
+	}
+
+	private int parseNumber(int start, int digits) {
+		if ( start + digits > offset + length ) {
+			return -1;
+		}
+		int value = 0;
+		for( int i = start; i < start + digits; i++ ) {
+			int digit = data[i] - '0';
+			if ( digit < 0 || digit > 9 ) {
+				return -1;
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+}
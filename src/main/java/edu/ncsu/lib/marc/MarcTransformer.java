@@ -1,5 +1,6 @@
 package edu.ncsu.lib.marc;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -7,33 +8,297 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.Timer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 import org.marc4j.MarcJsonWriter;
 import org.marc4j.MarcPermissiveStreamReader;
 import org.marc4j.MarcReader;
 
-import com.google.common.io.CountingInputStream;
-
 import edu.ncsu.lib.io.IOMonitor;
+import edu.ncsu.lib.io.LatencyHistogram;
 import edu.ncsu.lib.io.MemoryMonitor;
+import edu.ncsu.lib.io.ParallelGzipOutputStream;
+import edu.ncsu.lib.io.ResourcePool;
 
 
 /**
  * Sample transformer that converts incoming MARC21 content to MARC-In-JSON format.
+ * <p>
+ *  By default records are parsed and serialized one at a time on the calling thread.  When more than one thread is
+ *  configured via {@link #setThreads(int)}, the input is instead split into raw records on the calling thread, batches of
+ *  records are converted on a pool of workers, and the converted batches are written to the output in their original
+ *  order.  At most {@link #setWindow(int) window} batches are in flight at any one time, which bounds memory use
+ *  regardless of the size of the input.
+ * </p>
+ * <p>
+ *  A {@link FieldProjection} can be supplied to limit the output to the fields and subfields a consumer actually needs.
+ *  In that case each record is read through a {@link MarcRecordView}, and fields outside the projection are never decoded.
+ * </p>
+ * <p>
+ *  Unless it is turned off with {@link #setDirectEncoding(boolean)}, records are encoded straight from their raw bytes to
+ *  JSON by a {@link MarcJsonEncoder}, which produces the same output as marc4j for the records it accepts.  Unicode
+ *  records are copied through without any character conversion, and MARC-8 records with explicit escape sequences are
+ *  converted with precomputed tables.  Records it rejects (MARC-8 records the permissive reader would have to guess
+ *  about, or records damaged in a way the permissive reader would try to repair) are converted
+ *  by marc4j as before.  The number of records converted along each path is available from {@link #getStatistics()}.
+ * </p>
+ * <p>
+ *  With {@link #setGzip(boolean)}, the output is gzipped as it is written, by a {@link ParallelGzipOutputStream} that
+ *  compresses blocks of it on {@link #setCompressionThreads(int) several threads}.  MARC-in-JSON is several times the
+ *  size of the MARC21 it comes from, and compresses well.
+ * </p>
+ * <p>
+ *  The per-thread converters (with their encoders and character tables) are kept in a {@link ResourcePool} and reused by
+ *  later transformations, so a transformer kept across invocations of a warm Lambda container pays for them once.
+ *  Changing the projection, the encoding or the format discards them.  The raw record reader's buffer comes from the
+ *  {@link ResourcePool#buffers() shared buffer pool}.
+ * </p>
+ * <p>
+ *  Once {@link #monitor()} has been called, every transformation reports to an {@link IOMonitor}: bytes in and out,
+ *  records, the time each record took to convert, and the time spent waiting for input, converting and waiting for
+ *  the output.  Timing a record costs a call to <code>System.nanoTime()</code>, and the latencies are gathered per
+ *  batch, so monitoring can be left on.
+ * </p>
  * @author adam_constabaris@ncsu.edu
  */
 public class MarcTransformer {
 	
 	
-	// an (optional) monitor that records the number of bytes read.
-	private IOMonitor monitor;
+	// an (optional) monitor that records throughput, per-record latency and where the time goes
+	private volatile IOMonitor monitor;
+	
+	// number of worker threads used to convert records; 1 means convert on the calling thread
+	private int threads = 1;
+	
+	// number of records handed to a worker at a time
+	private int batchSize = 200;
+	
+	// maximum number of batches submitted but not yet written; 0 means twice the number of threads
+	private int window = 0;
+	
+	// fields to include in the output; null means everything
+	private FieldProjection projection = null;
+	
+	// whether to encode well-formed records without going through marc4j
+	private boolean directEncoding = true;
+	
+	// one of MarcJsonWriter's formats
+	private int format = MarcJsonWriter.MARC_JSON;
+	
+	// whether to gzip the output, and how
+	private boolean gzip = false;
+	
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	
+	private int compressionBlockSize = ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE;
+	
+	private int compressionThreads = Runtime.getRuntime().availableProcessors();
+	
+	// records converted along each path, across all calls to toJSON
+	private final ConversionStatistics statistics = new ConversionStatistics();
 	
+	// converters for the current settings, kept between transformations
+	private volatile ResourcePool<RecordBatchConverter> converters = converterPool();
+	
+	/**
+	 * Starts monitoring transformations with a new {@link IOMonitor}, which replaces any monitor already in place.  Every
+	 * later call to <code>toJSON</code> adds to it: bytes in and out, records, the time spent fetching, transforming
+	 * and uploading, and the time each record took to convert.
+	 * @return the monitor.
+	 */
 	public IOMonitor monitor() {
-		this.monitor = new IOMonitor();
+		IOMonitor created = new IOMonitor();
+		this.monitor = created;
+		return created;
+	}
+	
+	/**
+	 * Gets the monitor set up by {@link #monitor()}.
+	 * @return the monitor, or <code>null</code> if transformations aren't being monitored.
+	 */
+	public IOMonitor getMonitor() {
 		return monitor;
 	}
 	
+	/**
+	 * Sets the number of threads used to convert records.
+	 * @param threads the number of worker threads; values less than 2 select the single-threaded mode.
+	 * @return this transformer.
+	 */
+	public MarcTransformer setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+		return this;
+	}
+	
+	public int getThreads() {
+		return threads;
+	}
+	
+	/**
+	 * Sets the number of records converted as a unit by a worker in the multi-threaded mode.  Larger batches amortize
+	 * the per-batch setup cost of the marc4j reader and writer; smaller batches use less memory per batch.
+	 * @param batchSize the number of records per batch.
+	 * @return this transformer.
+	 */
+	public MarcTransformer setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+		return this;
+	}
+	
+	public int getBatchSize() {
+		return batchSize;
+	}
+	
+	/**
+	 * Sets the maximum number of batches that may be in flight (submitted but not yet written to the output) in the
+	 * multi-threaded mode.
+	 * @param window the number of batches, or 0 to use twice the number of threads.
+	 * @return this transformer.
+	 */
+	public MarcTransformer setWindow(int window) {
+		this.window = Math.max(0, window);
+		return this;
+	}
+	
+	public int getWindow() {
+		return window > 0 ? window : threads * 2;
+	}
+	
+	/**
+	 * Restricts the output to a subset of each record's fields.
+	 * @param projection the fields and subfields to write, or <code>null</code> to write complete records.
+	 * @return this transformer.
+	 */
+	public MarcTransformer setProjection(FieldProjection projection) {
+		this.projection = projection == null || projection.isAll() ? null : projection;
+		this.converters = converterPool();
+		return this;
+	}
+	
+	public FieldProjection getProjection() {
+		return projection;
+	}
+	
+	/**
+	 * Enables or disables direct (byte-level) encoding of well-formed Unicode records.  When disabled, every record is
+	 * parsed into a marc4j <code>Record</code> and serialized by <code>MarcJsonWriter</code>.
+	 * @param directEncoding
+	 * @return this transformer.
+	 */
+	public MarcTransformer setDirectEncoding(boolean directEncoding) {
+		if ( directEncoding != this.directEncoding ) {
+			this.directEncoding = directEncoding;
+			this.converters = converterPool();
+		}
+		return this;
+	}
+	
+	public boolean isDirectEncoding() {
+		return directEncoding;
+	}
+	
+	/**
+	 * Sets the JSON format records are written in.  Either way, each record is written on a line of its own.
+	 * <code>MarcJsonWriter.MARC_JSON</code>, the default, is marc4j's own loosely JSON-like format, in which field
+	 * names are not quoted; <code>MarcJsonWriter.MARC_IN_JSON</code> is strict JSON, so the output is newline-delimited
+	 * JSON that can be split into records and parsed line by line.
+	 * @param format <code>MarcJsonWriter.MARC_JSON</code> or <code>MarcJsonWriter.MARC_IN_JSON</code>.
+	 * @return this transformer.
+	 */
+	public MarcTransformer setFormat(int format) {
+		if ( format != MarcJsonWriter.MARC_JSON && format != MarcJsonWriter.MARC_IN_JSON ) {
+			throw new IllegalArgumentException("Unknown JSON format: " + format);
+		}
+		if ( format != this.format ) {
+			this.format = format;
+			this.converters = converterPool();
+		}
+		return this;
+	}
+	
+	public int getFormat() {
+		return format;
+	}
+	
+	/**
+	 * Enables or disables gzip compression of the output.
+	 * @param gzip
+	 * @return this transformer.
+	 */
+	public MarcTransformer setGzip(boolean gzip) {
+		this.gzip = gzip;
+		return this;
+	}
+	
+	public boolean isGzip() {
+		return gzip;
+	}
+	
+	/**
+	 * Sets the compression level used when the output is gzipped.
+	 * @param compressionLevel 0 (none) to 9 (best), or <code>Deflater.DEFAULT_COMPRESSION</code>.
+	 * @return this transformer.
+	 * @see ParallelGzipOutputStream#setLevel(int)
+	 */
+	public MarcTransformer setCompressionLevel(int compressionLevel) {
+		if ( ( compressionLevel < 0 || compressionLevel > 9 ) && compressionLevel != Deflater.DEFAULT_COMPRESSION ) {
+			throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+		}
+		this.compressionLevel = compressionLevel;
+		return this;
+	}
+	
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+	
+	/**
+	 * Sets the amount of output compressed as a unit when the output is gzipped.
+	 * @param compressionBlockSize the block size in bytes.
+	 * @return this transformer.
+	 * @see ParallelGzipOutputStream#setBlockSize(int)
+	 */
+	public MarcTransformer setCompressionBlockSize(int compressionBlockSize) {
+		this.compressionBlockSize = compressionBlockSize;
+		return this;
+	}
+	
+	public int getCompressionBlockSize() {
+		return compressionBlockSize;
+	}
+	
+	/**
+	 * Sets the number of threads that compress the output when it is gzipped, independently of the number converting
+	 * records.
+	 * @param compressionThreads the number of threads; values less than 2 compress on the writing thread.
+	 * @return this transformer.
+	 */
+	public MarcTransformer setCompressionThreads(int compressionThreads) {
+		this.compressionThreads = Math.max(1, compressionThreads);
+		return this;
+	}
+	
+	public int getCompressionThreads() {
+		return compressionThreads;
+	}
+	
+	/**
+	 * Gets the number of records this transformer has converted along each conversion path.  The counts accumulate
+	 * over all calls to {@link #toJSON(InputStream, OutputStream)} until they are reset.
+	 * @return
+	 */
+	public ConversionStatistics getStatistics() {
+		return statistics;
+	}
+	
 	/**
 	 * Convert an incoming stream of MARC21 data to MARC-In-JSON	
 	 * @param input a stream of MARC21 encoded content.
@@ -42,25 +307,108 @@ public class MarcTransformer {
 	 * @throws IOException if an error is encountered reading or writing.
 	 */
 	public long toJSON(InputStream input, OutputStream output) throws IOException {
-		final CountingInputStream counterInput = new CountingInputStream(input);
-		long count = 0;
+		return toJSON(input, output, null);
+	}
+	
+	/**
+	 * Convert an incoming stream of MARC21 data to MARC-In-JSON, reporting progress at record boundaries so that the
+	 * conversion can be stopped partway through and resumed later.
+	 * <p>
+	 *  The listener is called after each batch of records has been written to the output, and may stop the conversion
+	 *  by returning <code>false</code>; the input and output are still closed.  Whether or not a listener is given,
+	 *  this uses the record-at-a-time implementation, as the offsets reported by marc4j's reader are not record
+	 *  boundaries.  When the output is gzipped, a conversion that is stopped still ends its gzip stream; appending the
+	 *  output of the resumed conversion gives a multi-member gzip file, which gzip readers decompress as one.
+	 * </p>
+	 * @param input a stream of MARC21 encoded content.
+	 * @param output a stream of MARC-In-JSON encoded content
+	 * @param listener the listener to report progress to, or <code>null</code>.
+	 * @return the number of records written to <code>output</code>.
+	 * @throws IOException if an error is encountered reading or writing, or thrown by the listener.
+	 */
+	public long toJSON(InputStream input, OutputStream output, RecordBoundaryListener listener) throws IOException {
+		return toJSON(input, output, listener, null);
+	}
+	
+	/**
+	 * Convert an incoming stream of MARC21 data to MARC-In-JSON, transforming only the records a filter accepts.
+	 * <p>
+	 *  The filter sees each raw record before any of it is decoded, so records it skips cost no more than reading
+	 *  them.  Skipped records still count towards the batches after which the listener is called, so a listener can
+	 *  stop the conversion partway through a run of skipped records.
+	 * </p>
+	 * @param input a stream of MARC21 encoded content.
+	 * @param output a stream of MARC-In-JSON encoded content
+	 * @param listener the listener to report progress to, or <code>null</code>.
+	 * @param filter the filter that decides which records to transform, or <code>null</code> to transform them all.
+	 * @return the number of records written to <code>output</code>.
+	 * @throws IOException if an error is encountered reading or writing, or thrown by the listener.
+	 * @see ChangedRecordFilter
+	 */
+	public long toJSON(InputStream input, OutputStream output, RecordBoundaryListener listener, RecordFilter filter) throws IOException {
+		return toJSON(input, output, listener, filter, monitor);
+	}
+	
+	/**
+	 * Convert an incoming stream of MARC21 data to MARC-In-JSON, reporting to a monitor of the caller's own rather than
+	 * the transformer's, so that transformations running side by side on one transformer can be measured separately.
+	 * @param input a stream of MARC21 encoded content.
+	 * @param output a stream of MARC-In-JSON encoded content
+	 * @param listener the listener to report progress to, or <code>null</code>.
+	 * @param filter the filter that decides which records to transform, or <code>null</code> to transform them all.
+	 * @param monitor the monitor to report to, or <code>null</code> not to monitor this transformation at all.
+	 * @return the number of records written to <code>output</code>.
+	 * @throws IOException if an error is encountered reading or writing, or thrown by the listener.
+	 * @see #monitor()
+	 */
+	public long toJSON(InputStream input, OutputStream output, RecordBoundaryListener listener, RecordFilter filter, final IOMonitor monitor) throws IOException {
+		IOMonitor.MonitoredInputStream monitoredInput = null;
+		IOMonitor.MonitoredOutputStream monitoredOutput = null;
 		if ( monitor != null ) {
+			// outside any compression, so bytes out are what the destination receives
 			monitor.start();
+			input = monitoredInput = monitor.monitoredInput(input);
+			output = monitoredOutput = monitor.monitoredOutput(output);
 		}
+		if ( gzip && output != null ) {
+			// closing the output, as both implementations do, writes the end of the gzip stream
+			output = new ParallelGzipOutputStream(output)
+					.setLevel(compressionLevel)
+					.setBlockSize(compressionBlockSize)
+					.setThreads(compressionThreads);
+		}
+		if ( threads > 1 || projection != null || directEncoding || listener != null || filter != null ) {
+			return toJSONRecords(input, output, listener, filter, monitor, monitoredInput, monitoredOutput);
+		}
+		long count = 0;
+		LatencyHistogram.Batch latencies = monitor != null ? new LatencyHistogram.Batch() : null;
+		long transformNanos = 0;
 		try {
-			MarcReader reader = new MarcPermissiveStreamReader(counterInput, true, true);
-			MarcJsonWriter writer = new MarcJsonWriter(output, MarcJsonWriter.MARC_JSON);
+			MarcReader reader = new MarcPermissiveStreamReader(input, true, true);
+			MarcJsonWriter writer = new MarcJsonWriter(output, format);
+			long started = System.nanoTime();
+			long waited = waited(monitoredInput, monitoredOutput);
 			
 			while( reader.hasNext() ) {
-				if ( monitor != null ) {
-					monitor.setRead(counterInput.getCount());
-				}
 				writer.write( reader.next() );
 				count++;
+				if ( latencies != null ) {
+					// the reader and writer do their own reading and writing; that time isn't the record's
+					long now = System.nanoTime();
+					long nowWaited = waited(monitoredInput, monitoredOutput);
+					long elapsed = Math.max(0, now - started - ( nowWaited - waited ));
+					latencies.record(elapsed);
+					transformNanos += elapsed;
+					started = now;
+					waited = nowWaited;
+				}
 			}
 		} finally {
+			statistics.add(ConversionStatistics.Path.MARC4J, count);
 			if ( monitor != null ) {
-				monitor.finish();
+				latencies.flushTo(monitor.getLatencies());
+				monitor.addTime(IOMonitor.Phase.TRANSFORM, transformNanos);
+				monitor.addRecords(count);
 			}
 			if ( input != null ) {
 				try {
@@ -76,10 +424,213 @@ public class MarcTransformer {
 					
 				}
 			}
+			if ( monitor != null ) {
+				monitor.finish();
+			}
 		}
 		return count;
 	}
 	
+	/**
+	 * Record-at-a-time implementation of {@link #toJSON(InputStream, OutputStream)}, used for the multi-threaded mode,
+	 * direct encoding, when a projection is in effect, when progress is reported to a listener and when records are filtered.  With a single thread, batches are converted inline on the
+	 * calling thread and written straight to the output.
+	 */
+	private long toJSONRecords(InputStream input, OutputStream output, RecordBoundaryListener listener, RecordFilter filter,
+			IOMonitor monitor, IOMonitor.MonitoredInputStream monitoredInput, IOMonitor.MonitoredOutputStream monitoredOutput) throws IOException {
+		final RawRecordReader reader = new RawRecordReader(input);
+		final ResourcePool<RecordBatchConverter> pool = converters;
+		// every converter handed to a thread, to go back to the pool at the end
+		final ConcurrentLinkedQueue<RecordBatchConverter> acquired = new ConcurrentLinkedQueue<>();
+		final ThreadLocal<RecordBatchConverter> converters = ThreadLocal.withInitial( () -> {
+			RecordBatchConverter converter = pool.acquire();
+			acquired.add(converter);
+			return converter;
+		} );
+		final ExecutorService workers = threads < 2 ? null : Executors.newFixedThreadPool(threads, (r) -> {
+			Thread t = new Thread(r, "marc-transform-worker");
+			t.setDaemon(true);
+			return t;
+		});
+		final ArrayDeque<Future<ConvertedBatch>> inFlight = new ArrayDeque<>();
+		final int maxInFlight = getWindow();
+		final LatencyHistogram histogram = monitor != null ? monitor.getLatencies() : null;
+		long count = 0;
+		try {
+			byte[][] batch = new byte[batchSize][];
+			int batchLength = 0;
+			// records read since the last batch, including any the filter skipped
+			int consumed = 0;
+			byte[] record;
+			boolean proceed = true;
+			do {
+				record = reader.next();
+				if ( record != null ) {
+					consumed++;
+					if ( filter == null || filter.accept(record) ) {
+						batch[batchLength++] = record;
+					}
+				}
+				if ( consumed == batchSize || ( record == null && consumed > 0 ) ) {
+					if ( workers == null ) {
+						long started = System.nanoTime();
+						long waited = waited(monitoredInput, monitoredOutput);
+						count += converters.get().convert(batch, batchLength, output, histogram);
+						if ( monitor != null ) {
+							// converting writes straight to the output, and waiting on it is upload time
+							monitor.addTime(IOMonitor.Phase.TRANSFORM, System.nanoTime() - started - ( waited(monitoredInput, monitoredOutput) - waited ));
+						}
+						proceed = listener == null || listener.recordBoundary(reader.getOffset(), count);
+					} else {
+						if ( inFlight.size() >= maxInFlight ) {
+							ConvertedBatch written = writeBatch(inFlight.removeFirst(), output);
+							count += written.records;
+							proceed = listener == null || listener.recordBoundary(written.endOffset, count);
+						}
+						final byte[][] toConvert = batch;
+						final int toConvertLength = batchLength;
+						final long endOffset = reader.getOffset();
+						if ( proceed ) {
+							inFlight.addLast( workers.submit( () -> convertBatch(converters.get(), toConvert, toConvertLength, endOffset, monitor) ) );
+						}
+						batch = new byte[batchSize][];
+					}
+					batchLength = 0;
+					consumed = 0;
+				}
+			} while( record != null && proceed );
+			
+			while( !inFlight.isEmpty() && proceed ) {
+				ConvertedBatch written = writeBatch(inFlight.removeFirst(), output);
+				count += written.records;
+				proceed = listener == null || listener.recordBoundary(written.endOffset, count);
+			}
+		} finally {
+			for( Future<ConvertedBatch> pending : inFlight ) {
+				pending.cancel(true);
+			}
+			// a converter still in use by a cancelled batch can't be handed to anyone else
+			boolean idle = true;
+			if ( workers != null ) {
+				workers.shutdownNow();
+				try {
+					idle = workers.awaitTermination(1, TimeUnit.SECONDS);
+				} catch( InterruptedException ix ) {
+					Thread.currentThread().interrupt();
+					idle = false;
+				}
+			}
+			if ( idle ) {
+				for( RecordBatchConverter converter : acquired ) {
+					pool.release(converter);
+				}
+			}
+			if ( monitor != null ) {
+				monitor.addRecords(count);
+			}
+			if ( input != null ) {
+				try {
+					reader.close();
+				} catch( IOException iox ) {
+					
+				}
+			}
+			if ( output != null ) {
+				try {
+					output.close();
+				} catch( IOException iox ) {
+					
+				}
+			}
+			if ( monitor != null ) {
+				monitor.finish();
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Creates an empty pool of converters for the current settings.
+	 */
+	private ResourcePool<RecordBatchConverter> converterPool() {
+		final FieldProjection poolProjection = projection;
+		final boolean poolDirect = directEncoding;
+		final int poolFormat = format;
+		return new ResourcePool<>("converters", () -> new RecordBatchConverter(poolProjection, poolDirect, poolFormat, statistics),
+				Runtime.getRuntime().availableProcessors() * 2);
+	}
+	
+	/**
+	 * Waits for a batch to be converted and writes it to the output.
+	 * @return the batch.
+	 */
+	private static ConvertedBatch writeBatch(Future<ConvertedBatch> pending, OutputStream output) throws IOException {
+		ConvertedBatch converted;
+		try {
+			converted = pending.get();
+		} catch( InterruptedException ix ) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for conversion", ix);
+		} catch( ExecutionException ex ) {
+			Throwable cause = ex.getCause();
+			if ( cause instanceof IOException ) {
+				throw (IOException)cause;
+			}
+			if ( cause instanceof RuntimeException ) {
+				throw (RuntimeException)cause;
+			}
+			if ( cause instanceof Error ) {
+				throw (Error)cause;
+			}
+			throw new IOException("Unable to convert records", cause);
+		}
+		converted.json.writeTo(output);
+		return converted;
+	}
+	
+	/**
+	 * Converts a batch of raw records to MARC-In-JSON.
+	 * @param monitor the monitor to report the time taken to, or <code>null</code>.
+	 */
+	private static ConvertedBatch convertBatch(RecordBatchConverter converter, byte[][] records, int length, long endOffset, IOMonitor monitor) throws IOException {
+		long started = System.nanoTime();
+		int total = 0;
+		for( int i = 0; i < length; i++ ) {
+			total += records[i].length;
+		}
+		ConvertedBatch converted = new ConvertedBatch(total * 2);
+		converted.records = converter.convert(records, length, converted.json, monitor != null ? monitor.getLatencies() : null);
+		converted.endOffset = endOffset;
+		if ( monitor != null ) {
+			monitor.addTime(IOMonitor.Phase.TRANSFORM, System.nanoTime() - started);
+		}
+		return converted;
+	}
+	
+	/**
+	 * Gets the time spent so far reading from and writing to the monitored ends of a transformation.
+	 */
+	private static long waited(IOMonitor.MonitoredInputStream input, IOMonitor.MonitoredOutputStream output) {
+		return ( input != null ? input.getNanos() : 0 ) + ( output != null ? output.getNanos() : 0 );
+	}
+	
+	/**
+	 * The output of a worker: a batch of records serialized as MARC-In-JSON.
+	 */
+	private static class ConvertedBatch {
+		
+		final ByteArrayOutputStream json;
+		
+		int records = 0;
+		
+		// input offset just past the last record in the batch
+		long endOffset = 0;
+		
+		ConvertedBatch(int sizeHint) {
+			this.json = new ByteArrayOutputStream(sizeHint);
+		}
+	}
+	
 	
 	public static void main(String[] args) {
 		if ( args.length < 1 ) {
@@ -91,6 +642,7 @@ public class MarcTransformer {
 		MemoryMonitor memMonitor = new MemoryMonitor();
 		
 		IOMonitor iOMonitor = null;
+		ConversionStatistics statistics = null;
 		t.schedule( memMonitor, 500L, 500L);
 		try( FileInputStream input = new FileInputStream( args[0] ) ) {
 			File destFile = args.length > 1 ? new File(args[1]) : File.createTempFile("marctransform",  ".json");
@@ -100,7 +652,14 @@ public class MarcTransformer {
 			
 			try( OutputStream output = new FileOutputStream(destFile) ) {
 				MarcTransformer transformer = new MarcTransformer();
+				if ( args.length > 2 ) {
+					transformer.setThreads( Integer.parseInt(args[2]) );
+				}
+				if ( args.length > 3 ) {
+					transformer.setProjection( FieldProjection.parse(args[3]) );
+				}
 				iOMonitor = transformer.monitor();				
+				statistics = transformer.getStatistics();
 				count = transformer.toJSON(input, output);	
 			} 
 			
@@ -117,7 +676,9 @@ public class MarcTransformer {
 		
 		long durationMS = iOMonitor.getDuration()/ 1000000;
 		System.out.printf("Operation took %dms for %d records (%.4fms/record)%n", durationMS, count, (double)durationMS/(double)count);
-		System.out.printf("Memory use: %d min, %d max%n", memMonitor.getMin(), memMonitor.getMax() );
+		System.out.printf("Monitor: %s%n", iOMonitor);
+		System.out.printf("Memory use: %s%n", memMonitor.summarize() );
+		System.out.printf("Conversion paths: %s%n", statistics );
 		
 	}
 
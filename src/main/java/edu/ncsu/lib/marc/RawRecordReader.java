@@ -0,0 +1,218 @@
+package edu.ncsu.lib.marc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import edu.ncsu.lib.io.ResourcePool;
+
+/**
+ * Splits a stream of MARC21 (ISO 2709) data into raw, undecoded records.
+ * <p>
+ *  Each record is located using the 5-digit record length at the start of its leader, and checked against the
+ *  <code>0x1D</code> record terminator that should be its last byte.  When the stated length and the terminator disagree,
+ *  the terminator wins: the record is taken to end at the first terminator after the leader (or at the end of the input).
+ *  As with <code>MarcPermissiveStreamReader</code>, any bytes that precede a leader and are not ASCII digits are skipped.
+ * </p>
+ * <p>
+ *  No character decoding is done here, which makes this cheap enough to run on a single thread ahead of a pool of workers
+ *  that do the expensive parsing and serialization.
+ * </p>
+ */
+public class RawRecordReader implements Closeable {
+
+	/** The MARC21 record terminator */
+	public static final byte RECORD_TERMINATOR = 0x1D;
+
+	/** The MARC21 field terminator */
+	public static final byte FIELD_TERMINATOR = 0x1E;
+
+	/** The MARC21 subfield delimiter */
+	public static final byte SUBFIELD_DELIMITER = 0x1F;
+
+	/** Length of a MARC21 leader */
+	public static final int LEADER_LENGTH = 24;
+
+	private final InputStream input;
+
+	private byte[] buffer;
+
+	// whether buffer came from the shared pool, and goes back to it on close
+	private final boolean pooled;
+
+	private boolean closed = false;
+
+	// start of unconsumed data in buffer
+	private int pos = 0;
+
+	// end of valid data in buffer
+	private int limit = 0;
+
+	private boolean eof = false;
+
+	// number of bytes consumed by records returned so far, including skipped bytes
+	private long offset = 0;
+
+	private long recordCount = 0;
+
+	/**
+	 * Creates a reader with a buffer from the {@link ResourcePool#buffers() shared pool}, which is returned to the pool
+	 * when the reader is closed.
+	 * @param input the raw MARC21 input.
+	 */
+	public RawRecordReader(InputStream input) {
+		this.input = input;
+		this.buffer = ResourcePool.buffers().acquire();
+		this.pooled = true;
+	}
+
+	public RawRecordReader(InputStream input, int bufferSize) {
+		this.input = input;
+		this.buffer = new byte[Math.max(bufferSize, 1024)];
+		this.pooled = false;
+	}
+
+	/**
+	 * Reads the next raw record.
+	 * @return the bytes of the next record, including its leader and terminator, or <code>null</code> if the input has
+	 * been exhausted.
+	 * @throws IOException if an error is encountered reading the underlying stream.
+	 */
+	public byte[] next() throws IOException {
+		if ( closed ) {
+			throw new IOException("Reader closed");
+		}
+		// skip anything that can't be the start of a leader
+		while ( true ) {
+			if ( pos == limit && !fill(1) ) {
+				return null;
+			}
+			byte b = buffer[pos];
+			if ( b >= '0' && b <= '9' ) {
+				break;
+			}
+			pos++;
+			offset++;
+		}
+
+		int length = fill(5) ? parseLength(buffer, pos) : -1;
+		int end = -1;
+		if ( length > LEADER_LENGTH && fill(length) && buffer[pos + length - 1] == RECORD_TERMINATOR ) {
+			end = pos + length;
+		} else {
+			end = scanForTerminator();
+		}
+		byte[] record = Arrays.copyOfRange(buffer, pos, end);
+		offset += record.length;
+		pos = end;
+		recordCount++;
+		return record;
+	}
+
+	/**
+	 * Gets the number of bytes of the input consumed by the records returned so far.  After a call to {@link #next()}
+	 * this is the offset of the first byte following that record.
+	 * @return
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Gets the number of records returned so far.
+	 * @return
+	 */
+	public long getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * Closes the input, and returns the buffer to the pool if it came from there.  The reader can't be used afterwards.
+	 */
+	@Override
+	public void close() throws IOException {
+		if ( closed ) {
+			return;
+		}
+		closed = true;
+		try {
+			input.close();
+		} finally {
+			// a buffer grown for an oversized record is left for the garbage collector
+			if ( pooled && buffer.length == ResourcePool.BUFFER_SIZE ) {
+				ResourcePool.buffers().release(buffer);
+			}
+			buffer = null;
+		}
+	}
+
+	/**
+	 * Parses a 5-digit MARC21 record length.
+	 * @param data the buffer containing the leader.
+	 * @param start the offset of the leader within <code>data</code>.
+	 * @return the record length, or -1 if the leader does not start with five ASCII digits.
+	 */
+	static int parseLength(byte[] data, int start) {
+		int length = 0;
+		for( int i = start; i < start + 5; i++ ) {
+			int digit = data[i] - '0';
+			if ( digit < 0 || digit > 9 ) {
+				return -1;
+			}
+			length = length * 10 + digit;
+		}
+		return length;
+	}
+
+	/**
+	 * Locates the end of a record whose stated length is unusable.
+	 * @return the buffer position just past the first record terminator following the leader, or the end of the input
+	 * if there is none.
+	 */
+	private int scanForTerminator() throws IOException {
+		int i = pos + Math.min(LEADER_LENGTH, limit - pos);
+		while ( true ) {
+			for( ; i < limit; i++ ) {
+				if ( buffer[i] == RECORD_TERMINATOR ) {
+					return i + 1;
+				}
+			}
+			int scanned = i - pos;
+			if ( !fill(scanned + 1) ) {
+				return limit;
+			}
+			// fill() may have compacted the buffer
+			i = pos + scanned;
+		}
+	}
+
+	/**
+	 * Ensures that at least <code>count</code> bytes are available in the buffer starting at <code>pos</code>, compacting
+	 * or growing the buffer as necessary.
+	 * @return <code>true</code> if the bytes are available, <code>false</code> if the input ended first.
+	 */
+	private boolean fill(int count) throws IOException {
+		if ( limit - pos >= count ) {
+			return true;
+		}
+		if ( pos > 0 ) {
+			System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+		if ( count > buffer.length ) {
+			buffer = Arrays.copyOf(buffer, Math.max(count, buffer.length * 2));
+		}
+		while ( limit < count && !eof ) {
+			int read = input.read(buffer, limit, buffer.length - limit);
+			if ( read < 0 ) {
+				eof = true;
+			} else {
+				limit += read;
+			}
+		}
+		return limit - pos >= count;
+	}
+
+}
@@ -0,0 +1,262 @@
+package edu.ncsu.lib.marc;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.marc4j.MarcException;
+import org.marc4j.MarcJsonWriter;
+import org.marc4j.MarcPermissiveStreamReader;
+import org.marc4j.MarcReader;
+import org.marc4j.marc.ControlField;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.MarcFactory;
+import org.marc4j.marc.Record;
+import org.marc4j.marc.Subfield;
+
+import edu.ncsu.lib.io.LatencyHistogram;
+import info.freelibrary.marc4j.converter.impl.AnselToUnicode;
+
+/**
+ * Converts batches of raw MARC21 records to MARC-In-JSON.
+ * <p>
+ *  Three strategies are used, in order of preference: records are projected through a {@link MarcRecordView} when a
+ *  projection is in effect; otherwise they are encoded directly by a {@link MarcJsonEncoder} when direct encoding is
+ *  enabled; and anything left over goes through <code>MarcPermissiveStreamReader</code> and <code>MarcJsonWriter</code>.
+ *  Consecutive records that need the permissive reader are handed to it together, so the cost of setting up the reader is
+ *  shared among them.  The number of records converted along each path is added to a shared
+ *  {@link ConversionStatistics} at the end of every batch.
+ * </p>
+ * <p>
+ *  When a {@link LatencyHistogram} is passed to {@link #convert(byte[][], int, OutputStream, LatencyHistogram)}, the time
+ *  each record takes to convert and write is recorded too, on the converter's own {@link LatencyHistogram.Batch} until
+ *  the end of the batch.  Records handed to the permissive reader together are each counted at the average time of
+ *  their group.
+ * </p>
+ * <p>
+ *  Instances hold per-thread state (the marc4j factory, MARC-8 converter and encoder buffers) and are not thread-safe;
+ *  each worker thread should use its own.
+ * </p>
+ */
+class RecordBatchConverter {
+
+	private final FieldProjection projection;
+
+	private final MarcFactory factory;
+
+	private final AnselToUnicode marc8;
+
+	private final MarcJsonEncoder encoder;
+
+	private final ConversionStatistics statistics;
+
+	// one of MarcJsonWriter's formats
+	private final int format;
+
+	// per-batch counts, indexed by ConversionStatistics.Path ordinal
+	private final long[] counts = new long[ConversionStatistics.Path.values().length];
+
+	// records waiting to be handed to the permissive reader
+	private byte[][] pending = new byte[16][];
+
+	private int pendingLength = 0;
+
+	// per-record latencies for the batch being converted, or null when they aren't being recorded
+	private final LatencyHistogram.Batch latencyBatch = new LatencyHistogram.Batch();
+
+	private LatencyHistogram.Batch latencies = null;
+
+	// time spent converting pending records, so the record that follows them can leave it out
+	private long flushNanos = 0;
+
+	RecordBatchConverter(FieldProjection projection, boolean direct, int format, ConversionStatistics statistics) {
+		this.projection = projection;
+		this.statistics = statistics;
+		this.format = format;
+		this.factory = projection != null ? MarcFactory.newInstance() : null;
+		this.marc8 = projection != null ? new AnselToUnicode() : null;
+		this.encoder = projection == null && direct ? new MarcJsonEncoder(format) : null;
+	}
+
+	/**
+	 * Converts a batch of records.
+	 * @param records the raw records; entries are cleared as they are consumed.
+	 * @param length the number of records in <code>records</code>.
+	 * @param output the destination for the converted records.
+	 * @return the number of records written to <code>output</code>.
+	 * @throws IOException if an error is encountered writing to <code>output</code>.
+	 */
+	int convert(byte[][] records, int length, OutputStream output) throws IOException {
+		return convert(records, length, output, null);
+	}
+
+	/**
+	 * Converts a batch of records, recording how long each one takes.
+	 * @param histogram the histogram to add the time each record took to, or <code>null</code> not to time them.
+	 * @see #convert(byte[][], int, OutputStream)
+	 */
+	int convert(byte[][] records, int length, OutputStream output, LatencyHistogram histogram) throws IOException {
+		latencies = histogram != null ? latencyBatch : null;
+		try {
+			return convertBatch(records, length, output);
+		} finally {
+			for( ConversionStatistics.Path path : ConversionStatistics.Path.values() ) {
+				statistics.add(path, counts[path.ordinal()]);
+				counts[path.ordinal()] = 0;
+			}
+			latencyBatch.flushTo(histogram);
+		}
+	}
+
+	private int convertBatch(byte[][] records, int length, OutputStream output) throws IOException {
+		MarcJsonWriter writer = new MarcJsonWriter(output, format);
+		if ( encoder != null ) {
+			return convertDirectly(records, length, output, writer);
+		}
+		if ( projection == null ) {
+			long started = latencies != null ? System.nanoTime() : 0;
+			int count = convertPermissively(concatenate(records, length), writer, null);
+			if ( latencies != null && count > 0 ) {
+				latencies.record((System.nanoTime() - started) / count, count);
+			}
+			return count;
+		}
+		int count = 0;
+		long started = latencies != null ? System.nanoTime() : 0;
+		for( int i = 0; i < length; i++ ) {
+			byte[] record = records[i];
+			records[i] = null;
+			try {
+				MarcRecordView view = new MarcRecordView(record);
+				writer.write( view.toRecord(projection, factory, marc8) );
+				// the view leaves MARC-8 to marc4j's converter
+				counts[view.getCharCodingScheme() == 'a' ? ConversionStatistics.Path.UNICODE.ordinal() : ConversionStatistics.Path.MARC4J.ordinal()]++;
+				count++;
+			} catch( MarcException mx ) {
+				// damaged record: let the permissive reader have a go at it, then drop what wasn't asked for
+				count += convertPermissively(record, writer, projection);
+			}
+			if ( latencies != null ) {
+				long now = System.nanoTime();
+				latencies.record(now - started);
+				started = now;
+			}
+		}
+		return count;
+	}
+
+	private int convertDirectly(byte[][] records, int length, OutputStream output, MarcJsonWriter writer) throws IOException {
+		int count = 0;
+		long started = latencies != null ? System.nanoTime() : 0;
+		for( int i = 0; i < length; i++ ) {
+			byte[] record = records[i];
+			records[i] = null;
+			if ( encoder.encode(record) ) {
+				long flushed = flushNanos;
+				count += flushPending(writer);
+				encoder.writeTo(output);
+				counts[encoder.getPath().ordinal()]++;
+				count++;
+				if ( latencies != null ) {
+					// records flushed in between are timed on their own
+					long now = System.nanoTime();
+					latencies.record(now - started - ( flushNanos - flushed ));
+					started = now;
+				}
+			} else {
+				if ( pendingLength == pending.length ) {
+					pending = Arrays.copyOf(pending, pendingLength * 2);
+				}
+				pending[pendingLength++] = record;
+			}
+		}
+		return count + flushPending(writer);
+	}
+
+	private int flushPending(MarcJsonWriter writer) {
+		if ( pendingLength == 0 ) {
+			return 0;
+		}
+		long started = latencies != null ? System.nanoTime() : 0;
+		int count = convertPermissively(concatenate(pending, pendingLength), writer, null);
+		pendingLength = 0;
+		if ( latencies != null && count > 0 ) {
+			long elapsed = System.nanoTime() - started;
+			latencies.record(elapsed / count, count);
+			flushNanos += elapsed;
+		}
+		return count;
+	}
+
+	private int convertPermissively(byte[] raw, MarcJsonWriter writer, FieldProjection projection) {
+		MarcReader reader = new MarcPermissiveStreamReader(new ByteArrayInputStream(raw), true, true);
+		int count = 0;
+		while( reader.hasNext() ) {
+			Record record = reader.next();
+			if ( projection != null ) {
+				project(record, projection);
+			}
+			writer.write( record );
+			count++;
+		}
+		counts[ConversionStatistics.Path.MARC4J.ordinal()] += count;
+		return count;
+	}
+
+	/**
+	 * Removes the fields and subfields of a fully parsed record that are not part of a projection.
+	 */
+	static void project(Record record, FieldProjection projection) {
+		for( Iterator<ControlField> fields = record.getControlFields().iterator(); fields.hasNext(); ) {
+			if ( !projection.includesTag( tagValue(fields.next().getTag()) ) ) {
+				fields.remove();
+			}
+		}
+		for( Iterator<DataField> fields = record.getDataFields().iterator(); fields.hasNext(); ) {
+			DataField field = fields.next();
+			int tag = tagValue(field.getTag());
+			if ( projection.includesTag(tag) ) {
+				for( Iterator<Subfield> subfields = field.getSubfields().iterator(); subfields.hasNext(); ) {
+					if ( !projection.includesSubfield(tag, subfields.next().getCode()) ) {
+						subfields.remove();
+					}
+				}
+			}
+			if ( !projection.includesTag(tag) || field.getSubfields().isEmpty() ) {
+				fields.remove();
+			}
+		}
+	}
+
+	private static int tagValue(String tag) {
+		if ( tag.length() != 3 ) {
+			return -1;
+		}
+		int value = 0;
+		for( int i = 0; i < 3; i++ ) {
+			int digit = tag.charAt(i) - '0';
+			if ( digit < 0 || digit > 9 ) {
+				return -1;
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	private static byte[] concatenate(byte[][] records, int length) {
+		int total = 0;
+		for( int i = 0; i < length; i++ ) {
+			total += records[i].length;
+		}
+		byte[] raw = new byte[total];
+		int pos = 0;
+		for( int i = 0; i < length; i++ ) {
+			System.arraycopy(records[i], 0, raw, pos, records[i].length);
+			pos += records[i].length;
+			records[i] = null;
+		}
+		return raw;
+	}
+}
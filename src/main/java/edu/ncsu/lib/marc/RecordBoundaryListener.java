@@ -0,0 +1,25 @@
+package edu.ncsu.lib.marc;
+
+import java.io.IOException;
+
+/**
+ * Receives notice, during {@link MarcTransformer#toJSON(java.io.InputStream, java.io.OutputStream, RecordBoundaryListener)},
+ * each time the output is complete up to a record boundary in the input, and decides whether to carry on.
+ * <p>
+ *  At the time of the call, every record that starts before <code>offset</code> has been written to the output and
+ *  nothing else has, so a later call that starts reading the same input at <code>offset</code> and appends to the same
+ *  output will produce the same result as if the transformation had never stopped.
+ * </p>
+ */
+@FunctionalInterface
+public interface RecordBoundaryListener {
+
+	/**
+	 * Called after a batch of records has been written to the output.
+	 * @param offset the number of input bytes consumed so far.
+	 * @param records the number of records written so far.
+	 * @return <code>true</code> to continue, or <code>false</code> to stop here.
+	 * @throws IOException to abandon the transformation.
+	 */
+	boolean recordBoundary(long offset, long records) throws IOException;
+}
@@ -0,0 +1,20 @@
+package edu.ncsu.lib.marc;
+
+/**
+ * Decides, during {@link MarcTransformer#toJSON(java.io.InputStream, java.io.OutputStream, RecordBoundaryListener, RecordFilter)},
+ * which records are transformed.
+ * <p>
+ *  Records are offered in input order, on the thread that reads the input, as raw bytes that have not been decoded at
+ *  all.  Records that are not accepted are skipped without being converted, and are not counted as written.
+ * </p>
+ */
+@FunctionalInterface
+public interface RecordFilter {
+
+	/**
+	 * Called for each record read from the input.
+	 * @param record the raw record, including its leader and terminator; must not be changed.
+	 * @return <code>true</code> to transform the record, or <code>false</code> to skip it.
+	 */
+	boolean accept(byte[] record);
+}
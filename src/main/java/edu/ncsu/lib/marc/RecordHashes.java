@@ -0,0 +1,197 @@
+package edu.ncsu.lib.marc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+/**
+ * A sorted table of record control numbers (the 001 field) and a hash of each record's raw bytes, used to tell which
+ * records of a file have changed since it was last transformed.
+ * <p>
+ *  The layout is the one {@link RecordIndex} uses: a header, a table of fixed-width entries sorted by control number,
+ *  and the control numbers themselves, UTF-8 encoded and concatenated.  All numbers are big-endian.
+ * </p>
+ * <pre>
+ *  int   magic ("MJHS")
+ *  int   version
+ *  int   number of entries
+ *  int   length of the control numbers, in bytes
+ *  entries, each:
+ *    int   offset of the control number in the control numbers
+ *    int   length of the control number, in bytes
+ *    long  hash of the raw record
+ *  control numbers
+ * </pre>
+ * <p>
+ *  Hashes are the first 64 bits of the 128-bit MurmurHash3 of the record exactly as it appears in the input, leader and
+ *  all, so any change to a record (including to its leader) counts as a change.  Instances are immutable and
+ *  thread-safe.
+ * </p>
+ * @see ChangedRecordFilter
+ */
+public class RecordHashes {
+
+	private static final int MAGIC = 0x4D4A4853;
+
+	private static final int VERSION = 1;
+
+	private static final int ENTRY_LENGTH = ControlNumberTable.KEY_LENGTH + 8;
+
+	private static final HashFunction HASH = Hashing.murmur3_128();
+
+	private final ControlNumberTable table;
+
+	/**
+	 * Reads a table from its binary form.
+	 * @param data the table; it is not copied, and must not be changed afterwards.
+	 * @throws IOException if <code>data</code> is not a table of record hashes.
+	 */
+	public RecordHashes(ByteBuffer data) throws IOException {
+		this.table = new ControlNumberTable(data, MAGIC, VERSION, ENTRY_LENGTH, "table of record hashes");
+	}
+
+	/**
+	 * Reads a table from a stream into memory.
+	 * @param input the stream, which is not closed.
+	 * @return the table.
+	 * @throws IOException if the stream could not be read, or is not a table of record hashes.
+	 */
+	public static RecordHashes read(InputStream input) throws IOException {
+		return new RecordHashes( ByteBuffer.wrap(ByteStreams.toByteArray(input)) );
+	}
+
+	/**
+	 * Hashes a raw record.
+	 * @param record the record, including its leader and terminator.
+	 * @return the hash.
+	 */
+	public static long hash(byte[] record) {
+		return HASH.hashBytes(record).asLong();
+	}
+
+	public int size() {
+		return table.size();
+	}
+
+	/**
+	 * Finds a control number in the table.
+	 * @param controlNumber the record's 001.
+	 * @return the position of the first entry with that control number, or -1 if there isn't one.
+	 */
+	public int indexOf(String controlNumber) {
+		return table.indexOf( controlNumber.getBytes(StandardCharsets.UTF_8) );
+	}
+
+	public String getControlNumber(int i) {
+		return table.getControlNumber(i);
+	}
+
+	public long getHash(int i) {
+		return table.data().getLong( table.payload(i) );
+	}
+
+	/**
+	 * Lists the control numbers in this table that are missing from another.
+	 * @param current the table to compare with, such as the one for a newer version of the same file.
+	 * @return the control numbers, in order.
+	 */
+	public List<String> missingFrom(RecordHashes current) {
+		List<String> missing = new ArrayList<>();
+		for( int i = 0; i < size(); i++ ) {
+			String controlNumber = getControlNumber(i);
+			// duplicates are listed once
+			if ( current.indexOf(controlNumber) < 0 && ( missing.isEmpty() || !missing.get(missing.size() - 1).equals(controlNumber) ) ) {
+				missing.add(controlNumber);
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * Accumulates control numbers and hashes, and writes them out sorted.  Entries are held in primitive arrays.  Not
+	 * thread-safe.
+	 */
+	public static class Builder {
+
+		private final ControlNumberTable.Builder table = new ControlNumberTable.Builder();
+
+		private long[] hashes = new long[256];
+
+		/**
+		 * Adds a record.
+		 * @param controlNumber the record's 001.
+		 * @param hash the hash of the raw record.
+		 * @return this builder.
+		 */
+		public Builder add(String controlNumber, long hash) {
+			int i = table.add( controlNumber.getBytes(StandardCharsets.UTF_8) );
+			if ( i == hashes.length ) {
+				hashes = Arrays.copyOf(hashes, i * 2);
+			}
+			hashes[i] = hash;
+			return this;
+		}
+
+		/**
+		 * Adds every entry of an existing table, such as the part of a table saved by an earlier, unfinished
+		 * transformation.
+		 * @param table the table.
+		 * @return this builder.
+		 */
+		public Builder addAll(RecordHashes table) {
+			for( int i = 0; i < table.size(); i++ ) {
+				add(table.getControlNumber(i), table.getHash(i));
+			}
+			return this;
+		}
+
+		public int size() {
+			return table.size();
+		}
+
+		/**
+		 * Writes the table, sorted by control number.
+		 * @param output the destination, which is not closed.
+		 * @throws IOException if the table could not be written.
+		 */
+		public void writeTo(OutputStream output) throws IOException {
+			table.writeTo(output, MAGIC, VERSION, (data, i) -> data.writeLong(hashes[i]));
+		}
+
+		/**
+		 * Gets the table in its binary form.
+		 * @return
+		 */
+		public byte[] toByteArray() {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream( table.length(ENTRY_LENGTH) );
+			try {
+				writeTo(bytes);
+			} catch( IOException iox ) {
+				throw new IllegalStateException("Unable to write to memory", iox);
+			}
+			return bytes.toByteArray();
+		}
+
+		/**
+		 * Gets the table, ready for lookups.
+		 * @return
+		 */
+		public RecordHashes build() {
+			try {
+				return new RecordHashes( ByteBuffer.wrap(toByteArray()) );
+			} catch( IOException iox ) {
+				throw new IllegalStateException("Unable to read a table just written", iox);
+			}
+		}
+	}
+}
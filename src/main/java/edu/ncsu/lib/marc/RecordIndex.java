@@ -0,0 +1,268 @@
+package edu.ncsu.lib.marc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * A sorted index from record control numbers (the 001 field) to the position of each record in transformed output, so
+ * that a single record can be fetched with a ranged read instead of scanning the whole output.
+ * <p>
+ *  The index is a compact binary file, read in place rather than parsed: a header, a table of fixed-width entries sorted
+ *  by control number, and the control numbers themselves, UTF-8 encoded and concatenated.  All numbers are big-endian.
+ * </p>
+ * <pre>
+ *  int   magic ("MJIX")
+ *  int   version
+ *  int   number of entries
+ *  int   length of the control numbers, in bytes
+ *  entries, each:
+ *    int   offset of the control number in the control numbers
+ *    int   length of the control number, in bytes
+ *    long  offset of the record in the output
+ *    int   length of the record in the output, including its line end
+ *  control numbers
+ * </pre>
+ * <p>
+ *  {@link #open(File)} memory-maps an index file, so a lookup is a binary search that touches only the pages it needs.
+ *  Entries with the same control number are kept in output order, and {@link #find(String)} returns the first.
+ *  Instances are immutable and thread-safe.
+ * </p>
+ * @see RecordIndexingOutputStream
+ */
+public class RecordIndex {
+
+	private static final int MAGIC = 0x4D4A4958;
+
+	private static final int VERSION = 1;
+
+	private static final int ENTRY_LENGTH = ControlNumberTable.KEY_LENGTH + 12;
+
+	private final ControlNumberTable table;
+
+	/**
+	 * Reads an index from its binary form.
+	 * @param data the index; it is not copied, and must not be changed afterwards.
+	 * @throws IOException if <code>data</code> is not an index.
+	 */
+	public RecordIndex(ByteBuffer data) throws IOException {
+		this.table = new ControlNumberTable(data, MAGIC, VERSION, ENTRY_LENGTH, "record index");
+	}
+
+	/**
+	 * Memory-maps an index file.
+	 * @param file the index file.
+	 * @return the index.
+	 * @throws IOException if the file could not be read, or is not an index.
+	 */
+	public static RecordIndex open(File file) throws IOException {
+		try( RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel() ) {
+			// the mapping outlives the channel
+			return new RecordIndex( channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()) );
+		}
+	}
+
+	/**
+	 * Reads an index from a stream into memory.
+	 * @param input the stream, which is not closed.
+	 * @return the index.
+	 * @throws IOException if the stream could not be read, or is not an index.
+	 */
+	public static RecordIndex read(InputStream input) throws IOException {
+		return new RecordIndex( ByteBuffer.wrap(ByteStreams.toByteArray(input)) );
+	}
+
+	/**
+	 * Gets the number of records in the index.
+	 * @return
+	 */
+	public int size() {
+		return table.size();
+	}
+
+	/**
+	 * Looks up a record by its control number.
+	 * @param controlNumber the record's 001.
+	 * @return the record's position in the output, or <code>null</code> if it isn't in the index.
+	 */
+	public Entry find(String controlNumber) {
+		int found = table.indexOf( controlNumber.getBytes(StandardCharsets.UTF_8) );
+		return found < 0 ? null : getEntry(found);
+	}
+
+	/**
+	 * Gets an entry by its position in the index.
+	 * @param i the position, from 0 to <code>size() - 1</code>.
+	 * @return the entry.
+	 */
+	public Entry getEntry(int i) {
+		int payload = table.payload(i);
+		return new Entry(table.getControlNumber(i), table.data().getLong(payload), table.data().getInt(payload + 8));
+	}
+
+	/**
+	 * The position of a record in the output.
+	 */
+	public static class Entry {
+
+		private final String controlNumber;
+
+		private final long offset;
+
+		private final int length;
+
+		Entry(String controlNumber, long offset, int length) {
+			this.controlNumber = controlNumber;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public String getControlNumber() {
+			return controlNumber;
+		}
+
+		/**
+		 * Gets the offset of the record's first byte in the output.
+		 * @return
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * Gets the length of the record in the output, including its line end.
+		 * @return
+		 */
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * Gets the offset of the record's last byte, the end of an inclusive range such as an HTTP <code>Range</code>.
+		 * @return
+		 */
+		public long getLastByte() {
+			return offset + length - 1;
+		}
+
+		@Override
+		public String toString() {
+			return controlNumber + "@" + offset + "+" + length;
+		}
+	}
+
+	/**
+	 * Accumulates entries in output order, and writes them out sorted.  Entries are held in primitive arrays, so a
+	 * builder costs a few dozen bytes per record.  Not thread-safe.
+	 */
+	public static class Builder {
+
+		private final ControlNumberTable.Builder table = new ControlNumberTable.Builder();
+
+		private long[] offsets = new long[256];
+
+		private int[] lengths = new int[256];
+
+		/**
+		 * Adds a record.
+		 * @param controlNumber the record's 001.
+		 * @param offset the offset of the record in the output.
+		 * @param length the length of the record in the output.
+		 * @return this builder.
+		 */
+		public Builder add(String controlNumber, long offset, int length) {
+			return add(controlNumber.getBytes(StandardCharsets.UTF_8), offset, length);
+		}
+
+		Builder add(byte[] controlNumber, long offset, int length) {
+			int i = table.add(controlNumber);
+			if ( i == offsets.length ) {
+				offsets = Arrays.copyOf(offsets, i * 2);
+				lengths = Arrays.copyOf(lengths, i * 2);
+			}
+			offsets[i] = offset;
+			lengths[i] = length;
+			return this;
+		}
+
+		/**
+		 * Adds every entry of an existing index, such as the part of an index saved by an earlier, unfinished
+		 * transformation.
+		 * @param index the index.
+		 * @return this builder.
+		 */
+		public Builder addAll(RecordIndex index) {
+			for( int i = 0; i < index.size(); i++ ) {
+				Entry entry = index.getEntry(i);
+				add(entry.getControlNumber(), entry.getOffset(), entry.getLength());
+			}
+			return this;
+		}
+
+		public int size() {
+			return table.size();
+		}
+
+		/**
+		 * Writes the index, sorted by control number, with duplicates in output order.
+		 * @param output the destination, which is not closed.
+		 * @throws IOException if the index could not be written.
+		 */
+		public void writeTo(OutputStream output) throws IOException {
+			table.writeTo(output, MAGIC, VERSION, (data, i) -> {
+				data.writeLong(offsets[i]);
+				data.writeInt(lengths[i]);
+			});
+		}
+
+		/**
+		 * Gets the index in its binary form.
+		 * @return
+		 */
+		public byte[] toByteArray() {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream( table.length(ENTRY_LENGTH) );
+			try {
+				writeTo(bytes);
+			} catch( IOException iox ) {
+				throw new IllegalStateException("Unable to write to memory", iox);
+			}
+			return bytes.toByteArray();
+		}
+
+		/**
+		 * Gets the index, ready for lookups.
+		 * @return
+		 */
+		public RecordIndex build() {
+			try {
+				return new RecordIndex( ByteBuffer.wrap(toByteArray()) );
+			} catch( IOException iox ) {
+				throw new IllegalStateException("Unable to read an index just written", iox);
+			}
+		}
+	}
+
+	/**
+	 * Looks up control numbers in an index file, printing the byte range of each record in the output.
+	 */
+	public static void main(String[] args) throws IOException {
+		if ( args.length < 2 ) {
+			System.err.println("Usage: RecordIndex indexfile controlnumber...");
+			System.exit(1);
+		}
+		RecordIndex index = open(new File(args[0]));
+		for( int i = 1; i < args.length; i++ ) {
+			Entry entry = index.find(args[i]);
+			System.out.println( entry != null ? args[i] + " bytes=" + entry.getOffset() + "-" + entry.getLastByte() : args[i] + " not found" );
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package edu.ncsu.lib.marc;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Passes the JSON output of a {@link MarcTransformer} through unchanged, adding the control number and position of
+ * every record to a {@link RecordIndex.Builder} as it goes.
+ * <p>
+ *  Both of marc4j's JSON formats write each record on a line of its own, with the 001 (which marc4j always moves to the
+ *  front) as the first field after the leader, so records are found by their line ends and their control numbers are
+ *  read from the first few hundred bytes of the line; nothing is parsed.  Records with no 001 are counted but not
+ *  indexed.
+ * </p>
+ * <p>
+ *  Positions are offsets into the JSON, so they are only useful for ranged reads if the JSON is stored as it is,
+ *  without compression.  Not thread-safe.
+ * </p>
+ */
+public class RecordIndexingOutputStream extends FilterOutputStream {
+
+	// how the 001 is introduced in MarcJsonWriter.MARC_JSON and MARC_IN_JSON respectively
+	private static final byte[][] MARKERS = {
+			"controlfield:[{ tag : \"001\", data : \"".getBytes(StandardCharsets.US_ASCII),
+			"\"fields\":[{\"001\":\"".getBytes(StandardCharsets.US_ASCII)
+	};
+
+	private static final int HEAD_LENGTH = 256;
+
+	private final RecordIndex.Builder index;
+
+	// the start of the current line
+	private final byte[] head = new byte[HEAD_LENGTH];
+
+	private int headLength = 0;
+
+	private long position;
+
+	private long lineStart;
+
+	private long unindexed = 0;
+
+	/**
+	 * Creates a stream whose positions start at 0.
+	 * @param output the destination of the JSON.
+	 * @param index the index to add records to.
+	 */
+	public RecordIndexingOutputStream(OutputStream output, RecordIndex.Builder index) {
+		this(output, index, 0);
+	}
+
+	/**
+	 * Creates a stream that adds to output already written elsewhere, such as the output of an earlier, unfinished
+	 * transformation.
+	 * @param output the destination of the JSON.
+	 * @param index the index to add records to.
+	 * @param startOffset the position of the first byte written to this stream in the complete output.
+	 */
+	public RecordIndexingOutputStream(OutputStream output, RecordIndex.Builder index, long startOffset) {
+		super(output);
+		this.index = index;
+		this.position = startOffset;
+		this.lineStart = startOffset;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+		observe((byte)b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		int end = off + len;
+		while( off < end ) {
+			if ( headLength < HEAD_LENGTH ) {
+				int copy = Math.min(HEAD_LENGTH - headLength, end - off);
+				System.arraycopy(b, off, head, headLength, copy);
+			}
+			int lineEnd = off;
+			while( lineEnd < end && b[lineEnd] != '\n' ) {
+				lineEnd++;
+			}
+			if ( lineEnd < end ) {
+				// the head only keeps what belongs to the line just ended; it is refilled from the next byte on
+				headLength = Math.min(HEAD_LENGTH, headLength + lineEnd + 1 - off);
+				position += lineEnd + 1 - off;
+				endLine();
+				off = lineEnd + 1;
+			} else {
+				headLength = Math.min(HEAD_LENGTH, headLength + end - off);
+				position += end - off;
+				off = end;
+			}
+		}
+	}
+
+	/**
+	 * Indexes a last record with no line end, then closes the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		if ( position > lineStart ) {
+			endLine();
+		}
+		super.close();
+	}
+
+	/**
+	 * Gets the number of records without a control number, which are not in the index.
+	 * @return
+	 */
+	public long getUnindexed() {
+		return unindexed;
+	}
+
+	/**
+	 * Gets the position just past the last byte written.
+	 * @return
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	private void observe(byte b) {
+		if ( headLength < HEAD_LENGTH ) {
+			head[headLength++] = b;
+		}
+		position++;
+		if ( b == '\n' ) {
+			endLine();
+		}
+	}
+
+	private void endLine() {
+		String controlNumber = controlNumber(head, headLength);
+		if ( controlNumber != null ) {
+			index.add(controlNumber, lineStart, (int)( position - lineStart ));
+		} else {
+			unindexed++;
+		}
+		lineStart = position;
+		headLength = 0;
+	}
+
+	/**
+	 * Finds the 001 in the start of a record's JSON.
+	 * @return the control number, or <code>null</code> if there isn't one.
+	 */
+	static String controlNumber(byte[] line, int length) {
+		for( byte[] marker : MARKERS ) {
+			int start = indexOf(line, length, marker);
+			if ( start < 0 ) {
+				continue;
+			}
+			start += marker.length;
+			int end = start;
+			while( end < length && line[end] != '"' ) {
+				// skip whatever is escaped, which might be a quote
+				end += line[end] == '\\' ? 2 : 1;
+			}
+			if ( end >= length ) {
+				return null;
+			}
+			return unescape( new String(line, start, end - start, StandardCharsets.UTF_8) );
+		}
+		return null;
+	}
+
+	private static int indexOf(byte[] line, int length, byte[] marker) {
+		outer:
+		for( int i = 0; i <= length - marker.length; i++ ) {
+			for( int j = 0; j < marker.length; j++ ) {
+				if ( line[i + j] != marker[j] ) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private static String unescape(String value) {
+		if ( value.indexOf('\\') < 0 ) {
+			return value;
+		}
+		StringBuilder result = new StringBuilder(value.length());
+		for( int i = 0; i < value.length(); i++ ) {
+			char c = value.charAt(i);
+			if ( c != '\\' || i + 1 >= value.length() ) {
+				result.append(c);
+				continue;
+			}
+			char escaped = value.charAt(++i);
+			switch( escaped ) {
+				case 'u':
+					if ( i + 4 < value.length() ) {
+						result.append( (char)Integer.parseInt(value.substring(i + 1, i + 5), 16) );
+						i += 4;
+					}
+					break;
+				case 'n':
+					result.append('\n');
+					break;
+				case 'r':
+					result.append('\r');
+					break;
+				case 't':
+					result.append('\t');
+					break;
+				case 'b':
+					result.append('\b');
+					break;
+				case 'f':
+					result.append('\f');
+					break;
+				default:
+					result.append(escaped);
+			}
+		}
+		return result.toString();
+	}
+}
@@ -0,0 +1,31 @@
+package edu.ncsu.lib.io;
+
+import java.util.Map;
+
+/**
+ * A {@link StageExecutor} that runs every task on a virtual thread of its own.
+ * <p>
+ *  Virtual threads are cheap enough that there is no need to bound them: a stage blocked on a pipe unmounts from its
+ *  carrier thread rather than holding it, so any number of pipelines can be started at once.  Only built with the
+ *  <code>virtualThreads</code> build property, on JDK 21 or later; {@link StageExecutors} loads it by name.
+ * </p>
+ */
+public class VirtualThreadStageExecutor implements StageExecutor {
+
+	private volatile boolean closed = false;
+
+	@Override
+	public void execute(Map<String, Runnable> tasks) {
+		if ( closed ) {
+			throw new IllegalStateException("Executor closed");
+		}
+		for( Map.Entry<String, Runnable> task : tasks.entrySet() ) {
+			Thread.ofVirtual().name(task.getKey()).start(task.getValue());
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+	}
+}
@@ -0,0 +1,228 @@
+package edu.ncsu.lib.aws.handlers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+import org.marc4j.MarcJsonWriter;
+
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.util.json.Jackson;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.io.ByteStreams;
+
+import edu.ncsu.lib.aws.s3.InMemoryS3Client;
+import edu.ncsu.lib.marc.MarcTransformer;
+
+public class BatchMARCHandlerTest {
+
+	@Test
+	public void testCombinesSmallObjects() throws IOException {
+		byte[] marc = ByteStreams.toByteArray( getClass().getResourceAsStream("/test.mrc") );
+		byte[] gzipped = gzip(marc);
+		// missing its last terminator, which mustn't join its last record to the next object's first
+		byte[] truncated = Arrays.copyOf(marc, marc.length - 1);
+		ByteArrayOutputStream combined = new ByteArrayOutputStream();
+		for( int i = 0; i < 3; i++ ) {
+			combined.write(marc);
+		}
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		new MarcTransformer().setFormat(MarcJsonWriter.MARC_IN_JSON).toJSON(new ByteArrayInputStream(combined.toByteArray()), expected);
+
+		InMemoryS3Client s3 = new InMemoryS3Client();
+		s3.putBytes("ingest-source", "a.mrc", marc);
+		s3.putBytes("ingest-source", "b.mrc.gz", gzipped);
+		s3.putBytes("ingest-source", "c.mrc", truncated);
+		BatchMARCHandler handler = new BatchMARCHandler();
+		handler.setClient(s3);
+		List<String> lines = new ArrayList<>();
+		SQSBatchResponse response = handler.handleRequest(new SQSBatchEvent(Arrays.asList(
+				message("m1", "a.mrc", marc.length),
+				message("m2", "b.mrc.gz", gzipped.length),
+				new SQSBatchEvent.Message("m3", "not an S3 event"),
+				message("m4", "missing.mrc", 100),
+				message("m5", "c.mrc", truncated.length))), context("request-1", lines::add));
+
+		List<String> failed = new ArrayList<>();
+		for( SQSBatchResponse.ItemFailure failure : response.getBatchItemFailures() ) {
+			failed.add(failure.getItemIdentifier());
+		}
+		assertEquals(Arrays.asList("m3", "m4"), failed);
+
+		byte[] output = s3.getBytes(MARCHandler.OUTPUT_BUCKET, "batches/request-1");
+		assertArrayEquals(expected.toByteArray(), output);
+		assertEquals(12, new String(output, "UTF-8").split("\n").length);
+		assertEquals("application/x-ndjson", s3.getStoredMetadata(MARCHandler.OUTPUT_BUCKET, "batches/request-1").getContentType());
+		// the output and its manifest, and nothing for each object
+		assertEquals(2, s3.getPuts());
+		assertEquals(0, s3.getOpenUploads());
+
+		JsonNode manifest = Jackson.jsonNodeOf( new String(s3.getBytes(MARCHandler.OUTPUT_BUCKET, "batches/request-1" + BatchMARCHandler.MANIFEST_SUFFIX), "UTF-8") );
+		assertEquals(MARCHandler.OUTPUT_BUCKET + "/batches/request-1", manifest.get("output").asText());
+		assertEquals(12, manifest.get("records").asLong());
+		JsonNode objects = manifest.get("objects");
+		assertEquals(3, objects.size());
+		String[] sources = { "a.mrc", "b.mrc.gz", "c.mrc" };
+		String[] messages = { "m1", "m2", "m5" };
+		long[] bytes = { marc.length, gzipped.length, truncated.length };
+		for( int i = 0; i < 3; i++ ) {
+			assertEquals("ingest-source/" + sources[i], objects.get(i).get("source").asText());
+			assertEquals(messages[i], objects.get(i).get("messageId").asText());
+			assertEquals(bytes[i], objects.get(i).get("bytes").asLong());
+			assertEquals(4 * i, objects.get(i).get("firstRecord").asLong());
+			assertEquals(4, objects.get(i).get("records").asLong());
+		}
+
+		int metrics = 0;
+		for( String line : lines ) {
+			if ( line.startsWith("{") ) {
+				JsonNode node = Jackson.jsonNodeOf(line);
+				assertEquals("batch", node.get("OutputMode").asText());
+				assertEquals(3, node.get("Objects").asLong());
+				assertEquals(12, node.get("Records").asLong());
+				assertEquals(marc.length + gzipped.length + truncated.length, node.get("SourceBytes").asLong());
+				assertEquals(expected.size(), node.get("OutputBytes").asLong());
+				metrics++;
+			}
+		}
+		assertEquals(1, metrics);
+	}
+
+	@Test
+	public void testSplitsLargeBatches() throws IOException {
+		byte[] marc = ByteStreams.toByteArray( getClass().getResourceAsStream("/test.mrc") );
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		new MarcTransformer().setFormat(MarcJsonWriter.MARC_IN_JSON).toJSON(new ByteArrayInputStream(marc), expected);
+
+		// the outputs stored when each object was fetched
+		List<Integer> putsBeforeGets = new ArrayList<>();
+		InMemoryS3Client s3 = new InMemoryS3Client() {
+			@Override
+			public S3Object getObject(GetObjectRequest request) {
+				putsBeforeGets.add(getPuts());
+				return super.getObject(request);
+			}
+		};
+		s3.putBytes("ingest-source", "a.mrc", marc);
+		s3.putBytes("ingest-source", "b.mrc", marc);
+		BatchMARCHandler handler = new BatchMARCHandler().setMaxBatchBytes(marc.length);
+		handler.setClient(s3);
+		SQSBatchResponse response = handler.handleRequest(new SQSBatchEvent(Arrays.asList(
+				message("m1", "a.mrc", marc.length),
+				message("m2", "b.mrc", marc.length))), context("request-2", (line) -> { }));
+
+		assertTrue(response.getBatchItemFailures().isEmpty());
+		// the second object isn't fetched until the first output and its manifest are stored
+		assertEquals(Arrays.asList(0, 2), putsBeforeGets);
+		for( int i = 1; i <= 2; i++ ) {
+			assertArrayEquals(expected.toByteArray(), s3.getBytes(MARCHandler.OUTPUT_BUCKET, "batches/request-2-" + i));
+			assertTrue(s3.doesObjectExist(MARCHandler.OUTPUT_BUCKET, "batches/request-2-" + i + BatchMARCHandler.MANIFEST_SUFFIX));
+		}
+		assertFalse(s3.doesObjectExist(MARCHandler.OUTPUT_BUCKET, "batches/request-2"));
+	}
+
+	@Test
+	public void testLargeObjectsAreTransformedAlone() throws IOException {
+		byte[] marc = ByteStreams.toByteArray( getClass().getResourceAsStream("/test.mrc") );
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		new MarcTransformer().toJSON(new ByteArrayInputStream(marc), expected);
+
+		InMemoryS3Client s3 = new InMemoryS3Client();
+		s3.putBytes("ingest-source", "large.mrc", marc);
+		BatchMARCHandler handler = new BatchMARCHandler().setMaxObjectSize(marc.length - 1);
+		handler.setClient(s3);
+		SQSBatchResponse response = handler.handleRequest(new SQSBatchEvent(Arrays.asList(
+				message("m1", "large.mrc", marc.length),
+				message("m2", "gone.mrc", marc.length))), context("request-3", (line) -> { }));
+
+		assertEquals(1, response.getBatchItemFailures().size());
+		assertEquals("m2", response.getBatchItemFailures().get(0).getItemIdentifier());
+		assertArrayEquals(expected.toByteArray(), s3.getBytes(MARCHandler.OUTPUT_BUCKET, "large.mrc"));
+		assertNull(s3.getBytes(MARCHandler.OUTPUT_BUCKET, "batches/request-3"));
+	}
+
+	@Test
+	public void testLargeObjectFailuresAreMatchedToTheirMessages() throws IOException {
+		byte[] marc = ByteStreams.toByteArray( getClass().getResourceAsStream("/test.mrc") );
+
+		InMemoryS3Client s3 = new InMemoryS3Client();
+		s3.putBytes("ingest-source", "large.mrc", marc);
+		BatchMARCHandler handler = new BatchMARCHandler().setMaxObjectSize(marc.length - 1);
+		handler.setClient(s3);
+		// a comma in a key must not shift which message a later failure is put down to
+		SQSBatchResponse response = handler.handleRequest(new SQSBatchEvent(Arrays.asList(
+				message("m1", "gone,1.mrc", marc.length),
+				message("m2", "large.mrc", marc.length),
+				message("m3", "gone.mrc", marc.length))), context("request-5", (line) -> { }));
+
+		List<String> failed = new ArrayList<>();
+		for( SQSBatchResponse.ItemFailure failure : response.getBatchItemFailures() ) {
+			failed.add(failure.getItemIdentifier());
+		}
+		assertEquals(Arrays.asList("m1", "m3"), failed);
+		assertTrue(s3.doesObjectExist(MARCHandler.OUTPUT_BUCKET, "large.mrc"));
+	}
+
+	@Test
+	public void testObjectsLargeOnceDecompressedAreTransformedAlone() throws IOException {
+		byte[] marc = ByteStreams.toByteArray( getClass().getResourceAsStream("/test.mrc") );
+		ByteArrayOutputStream many = new ByteArrayOutputStream();
+		for( int i = 0; i < 50; i++ ) {
+			many.write(marc);
+		}
+		byte[] gzipped = gzip(many.toByteArray());
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		new MarcTransformer().toJSON(new ByteArrayInputStream(many.toByteArray()), expected);
+
+		InMemoryS3Client s3 = new InMemoryS3Client();
+		s3.putBytes("ingest-source", "small.mrc", marc);
+		s3.putBytes("ingest-source", "expands.mrc.gz", gzipped);
+		// small enough as stored, but not once decompressed
+		BatchMARCHandler handler = new BatchMARCHandler().setMaxObjectSize(marc.length * 10);
+		assertTrue(gzipped.length < marc.length * 10);
+		handler.setClient(s3);
+		SQSBatchResponse response = handler.handleRequest(new SQSBatchEvent(Arrays.asList(
+				message("m1", "small.mrc", marc.length),
+				message("m2", "expands.mrc.gz", gzipped.length))), context("request-4", (line) -> { }));
+
+		assertTrue(response.getBatchItemFailures().isEmpty());
+		assertArrayEquals(expected.toByteArray(), s3.getBytes(MARCHandler.OUTPUT_BUCKET, "expands.mrc.gz"));
+		JsonNode manifest = Jackson.jsonNodeOf( new String(s3.getBytes(MARCHandler.OUTPUT_BUCKET, "batches/request-4" + BatchMARCHandler.MANIFEST_SUFFIX), "UTF-8") );
+		assertEquals(1, manifest.get("objects").size());
+		assertEquals("ingest-source/small.mrc", manifest.get("objects").get(0).get("source").asText());
+	}
+
+	private static SQSBatchEvent.Message message(String messageId, String key, long size) {
+		return new SQSBatchEvent.Message(messageId, S3Events.put("ingest-source", key, size).toJson());
+	}
+
+	private static LocalContext context(String requestId, LambdaLogger logger) {
+		return new LocalContext(0, 0, logger) {
+			@Override
+			public String getAwsRequestId() {
+				return requestId;
+			}
+		};
+	}
+
+	private static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try( GZIPOutputStream gzip = new GZIPOutputStream(compressed) ) {
+			gzip.write(data);
+		}
+		return compressed.toByteArray();
+	}
+}
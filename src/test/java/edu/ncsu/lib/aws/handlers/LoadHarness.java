@@ -0,0 +1,277 @@
+package edu.ncsu.lib.aws.handlers;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.services.lambda.runtime.events.S3Event;
+
+import edu.ncsu.lib.aws.s3.FileSystemS3Client;
+import edu.ncsu.lib.aws.s3.ShardedUploadOutputStream;
+import edu.ncsu.lib.io.MemoryMonitor;
+import edu.ncsu.lib.marc.SyntheticCorpus;
+
+/**
+ * Drives {@link MARCHandler} with events for large synthetic MARC21 objects, to see how it behaves at a given memory
+ * size and concurrency before it meets real traffic.  Runs entirely locally: objects are generated by
+ * {@link SyntheticCorpus} and kept on disk by a {@link FileSystemS3Client}.
+ * <p>
+ *  Usage: <code>LoadHarness [name=value ...]</code>, where the settings (and their defaults) are:
+ * </p>
+ * <ul>
+ *  <li><code>dir=build/loadtest</code>: where the buckets are kept.  Generated objects are reused by later runs with
+ *      the same corpus settings; the output bucket is emptied at the start of each run.</li>
+ *  <li><code>objects=4</code>: objects per event.</li>
+ *  <li><code>events=1</code>: events replayed, one after another, each with new objects.</li>
+ *  <li><code>size=64MB</code>: the size of each object (<code>KB</code>, <code>MB</code> or <code>GB</code>).</li>
+ *  <li><code>recordSize=1500</code>, <code>spread=0.5</code>, <code>marc8=0.1</code>, <code>seed=1</code>: the records;
+ *      see {@link SyntheticCorpus}.</li>
+ *  <li><code>mode=streaming</code>: <code>streaming</code>, <code>staged</code>, <code>compressed</code> or
+ *      <code>sharded</code>.</li>
+ *  <li><code>concurrency=4</code>: objects transformed at once; see {@link MARCHandler#setConcurrency(int)}.</li>
+ *  <li><code>memory=0</code>: the function's memory in MB, as the context reports it (run the JVM with a matching
+ *      <code>-Xmx</code>).</li>
+ *  <li><code>timeout=0</code>: the invocation's time limit in milliseconds, or 0 for none.</li>
+ *  <li><code>verbose=false</code>: print the handler's log.</li>
+ *  <li><code>memoryCsv=</code>: a file to write the memory measurements of the last 100 seconds to, as CSV; see
+ *      {@link MemoryMonitor#writeCsv(Appendable)}.</li>
+ * </ul>
+ * <p>
+ *  For each event, and over the whole run, it reports the throughput in source bytes per second; the latency of each
+ *  object, from the start of the invocation to its output being stored, at the 50th, 95th and 99th percentiles;
+ *  the peak heap in use, garbage collection and allocation, measured every 10ms by a {@link MemoryMonitor}; and the
+ *  peak growth of the temporary directory, where staged output spills.  Run the JVM with <code>-Djava.io.tmpdir</code> pointing at a directory of its own so nothing else is
+ *  counted.  <code>./gradlew loadTest -PloadArgs='...'</code> does that, with <code>-PloadHeap</code> for the heap.
+ * </p>
+ */
+public class LoadHarness {
+
+	private static final String SOURCE_BUCKET = "ingest-source";
+
+	private final Map<String, String> settings = new LinkedHashMap<>();
+
+	private final Map<String, Long> completed = new ConcurrentHashMap<>();
+
+	private final AtomicLong peakTemp = new AtomicLong();
+
+	private LoadHarness(String[] args) {
+		for( String[] setting : new String[][] { { "dir", "build/loadtest" }, { "objects", "4" }, { "events", "1" },
+				{ "size", "64MB" }, { "recordSize", "1500" }, { "spread", "0.5" }, { "marc8", "0.1" }, { "seed", "1" },
+				{ "mode", "streaming" }, { "concurrency", "4" }, { "memory", "0" }, { "timeout", "0" }, { "verbose", "false" }, { "memoryCsv", "" } } ) {
+			settings.put(setting[0], setting[1]);
+		}
+		for( String arg : args ) {
+			int equals = arg.indexOf('=');
+			if ( equals < 0 || !settings.containsKey(arg.substring(0, equals)) ) {
+				throw new IllegalArgumentException("Unknown setting: " + arg + "; expected one of " + settings.keySet());
+			}
+			settings.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		new LoadHarness(args).run();
+	}
+
+	private void run() throws IOException, InterruptedException {
+		File dir = new File(settings.get("dir"));
+		int objects = Integer.parseInt(settings.get("objects"));
+		int events = Integer.parseInt(settings.get("events"));
+		long size = parseSize(settings.get("size"));
+		String mode = settings.get("mode");
+		boolean verbose = Boolean.parseBoolean(settings.get("verbose"));
+		System.out.println("Settings: " + settings + ", max heap " + ( Runtime.getRuntime().maxMemory() >> 20 ) + "MB");
+
+		FileSystemS3Client s3 = new FileSystemS3Client(dir).setStoreListener( (bucket, key) -> {
+			if ( MARCHandler.OUTPUT_BUCKET.equals(bucket) ) {
+				completed.putIfAbsent(key, System.currentTimeMillis());
+			}
+		} );
+		delete( new File(dir, MARCHandler.OUTPUT_BUCKET) );
+
+		// generate what isn't there already
+		String corpus = String.format("synthetic/%s-%s-%s-%s-%d", settings.get("recordSize"), settings.get("spread"),
+				settings.get("marc8"), settings.get("seed"), size);
+		List<List<String>> batches = new ArrayList<>();
+		for( int e = 0; e < events; e++ ) {
+			List<String> keys = new ArrayList<>();
+			for( int o = 0; o < objects; o++ ) {
+				String key = corpus + "/" + e + "-" + o + ".mrc";
+				File file = s3.getFile(SOURCE_BUCKET, key);
+				if ( !file.isFile() ) {
+					generate(file, size, Long.parseLong(settings.get("seed")) * 1000003 + e * objects + o);
+				}
+				keys.add(key);
+			}
+			batches.add(keys);
+		}
+
+		MARCHandler handler = new MARCHandler()
+				.setConcurrency( Integer.parseInt(settings.get("concurrency")) )
+				.setStreamingUpload( !"staged".equals(mode) )
+				.setCompressOutput( "compressed".equals(mode) )
+				.setShardedOutput( "sharded".equals(mode) );
+		handler.setClient(s3);
+
+		File temp = new File(System.getProperty("java.io.tmpdir"));
+		long tempBaseline = directorySize(temp);
+		// 100 seconds of measurements at the end of the run, and the peaks over all of it
+		MemoryMonitor memory = new MemoryMonitor(10000);
+		Thread sampler = new Thread( () -> {
+			while( !Thread.currentThread().isInterrupted() ) {
+				memory.run();
+				peakTemp.accumulateAndGet(directorySize(temp) - tempBaseline, Math::max);
+				try {
+					Thread.sleep(10);
+				} catch( InterruptedException ix ) {
+					return;
+				}
+			}
+		}, "load-sampler");
+		sampler.setDaemon(true);
+		sampler.start();
+
+		List<Long> latencies = new ArrayList<>();
+		long totalBytes = 0;
+		long totalMillis = 0;
+		int failures = 0;
+		for( int e = 0; e < events; e++ ) {
+			List<String> keys = batches.get(e);
+			Object[] keysAndSizes = new Object[keys.size() * 2];
+			long bytes = 0;
+			for( int i = 0; i < keys.size(); i++ ) {
+				keysAndSizes[i * 2] = keys.get(i);
+				keysAndSizes[i * 2 + 1] = s3.getFile(SOURCE_BUCKET, keys.get(i)).length();
+				bytes += (Long)keysAndSizes[i * 2 + 1];
+			}
+			S3Event event = S3Events.put(SOURCE_BUCKET, keysAndSizes);
+			LocalContext context = new LocalContext( Integer.parseInt(settings.get("timeout")), Integer.parseInt(settings.get("memory")),
+					(line) -> { if ( verbose ) { System.out.println(line); } } );
+			long start = System.currentTimeMillis();
+			String result = handler.handleRequest(event, context);
+			long elapsed = System.currentTimeMillis() - start;
+
+			List<Long> eventLatencies = new ArrayList<>();
+			for( String key : keys ) {
+				Long done = completed.get( "sharded".equals(mode) ? key + "/" + ShardedUploadOutputStream.MANIFEST_NAME : key );
+				if ( done != null ) {
+					eventLatencies.add(done - start);
+				}
+			}
+			for( String entry : result.split(",") ) {
+				if ( entry.startsWith("FAILED:") || entry.startsWith("UNFINISHED:") || entry.startsWith("CONTINUED:") ) {
+					failures++;
+				}
+			}
+			latencies.addAll(eventLatencies);
+			totalBytes += bytes;
+			totalMillis += elapsed;
+			System.out.printf("Event %d: %d objects, %.1fMB in %dms: %.1fMB/s; latency %s%n", e + 1, keys.size(), bytes / 1048576.0,
+					elapsed, rate(bytes, elapsed), percentiles(eventLatencies));
+			if ( verbose ) {
+				System.out.println("Result: " + result);
+			}
+		}
+		sampler.interrupt();
+		sampler.join();
+
+		System.out.printf("Total: %d objects, %.1fMB in %dms: %.1fMB/s; latency %s; %d not finished%n", latencies.size(),
+				totalBytes / 1048576.0, totalMillis, rate(totalBytes, totalMillis), percentiles(latencies), failures);
+		System.out.printf("Peak heap used %.1fMB of %.1fMB; peak temporary disk %.1fMB; %.1fMB read from and %.1fMB written to S3%n",
+				memory.getMax() / 1048576.0, Runtime.getRuntime().maxMemory() / 1048576.0, peakTemp.get() / 1048576.0,
+				s3.getBytesRead() / 1048576.0, s3.getBytesWritten() / 1048576.0);
+		System.out.println("Memory: " + memory.summarize());
+		String csv = settings.get("memoryCsv");
+		if ( !csv.isEmpty() ) {
+			try( Writer writer = new OutputStreamWriter(new FileOutputStream(csv), StandardCharsets.UTF_8) ) {
+				memory.writeCsv(writer);
+			}
+		}
+		System.out.println( WarmResources.describe() );
+	}
+
+	private void generate(File file, long size, long seed) throws IOException {
+		file.getParentFile().mkdirs();
+		File partial = new File(file.getPath() + ".partial");
+		SyntheticCorpus corpus = new SyntheticCorpus(seed)
+				.setRecordSize( Integer.parseInt(settings.get("recordSize")) )
+				.setSizeSpread( Double.parseDouble(settings.get("spread")) )
+				.setMarc8Fraction( Double.parseDouble(settings.get("marc8")) );
+		long start = System.currentTimeMillis();
+		long records;
+		try( OutputStream output = new BufferedOutputStream(new FileOutputStream(partial), 1024 * 1024) ) {
+			records = corpus.writeTo(output, size);
+		}
+		if ( !partial.renameTo(file) ) {
+			throw new IOException("Unable to rename " + partial + " to " + file);
+		}
+		System.out.printf("Generated %s: %d records, %d bytes in %dms%n", file, records, file.length(), System.currentTimeMillis() - start);
+	}
+
+	private static long parseSize(String size) {
+		String upper = size.trim().toUpperCase();
+		long unit = 1;
+		if ( upper.endsWith("KB") ) {
+			unit = 1L << 10;
+		} else if ( upper.endsWith("MB") ) {
+			unit = 1L << 20;
+		} else if ( upper.endsWith("GB") ) {
+			unit = 1L << 30;
+		}
+		return Long.parseLong( unit == 1 ? upper : upper.substring(0, upper.length() - 2) ) * unit;
+	}
+
+	private static double rate(long bytes, long millis) {
+		return millis == 0 ? 0 : bytes / 1048576.0 / ( millis / 1000.0 );
+	}
+
+	/**
+	 * Describes the 50th, 95th and 99th percentiles and the maximum, by the nearest-rank method.
+	 */
+	private static String percentiles(List<Long> values) {
+		if ( values.isEmpty() ) {
+			return "n/a";
+		}
+		List<Long> sorted = new ArrayList<>(values);
+		Collections.sort(sorted);
+		StringBuilder description = new StringBuilder();
+		for( int p : new int[] { 50, 95, 99 } ) {
+			int rank = (int)Math.ceil(p / 100.0 * sorted.size());
+			description.append("p").append(p).append(" ").append(sorted.get(Math.max(0, rank - 1))).append("ms, ");
+		}
+		return description.append("max ").append(sorted.get(sorted.size() - 1)).append("ms").toString();
+	}
+
+	private static long directorySize(File directory) {
+		long size = 0;
+		File[] files = directory.listFiles();
+		if ( files != null ) {
+			for( File file : files ) {
+				size += file.isDirectory() ? directorySize(file) : file.length();
+			}
+		}
+		return size;
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if ( files != null ) {
+			for( File child : files ) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,92 @@
+package edu.ncsu.lib.aws.handlers;
+
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+
+/**
+ * A Lambda context for running handlers outside Lambda, in benchmarks and load tests.
+ */
+public class LocalContext implements Context {
+
+	private final long deadline;
+
+	private final int memoryLimitInMB;
+
+	private final LambdaLogger logger;
+
+	/**
+	 * Creates a context.
+	 * @param timeoutMillis the time the invocation is given, or 0 for no deadline.
+	 * @param memoryLimitInMB the memory the function is given, or 0 if it isn't known.
+	 * @param logger where the handler's log lines go.
+	 */
+	public LocalContext(int timeoutMillis, int memoryLimitInMB, LambdaLogger logger) {
+		this.deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : 0;
+		this.memoryLimitInMB = memoryLimitInMB;
+		this.logger = logger;
+	}
+
+	/**
+	 * Creates a context with no deadline and a logger that discards everything.
+	 */
+	public LocalContext() {
+		this(0, 0, (line) -> { });
+	}
+
+	@Override
+	public String getAwsRequestId() {
+		return null;
+	}
+
+	@Override
+	public String getLogGroupName() {
+		return null;
+	}
+
+	@Override
+	public String getLogStreamName() {
+		return null;
+	}
+
+	@Override
+	public String getFunctionName() {
+		return "local";
+	}
+
+	@Override
+	public String getFunctionVersion() {
+		return null;
+	}
+
+	@Override
+	public String getInvokedFunctionArn() {
+		return null;
+	}
+
+	@Override
+	public CognitoIdentity getIdentity() {
+		return null;
+	}
+
+	@Override
+	public ClientContext getClientContext() {
+		return null;
+	}
+
+	@Override
+	public int getRemainingTimeInMillis() {
+		return deadline == 0 ? 0 : (int)Math.max(1, deadline - System.currentTimeMillis());
+	}
+
+	@Override
+	public int getMemoryLimitInMB() {
+		return memoryLimitInMB;
+	}
+
+	@Override
+	public LambdaLogger getLogger() {
+		return logger;
+	}
+}
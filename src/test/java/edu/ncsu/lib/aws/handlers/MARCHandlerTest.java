@@ -1,5 +1,8 @@
 package edu.ncsu.lib.aws.handlers;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
@@ -7,12 +10,28 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import org.junit.BeforeClass;
 import org.junit.Test;
+import org.marc4j.MarcJsonWriter;
 
 import com.amazonaws.services.lambda.runtime.ClientContext;
 import com.amazonaws.services.lambda.runtime.CognitoIdentity;
@@ -21,14 +40,40 @@ import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.events.S3Event;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.event.S3EventNotification;
+import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.PutObjectResult;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.util.json.Jackson;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.io.ByteStreams;
+
+import edu.ncsu.lib.aws.s3.FileSystemS3Client;
+import edu.ncsu.lib.aws.s3.InMemoryS3Client;
+import edu.ncsu.lib.marc.MarcRecordView;
+import edu.ncsu.lib.marc.MarcTransformer;
+import edu.ncsu.lib.marc.RawRecordReader;
+import edu.ncsu.lib.marc.RecordHashes;
+import edu.ncsu.lib.marc.RecordIndex;
+import edu.ncsu.lib.marc.SyntheticCorpus;
 
 public class MARCHandlerTest {
 
+	// test.mrc, and the JSON the transformer makes of it by default
+	private static byte[] marc;
+
+	private static byte[] expected;
+
+	@BeforeClass
+	public static void loadTestRecords() throws IOException {
+		try( InputStream input = MARCHandlerTest.class.getResourceAsStream("/test.mrc") ) {
+			marc = ByteStreams.toByteArray(input);
+		}
+		expected = expectedJson(marc);
+	}
+
 	@Test
 	public void testHandler() {
 		try {
@@ -37,7 +82,8 @@ public class MARCHandlerTest {
 			
 			MARCHandler handler = new MARCHandler();
 			handler.setClient( getMockClient() );
-			handler.handleRequest(event, getFakeContext());
+			String result = handler.handleRequest(event, getFakeContext());
+			assertFalse(result.startsWith("FAILED:"));
 			assertTrue("Looks like we made it", true);
 		} catch( IOException iox ) {
 			throw new RuntimeException("Unable to read test data from put-test.json", iox);
@@ -46,7 +92,395 @@ public class MARCHandlerTest {
 		
 	}
 	
+	@Test
+	public void testStreamingUpload() throws IOException {
+		InMemoryS3Client s3 = s3With("NCSU/jiminy-crickets.mrc", marc);
+		S3EventNotification notification = S3Event.parseJson( readResource("put-test.json") );
+		MARCHandler handler = new MARCHandler().setPartSize(1024).setPartsInFlight(2);
+		handler.setClient(s3);
+		handler.handleRequest(new S3Event(notification.getRecords()), getFakeContext());
+
+		assertArrayEquals(expected, s3.getBytes(MARCHandler.OUTPUT_BUCKET, "NCSU/jiminy-crickets.mrc"));
+		assertEquals("application/json", s3.getStoredMetadata(MARCHandler.OUTPUT_BUCKET, "NCSU/jiminy-crickets.mrc").getContentType());
+		assertTrue(s3.getPartUploads() > 1);
+		assertEquals(0, s3.getOpenUploads());
+	}
+
+	@Test
+	public void testDefaultsMakeNoCheckpointRequests() throws IOException {
+		AtomicInteger lookups = new AtomicInteger();
+		InMemoryS3Client s3 = new InMemoryS3Client() {
+			@Override
+			public boolean doesObjectExist(String bucketName, String key) {
+				lookups.incrementAndGet();
+				return super.doesObjectExist(bucketName, key);
+			}
+		};
+		s3.putBytes("ingest-source", "plain.mrc", marc);
+		MARCHandler handler = new MARCHandler();
+		handler.setClient(s3);
+		assertFalse(handler.isCheckpointing());
+		String result = handler.handleRequest(event("plain.mrc", marc.length), getFakeContext(60000));
+		assertFalse(result, result.startsWith("FAILED:"));
+		// one GET for the source and one PUT for the output, as before checkpoints
+		assertEquals(1, s3.getGets());
+		assertEquals(0, lookups.get());
+		assertEquals(1, s3.getPuts());
+	}
+
+	@Test
+	public void testStagedUpload() throws IOException {
+		// held in memory by default; a threshold below one chunk puts everything on disk
+		for( long threshold : new long[] { 0, 1 } ) {
+			InMemoryS3Client s3 = s3With("staged.mrc", marc);
+			MARCHandler handler = new MARCHandler().setStreamingUpload(false).setSpillThreshold(threshold);
+			handler.setClient(s3);
+			handler.handleRequest(event("staged.mrc", marc.length), getFakeContext());
+			assertArrayEquals(expected, s3.getBytes(MARCHandler.OUTPUT_BUCKET, "staged.mrc"));
+			assertEquals(1, s3.getPuts());
+		}
+	}
+
+	@Test
+	public void testCompressedOutput() throws IOException {
+		InMemoryS3Client s3 = s3With("compressed.mrc", marc);
+		MARCHandler handler = new MARCHandler().setCompressOutput(true).setCompressionLevel(9);
+		handler.setClient(s3);
+		handler.handleRequest(event("compressed.mrc", marc.length), getFakeContext());
+
+		byte[] stored = s3.getBytes(MARCHandler.OUTPUT_BUCKET, "compressed.mrc");
+		assertTrue(stored.length < expected.length);
+		assertArrayEquals(expected, ByteStreams.toByteArray( new GZIPInputStream(new ByteArrayInputStream(stored)) ));
+		assertEquals("gzip", s3.getStoredMetadata(MARCHandler.OUTPUT_BUCKET, "compressed.mrc").getContentEncoding());
+		assertEquals("application/json", s3.getStoredMetadata(MARCHandler.OUTPUT_BUCKET, "compressed.mrc").getContentType());
+	}
+
+	@Test
+	public void testWarmInvocationsReuseTransformers() throws IOException {
+		InMemoryS3Client s3 = s3With("warm.mrc", marc);
+		long reused = WarmResources.transformers().getReused();
+		// a compressed invocation, then a plain one, which must not inherit the compression
+		MARCHandler compressing = new MARCHandler().setCompressOutput(true);
+		compressing.setClient(s3);
+		compressing.handleRequest(event("warm.mrc", marc.length), getFakeContext());
+		MARCHandler plain = new MARCHandler();
+		plain.setClient(s3);
+		plain.handleRequest(event("warm.mrc", marc.length), getFakeContext());
+
+		assertArrayEquals(expected, s3.getBytes(MARCHandler.OUTPUT_BUCKET, "warm.mrc"));
+		assertTrue(WarmResources.transformers().getReused() > reused);
+		assertTrue(WarmResources.getInvocations() >= 2);
+		// the tests supply their own client, so the shared one is never created
+		assertEquals(0, WarmResources.getClientsCreated());
+	}
+
+	@Test
+	public void testFileSystemStandIn() throws IOException {
+		byte[] synthetic = new SyntheticCorpus(3).setRecordSize(1000).setMarc8Fraction(0.2).generate(256 * 1024);
+		byte[] expected = expectedJson(synthetic);
+
+		File root = Files.createTempDirectory("fs-s3").toFile();
+		FileSystemS3Client s3 = new FileSystemS3Client(root);
+		File source = s3.getFile("ingest-source", "synthetic/a.mrc");
+		source.getParentFile().mkdirs();
+		Files.write(source.toPath(), synthetic);
+		for( boolean streaming : new boolean[] { true, false } ) {
+			MARCHandler handler = new MARCHandler().setStreamingUpload(streaming).setPartSize(64 * 1024)
+					.setRangedGetThreshold(100 * 1024).setRangeSize(32 * 1024);
+			handler.setClient(s3);
+			String result = handler.handleRequest(S3Events.put("ingest-source", "synthetic/a.mrc", synthetic.length), new LocalContext());
+			assertFalse(result, result.contains("FAILED") || result.contains("UNFINISHED"));
+			File output = s3.getFile(MARCHandler.OUTPUT_BUCKET, "synthetic/a.mrc");
+			assertArrayEquals(expected, Files.readAllBytes(output.toPath()));
+			output.delete();
+		}
+		assertEquals(0, new File(root, ".uploads").list().length);
+	}
+
+	@Test
+	public void testShardedOutput() throws IOException {
+		ByteArrayOutputStream ndjson = new ByteArrayOutputStream();
+		new MarcTransformer().setFormat(MarcJsonWriter.MARC_IN_JSON).toJSON(new ByteArrayInputStream(marc), ndjson);
+
+		InMemoryS3Client s3 = s3With("sharded.mrc", marc);
+		MARCHandler handler = new MARCHandler().setShardedOutput(true).setShardRecords(3);
+		handler.setClient(s3);
+		handler.handleRequest(event("sharded.mrc", marc.length), getFakeContext());
+
+		ByteArrayOutputStream joined = new ByteArrayOutputStream();
+		joined.write( s3.getBytes(MARCHandler.OUTPUT_BUCKET, "sharded.mrc/part-00000.ndjson") );
+		joined.write( s3.getBytes(MARCHandler.OUTPUT_BUCKET, "sharded.mrc/part-00001.ndjson") );
+		assertArrayEquals(ndjson.toByteArray(), joined.toByteArray());
+		assertEquals("application/x-ndjson", s3.getStoredMetadata(MARCHandler.OUTPUT_BUCKET, "sharded.mrc/part-00000.ndjson").getContentType());
+		String manifest = new String(s3.getBytes(MARCHandler.OUTPUT_BUCKET, "sharded.mrc/manifest.json"), "UTF-8");
+		assertEquals(4, Jackson.jsonNodeOf(manifest).get("records").asLong());
+		assertEquals(2, Jackson.jsonNodeOf(manifest).get("shards").size());
+	}
+
+	@Test
+	public void testLargeObjectsAreReadInRanges() throws IOException {
+		InMemoryS3Client s3 = s3With("ranged.mrc", marc);
+		MARCHandler handler = new MARCHandler().setRangedGetThreshold(1024).setRangeSize(2048).setRangePrefetch(3);
+		handler.setClient(s3);
+		handler.handleRequest(event("ranged.mrc", marc.length), getFakeContext());
+
+		assertArrayEquals(expected, s3.getBytes(MARCHandler.OUTPUT_BUCKET, "ranged.mrc"));
+		assertEquals((marc.length + 2047) / 2048, s3.getGets());
+	}
+
+	@Test
+	public void testTransformResumesFromCheckpoint() throws IOException {
+		byte[] data = repeat(marc, 500);
+		byte[] expected = expectedJson(data);
+
+		InMemoryS3Client s3 = s3With("big.mrc", data);
+		// a checkpoint margin as long as the time remaining stops the transformation after the first batch
+		MARCHandler handler = new MARCHandler().setPartSize(64 * 1024).setCheckpointing(true).setDeadlineMargin(0).setCheckpointMargin(60000);
+		handler.setClient(s3);
+		String result = handler.handleRequest(event("big.mrc", data.length), getFakeContext(60000));
+		assertTrue(result, result.startsWith("CONTINUED:ingest-source/big.mrc@"));
+		assertTrue(s3.doesObjectExist("ingest-source", "checkpoints/big.mrc"));
+		assertFalse(s3.doesObjectExist(MARCHandler.OUTPUT_BUCKET, "big.mrc"));
+		assertEquals(1, s3.getOpenUploads());
+
+		// the checkpoint's creation triggers the next invocation
+		handler.setCheckpointMargin(MARCHandler.DEFAULT_CHECKPOINT_MARGIN);
+		result = handler.handleRequest(event("checkpoints/big.mrc", 100), getFakeContext());
+		assertFalse(result, result.contains(":"));
+		assertArrayEquals(expected, s3.getBytes(MARCHandler.OUTPUT_BUCKET, "big.mrc"));
+		assertFalse(s3.doesObjectExist("ingest-source", "checkpoints/big.mrc"));
+		assertEquals(0, s3.getOpenUploads());
+
+		// a late duplicate of the continuation has nothing to do
+		result = handler.handleRequest(event("checkpoints/big.mrc", 100), getFakeContext());
+		assertEquals("SKIPPED:ingest-source/checkpoints/big.mrc", result);
+	}
+
+	@Test
+	public void testIndexSurvivesCheckpoint() throws IOException {
+		byte[] data = repeat(marc, 500);
+		InMemoryS3Client s3 = s3With("indexed.mrc", data);
+		MARCHandler handler = new MARCHandler().setRecordIndex(true).setPartSize(64 * 1024).setCheckpointing(true).setDeadlineMargin(0).setCheckpointMargin(60000);
+		handler.setClient(s3);
+		String result = handler.handleRequest(event("indexed.mrc", data.length), getFakeContext(60000));
+		assertTrue(result, result.startsWith("CONTINUED:"));
+		// kept out of the checkpoint prefix, so that saving it doesn't trigger a continuation of its own
+		assertTrue(s3.doesObjectExist("ingest-source", "checkpoint-parts/indexed.mrc.idx"));
+		assertFalse(s3.doesObjectExist("ingest-source", "checkpoints/indexed.mrc.idx"));
+
+		// and its event, should the trigger cover it anyway, leaves the checkpoint alone
+		int puts = s3.getPuts();
+		result = handler.handleRequest(event("checkpoint-parts/indexed.mrc.idx", 100), getFakeContext());
+		assertEquals("SKIPPED:ingest-source/checkpoint-parts/indexed.mrc.idx", result);
+		assertEquals(puts, s3.getPuts());
+		assertTrue(s3.doesObjectExist("ingest-source", "checkpoints/indexed.mrc"));
+		assertTrue(s3.doesObjectExist("ingest-source", "checkpoint-parts/indexed.mrc.idx"));
+
+		handler.setCheckpointMargin(MARCHandler.DEFAULT_CHECKPOINT_MARGIN);
+		handler.handleRequest(event("checkpoints/indexed.mrc", 100), getFakeContext());
+		assertFalse(s3.doesObjectExist("ingest-source", "checkpoint-parts/indexed.mrc.idx"));
+
+		byte[] output = s3.getBytes(MARCHandler.OUTPUT_BUCKET, "indexed.mrc");
+		RecordIndex index = RecordIndex.read( new ByteArrayInputStream(s3.getBytes(MARCHandler.OUTPUT_BUCKET, "indexed.mrc.idx")) );
+		assertEquals(2000, index.size());
+		long total = 0;
+		for( int i = 0; i < index.size(); i++ ) {
+			RecordIndex.Entry entry = index.getEntry(i);
+			String record = new String(output, (int)entry.getOffset(), entry.getLength(), StandardCharsets.UTF_8);
+			assertTrue(record, record.startsWith("{leader:"));
+			assertTrue(record, record.contains("\"" + entry.getControlNumber() + "\""));
+			total += entry.getLength();
+		}
+		assertEquals(output.length, total);
+		assertEquals(0, index.find("ocm00000NEW").getOffset());
+	}
+
+	@Test
+	public void testIncrementalTransformation() throws IOException {
+		InMemoryS3Client s3 = s3With("catalog.mrc", marc);
+		MARCHandler handler = new MARCHandler().setIncremental(true).setRecordIndex(true);
+		handler.setClient(s3);
+		handler.handleRequest(event("catalog.mrc", marc.length), getFakeContext());
+		assertArrayEquals(expected, s3.getBytes(MARCHandler.OUTPUT_BUCKET, "catalog.mrc"));
+		byte[] index = s3.getBytes(MARCHandler.OUTPUT_BUCKET, "catalog.mrc.idx");
+		assertEquals(4, RecordIndex.read(new ByteArrayInputStream(index)).size());
+		assertFalse(s3.doesObjectExist(MARCHandler.OUTPUT_BUCKET, "catalog.mrc.delta"));
+		assertEquals(0, s3.getBytes(MARCHandler.OUTPUT_BUCKET, "catalog.mrc.deleted").length);
+		RecordHashes hashes = RecordHashes.read( new ByteArrayInputStream(s3.getBytes(MARCHandler.OUTPUT_BUCKET, "catalog.mrc.hashes")) );
+		assertEquals(4, hashes.size());
+
+		// the same file without its last record: nothing to transform, one deletion
+		RawRecordReader reader = new RawRecordReader(new ByteArrayInputStream(marc));
+		ByteArrayOutputStream shorter = new ByteArrayOutputStream();
+		for( int i = 0; i < 3; i++ ) {
+			shorter.write(reader.next());
+		}
+		String lastControlNumber = new MarcRecordView(reader.next()).getControlNumber();
+		s3.putBytes("ingest-source", "catalog.mrc", shorter.toByteArray());
+		handler.handleRequest(event("catalog.mrc", shorter.size()), getFakeContext());
+		assertEquals(0, s3.getBytes(MARCHandler.OUTPUT_BUCKET, "catalog.mrc.delta").length);
+		assertEquals(lastControlNumber + "\n", new String(s3.getBytes(MARCHandler.OUTPUT_BUCKET, "catalog.mrc.deleted"), StandardCharsets.UTF_8));
+		hashes = RecordHashes.read( new ByteArrayInputStream(s3.getBytes(MARCHandler.OUTPUT_BUCKET, "catalog.mrc.hashes")) );
+		assertEquals(3, hashes.size());
+		// the full output and its index are left as they were
+		assertArrayEquals(expected, s3.getBytes(MARCHandler.OUTPUT_BUCKET, "catalog.mrc"));
+		assertArrayEquals(index, s3.getBytes(MARCHandler.OUTPUT_BUCKET, "catalog.mrc.idx"));
+
+		// a changed record, and the deleted one back again, go to the delta
+		byte[] first = new RawRecordReader(new ByteArrayInputStream(marc)).next();
+		byte[] changed = Arrays.copyOf(first, first.length);
+		changed[first.length - 3] = changed[first.length - 3] == 'x' ? (byte)'y' : (byte)'x';
+		ByteArrayOutputStream edited = new ByteArrayOutputStream();
+		edited.write(changed);
+		edited.write(marc, first.length, marc.length - first.length);
+		s3.putBytes("ingest-source", "catalog.mrc", edited.toByteArray());
+		handler.handleRequest(event("catalog.mrc", edited.size()), getFakeContext());
+		String delta = new String(s3.getBytes(MARCHandler.OUTPUT_BUCKET, "catalog.mrc.delta"), StandardCharsets.UTF_8);
+		assertEquals(2, delta.split("\n").length);
+		assertTrue(delta.contains(lastControlNumber));
+		assertArrayEquals(expected, s3.getBytes(MARCHandler.OUTPUT_BUCKET, "catalog.mrc"));
+	}
+
+	@Test
+	public void testCompressedInputIsDecompressed() throws IOException {
+		InMemoryS3Client s3 = s3With("gzipped.mrc.gz", gzip(marc));
+		ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+		try( DeflaterOutputStream output = new DeflaterOutputStream(deflated) ) {
+			output.write(marc);
+		}
+		s3.putBytes("ingest-source", "deflated.mrc", deflated.toByteArray());
+		MARCHandler handler = new MARCHandler();
+		handler.setClient(s3);
+		String result = handler.handleRequest(event("gzipped.mrc.gz", 100, "deflated.mrc", 100), getFakeContext());
+
+		assertFalse(result, result.contains("FAILED:"));
+		assertArrayEquals(expected, s3.getBytes(MARCHandler.OUTPUT_BUCKET, "gzipped.mrc.gz"));
+		assertArrayEquals(expected, s3.getBytes(MARCHandler.OUTPUT_BUCKET, "deflated.mrc"));
+	}
+
+	@Test
+	public void testMetricsAreLoggedForEachObject() throws IOException {
+		byte[] gzipped = gzip(marc);
+
+		InMemoryS3Client s3 = s3With("plain.mrc", marc, "gzipped.mrc.gz", gzipped);
+		MARCHandler handler = new MARCHandler();
+		handler.setClient(s3);
+		List<String> lines = new ArrayList<>();
+		handler.handleRequest(event("plain.mrc", marc.length, "gzipped.mrc.gz", gzipped.length), new LocalContext(60000, 512, lines::add));
+
+		Map<String, JsonNode> metrics = new HashMap<>();
+		for( String line : lines ) {
+			if ( line.startsWith("{") ) {
+				JsonNode node = Jackson.jsonNodeOf(line);
+				metrics.put(node.get("Object").asText(), node);
+			}
+		}
+		assertEquals(2, metrics.size());
+		for( String key : new String[] { "plain.mrc", "gzipped.mrc.gz" } ) {
+			JsonNode node = metrics.get("ingest-source/" + key);
+			JsonNode directive = node.get("_aws").get("CloudWatchMetrics").get(0);
+			assertEquals(MARCHandler.DEFAULT_METRICS_NAMESPACE, directive.get("Namespace").asText());
+			assertEquals("[[\"FunctionName\",\"OutputMode\"]]", directive.get("Dimensions").toString());
+			// every metric is declared, and has a value
+			List<String> names = new ArrayList<>();
+			for( JsonNode metric : directive.get("Metrics") ) {
+				names.add( metric.get("Name").asText() );
+				assertTrue(metric.get("Name").asText(), node.get(metric.get("Name").asText()).isNumber());
+			}
+			assertTrue(names.toString(), names.containsAll( Arrays.asList("SourceBytes", "OutputBytes", "Records", "FetchTime",
+					"TransformTime", "UploadTime", "PeakHeapUsed", "PeakHeapUtilization", "RemainingTime") ));
+			assertEquals("local", node.get("FunctionName").asText());
+			assertEquals("streaming", node.get("OutputMode").asText());
+			assertEquals("STORED", node.get("Outcome").asText());
+			assertEquals(key.endsWith(".gz") ? gzipped.length : marc.length, node.get("SourceBytes").asLong());
+			assertEquals(expected.length, node.get("OutputBytes").asLong());
+			assertEquals(4, node.get("Records").asLong());
+			assertTrue(node.get("PeakHeapUsed").asLong() > 0);
+			assertTrue(node.get("PeakHeapUtilization").asDouble() > 0);
+			long remaining = node.get("RemainingTime").asLong();
+			assertTrue(remaining > 0 && remaining <= 60000);
+		}
+
+		lines.clear();
+		handler.setMetricsNamespace(null);
+		handler.handleRequest(event("plain.mrc", marc.length), new LocalContext(60000, 512, lines::add));
+		for( String line : lines ) {
+			assertFalse(line, line.startsWith("{"));
+		}
+	}
+
+	@Test
+	public void testCompressedInputResumesFromCheckpoint() throws IOException {
+		byte[] data = repeat(marc, 500);
+		byte[] expected = expectedJson(data);
+		byte[] compressed = gzip(data);
+
+		InMemoryS3Client s3 = s3With("big.mrc.gz", compressed);
+		MARCHandler handler = new MARCHandler().setPartSize(64 * 1024).setCheckpointing(true).setDeadlineMargin(0).setCheckpointMargin(60000);
+		handler.setClient(s3);
+		String result = handler.handleRequest(event("big.mrc.gz", compressed.length), getFakeContext(60000));
+		assertTrue(result, result.startsWith("CONTINUED:ingest-source/big.mrc.gz@"));
+
+		handler.setCheckpointMargin(MARCHandler.DEFAULT_CHECKPOINT_MARGIN);
+		result = handler.handleRequest(event("checkpoints/big.mrc.gz", 100), getFakeContext());
+		assertFalse(result, result.contains(":"));
+		assertArrayEquals(expected, s3.getBytes(MARCHandler.OUTPUT_BUCKET, "big.mrc.gz"));
+		assertFalse(s3.doesObjectExist("ingest-source", "checkpoints/big.mrc.gz"));
+	}
+
+	@Test
+	public void testObjectsAreReportedInEventOrder() throws IOException {
+		InMemoryS3Client s3 = new InMemoryS3Client();
+		for( String key : new String[] { "a.mrc", "b.mrc", "c.mrc" } ) {
+			s3.putBytes("ingest-source", key, marc);
+		}
+		MARCHandler handler = new MARCHandler().setConcurrency(2);
+		handler.setClient(s3);
+		String result = handler.handleRequest(event("a.mrc", 10, "missing.mrc", 5000, "b.mrc", 20000, "c.mrc", 300), getFakeContext(60000));
+
+		String[] entries = result.split(",");
+		assertEquals(4, entries.length);
+		assertEquals("FAILED:ingest-source/missing.mrc", entries[1]);
+		for( String key : new String[] { "a.mrc", "b.mrc", "c.mrc" } ) {
+			assertTrue(s3.doesObjectExist(MARCHandler.OUTPUT_BUCKET, key));
+		}
+	}
+
+	@Test
+	public void testObjectsThatCannotFinishAreNotStarted() throws IOException {
+		InMemoryS3Client s3 = s3With("small.mrc", marc, "huge.mrc", marc);
+		// 1 byte per second: only objects the event says are empty can be expected to finish
+		MARCHandler handler = new MARCHandler().setExpectedThroughput(1).setDeadlineMargin(1000);
+		handler.setClient(s3);
+		String result = handler.handleRequest(event("huge.mrc", 1L << 34, "small.mrc", 0), getFakeContext(5000));
+
+		String[] entries = result.split(",");
+		assertEquals("UNFINISHED:ingest-source/huge.mrc", entries[0]);
+		assertFalse(entries[1].startsWith("UNFINISHED"));
+		assertFalse(s3.doesObjectExist(MARCHandler.OUTPUT_BUCKET, "huge.mrc"));
+		assertTrue(s3.doesObjectExist(MARCHandler.OUTPUT_BUCKET, "small.mrc"));
+	}
+
+	/**
+	 * Builds an event for objects in the ingest-source bucket from alternating keys and sizes, using put-test.json as
+	 * a template.
+	 */
+	private S3Event event(Object... keysAndSizes) throws IOException {
+		String template = readResource("put-test.json");
+		String record = template.substring(template.indexOf('[') + 1, template.lastIndexOf(']'));
+		StringJoiner records = new StringJoiner(",", template.substring(0, template.indexOf('[') + 1), template.substring(template.lastIndexOf(']')));
+		for( int i = 0; i < keysAndSizes.length; i += 2 ) {
+			records.add( record.replace("NCSU/jiminy-crickets.mrc", (String)keysAndSizes[i])
+					.replaceFirst("\"size\": *\\d+", "\"size\": " + keysAndSizes[i + 1]) );
+		}
+		return new S3Event( S3Event.parseJson(records.toString()).getRecords() );
+	}
+
 	private Context getFakeContext() {
+		return getFakeContext(0);
+	}
+
+	private Context getFakeContext(final int remainingTime) {
 		Context ctx = new Context() {
 
 			@Override
@@ -99,8 +533,7 @@ public class MARCHandlerTest {
 
 			@Override
 			public int getRemainingTimeInMillis() {
-				// TODO Auto-generated method stub
-				return 0;
+				return remainingTime;
 			}
 
 			@Override
@@ -145,6 +578,10 @@ public class MARCHandlerTest {
 		when(mockObject.getObjectContent()).thenReturn( mockStream( getClass().getResourceAsStream("/test.mrc") ) );
 		AmazonS3Client result = mock(AmazonS3Client.class);
 		when(result.getObject(anyString(), anyString())).thenReturn(mockObject);
+		when(result.getObject(any(GetObjectRequest.class))).thenReturn(mockObject);
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(6395);
+		when(result.getObjectMetadata(anyString(), anyString())).thenReturn(metadata);
 		when(result.putObject(anyString(),anyString(),any(InputStream.class), any(ObjectMetadata.class))).thenReturn(mockPutResult());
 		when(result.putObject(any(PutObjectRequest.class))).thenReturn(mockPutResult());
 		return result;
@@ -160,4 +597,37 @@ public class MARCHandlerTest {
 		return result;
 	}
 
+	/**
+	 * Creates a stand-in for S3 with objects in the ingest-source bucket, from alternating keys and contents.
+	 */
+	private static InMemoryS3Client s3With(Object... keysAndContents) {
+		InMemoryS3Client s3 = new InMemoryS3Client();
+		for( int i = 0; i < keysAndContents.length; i += 2 ) {
+			s3.putBytes("ingest-source", (String)keysAndContents[i], (byte[])keysAndContents[i + 1]);
+		}
+		return s3;
+	}
+
+	private static byte[] expectedJson(byte[] data) throws IOException {
+		ByteArrayOutputStream json = new ByteArrayOutputStream();
+		new MarcTransformer().toJSON(new ByteArrayInputStream(data), json);
+		return json.toByteArray();
+	}
+
+	private static byte[] repeat(byte[] data, int times) {
+		byte[] result = new byte[data.length * times];
+		for( int i = 0; i < times; i++ ) {
+			System.arraycopy(data, 0, result, i * data.length, data.length);
+		}
+		return result;
+	}
+
+	private static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try( GZIPOutputStream output = new GZIPOutputStream(compressed) ) {
+			output.write(data);
+		}
+		return compressed.toByteArray();
+	}
+
 }
@@ -0,0 +1,45 @@
+package edu.ncsu.lib.aws.handlers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.StringJoiner;
+
+import com.amazonaws.services.lambda.runtime.events.S3Event;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Builds S3 put events in the style of <code>put-test.json</code>, for any number of objects.
+ */
+public class S3Events {
+
+	private static final String TEMPLATE;
+
+	static {
+		try( InputStream input = S3Events.class.getResourceAsStream("put-test.json") ) {
+			TEMPLATE = new String(ByteStreams.toByteArray(input), StandardCharsets.UTF_8);
+		} catch( IOException iox ) {
+			throw new IllegalStateException("Unable to read put-test.json", iox);
+		}
+	}
+
+	private S3Events() {
+	}
+
+	/**
+	 * Builds an event.
+	 * @param bucket the bucket the objects were put in.
+	 * @param keysAndSizes the key (a <code>String</code>) and size (a <code>Number</code>) of each object, in turn.
+	 * @return an event with a record for each object.
+	 */
+	public static S3Event put(String bucket, Object... keysAndSizes) {
+		String record = TEMPLATE.substring(TEMPLATE.indexOf('[') + 1, TEMPLATE.lastIndexOf(']'));
+		StringJoiner records = new StringJoiner(",", TEMPLATE.substring(0, TEMPLATE.indexOf('[') + 1), TEMPLATE.substring(TEMPLATE.lastIndexOf(']')));
+		for( int i = 0; i < keysAndSizes.length; i += 2 ) {
+			records.add( record.replace("NCSU/jiminy-crickets.mrc", (String)keysAndSizes[i])
+					.replace("\"name\": \"ingest-source\"", "\"name\": \"" + bucket + "\"")
+					.replaceFirst("\"size\": *\\d+", "\"size\": " + keysAndSizes[i + 1]) );
+		}
+		return new S3Event( S3Event.parseJson(records.toString()).getRecords() );
+	}
+}
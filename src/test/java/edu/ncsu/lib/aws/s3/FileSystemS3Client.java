@@ -0,0 +1,305 @@
+package edu.ncsu.lib.aws.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.google.common.io.ByteStreams;
+
+/**
+ * A stand-in for S3 that keeps objects as files, for load tests with objects too large to hold in memory.  Supports
+ * the same operations as {@link InMemoryS3Client}.  Never talks to AWS.
+ * <p>
+ *  Objects live at <code>root/bucket/key</code>, so source objects can be written there directly.  Metadata given
+ *  when an object is stored is kept in memory; objects that were put in place by other means get a content length and
+ *  an ETag (made from the file's length and modification time) and nothing else.  Parts of multipart uploads are kept
+ *  under <code>root/.uploads</code> until the upload is completed or aborted.  Ranged GETs are read into memory, so
+ *  ranges should be of a sensible size; whole objects are streamed from their files.
+ * </p>
+ */
+public class FileSystemS3Client extends AmazonS3Client {
+
+	private final File root;
+
+	private final File uploadRoot;
+
+	private final Map<String, ObjectMetadata> metadata = new ConcurrentHashMap<>();
+
+	private final AtomicInteger uploadIds = new AtomicInteger();
+
+	private final AtomicLong bytesRead = new AtomicLong();
+
+	private final AtomicLong bytesWritten = new AtomicLong();
+
+	private volatile BiConsumer<String, String> storeListener = null;
+
+	/**
+	 * Creates a client.
+	 * @param root the directory buckets are kept in; it is created if need be.
+	 */
+	public FileSystemS3Client(File root) {
+		super(new BasicAWSCredentials("test", "test"));
+		this.root = root;
+		this.uploadRoot = new File(root, ".uploads");
+		uploadRoot.mkdirs();
+	}
+
+	/**
+	 * Sets a function called with the bucket and key of every object stored, once it is complete.
+	 */
+	public FileSystemS3Client setStoreListener(BiConsumer<String, String> storeListener) {
+		this.storeListener = storeListener;
+		return this;
+	}
+
+	/**
+	 * Gets the file an object is (or would be) kept in.
+	 */
+	public File getFile(String bucket, String key) {
+		return new File(new File(root, bucket), key);
+	}
+
+	/**
+	 * Gets the number of object bytes handed out by GETs.
+	 */
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	/**
+	 * Gets the number of bytes received by PUTs and part uploads.
+	 */
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	@Override
+	public S3Object getObject(String bucketName, String key) {
+		return getObject(new GetObjectRequest(bucketName, key));
+	}
+
+	@Override
+	public S3Object getObject(GetObjectRequest request) {
+		File file = existing(request.getBucketName(), request.getKey());
+		ObjectMetadata md = getObjectMetadata(request.getBucketName(), request.getKey()).clone();
+		long length = file.length();
+		InputStream content;
+		try {
+			long[] range = request.getRange();
+			if ( range != null ) {
+				long start = Math.min(range[0], length);
+				// open-ended ranges come through with an end of Long.MAX_VALUE - 1
+				long end = range.length > 1 ? Math.min(range[1], length - 1) + 1 : length;
+				byte[] data = new byte[(int)Math.max(0, end - start)];
+				try( RandomAccessFile raf = new RandomAccessFile(file, "r") ) {
+					raf.seek(start);
+					raf.readFully(data);
+				}
+				content = new ByteArrayInputStream(data);
+				length = data.length;
+			} else {
+				content = new FileInputStream(file);
+			}
+		} catch( IOException iox ) {
+			throw new AmazonClientException("Unable to read " + file, iox);
+		}
+		bytesRead.addAndGet(length);
+		md.setContentLength(length);
+		S3Object object = new S3Object();
+		object.setBucketName(request.getBucketName());
+		object.setKey(request.getKey());
+		object.setObjectMetadata(md);
+		object.setObjectContent(content);
+		return object;
+	}
+
+	@Override
+	public ObjectMetadata getObjectMetadata(String bucketName, String key) {
+		File file = existing(bucketName, key);
+		ObjectMetadata md = metadata.get(bucketName + "/" + key);
+		if ( md == null ) {
+			md = new ObjectMetadata();
+			md.setHeader(Headers.ETAG, Long.toHexString(file.length()) + "-" + Long.toHexString(file.lastModified()));
+		}
+		md.setContentLength(file.length());
+		return md;
+	}
+
+	@Override
+	public boolean doesObjectExist(String bucketName, String key) {
+		return getFile(bucketName, key).isFile();
+	}
+
+	@Override
+	public void deleteObject(String bucketName, String key) {
+		getFile(bucketName, key).delete();
+		metadata.remove(bucketName + "/" + key);
+	}
+
+	@Override
+	public PutObjectResult putObject(PutObjectRequest request) {
+		File file = getFile(request.getBucketName(), request.getKey());
+		file.getParentFile().mkdirs();
+		try( InputStream input = request.getFile() != null ? new FileInputStream(request.getFile()) : request.getInputStream();
+				OutputStream output = new FileOutputStream(file) ) {
+			bytesWritten.addAndGet( ByteStreams.copy(input, output) );
+		} catch( IOException iox ) {
+			throw new AmazonClientException("Unable to store " + file, iox);
+		}
+		String eTag = stored(request.getBucketName(), request.getKey(), file, request.getMetadata());
+		PutObjectResult result = new PutObjectResult();
+		result.setETag(eTag);
+		return result;
+	}
+
+	@Override
+	public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+		String uploadId = Integer.toString( uploadIds.incrementAndGet() );
+		new File(uploadRoot, uploadId).mkdirs();
+		metadata.put("#" + uploadId, request.getObjectMetadata() != null ? request.getObjectMetadata() : new ObjectMetadata());
+		InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+		result.setBucketName(request.getBucketName());
+		result.setKey(request.getKey());
+		result.setUploadId(uploadId);
+		return result;
+	}
+
+	@Override
+	public UploadPartResult uploadPart(UploadPartRequest request) {
+		File directory = new File(uploadRoot, request.getUploadId());
+		if ( !directory.isDirectory() ) {
+			throw new AmazonS3Exception("No such upload: " + request.getUploadId());
+		}
+		File part = new File(directory, Integer.toString(request.getPartNumber()));
+		long length;
+		try( InputStream input = request.getFile() != null ? partOfFile(request) : request.getInputStream();
+				OutputStream output = new FileOutputStream(part) ) {
+			length = ByteStreams.copy(input, output);
+		} catch( IOException iox ) {
+			throw new AmazonClientException("Unable to store part " + part, iox);
+		}
+		if ( length != request.getPartSize() ) {
+			throw new AmazonClientException("Expected " + request.getPartSize() + " bytes, got " + length);
+		}
+		bytesWritten.addAndGet(length);
+		UploadPartResult result = new UploadPartResult();
+		result.setPartNumber(request.getPartNumber());
+		result.setETag(Long.toHexString(length) + "-" + request.getPartNumber());
+		return result;
+	}
+
+	@Override
+	public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+		File directory = new File(uploadRoot, request.getUploadId());
+		if ( !directory.isDirectory() ) {
+			throw new AmazonS3Exception("No such upload: " + request.getUploadId());
+		}
+		File file = getFile(request.getBucketName(), request.getKey());
+		file.getParentFile().mkdirs();
+		try( FileChannel output = new FileOutputStream(file).getChannel() ) {
+			for( PartETag eTag : request.getPartETags() ) {
+				File part = new File(directory, Integer.toString(eTag.getPartNumber()));
+				if ( !part.isFile() || !eTag.getETag().equals(Long.toHexString(part.length()) + "-" + eTag.getPartNumber()) ) {
+					throw new AmazonS3Exception("Invalid part " + eTag.getPartNumber());
+				}
+				try( FileChannel input = new FileInputStream(part).getChannel() ) {
+					long position = 0;
+					while( position < input.size() ) {
+						position += input.transferTo(position, input.size() - position, output);
+					}
+				}
+			}
+		} catch( IOException iox ) {
+			throw new AmazonClientException("Unable to assemble " + file, iox);
+		}
+		deleteUpload(request.getUploadId());
+		String eTag = stored(request.getBucketName(), request.getKey(), file, metadata.remove("#" + request.getUploadId()));
+		CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+		result.setBucketName(request.getBucketName());
+		result.setKey(request.getKey());
+		result.setETag(eTag + "-" + request.getPartETags().size());
+		return result;
+	}
+
+	@Override
+	public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+		deleteUpload(request.getUploadId());
+		metadata.remove("#" + request.getUploadId());
+	}
+
+	private String stored(String bucket, String key, File file, ObjectMetadata requested) {
+		ObjectMetadata md = requested != null ? requested.clone() : new ObjectMetadata();
+		String eTag = Long.toHexString(file.length()) + "-" + Long.toHexString(file.lastModified());
+		md.setContentLength(file.length());
+		md.setHeader(Headers.ETAG, eTag);
+		metadata.put(bucket + "/" + key, md);
+		BiConsumer<String, String> listener = storeListener;
+		if ( listener != null ) {
+			listener.accept(bucket, key);
+		}
+		return eTag;
+	}
+
+	private void deleteUpload(String uploadId) {
+		File directory = new File(uploadRoot, uploadId);
+		File[] parts = directory.listFiles();
+		if ( parts != null ) {
+			for( File part : parts ) {
+				part.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	private File existing(String bucket, String key) {
+		File file = getFile(bucket, key);
+		if ( !file.isFile() ) {
+			AmazonS3Exception x = new AmazonS3Exception("The specified key does not exist: " + bucket + "/" + key);
+			x.setStatusCode(404);
+			x.setErrorCode("NoSuchKey");
+			throw x;
+		}
+		return file;
+	}
+
+	private static InputStream partOfFile(UploadPartRequest request) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(request.getFile(), "r");
+		raf.seek(request.getFileOffset());
+		byte[] data = new byte[(int)request.getPartSize()];
+		try {
+			raf.readFully(data);
+		} finally {
+			raf.close();
+		}
+		return new ByteArrayInputStream(data);
+	}
+}
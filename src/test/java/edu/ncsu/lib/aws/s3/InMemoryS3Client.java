@@ -0,0 +1,318 @@
+package edu.ncsu.lib.aws.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+/**
+ * An in-process stand-in for S3, for tests.  Supports the object and multipart upload operations the handlers use,
+ * keeps objects in memory, and records enough about multipart uploads (concurrency, open uploads) to check how they
+ * were used.  Never talks to AWS.
+ */
+public class InMemoryS3Client extends AmazonS3Client {
+
+	private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+
+	private final Map<String, ObjectMetadata> metadata = new ConcurrentHashMap<>();
+
+	private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+
+	private final AtomicInteger uploadIds = new AtomicInteger();
+
+	private final AtomicInteger activePartUploads = new AtomicInteger();
+
+	private final AtomicInteger maxActivePartUploads = new AtomicInteger();
+
+	private final AtomicInteger partUploads = new AtomicInteger();
+
+	private final AtomicInteger puts = new AtomicInteger();
+
+	private final AtomicInteger activePuts = new AtomicInteger();
+
+	private final AtomicInteger maxActivePuts = new AtomicInteger();
+
+	private final AtomicInteger gets = new AtomicInteger();
+
+	private volatile long partDelay = 0;
+
+	private volatile long putDelay = 0;
+
+	private volatile int failPart = -1;
+
+	public InMemoryS3Client() {
+		super(new BasicAWSCredentials("test", "test"));
+	}
+
+	/**
+	 * Makes every part upload take at least this long, so uploads overlap.
+	 */
+	public InMemoryS3Client setPartDelay(long millis) {
+		this.partDelay = millis;
+		return this;
+	}
+
+	/**
+	 * Makes every PUT take at least this long, so PUTs overlap.
+	 */
+	public InMemoryS3Client setPutDelay(long millis) {
+		this.putDelay = millis;
+		return this;
+	}
+
+	/**
+	 * Makes uploads of the given part number fail.
+	 */
+	public InMemoryS3Client setFailPart(int partNumber) {
+		this.failPart = partNumber;
+		return this;
+	}
+
+	public void putBytes(String bucket, String key, byte[] data) {
+		store(bucket, key, data, null);
+	}
+
+	public byte[] getBytes(String bucket, String key) {
+		return objects.get(bucket + "/" + key);
+	}
+
+	public ObjectMetadata getStoredMetadata(String bucket, String key) {
+		return metadata.get(bucket + "/" + key);
+	}
+
+	public int getOpenUploads() {
+		return uploads.size();
+	}
+
+	public int getMaxConcurrentPartUploads() {
+		return maxActivePartUploads.get();
+	}
+
+	public int getPartUploads() {
+		return partUploads.get();
+	}
+
+	public int getPuts() {
+		return puts.get();
+	}
+
+	public int getMaxConcurrentPuts() {
+		return maxActivePuts.get();
+	}
+
+	public int getGets() {
+		return gets.get();
+	}
+
+	@Override
+	public S3Object getObject(String bucketName, String key) {
+		return getObject(new GetObjectRequest(bucketName, key));
+	}
+
+	@Override
+	public S3Object getObject(GetObjectRequest request) {
+		gets.incrementAndGet();
+		byte[] data = objects.get(request.getBucketName() + "/" + request.getKey());
+		if ( data == null ) {
+			throw notFound(request.getBucketName(), request.getKey());
+		}
+		long[] range = request.getRange();
+		if ( range != null ) {
+			int start = (int)Math.min(range[0], data.length);
+			// open-ended ranges come through with an end of Long.MAX_VALUE - 1
+			int end = range.length > 1 ? (int)Math.min(range[1], data.length - 1) + 1 : data.length;
+			data = Arrays.copyOfRange(data, start, Math.max(start, end));
+		}
+		ObjectMetadata md = getObjectMetadata(request.getBucketName(), request.getKey()).clone();
+		md.setContentLength(data.length);
+		S3Object object = new S3Object();
+		object.setBucketName(request.getBucketName());
+		object.setKey(request.getKey());
+		object.setObjectMetadata(md);
+		object.setObjectContent(new ByteArrayInputStream(data));
+		return object;
+	}
+
+	@Override
+	public ObjectMetadata getObjectMetadata(String bucketName, String key) {
+		ObjectMetadata md = metadata.get(bucketName + "/" + key);
+		if ( md == null ) {
+			throw notFound(bucketName, key);
+		}
+		return md;
+	}
+
+	@Override
+	public boolean doesObjectExist(String bucketName, String key) {
+		return objects.containsKey(bucketName + "/" + key);
+	}
+
+	@Override
+	public void deleteObject(String bucketName, String key) {
+		objects.remove(bucketName + "/" + key);
+		metadata.remove(bucketName + "/" + key);
+	}
+
+	@Override
+	public PutObjectResult putObject(PutObjectRequest request) {
+		puts.incrementAndGet();
+		int active = activePuts.incrementAndGet();
+		maxActivePuts.accumulateAndGet(active, Math::max);
+		byte[] data;
+		try {
+			if ( putDelay > 0 ) {
+				Thread.sleep(putDelay);
+			}
+			InputStream input = request.getFile() != null ? new FileInputStream(request.getFile()) : request.getInputStream();
+			try {
+				data = readAll(input);
+			} finally {
+				input.close();
+			}
+		} catch( InterruptedException ix ) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Interrupted", ix);
+		} catch( IOException iox ) {
+			throw new AmazonClientException("Unable to read request content", iox);
+		} finally {
+			activePuts.decrementAndGet();
+		}
+		store(request.getBucketName(), request.getKey(), data, request.getMetadata());
+		PutObjectResult result = new PutObjectResult();
+		result.setETag(etag(data));
+		return result;
+	}
+
+	@Override
+	public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+		String uploadId = request.getBucketName() + "/" + request.getKey() + "#" + uploadIds.incrementAndGet();
+		uploads.put(uploadId, new ConcurrentHashMap<>());
+		metadata.put(uploadId, request.getObjectMetadata() != null ? request.getObjectMetadata() : new ObjectMetadata());
+		InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+		result.setBucketName(request.getBucketName());
+		result.setKey(request.getKey());
+		result.setUploadId(uploadId);
+		return result;
+	}
+
+	@Override
+	public UploadPartResult uploadPart(UploadPartRequest request) {
+		int active = activePartUploads.incrementAndGet();
+		maxActivePartUploads.accumulateAndGet(active, Math::max);
+		try {
+			if ( partDelay > 0 ) {
+				Thread.sleep(partDelay);
+			}
+			if ( request.getPartNumber() == failPart ) {
+				throw new AmazonS3Exception("Injected failure for part " + failPart);
+			}
+			Map<Integer, byte[]> parts = uploads.get(request.getUploadId());
+			if ( parts == null ) {
+				throw new AmazonS3Exception("No such upload: " + request.getUploadId());
+			}
+			byte[] data = readAll(request.getInputStream());
+			if ( data.length != request.getPartSize() ) {
+				throw new AmazonClientException("Expected " + request.getPartSize() + " bytes, got " + data.length);
+			}
+			parts.put(request.getPartNumber(), data);
+			partUploads.incrementAndGet();
+			UploadPartResult result = new UploadPartResult();
+			result.setPartNumber(request.getPartNumber());
+			result.setETag(etag(data));
+			return result;
+		} catch( InterruptedException ix ) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Interrupted", ix);
+		} catch( IOException iox ) {
+			throw new AmazonClientException("Unable to read part", iox);
+		} finally {
+			activePartUploads.decrementAndGet();
+		}
+	}
+
+	@Override
+	public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+		Map<Integer, byte[]> parts = uploads.remove(request.getUploadId());
+		if ( parts == null ) {
+			throw new AmazonS3Exception("No such upload: " + request.getUploadId());
+		}
+		TreeMap<Integer, byte[]> ordered = new TreeMap<>();
+		for( PartETag eTag : request.getPartETags() ) {
+			byte[] part = parts.get(eTag.getPartNumber());
+			if ( part == null || !etag(part).equals(eTag.getETag()) ) {
+				throw new AmazonS3Exception("Invalid part " + eTag.getPartNumber());
+			}
+			ordered.put(eTag.getPartNumber(), part);
+		}
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		for( byte[] part : ordered.values() ) {
+			data.write(part, 0, part.length);
+		}
+		store(request.getBucketName(), request.getKey(), data.toByteArray(), metadata.remove(request.getUploadId()));
+		CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+		result.setBucketName(request.getBucketName());
+		result.setKey(request.getKey());
+		result.setETag(etag(data.toByteArray()) + "-" + ordered.size());
+		return result;
+	}
+
+	@Override
+	public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+		uploads.remove(request.getUploadId());
+		metadata.remove(request.getUploadId());
+	}
+
+	private void store(String bucket, String key, byte[] data, ObjectMetadata requested) {
+		ObjectMetadata md = requested != null ? requested.clone() : new ObjectMetadata();
+		md.setContentLength(data.length);
+		md.setHeader(Headers.ETAG, etag(data));
+		objects.put(bucket + "/" + key, data);
+		metadata.put(bucket + "/" + key, md);
+	}
+
+	private static AmazonS3Exception notFound(String bucket, String key) {
+		AmazonS3Exception x = new AmazonS3Exception("The specified key does not exist: " + bucket + "/" + key);
+		x.setStatusCode(404);
+		x.setErrorCode("NoSuchKey");
+		return x;
+	}
+
+	private static String etag(byte[] data) {
+		return Integer.toHexString(Arrays.hashCode(data));
+	}
+
+	private static byte[] readAll(InputStream input) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while( ( read = input.read(buffer) ) != -1 ) {
+			output.write(buffer, 0, read);
+		}
+		return output.toByteArray();
+	}
+}
@@ -0,0 +1,98 @@
+package edu.ncsu.lib.aws.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+public class MultipartUploadOutputStreamTest {
+
+	@Test
+	public void testSmallOutputUsesSinglePut() throws IOException {
+		InMemoryS3Client s3 = new InMemoryS3Client();
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentType("application/json");
+		byte[] data = randomBytes(1000);
+		MultipartUploadOutputStream output = new MultipartUploadOutputStream(s3, "out", "small.json", metadata).setPartSize(4096);
+		output.write(data);
+		output.close();
+		assertArrayEquals(data, s3.getBytes("out", "small.json"));
+		assertEquals("application/json", s3.getStoredMetadata("out", "small.json").getContentType());
+		assertEquals(1, s3.getPuts());
+		assertEquals(0, s3.getPartUploads());
+		assertNotNull(output.getResult());
+	}
+
+	@Test
+	public void testMultipartOutputIsReassembled() throws IOException {
+		InMemoryS3Client s3 = new InMemoryS3Client().setPartDelay(20);
+		byte[] data = randomBytes(100 * 1024 + 17);
+		MultipartUploadOutputStream output = new MultipartUploadOutputStream(s3, "out", "big.json", null)
+				.setPartSize(4096)
+				.setPartsInFlight(8)
+				// room for one buffer being filled and three being uploaded
+				.setMemoryLimit(4 * 4096);
+		assertEquals(3, output.getPartsInFlight());
+		// mix single bytes and unaligned blocks
+		int pos = 0;
+		while( pos < data.length ) {
+			output.write(data[pos++]);
+			int len = Math.min(data.length - pos, 1500);
+			output.write(data, pos, len);
+			pos += len;
+		}
+		output.close();
+		assertArrayEquals(data, s3.getBytes("out", "big.json"));
+		assertEquals(26, s3.getPartUploads());
+		assertEquals(0, s3.getPuts());
+		assertEquals(0, s3.getOpenUploads());
+		assertTrue(s3.getMaxConcurrentPartUploads() > 1);
+		assertTrue(s3.getMaxConcurrentPartUploads() <= 3);
+		assertTrue(output.getResult().getETag().endsWith("-26"));
+	}
+
+	@Test
+	public void testFailedPartAbortsUpload() throws IOException {
+		InMemoryS3Client s3 = new InMemoryS3Client().setFailPart(3);
+		byte[] data = randomBytes(64 * 1024);
+		MultipartUploadOutputStream output = new MultipartUploadOutputStream(s3, "out", "broken.json", null).setPartSize(1024);
+		try {
+			output.write(data);
+			output.close();
+			fail("Expected the upload to fail");
+		} catch( IOException iox ) {
+			// expected, either while writing or on close
+		}
+		output.abort();
+		assertNull(s3.getBytes("out", "broken.json"));
+		assertEquals(0, s3.getOpenUploads());
+		assertFalse(s3.doesObjectExist("out", "broken.json"));
+	}
+
+	@Test
+	public void testAbortDiscardsParts() throws IOException {
+		InMemoryS3Client s3 = new InMemoryS3Client();
+		MultipartUploadOutputStream output = new MultipartUploadOutputStream(s3, "out", "abandoned.json", null).setPartSize(1024);
+		output.write(randomBytes(10 * 1024));
+		output.abort();
+		output.close();
+		assertEquals(0, s3.getOpenUploads());
+		assertNull(s3.getBytes("out", "abandoned.json"));
+	}
+
+	private static byte[] randomBytes(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+}
@@ -0,0 +1,85 @@
+package edu.ncsu.lib.aws.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+import edu.ncsu.lib.marc.MarcTransformer;
+
+public class RangedObjectInputStreamTest {
+
+	@Test
+	public void testStreamReturnsObjectInOrder() throws IOException {
+		byte[] data = repeat(readResource("/test.mrc"), 5);
+		InMemoryS3Client s3 = new InMemoryS3Client();
+		s3.putBytes("in", "test.mrc", data);
+		try( RangedObjectInputStream input = new RangedObjectInputStream(s3, "in", "test.mrc", -1).setRangeSize(1000).setPrefetch(3) ) {
+			assertArrayEquals(data, ByteStreams.toByteArray(input));
+		}
+		assertEquals((data.length + 999) / 1000, s3.getGets());
+	}
+
+	@Test
+	public void testReadsReturnAtMostARange() throws IOException {
+		byte[] data = new byte[30000];
+		new Random(7).nextBytes(data);
+		InMemoryS3Client s3 = new InMemoryS3Client();
+		s3.putBytes("in", "data.gz", data);
+		try( RangedObjectInputStream input = new RangedObjectInputStream(s3, "in", "data.gz", -1).setRangeSize(10000).setPrefetch(2) ) {
+			// each read returns no more than a range, straight away
+			byte[] buffer = new byte[data.length];
+			assertEquals(10000, input.read(buffer, 0, buffer.length));
+			assertArrayEquals(Arrays.copyOf(data, 10000), Arrays.copyOf(buffer, 10000));
+			assertEquals(data[10000] & 0xFF, input.read());
+			assertEquals(9999, input.available());
+		}
+	}
+
+	@Test
+	public void testReadingStartsAtStartOffset() throws IOException {
+		byte[] data = repeat(readResource("/test.mrc"), 5);
+		InMemoryS3Client s3 = new InMemoryS3Client();
+		s3.putBytes("in", "test.mrc", data);
+		int offset = data.length / 5 * 2;
+		try( RangedObjectInputStream input = new RangedObjectInputStream(s3, "in", "test.mrc", data.length).setRangeSize(1500).setPrefetch(2).setStartOffset(offset) ) {
+			assertArrayEquals(Arrays.copyOfRange(data, offset, data.length), ByteStreams.toByteArray(input));
+		}
+	}
+
+	@Test
+	public void testTransformFromRangesMatchesSingleRead() throws IOException {
+		byte[] data = repeat(readResource("/test.mrc"), 20);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		new MarcTransformer().toJSON(new ByteArrayInputStream(data), expected);
+
+		InMemoryS3Client s3 = new InMemoryS3Client();
+		s3.putBytes("in", "test.mrc", data);
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		new MarcTransformer().setThreads(3).toJSON(new RangedObjectInputStream(s3, "in", "test.mrc", -1).setRangeSize(4096), actual);
+		assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+	}
+
+	private static byte[] readResource(String name) throws IOException {
+		try( InputStream input = RangedObjectInputStreamTest.class.getResourceAsStream(name) ) {
+			return ByteStreams.toByteArray(input);
+		}
+	}
+
+	private static byte[] repeat(byte[] data, int times) {
+		byte[] result = new byte[data.length * times];
+		for( int i = 0; i < times; i++ ) {
+			System.arraycopy(data, 0, result, i * data.length, data.length);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,137 @@
+package edu.ncsu.lib.aws.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.util.json.Jackson;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.io.ByteStreams;
+
+public class ShardedUploadOutputStreamTest {
+
+	@Test
+	public void testShardsAreCutOnRecordBoundaries() throws IOException {
+		InMemoryS3Client s3 = new InMemoryS3Client().setPutDelay(20);
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentType("application/x-ndjson");
+		byte[] data = lines(95);
+		ShardedUploadOutputStream output = new ShardedUploadOutputStream(s3, "out", "records/", metadata)
+				.setMaxRecords(10)
+				.setShardsInFlight(3)
+				.setSource("in/records.mrc");
+		// unaligned writes, so lines are split across calls
+		int pos = 0;
+		while( pos < data.length ) {
+			output.write(data[pos++]);
+			int len = Math.min(data.length - pos, 37);
+			output.write(data, pos, len);
+			pos += len;
+		}
+		output.close();
+
+		assertEquals(10, output.getShardCount());
+		ByteArrayOutputStream joined = new ByteArrayOutputStream();
+		for( int i = 0; i < 10; i++ ) {
+			byte[] shard = s3.getBytes("out", String.format("records/part-%05d.ndjson", i));
+			assertEquals(i < 9 ? 10 : 5, count(shard));
+			assertEquals('\n', shard[shard.length - 1]);
+			assertEquals("application/x-ndjson", s3.getStoredMetadata("out", String.format("records/part-%05d.ndjson", i)).getContentType());
+			joined.write(shard);
+		}
+		assertArrayEquals(data, joined.toByteArray());
+		assertTrue(s3.getMaxConcurrentPuts() > 1);
+		assertTrue(s3.getMaxConcurrentPuts() <= 3);
+
+		JsonNode manifest = Jackson.jsonNodeOf( new String(s3.getBytes("out", "records/manifest.json"), StandardCharsets.UTF_8) );
+		assertEquals("in/records.mrc", manifest.get("source").asText());
+		assertEquals(95, manifest.get("records").asLong());
+		assertEquals(data.length, manifest.get("bytes").asLong());
+		assertEquals(10, manifest.get("shards").size());
+		assertEquals("records/part-00009.ndjson", manifest.get("shards").get(9).get("key").asText());
+		assertEquals(5, manifest.get("shards").get(9).get("records").asLong());
+		assertEquals("application/json", s3.getStoredMetadata("out", "records/manifest.json").getContentType());
+	}
+
+	@Test
+	public void testShardsAreCutBySize() throws IOException {
+		InMemoryS3Client s3 = new InMemoryS3Client();
+		byte[] data = lines(50);
+		ShardedUploadOutputStream output = new ShardedUploadOutputStream(s3, "out", "sized/", null)
+				.setMaxRecords(0)
+				.setMaxBytes(100);
+		output.write(data);
+		// a last line without a line end still counts
+		output.write("tail".getBytes(StandardCharsets.UTF_8));
+		output.close();
+
+		assertEquals(51, output.getRecords());
+		ByteArrayOutputStream joined = new ByteArrayOutputStream();
+		long records = 0;
+		for( int i = 0; i < output.getShardCount(); i++ ) {
+			byte[] shard = s3.getBytes("out", String.format("sized/part-%05d.ndjson", i));
+			// never more than one record over the limit
+			assertTrue(shard.length < 100 + 20);
+			records += count(shard);
+			joined.write(shard);
+		}
+		assertEquals(50, records);
+		assertEquals(new String(data, StandardCharsets.UTF_8) + "tail", new String(joined.toByteArray(), StandardCharsets.UTF_8));
+		JsonNode manifest = Jackson.jsonNodeOf( new String(s3.getBytes("out", "sized/manifest.json"), StandardCharsets.UTF_8) );
+		assertEquals(51, manifest.get("records").asLong());
+	}
+
+	@Test
+	public void testGzipShardsAndAbort() throws IOException {
+		InMemoryS3Client s3 = new InMemoryS3Client();
+		byte[] data = lines(30);
+		ShardedUploadOutputStream output = new ShardedUploadOutputStream(s3, "out", "gz/", null)
+				.setMaxRecords(20)
+				.setGzip(true);
+		output.write(data);
+		output.close();
+		assertEquals(2, output.getShardCount());
+		ByteArrayOutputStream joined = new ByteArrayOutputStream();
+		for( int i = 0; i < 2; i++ ) {
+			String key = String.format("gz/part-%05d.ndjson", i);
+			assertEquals("gzip", s3.getStoredMetadata("out", key).getContentEncoding());
+			joined.write( ByteStreams.toByteArray( new GZIPInputStream( new ByteArrayInputStream(s3.getBytes("out", key)) ) ) );
+		}
+		assertArrayEquals(data, joined.toByteArray());
+
+		ShardedUploadOutputStream aborted = new ShardedUploadOutputStream(s3, "out", "aborted/", null).setMaxRecords(20);
+		aborted.write(data);
+		aborted.abort();
+		aborted.close();
+		assertNull(s3.getBytes("out", "aborted/manifest.json"));
+		assertNull(aborted.getResult());
+	}
+
+	private static byte[] lines(int count) {
+		StringBuilder lines = new StringBuilder();
+		for( int i = 0; i < count; i++ ) {
+			lines.append("{\"record\":").append(i).append("}\n");
+		}
+		return lines.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int count(byte[] shard) {
+		int lines = 0;
+		for( byte b : shard ) {
+			if ( b == '\n' ) {
+				lines++;
+			}
+		}
+		return lines;
+	}
+}
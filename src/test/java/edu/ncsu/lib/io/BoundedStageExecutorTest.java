@@ -0,0 +1,108 @@
+package edu.ncsu.lib.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class BoundedStageExecutorTest {
+
+	@Test
+	public void testConcurrentPipelinesShareASmallPool() throws Exception {
+		byte[] data = new byte[256 * 1024];
+		new Random(7).nextBytes(data);
+		// each pipeline needs three threads, so no more than one can run at a time; partly started pipelines would stall
+		BoundedStageExecutor executor = new BoundedStageExecutor(4);
+		ExecutorService callers = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<byte[]>> results = new ArrayList<>();
+			for( int i = 0; i < 32; i++ ) {
+				results.add( callers.submit( () -> {
+					StreamPipeline pipeline = new StreamPipeline( () -> new ByteArrayInputStream(data), 1024, executor );
+					for( int stage = 0; stage < 3; stage++ ) {
+						pipeline.addStage("copy", ByteStreams::copy);
+					}
+					try( InputStream output = pipeline.start() ) {
+						byte[] copied = ByteStreams.toByteArray(output);
+						pipeline.await();
+						return copied;
+					}
+				}));
+			}
+			for( Future<byte[]> result : results ) {
+				assertArrayEquals( data, result.get(30, TimeUnit.SECONDS) );
+			}
+		} finally {
+			callers.shutdownNow();
+			executor.close();
+		}
+		assertEquals( 0, executor.getActiveThreads() );
+	}
+
+	@Test
+	public void testThreadsAreBoundedAndNamed() throws Exception {
+		BoundedStageExecutor executor = new BoundedStageExecutor(2);
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		List<String> names = Collections.synchronizedList(new ArrayList<>());
+		try {
+			for( int i = 0; i < 10; i++ ) {
+				Map<String, Runnable> tasks = new LinkedHashMap<>();
+				tasks.put("task-" + i, () -> {
+					maxRunning.accumulateAndGet( running.incrementAndGet(), Math::max );
+					names.add( Thread.currentThread().getName() );
+					try {
+						Thread.sleep(10);
+					} catch( InterruptedException ix ) {
+						Thread.currentThread().interrupt();
+					}
+					running.decrementAndGet();
+				});
+				executor.execute(tasks);
+			}
+		} finally {
+			executor.close();
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while( names.size() < 10 && System.currentTimeMillis() < deadline ) {
+			Thread.sleep(10);
+		}
+		assertEquals( 10, names.size() );
+		assertTrue( maxRunning.get() <= 2 );
+		assertTrue( names.contains("task-0") );
+	}
+
+	@Test
+	public void testGroupLargerThanPoolIsRejected() throws Exception {
+		BoundedStageExecutor executor = new BoundedStageExecutor(1);
+		Map<String, Runnable> tasks = new LinkedHashMap<>();
+		tasks.put("a", () -> {});
+		tasks.put("b", () -> {});
+		try {
+			executor.execute(tasks);
+			fail("Expected the group to be rejected");
+		} catch( IllegalArgumentException expected ) {
+		} finally {
+			executor.close();
+		}
+		assertEquals( 0, executor.getActiveThreads() );
+	}
+}
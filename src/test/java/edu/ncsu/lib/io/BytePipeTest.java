@@ -0,0 +1,122 @@
+package edu.ncsu.lib.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class BytePipeTest {
+
+	@Test
+	public void testDataArrivesIntactAcrossWraparound() throws Exception {
+		byte[] data = new byte[1024 * 1024 + 13];
+		new Random(42).nextBytes(data);
+		// a small buffer and odd write sizes exercise wraparound and both waits
+		BytePipe pipe = new BytePipe(1000);
+		assertEquals(1024, pipe.getCapacity());
+		CompletableFuture<Void> producer = CompletableFuture.runAsync( () -> {
+			Random sizes = new Random(7);
+			OutputStream output = pipe.getOutputStream();
+			try {
+				int pos = 0;
+				while( pos < data.length ) {
+					if ( sizes.nextInt(10) == 0 ) {
+						output.write(data[pos++]);
+					} else {
+						int len = Math.min(data.length - pos, 1 + sizes.nextInt(3000));
+						output.write(data, pos, len);
+						pos += len;
+					}
+				}
+				output.close();
+			} catch( IOException iox ) {
+				throw new RuntimeException(iox);
+			}
+		});
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		InputStream input = pipe.getInputStream();
+		Random sizes = new Random(11);
+		byte[] buffer = new byte[4096];
+		int count;
+		while( ( count = input.read(buffer, 0, 1 + sizes.nextInt(buffer.length)) ) != -1 ) {
+			received.write(buffer, 0, count);
+		}
+		producer.get(10, TimeUnit.SECONDS);
+		assertArrayEquals(data, received.toByteArray());
+	}
+
+	@Test
+	public void testProducerFailureReachesReader() throws Exception {
+		BytePipe pipe = new BytePipe(64);
+		pipe.getOutputStream().write(new byte[] { 1, 2, 3 });
+		IllegalStateException cause = new IllegalStateException("transform failed");
+		pipe.fail(cause);
+		InputStream input = pipe.getInputStream();
+		assertEquals(3, input.read(new byte[10]));
+		try {
+			input.read();
+			fail("Expected the producer's failure");
+		} catch( IOException iox ) {
+			assertTrue(iox.getCause() == cause);
+		}
+	}
+
+	@Test
+	public void testClosingReaderReleasesWriter() throws Exception {
+		BytePipe pipe = new BytePipe(16);
+		CompletableFuture<Void> producer = CompletableFuture.runAsync( () -> {
+			try {
+				pipe.getOutputStream().write(new byte[1000]);
+			} catch( IOException iox ) {
+				throw new RuntimeException(iox);
+			}
+		});
+		pipe.getInputStream().read(new byte[4]);
+		pipe.getInputStream().close();
+		try {
+			producer.get(10, TimeUnit.SECONDS);
+			fail("Expected the writer to fail");
+		} catch( ExecutionException ex ) {
+			assertTrue(ex.getCause().getCause() instanceof IOException);
+		}
+	}
+
+	@Test
+	public void testStreamConnectorPropagatesFailure() throws Exception {
+		StreamConnector connector = new StreamConnector().setPipeCapacity(256);
+		byte[] data = new byte[10000];
+		new Random(3).nextBytes(data);
+		InputStream copied = connector.transformStream( () -> new ByteArrayInputStream(data), (in, out) -> {
+			try {
+				return ByteStreams.copy(in, out);
+			} catch( IOException iox ) {
+				throw new RuntimeException(iox);
+			}
+		});
+		assertArrayEquals(data, ByteStreams.toByteArray(copied));
+
+		InputStream failed = connector.transformStream( () -> new ByteArrayInputStream(data), (in, out) -> {
+			throw new IllegalArgumentException("bad input");
+		});
+		try {
+			ByteStreams.toByteArray(failed);
+			fail("Expected the transformer's failure");
+		} catch( IOException iox ) {
+			assertTrue(iox.getCause() instanceof IllegalArgumentException);
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package edu.ncsu.lib.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class CompressionTest {
+
+	@Test
+	public void testFormatsAreDetectedWithoutConsumingInput() throws IOException {
+		byte[] marc = ByteStreams.toByteArray( getClass().getResourceAsStream("/test.mrc") );
+		ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+		try( GZIPOutputStream output = new GZIPOutputStream(gzipped) ) {
+			output.write(marc);
+		}
+		assertRoundTrip( Compression.GZIP, gzipped.toByteArray(), marc );
+		for( int level : new int[] { 1, 6, 9 } ) {
+			ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+			try( DeflaterOutputStream output = new DeflaterOutputStream(deflated, new Deflater(level)) ) {
+				output.write(marc);
+			}
+			assertRoundTrip( Compression.DEFLATE, deflated.toByteArray(), marc );
+		}
+		assertRoundTrip( Compression.NONE, marc, marc );
+	}
+
+	@Test
+	public void testShortInputIsNotCompressed() throws IOException {
+		assertEquals( Compression.NONE, Compression.detect(new byte[0], 0) );
+		assertEquals( Compression.NONE, Compression.detect(new byte[] { 0x1f }, 1) );
+		assertEquals( Compression.NONE, Compression.detect(new BufferedInputStream(new ByteArrayInputStream(new byte[] { 0x1f }))) );
+	}
+
+	@Test
+	public void testNoRecordLengthLooksCompressed() throws IOException {
+		// "80" is a multiple of 31, like a zlib header; records of 80000-80999 bytes start with it
+		byte[] leader = "80123nam a22".getBytes(StandardCharsets.US_ASCII);
+		assertEquals( Compression.NONE, Compression.detect(leader, leader.length) );
+		for( int i = 0; i < 100; i++ ) {
+			byte[] digits = String.format("%02d", i).getBytes(StandardCharsets.US_ASCII);
+			assertEquals( Compression.NONE, Compression.detect(digits, digits.length) );
+		}
+	}
+
+	private static void assertRoundTrip(Compression expected, byte[] data, byte[] content) throws IOException {
+		InputStream input = new BufferedInputStream(new ByteArrayInputStream(data));
+		Compression compression = Compression.detect(input);
+		assertEquals( expected, compression );
+		try( InputStream decompressed = compression.decompress(input) ) {
+			assertArrayEquals( content, ByteStreams.toByteArray(decompressed) );
+		}
+	}
+}
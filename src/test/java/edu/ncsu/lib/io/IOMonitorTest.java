@@ -0,0 +1,67 @@
+package edu.ncsu.lib.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class IOMonitorTest {
+
+	@Test
+	public void testDuration() throws InterruptedException {
+		IOMonitor monitor = new IOMonitor();
+		assertEquals(0, monitor.getDuration());
+		monitor.start();
+		Thread.sleep(20);
+		// a second start doesn't restart the timer
+		monitor.start();
+		long duration = monitor.finish();
+		assertTrue(duration >= 20000000L);
+		assertEquals(duration, monitor.getDuration());
+		Thread.sleep(5);
+		assertEquals(duration, monitor.getDuration());
+		monitor.reset();
+		assertEquals(0, monitor.getDuration());
+	}
+
+	@Test
+	public void testConcurrentStreams() throws InterruptedException {
+		IOMonitor monitor = new IOMonitor();
+		monitor.start();
+		byte[] data = new byte[100000];
+		Thread[] threads = new Thread[4];
+		for( int t = 0; t < threads.length; t++ ) {
+			threads[t] = new Thread( () -> {
+				try( InputStream input = monitor.monitoredInput(new ByteArrayInputStream(data));
+						OutputStream output = monitor.monitoredOutput(new ByteArrayOutputStream()) ) {
+					ByteStreams.copy(input, output);
+					monitor.addRecords(10);
+					monitor.getLatencies().record(1000);
+				} catch( IOException iox ) {
+					throw new IllegalStateException(iox);
+				}
+			} );
+			threads[t].start();
+		}
+		for( Thread thread : threads ) {
+			thread.join();
+		}
+		monitor.finish();
+		assertEquals(400000, monitor.getBytesRead());
+		assertEquals(400000, monitor.getBytesWritten());
+		assertEquals(40, monitor.getRecords());
+		assertEquals(4, monitor.getLatencies().getCount());
+		assertTrue(monitor.getTime(IOMonitor.Phase.FETCH) > 0);
+		assertTrue(monitor.getTime(IOMonitor.Phase.UPLOAD) > 0);
+		assertTrue(monitor.getRecordsPerSecond() > 0);
+		assertEquals(null, monitor.monitoredInput(null));
+	}
+}
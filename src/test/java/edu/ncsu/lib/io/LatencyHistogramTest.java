@@ -0,0 +1,61 @@
+package edu.ncsu.lib.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBucketsCoverEveryValue() {
+		int last = -1;
+		for( long value = 0; value < 1L << 20; value++ ) {
+			int bucket = LatencyHistogram.bucketOf(value);
+			assertTrue(bucket == last || bucket == last + 1);
+			assertTrue(value <= LatencyHistogram.upperBound(bucket));
+			last = bucket;
+		}
+		assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testPercentilesAreWithinABucket() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		LatencyHistogram.Batch batch = new LatencyHistogram.Batch();
+		// 1..100000 microseconds, in random order, half of them batched
+		Random random = new Random(7);
+		long[] values = new long[100000];
+		for( int i = 0; i < values.length; i++ ) {
+			values[i] = ( i + 1 ) * 1000L;
+		}
+		for( int i = values.length - 1; i > 0; i-- ) {
+			int j = random.nextInt(i + 1);
+			long swap = values[i];
+			values[i] = values[j];
+			values[j] = swap;
+		}
+		for( int i = 0; i < values.length; i++ ) {
+			if ( i % 2 == 0 ) {
+				histogram.record(values[i]);
+			} else {
+				batch.record(values[i]);
+			}
+		}
+		batch.flushTo(histogram);
+		assertEquals(values.length, histogram.getCount());
+		assertEquals(100000000L, histogram.getMax());
+		assertEquals(50000500.0, histogram.getMean(), 0.5);
+		for( double p : new double[] { 50, 95, 99 } ) {
+			double exact = p * 1000000;
+			long reported = histogram.getPercentile(p);
+			assertTrue(p + ": " + reported, reported >= exact && reported <= exact * 1.07);
+		}
+		assertEquals(histogram.getMax(), histogram.getPercentile(100));
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentile(50));
+	}
+}
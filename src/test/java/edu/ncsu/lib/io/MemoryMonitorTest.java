@@ -0,0 +1,71 @@
+package edu.ncsu.lib.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class MemoryMonitorTest {
+
+	@Test
+	public void testRingBufferKeepsTheLatest() throws IOException {
+		MemoryMonitor monitor = new MemoryMonitor(4);
+		for( int i = 0; i < 10; i++ ) {
+			monitor.run();
+		}
+		assertEquals(10, monitor.getCount());
+		long[] measurements = monitor.getMeasurements();
+		assertEquals(4, measurements.length);
+		for( long used : measurements ) {
+			assertTrue(used >= monitor.getMin() && used <= monitor.getMax());
+			assertTrue(used <= Runtime.getRuntime().totalMemory());
+		}
+		StringBuilder csv = new StringBuilder();
+		monitor.writeCsv(csv);
+		String[] lines = csv.toString().split("\n");
+		assertEquals(5, lines.length);
+		assertEquals("millis,used,committed,gc_count,gc_millis,allocated", lines[0]);
+		monitor.reset();
+		assertEquals(0, monitor.getCount());
+		assertEquals(0, monitor.getMeasurements().length);
+		assertEquals("no measurements", monitor.summarize());
+	}
+
+	@Test
+	public void testGarbageAndAllocationAreCounted() throws InterruptedException {
+		MemoryMonitor monitor = new MemoryMonitor();
+		monitor.run();
+		Thread allocator = new Thread( () -> {
+			long sum = 0;
+			for( int i = 0; i < 2000; i++ ) {
+				sum += new byte[64 * 1024].length;
+			}
+			if ( sum == 0 ) {
+				throw new IllegalStateException();
+			}
+			try {
+				// long enough to be seen alive
+				Thread.sleep(200);
+			} catch( InterruptedException ix ) {
+				return;
+			}
+		}, "test-allocator");
+		allocator.start();
+		Thread.sleep(100);
+		monitor.run();
+		System.gc();
+		allocator.join();
+		monitor.run();
+		assertTrue(monitor.getGcCount() >= 1);
+		if ( monitor.getAllocated() >= 0 ) {
+			// the thread has finished, and what it allocated is still counted
+			Map<String, Long> threads = monitor.getThreadAllocations();
+			assertTrue(threads.toString(), threads.get("test-allocator") >= 2000L * 64 * 1024);
+			assertTrue(monitor.getAllocated() >= 2000L * 64 * 1024);
+			assertTrue(monitor.summarize(), monitor.summarize().contains("test-allocator"));
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package edu.ncsu.lib.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class ParallelGzipOutputStreamTest {
+
+	@Test
+	public void testOutputIsStandardGzip() throws IOException {
+		byte[] data = sample(1024 * 1024 + 17);
+		for( int threads : new int[] { 1, 4 } ) {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			try( ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(compressed).setBlockSize(64 * 1024).setThreads(threads) ) {
+				// uneven writes, so blocks don't line up with them
+				for( int pos = 0; pos < data.length; pos += 1000 ) {
+					gzip.write(data, pos, Math.min(1000, data.length - pos));
+				}
+			}
+			assertArrayEquals( data, gunzip(compressed.toByteArray()) );
+		}
+	}
+
+	@Test
+	public void testRatioIsCloseToSingleDeflater() throws IOException {
+		byte[] data = sample(2 * 1024 * 1024);
+		ByteArrayOutputStream single = new ByteArrayOutputStream();
+		try( GZIPOutputStream gzip = new GZIPOutputStream(single) ) {
+			gzip.write(data);
+		}
+		ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+		ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(parallel).setBlockSize(32 * 1024).setThreads(4);
+		gzip.write(data);
+		gzip.close();
+		// each block is primed with the one before it, so little is lost by splitting
+		assertTrue( parallel.size() < single.size() * 1.02 );
+		assertEquals( parallel.size(), gzip.getBytesOut() );
+		assertEquals( data.length, gzip.getBytesIn() );
+	}
+
+	@Test
+	public void testEmptyAndBlockAlignedContent() throws IOException {
+		for( int length : new int[] { 0, 1, 32 * 1024, 3 * 32 * 1024 } ) {
+			byte[] data = sample(length);
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			try( ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(compressed).setBlockSize(32 * 1024).setThreads(2).setLevel(1) ) {
+				gzip.write(data);
+			}
+			assertArrayEquals( data, gunzip(compressed.toByteArray()) );
+		}
+	}
+
+	/**
+	 * Compressible text: repeated words in a random order.
+	 */
+	private static byte[] sample(int length) {
+		String[] words = { "{\"leader\":", "\"fields\":", "\"subfields\":", "\"ind1\":", "\" \"", "[", "]", "{", "}", ",", "Constabaris", "Raleigh", "1998", "\"a\":" };
+		Random random = new Random(length);
+		ByteArrayOutputStream text = new ByteArrayOutputStream(length + 32);
+		while( text.size() < length ) {
+			byte[] word = words[random.nextInt(words.length)].getBytes();
+			text.write(word, 0, word.length);
+		}
+		byte[] data = new byte[length];
+		System.arraycopy(text.toByteArray(), 0, data, 0, length);
+		return data;
+	}
+
+	private static byte[] gunzip(byte[] compressed) throws IOException {
+		return ByteStreams.toByteArray( new GZIPInputStream(new ByteArrayInputStream(compressed)) );
+	}
+}
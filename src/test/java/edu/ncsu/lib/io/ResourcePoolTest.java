@@ -0,0 +1,59 @@
+package edu.ncsu.lib.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ResourcePoolTest {
+
+	@Test
+	public void testReleasedObjectsAreReused() {
+		AtomicInteger made = new AtomicInteger();
+		ResourcePool<StringBuilder> pool = new ResourcePool<>("builders", () -> new StringBuilder("#" + made.incrementAndGet()), 1);
+		StringBuilder first = pool.acquire();
+		StringBuilder second = pool.acquire();
+		assertNotSame(first, second);
+		assertEquals(2, pool.getCreated());
+		pool.release(first);
+		// only one is kept idle
+		pool.release(second);
+		pool.release(null);
+		assertEquals(1, pool.getIdle());
+		assertSame(first, pool.acquire());
+		assertEquals(1, pool.getReused());
+		assertEquals(0, pool.getIdle());
+		pool.acquire();
+		assertEquals(3, pool.getCreated());
+		assertEquals(3, made.get());
+		pool.release(first);
+		pool.clear();
+		assertEquals(0, pool.getIdle());
+		assertEquals("builders: created=3, reused=1, idle=0", pool.toString());
+	}
+
+	@Test
+	public void testConcurrentUse() throws InterruptedException {
+		ResourcePool<byte[]> pool = new ResourcePool<>("buffers", () -> new byte[16], 4);
+		Thread[] threads = new Thread[8];
+		for( int t = 0; t < threads.length; t++ ) {
+			threads[t] = new Thread( () -> {
+				for( int i = 0; i < 1000; i++ ) {
+					pool.release( pool.acquire() );
+				}
+			} );
+			threads[t].start();
+		}
+		for( Thread thread : threads ) {
+			thread.join();
+		}
+		assertEquals(8000, pool.getCreated() + pool.getReused());
+		// never more idle than allowed, and never more created than were in use at once
+		assertEquals(Math.min(4, pool.getCreated()), pool.getIdle());
+		assertTrue(pool.getCreated() <= threads.length);
+	}
+}
@@ -0,0 +1,87 @@
+package edu.ncsu.lib.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class SpillBufferTest {
+
+	@Test
+	public void testSmallOutputStaysInMemory() throws IOException {
+		File directory = Files.createTempDirectory("spill-test").toFile();
+		byte[] data = randomBytes(3 * SpillBuffer.CHUNK_SIZE + 17);
+		SpillBuffer buffer = new SpillBuffer(4 * SpillBuffer.CHUNK_SIZE).setDirectory(directory);
+		buffer.write(data[0]);
+		buffer.write(data, 1, data.length - 1);
+		assertEquals(data.length, buffer.length());
+		buffer.close();
+		assertFalse(buffer.isSpilled());
+		assertEquals(data.length, buffer.getMemoryLength());
+		assertEquals(0, directory.list().length);
+		try( InputStream content = buffer.openStream() ) {
+			assertArrayEquals(data, ByteStreams.toByteArray(content));
+		}
+		buffer.release();
+		directory.delete();
+	}
+
+	@Test
+	public void testLargeOutputSpillsToFile() throws IOException {
+		File directory = Files.createTempDirectory("spill-test").toFile();
+		byte[] data = randomBytes(10 * SpillBuffer.CHUNK_SIZE + 1234);
+		SpillBuffer buffer = new SpillBuffer(2 * SpillBuffer.CHUNK_SIZE + 100).setDirectory(directory).setExpectedLength(20L * SpillBuffer.CHUNK_SIZE);
+		// unaligned writes
+		for( int pos = 0; pos < data.length; pos += 1000 ) {
+			buffer.write(data, pos, Math.min(1000, data.length - pos));
+		}
+		buffer.close();
+		assertTrue(buffer.isSpilled());
+		assertEquals(2 * SpillBuffer.CHUNK_SIZE, buffer.getMemoryLength());
+		assertEquals(data.length - 2 * SpillBuffer.CHUNK_SIZE, buffer.getFileLength());
+		File[] files = directory.listFiles();
+		assertEquals(1, files.length);
+		// the preallocated space is trimmed
+		assertEquals(buffer.getFileLength(), files[0].length());
+
+		InputStream content = buffer.openStream();
+		assertTrue(content.markSupported());
+		content.mark(0);
+		assertArrayEquals(data, ByteStreams.toByteArray(content));
+		// a retry reads it all again
+		content.reset();
+		assertEquals(2 * SpillBuffer.CHUNK_SIZE - 5, content.skip(2 * SpillBuffer.CHUNK_SIZE - 5));
+		byte[] across = new byte[10];
+		ByteStreams.readFully(content, across);
+		for( int i = 0; i < across.length; i++ ) {
+			assertEquals(data[2 * SpillBuffer.CHUNK_SIZE - 5 + i], across[i]);
+		}
+
+		buffer.release();
+		assertEquals(0, directory.list().length);
+		try {
+			content.read();
+			fail("Released buffers can't be read");
+		} catch( IOException iox ) {
+			// expected
+		}
+		directory.delete();
+	}
+
+	private static byte[] randomBytes(int length) {
+		byte[] data = new byte[length];
+		new Random(42).nextBytes(data);
+		return data;
+	}
+}
@@ -0,0 +1,89 @@
+package edu.ncsu.lib.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+import edu.ncsu.lib.marc.MarcTransformer;
+
+public class StreamPipelineTest {
+
+	@Test
+	public void testStagesChainAndReportResults() throws Exception {
+		byte[] marc = readResource("/test.mrc");
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		new MarcTransformer().toJSON(new ByteArrayInputStream(marc), expected);
+
+		StreamPipeline pipeline = new StreamConnector().setPipeCapacity(512).pipeline( () -> new ByteArrayInputStream(marc) );
+		StreamPipeline.Stage<Long> compress = pipeline.addStage("gzip", (in, out) -> {
+			GZIPOutputStream gzip = new GZIPOutputStream(out);
+			long copied = ByteStreams.copy(in, gzip);
+			gzip.finish();
+			return copied;
+		});
+		StreamPipeline.Stage<Long> decompress = pipeline.addStage("gunzip", (in, out) -> ByteStreams.copy(new GZIPInputStream(in), out));
+		StreamPipeline.Stage<Long> transform = pipeline.addStage("marc-json", new MarcTransformer()::toJSON);
+		byte[] actual = ByteStreams.toByteArray( pipeline.start() );
+		pipeline.await();
+
+		assertArrayEquals(expected.toByteArray(), actual);
+		assertEquals(Long.valueOf(marc.length), compress.getResult());
+		assertEquals(Long.valueOf(marc.length), decompress.getResult());
+		assertEquals(Long.valueOf(4), transform.getResult());
+		assertEquals(marc.length, compress.getBytesRead());
+		assertEquals(compress.getBytesWritten(), decompress.getBytesRead());
+		assertEquals(marc.length, decompress.getBytesWritten());
+		assertEquals(actual.length, transform.getBytesWritten());
+		assertNull(transform.getFailure());
+	}
+
+	@Test
+	public void testFailureWindsDownPipeline() throws Exception {
+		byte[] data = new byte[1024 * 1024];
+		StreamPipeline pipeline = new StreamConnector().setPipeCapacity(1024).pipeline( () -> new ByteArrayInputStream(data) );
+		StreamPipeline.Stage<Long> copy = pipeline.addStage("copy", ByteStreams::copy);
+		IllegalStateException cause = new IllegalStateException("bad data");
+		StreamPipeline.Stage<Long> broken = pipeline.addStage("broken", (in, out) -> {
+			in.read(new byte[100]);
+			throw cause;
+		});
+		pipeline.addStage("copy-again", ByteStreams::copy);
+		InputStream output = pipeline.start();
+		try {
+			ByteStreams.toByteArray(output);
+			fail("Expected the failure to reach the reader");
+		} catch( IOException iox ) {
+			// expected
+		}
+		try {
+			pipeline.await();
+			fail("Expected the pipeline to fail");
+		} catch( ExecutionException ex ) {
+			assertSame(cause, ex.getCause());
+		}
+		assertSame(cause, broken.getFailure());
+		// the first stage could not finish writing once the second stopped reading
+		assertTrue(copy.getFailure() instanceof BytePipe.PipeClosedException);
+	}
+
+	private static byte[] readResource(String name) throws IOException {
+		try( InputStream input = StreamPipelineTest.class.getResourceAsStream(name) ) {
+			return ByteStreams.toByteArray(input);
+		}
+	}
+}
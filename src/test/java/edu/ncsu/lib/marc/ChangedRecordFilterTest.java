@@ -0,0 +1,75 @@
+package edu.ncsu.lib.marc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.marc4j.MarcStreamWriter;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.MarcFactory;
+import org.marc4j.marc.Record;
+
+public class ChangedRecordFilterTest {
+
+	@Test
+	public void testOnlyChangedRecordsAreTransformed() throws IOException {
+		byte[] first = records("a:one", "b:two", "c:three", ":untracked");
+		RecordHashes.Builder firstHashes = new RecordHashes.Builder();
+		ChangedRecordFilter initial = new ChangedRecordFilter(null, firstHashes);
+		assertEquals(4, new MarcTransformer().toJSON(new ByteArrayInputStream(first), new ByteArrayOutputStream(), null, initial));
+		assertEquals(3, initial.getAdded());
+		assertEquals(1, initial.getUntracked());
+		assertTrue(initial.getDeletions().isEmpty());
+
+		// a unchanged, b changed, c deleted, d added
+		byte[] second = records("a:one", "b:two, revised", "d:four", ":untracked");
+		RecordHashes previous = RecordHashes.read(new ByteArrayInputStream(firstHashes.toByteArray()));
+		ChangedRecordFilter changes = new ChangedRecordFilter(previous, new RecordHashes.Builder());
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		// batches of one, so the skipped record falls in a batch of its own
+		long written = new MarcTransformer().setBatchSize(1).toJSON(new ByteArrayInputStream(second), output, null, changes);
+		assertEquals(3, written);
+		String json = new String(output.toByteArray(), "UTF-8");
+		assertTrue(json.contains("two, revised"));
+		assertTrue(json.contains("four"));
+		assertFalse(json.contains("\"one\""));
+		assertEquals(1, changes.getUnchanged());
+		assertEquals(1, changes.getChanged());
+		assertEquals(1, changes.getAdded());
+		assertEquals(Arrays.asList("c"), changes.getDeletions());
+
+		RecordHashes current = changes.getHashes().build();
+		assertEquals(3, current.size());
+		assertEquals(previous.getHash(previous.indexOf("a")), current.getHash(current.indexOf("a")));
+		assertTrue(previous.getHash(previous.indexOf("b")) != current.getHash(current.indexOf("b")));
+		assertEquals(-1, current.indexOf("c"));
+	}
+
+	/**
+	 * Builds MARC21 records from <code>controlNumber:title</code> pairs; an empty control number leaves out the 001.
+	 */
+	private static byte[] records(String... specs) {
+		MarcFactory factory = MarcFactory.newInstance();
+		ByteArrayOutputStream marc = new ByteArrayOutputStream();
+		MarcStreamWriter writer = new MarcStreamWriter(marc, "UTF-8");
+		for( String spec : specs ) {
+			String[] parts = spec.split(":", 2);
+			Record record = factory.newRecord("00000nam a2200000 a 4500");
+			if ( !parts[0].isEmpty() ) {
+				record.addVariableField(factory.newControlField("001", parts[0]));
+			}
+			DataField title = factory.newDataField("245", '1', '0');
+			title.addSubfield(factory.newSubfield('a', parts[1]));
+			record.addVariableField(title);
+			writer.write(record);
+		}
+		writer.close();
+		return marc.toByteArray();
+	}
+}
@@ -0,0 +1,301 @@
+package edu.ncsu.lib.marc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+import org.marc4j.MarcJsonWriter;
+import org.marc4j.MarcPermissiveStreamReader;
+import org.marc4j.MarcReader;
+import org.marc4j.MarcStreamWriter;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.MarcFactory;
+import org.marc4j.marc.Record;
+
+import com.amazonaws.util.json.Jackson;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.io.ByteStreams;
+
+import edu.ncsu.lib.io.IOMonitor;
+import info.freelibrary.marc4j.converter.impl.UnicodeToAnsel;
+
+public class MarcTransformerTest {
+
+	@Test
+	public void testRawRecordReaderSplitsOnRecordLength() throws IOException {
+		byte[] data = readResource("/test.mrc");
+		RawRecordReader reader = new RawRecordReader(new ByteArrayInputStream(data), 1024);
+		int records = 0;
+		byte[] record;
+		while( ( record = reader.next() ) != null ) {
+			assertEquals(RawRecordReader.RECORD_TERMINATOR, record[record.length - 1]);
+			assertEquals(RawRecordReader.parseLength(record, 0), record.length);
+			records++;
+		}
+		assertEquals(4, records);
+		assertEquals(data.length, reader.getOffset());
+		assertNull(reader.next());
+	}
+
+	@Test
+	public void testRawRecordReaderFallsBackToTerminator() throws IOException {
+		byte[] data = readResource("/test.mrc");
+		// understate the length of the first record
+		byte[] broken = data.clone();
+		broken[0] = '0';
+		broken[1] = '0';
+		broken[2] = '1';
+		RawRecordReader reader = new RawRecordReader(new ByteArrayInputStream(broken), 1024);
+		byte[] first = reader.next();
+		assertEquals(2789, first.length);
+		assertEquals(RawRecordReader.RECORD_TERMINATOR, first[first.length - 1]);
+	}
+
+	@Test
+	public void testParallelOutputMatchesSequential() throws IOException {
+		byte[] data = repeat(readResource("/test.mrc"), 50);
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		long expectedCount = new MarcTransformer().toJSON(new ByteArrayInputStream(data), expected);
+
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		long actualCount = new MarcTransformer().setThreads(4).setBatchSize(7).setWindow(3)
+				.toJSON(new ByteArrayInputStream(data), actual);
+
+		assertEquals(200, expectedCount);
+		assertEquals(expectedCount, actualCount);
+		assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+	}
+
+	@Test
+	public void testFieldProjectionPatterns() {
+		FieldProjection projection = FieldProjection.parse("001,245ab,9xx");
+		assertTrue(projection.includesTag(1));
+		assertTrue(projection.includesTag(245));
+		assertTrue(projection.includesTag(949));
+		assertFalse(projection.includesTag(100));
+		assertTrue(projection.includesSubfield(245, 'a'));
+		assertFalse(projection.includesSubfield(245, 'c'));
+		assertTrue(projection.includesSubfield(999, 'z'));
+		assertFalse(projection.includesTag(-1));
+		assertTrue(FieldProjection.ALL.includesSubfield(-1, '$'));
+	}
+
+	@Test
+	public void testProjectedOutputMatchesFilteredRecords() throws IOException {
+		byte[] data = readResource("/test.mrc");
+		FieldProjection projection = FieldProjection.parse("001,008,245ab,650");
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		MarcReader reader = new MarcPermissiveStreamReader(new ByteArrayInputStream(data), true, true);
+		MarcJsonWriter writer = new MarcJsonWriter(expected, MarcJsonWriter.MARC_JSON);
+		while( reader.hasNext() ) {
+			Record record = reader.next();
+			RecordBatchConverter.project(record, projection);
+			writer.write(record);
+		}
+
+		for( int threads : new int[] { 1, 3 } ) {
+			ByteArrayOutputStream actual = new ByteArrayOutputStream();
+			long count = new MarcTransformer().setThreads(threads).setBatchSize(2).setProjection(projection)
+					.toJSON(new ByteArrayInputStream(data), actual);
+			assertEquals(4, count);
+			assertEquals(new String(expected.toByteArray(), "UTF-8"), new String(actual.toByteArray(), "UTF-8"));
+		}
+	}
+
+	@Test
+	public void testDirectEncodingMatchesMarc4j() throws IOException {
+		byte[] data = repeat(toUnicode(readResource("/test.mrc")), 10);
+		assertDirectMatchesMarc4j(data, 40);
+	}
+
+	@Test
+	public void testDirectEncodingEscapesLikeMarc4j() throws IOException {
+		MarcFactory factory = MarcFactory.newInstance();
+		ByteArrayOutputStream marc = new ByteArrayOutputStream();
+		MarcStreamWriter writer = new MarcStreamWriter(marc, "UTF-8");
+		String[] samples = {
+				"plain ASCII / with slash",
+				"quote \" backslash \\ tab \t newline \n return \r",
+				"control \u0001 \u001e unit \u001f del \u007f",
+				"Latin-1 caf\u00e9 \u00a9 \u00ff",
+				"Greek \u03b1\u03b2 CJK \u4e2d\u6587 BOM \ufeff",
+				"astral \ud83d\ude00 \ud834\udd1e",
+				"ampersand & alone, &amp; entity",
+				"AT&T; and &#x00e9;",
+		};
+		for( String sample : samples ) {
+			Record record = factory.newRecord("00000nam a2200000 a 4500");
+			record.addVariableField(factory.newControlField("008", "160826s2016    ncu           000 0 eng d"));
+			record.addVariableField(factory.newControlField("001", "id-" + sample.length()));
+			DataField title = factory.newDataField("245", '1', '0');
+			title.addSubfield(factory.newSubfield('a', sample));
+			title.addSubfield(factory.newSubfield('c', "second \"subfield\""));
+			record.addVariableField(title);
+			writer.write(record);
+		}
+		writer.close();
+		assertDirectMatchesMarc4j(marc.toByteArray(), samples.length);
+	}
+
+	@Test
+	public void testMarcInJsonIsNewlineDelimitedJson() throws IOException {
+		byte[] data = repeat(toUnicode(readResource("/test.mrc")), 10);
+		assertDirectMatchesMarc4j(data, 40, MarcJsonWriter.MARC_IN_JSON);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		new MarcTransformer().setFormat(MarcJsonWriter.MARC_IN_JSON).toJSON(new ByteArrayInputStream(data), output);
+		String[] lines = new String(output.toByteArray(), "UTF-8").split("\n");
+		assertEquals(40, lines.length);
+		for( String line : lines ) {
+			JsonNode record = Jackson.jsonNodeOf(line);
+			assertTrue(record.get("leader").isTextual());
+			assertTrue(record.get("fields").isArray());
+		}
+	}
+
+	@Test
+	public void testMarc8RecordsUseTables() throws IOException {
+		MarcFactory factory = MarcFactory.newInstance();
+		ByteArrayOutputStream marc = new ByteArrayOutputStream();
+		MarcStreamWriter writer = new MarcStreamWriter(marc);
+		writer.setConverter(new UnicodeToAnsel());
+		String[] samples = {
+				"Greek \u0391\u03b8\u03ae\u03bd\u03b1 and back",
+				"Cyrillic \u041c\u043e\u0441\u043a\u0432\u0430 caf\u00e9",
+				"Hebrew \u05e9\u05dc\u05d5\u05dd, Arabic \u0627\u0644\u0639\u0631\u0628\u064a\u0629",
+				"CJK \u4e2d\u6587 \u6771\u4eac and \u00fcber",
+				"H\u2082O x\u00b2 \u00a9 r\u00e9sum\u00e9 \"quoted\" \\ slash",
+		};
+		for( String sample : samples ) {
+			Record record = factory.newRecord("00000nam  2200000 a 4500");
+			record.addVariableField(factory.newControlField("001", "m8-" + sample.length()));
+			record.addVariableField(factory.newControlField("008", "160826s2016    ncu           000 0 eng d"));
+			DataField title = factory.newDataField("245", '1', '0');
+			title.addSubfield(factory.newSubfield('a', sample));
+			title.addSubfield(factory.newSubfield('b', "\u0395\u03bb\u03bb\u03ac\u03b4\u03b1"));
+			record.addVariableField(title);
+			writer.write(record);
+		}
+		writer.close();
+		MarcTransformer transformer = assertDirectMatchesMarc4j(marc.toByteArray(), samples.length);
+		assertEquals(2 * samples.length, transformer.getStatistics().get(ConversionStatistics.Path.MARC8));
+		assertEquals(0, transformer.getStatistics().get(ConversionStatistics.Path.MARC4J));
+	}
+
+	@Test
+	public void testConversionPathsAreCounted() throws IOException {
+		// three plain ASCII records, and one with ANSEL characters but no escapes that marc4j has to guess about
+		MarcTransformer transformer = assertDirectMatchesMarc4j(readResource("/test.mrc"), 4);
+		assertEquals(6, transformer.getStatistics().get(ConversionStatistics.Path.UNICODE));
+		assertEquals(2, transformer.getStatistics().get(ConversionStatistics.Path.MARC4J));
+		assertEquals(0, transformer.getStatistics().get(ConversionStatistics.Path.MARC8));
+		assertEquals(8, transformer.getStatistics().getTotal());
+	}
+
+	@Test
+	public void testMonitorCountsEveryPath() throws IOException {
+		byte[] data = readResource("/test.mrc");
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		new MarcTransformer().setDirectEncoding(false).toJSON(new ByteArrayInputStream(data), expected);
+		// marc4j only, direct encoding on one thread, and on several
+		MarcTransformer[] transformers = { new MarcTransformer().setDirectEncoding(false), new MarcTransformer(),
+				new MarcTransformer().setThreads(3).setBatchSize(1) };
+		for( MarcTransformer transformer : transformers ) {
+			IOMonitor monitor = transformer.monitor();
+			for( int run = 0; run < 2; run++ ) {
+				ByteArrayOutputStream output = new ByteArrayOutputStream();
+				assertEquals(4, transformer.toJSON(new ByteArrayInputStream(data), output));
+				assertArrayEquals(expected.toByteArray(), output.toByteArray());
+			}
+			assertEquals(8, monitor.getRecords());
+			assertEquals(8, monitor.getLatencies().getCount());
+			assertEquals(data.length * 2, monitor.getBytesRead());
+			assertEquals(expected.size() * 2, monitor.getBytesWritten());
+			assertTrue(monitor.getTime(IOMonitor.Phase.TRANSFORM) > 0);
+			assertTrue(monitor.getDuration() > 0);
+		}
+	}
+
+	@Test
+	public void testStoppedTransformCanResume() throws IOException {
+		byte[] data = repeat(readResource("/test.mrc"), 10);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		new MarcTransformer().toJSON(new ByteArrayInputStream(data), expected);
+
+		for( int threads : new int[] { 1, 3 } ) {
+			MarcTransformer transformer = new MarcTransformer().setThreads(threads).setBatchSize(3);
+			ByteArrayOutputStream actual = new ByteArrayOutputStream();
+			final long[] stoppedAt = new long[2];
+			long first = transformer.toJSON(new ByteArrayInputStream(data), actual, (offset, records) -> {
+				stoppedAt[0] = offset;
+				stoppedAt[1] = records;
+				return records < 9;
+			});
+			assertEquals(9, first);
+			assertEquals(9, stoppedAt[1]);
+			long rest = transformer.toJSON(new ByteArrayInputStream(data, (int)stoppedAt[0], data.length - (int)stoppedAt[0]), actual, null);
+			assertEquals(40, first + rest);
+			assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+		}
+	}
+
+	/**
+	 * Checks the direct encoder against marc4j, single- and multi-threaded, using the same transformer for both runs.
+	 * @return the transformer, for checking its statistics.
+	 */
+	private static MarcTransformer assertDirectMatchesMarc4j(byte[] data, int expectedCount) throws IOException {
+		return assertDirectMatchesMarc4j(data, expectedCount, MarcJsonWriter.MARC_JSON);
+	}
+
+	private static MarcTransformer assertDirectMatchesMarc4j(byte[] data, int expectedCount, int format) throws IOException {
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		long expectedRecords = new MarcTransformer().setFormat(format).setDirectEncoding(false).toJSON(new ByteArrayInputStream(data), expected);
+		MarcTransformer transformer = new MarcTransformer().setFormat(format).setBatchSize(3);
+		for( int threads : new int[] { 1, 4 } ) {
+			ByteArrayOutputStream actual = new ByteArrayOutputStream();
+			long actualRecords = transformer.setThreads(threads).toJSON(new ByteArrayInputStream(data), actual);
+			assertEquals(expectedCount, expectedRecords);
+			assertEquals(expectedRecords, actualRecords);
+			assertEquals(new String(expected.toByteArray(), "UTF-8"), new String(actual.toByteArray(), "UTF-8"));
+			assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+		}
+		return transformer;
+	}
+
+	/**
+	 * Rewrites MARC records as UTF-8 encoded MARC21 (leader position 9 = 'a').
+	 */
+	static byte[] toUnicode(byte[] data) {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		MarcReader reader = new MarcPermissiveStreamReader(new ByteArrayInputStream(data), true, true);
+		MarcStreamWriter writer = new MarcStreamWriter(result, "UTF-8");
+		while( reader.hasNext() ) {
+			writer.write(reader.next());
+		}
+		writer.close();
+		return result.toByteArray();
+	}
+
+	static byte[] readResource(String name) throws IOException {
+		try( InputStream input = MarcTransformerTest.class.getResourceAsStream(name) ) {
+			return ByteStreams.toByteArray(input);
+		}
+	}
+
+	static byte[] repeat(byte[] data, int times) {
+		byte[] result = new byte[data.length * times];
+		for( int i = 0; i < times; i++ ) {
+			System.arraycopy(data, 0, result, i * data.length, data.length);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,121 @@
+package edu.ncsu.lib.marc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+import org.marc4j.MarcJsonWriter;
+import org.marc4j.MarcStreamWriter;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.MarcFactory;
+import org.marc4j.marc.Record;
+
+public class RecordIndexTest {
+
+	@Test
+	public void testIndexFindsEveryRecord() throws IOException {
+		MarcFactory factory = MarcFactory.newInstance();
+		ByteArrayOutputStream marc = new ByteArrayOutputStream();
+		MarcStreamWriter writer = new MarcStreamWriter(marc, "UTF-8");
+		// shuffled, so the index has to sort them, and with one that needs escaping
+		String[] controlNumbers = { "ocm0042", "b1000", "ocm0007", "quote\"d", "caf\u00e9", "a" };
+		for( String controlNumber : controlNumbers ) {
+			Record record = factory.newRecord("00000nam a2200000 a 4500");
+			record.addVariableField(factory.newControlField("008", "160826s2016    ncu           000 0 eng d"));
+			record.addVariableField(factory.newControlField("001", controlNumber));
+			DataField title = factory.newDataField("245", '1', '0');
+			title.addSubfield(factory.newSubfield('a', "Title of " + controlNumber));
+			record.addVariableField(title);
+			writer.write(record);
+		}
+		// and one with no 001 at all
+		Record anonymous = factory.newRecord("00000nam a2200000 a 4500");
+		anonymous.addVariableField(factory.newControlField("008", "160826s2016    ncu           000 0 eng d"));
+		writer.write(anonymous);
+		writer.close();
+
+		for( int format : new int[] { MarcJsonWriter.MARC_JSON, MarcJsonWriter.MARC_IN_JSON } ) {
+			RecordIndex.Builder builder = new RecordIndex.Builder();
+			ByteArrayOutputStream json = new ByteArrayOutputStream();
+			RecordIndexingOutputStream output = new RecordIndexingOutputStream(json, builder);
+			new MarcTransformer().setFormat(format).toJSON(new ByteArrayInputStream(marc.toByteArray()), output);
+			assertEquals(1, output.getUnindexed());
+			assertEquals(json.size(), output.getPosition());
+
+			File file = File.createTempFile("record-index-", ".idx");
+			file.deleteOnExit();
+			try( OutputStream stored = new FileOutputStream(file) ) {
+				builder.writeTo(stored);
+			}
+			RecordIndex index = RecordIndex.open(file);
+			assertEquals(controlNumbers.length, index.size());
+			byte[] bytes = json.toByteArray();
+			for( String controlNumber : controlNumbers ) {
+				RecordIndex.Entry entry = index.find(controlNumber);
+				String record = new String(bytes, (int)entry.getOffset(), entry.getLength(), StandardCharsets.UTF_8);
+				assertTrue(record, record.startsWith("{"));
+				assertTrue(record, record.endsWith("\n"));
+				assertTrue(record, record.contains("Title of "));
+				assertEquals(controlNumber, entry.getControlNumber());
+			}
+			for( int i = 1; i < index.size(); i++ ) {
+				assertTrue(index.getEntry(i - 1).getControlNumber().compareTo(index.getEntry(i).getControlNumber()) < 0);
+			}
+			assertNull(index.find("ocm0043"));
+			assertNull(index.find(""));
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testDuplicatesAndResumedIndexes() throws IOException {
+		RecordIndex.Builder first = new RecordIndex.Builder()
+				.add("b", 0, 10)
+				.add("a", 10, 20)
+				.add("b", 30, 5);
+		RecordIndex partial = RecordIndex.read(new ByteArrayInputStream(first.toByteArray()));
+		RecordIndex index = new RecordIndex.Builder().addAll(partial).add("c", 35, 7).add("b", 42, 1).build();
+		assertEquals(5, index.size());
+		// the first of several duplicates, in output order
+		assertEquals(0, index.find("b").getOffset());
+		assertEquals(10, index.find("b").getLength());
+		assertEquals(29, index.find("a").getLastByte());
+		assertEquals(35, index.find("c").getOffset());
+		assertNull(index.find("bb"));
+	}
+
+	@Test
+	public void testSortKeepsDuplicatesInOutputOrder() throws IOException {
+		// enough entries for several merge passes, over few enough keys that most are duplicates
+		Random random = new Random(11);
+		RecordIndex.Builder builder = new RecordIndex.Builder();
+		RecordHashes.Builder hashes = new RecordHashes.Builder();
+		for( int i = 0; i < 5000; i++ ) {
+			String controlNumber = "ocm" + random.nextInt(300);
+			builder.add(controlNumber, i, 1);
+			hashes.add(controlNumber, i);
+		}
+		RecordIndex index = builder.build();
+		RecordHashes table = hashes.build();
+		assertEquals(5000, index.size());
+		for( int i = 1; i < index.size(); i++ ) {
+			RecordIndex.Entry previous = index.getEntry(i - 1);
+			RecordIndex.Entry entry = index.getEntry(i);
+			int comparison = previous.getControlNumber().compareTo(entry.getControlNumber());
+			assertTrue(comparison < 0 || ( comparison == 0 && previous.getOffset() < entry.getOffset() ));
+			assertEquals(entry.getControlNumber(), table.getControlNumber(i));
+			assertEquals(entry.getOffset(), table.getHash(i));
+		}
+		assertEquals(index.find("ocm42").getOffset(), table.getHash(table.indexOf("ocm42")));
+	}
+}
@@ -0,0 +1,269 @@
+package edu.ncsu.lib.marc;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates MARC21 records for benchmarks and load tests, in any quantity and without network access.
+ * <p>
+ *  Records are built byte by byte (no marc4j objects), so multi-gigabyte files can be written quickly.  Each has a
+ *  control number (<code>syn</code> and a sequence number), the usual 005, 008, 020, 100, 245, 260 and 300 fields, and
+ *  as many 500 and 650 fields as it takes to reach its size.  Sizes follow a log-normal distribution around
+ *  {@link #setRecordSize(int) recordSize}, which is what the sizes of real catalogue records look like: most are
+ *  close to the median, and a few are many times larger.  A {@link #setSizeSpread(double) spread} of 0 makes every
+ *  record the same size.  A {@link #setMarc8Fraction(double) fraction} of the records are MARC-8 rather than UTF-8,
+ *  with combining accents and, like most real ones, no escape sequences, so {@link MarcTransformer} hands them to
+ *  marc4j.  The same seed gives the same records.  Not thread-safe.
+ * </p>
+ */
+public class SyntheticCorpus {
+
+	private static final byte FT = RawRecordReader.FIELD_TERMINATOR;
+
+	private static final byte SD = RawRecordReader.SUBFIELD_DELIMITER;
+
+	private static final String[] WORDS = { "library", "catalog", "record", "history", "north", "carolina", "state",
+			"university", "press", "annual", "report", "of", "the", "and", "in", "studies", "science", "collected",
+			"papers", "proceedings", "conference", "edition", "volume", "society", "agriculture", "textiles" };
+
+	// words with a non-ASCII letter, as UTF-8 and as MARC-8 (a combining acute, 0xE2, before its letter)
+	private static final byte[][] UTF8_ACCENTED = { "caf\u00e9".getBytes(StandardCharsets.UTF_8), "r\u00e9sum\u00e9".getBytes(StandardCharsets.UTF_8) };
+
+	private static final byte[][] MARC8_ACCENTED = { { 'c', 'a', 'f', (byte)0xE2, 'e' }, { 'r', (byte)0xE2, 'e', 's', 'u', 'm', (byte)0xE2, 'e' } };
+
+	private static final int MIN_RECORD_SIZE = 256;
+
+	private static final int MAX_RECORD_SIZE = 99999;
+
+	private final Random random;
+
+	private int recordSize = 1500;
+
+	private double sizeSpread = 0.5;
+
+	private double marc8Fraction = 0.0;
+
+	private long sequence = 0;
+
+	// the record being built: its fields, then the directory and leader in front of them
+	private final ByteArrayOutputStream fields = new ByteArrayOutputStream(MAX_RECORD_SIZE);
+
+	private final ByteArrayOutputStream directory = new ByteArrayOutputStream(1024);
+
+	public SyntheticCorpus(long seed) {
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Sets the median size of a record.
+	 * @param recordSize the size in bytes, from 256 to 99999.
+	 * @return this generator.
+	 */
+	public SyntheticCorpus setRecordSize(int recordSize) {
+		this.recordSize = Math.max(MIN_RECORD_SIZE, Math.min(MAX_RECORD_SIZE, recordSize));
+		return this;
+	}
+
+	public int getRecordSize() {
+		return recordSize;
+	}
+
+	/**
+	 * Sets how much record sizes vary: the standard deviation of the natural log of the size.
+	 * @param sizeSpread 0 for records all of the same size; 0.5, the default, puts nine records out of ten between about
+	 *   half and two and a half times the median.
+	 * @return this generator.
+	 */
+	public SyntheticCorpus setSizeSpread(double sizeSpread) {
+		this.sizeSpread = Math.max(0, sizeSpread);
+		return this;
+	}
+
+	public double getSizeSpread() {
+		return sizeSpread;
+	}
+
+	/**
+	 * Sets the fraction of records encoded in MARC-8.
+	 * @param marc8Fraction from 0 (all UTF-8, the default) to 1.
+	 * @return this generator.
+	 */
+	public SyntheticCorpus setMarc8Fraction(double marc8Fraction) {
+		this.marc8Fraction = Math.max(0, Math.min(1, marc8Fraction));
+		return this;
+	}
+
+	public double getMarc8Fraction() {
+		return marc8Fraction;
+	}
+
+	/**
+	 * Builds the next record.
+	 * @return the raw record, leader to terminator.
+	 */
+	public byte[] nextRecord() {
+		boolean marc8 = random.nextDouble() < marc8Fraction;
+		// the last field can overshoot the target a little
+		int target = (int)Math.max(MIN_RECORD_SIZE, Math.min(MAX_RECORD_SIZE - 1000, recordSize * Math.exp(sizeSpread * random.nextGaussian())));
+		fields.reset();
+		directory.reset();
+		long number = ++sequence;
+		controlField("001", String.format("syn%09d", number));
+		controlField("005", "20161017120000.0");
+		controlField("008", "160826s2016    ncu           000 0 eng d");
+		dataField("020", "  ", 'a', String.valueOf(9780000000000L + number % 1000000000L));
+		dataField("100", "1 ", 'a', title(2, marc8) + ",");
+		dataField("245", "10", 'a', title(4 + random.nextInt(6), marc8) + " /");
+		dataField("260", "  ", 'a', "Raleigh, N.C. :", 'b', title(2, marc8) + ",", 'c', String.valueOf(1900 + random.nextInt(117)) + ".");
+		dataField("300", "  ", 'a', ( 50 + random.nextInt(900) ) + " p. ;", 'c', "24 cm.");
+		// every field costs 12 bytes of directory as well as its data
+		while( 24 + directory.size() + 1 + fields.size() + 1 < target - 12 ) {
+			int room = target - ( 24 + directory.size() + 1 + fields.size() + 1 ) - 12 - 8;
+			int words = Math.max(1, Math.min(room / 8, 10 + random.nextInt(30)));
+			if ( random.nextInt(4) == 0 ) {
+				dataField("650", " 0", 'a', title(Math.min(words, 4), marc8) + ".");
+			} else {
+				dataField("500", "  ", 'a', title(words, marc8) + ".");
+			}
+		}
+		return assemble(marc8);
+	}
+
+	/**
+	 * Writes records until at least a given number of bytes has been written.
+	 * @param output the destination, which is not closed.
+	 * @param bytes the amount to write.
+	 * @return the number of records written.
+	 * @throws IOException if the records could not be written.
+	 */
+	public long writeTo(OutputStream output, long bytes) throws IOException {
+		long written = 0;
+		long records = 0;
+		while( written < bytes ) {
+			byte[] record = nextRecord();
+			output.write(record);
+			written += record.length;
+			records++;
+		}
+		return records;
+	}
+
+	/**
+	 * Generates records in memory.
+	 * @param bytes the amount to generate, up to 2GB.
+	 * @return at least that many bytes of records.
+	 */
+	public byte[] generate(long bytes) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream( (int)Math.min(Integer.MAX_VALUE - 8, bytes + MAX_RECORD_SIZE) );
+		try {
+			writeTo(output, bytes);
+		} catch( IOException iox ) {
+			throw new IllegalStateException("Unable to write to memory", iox);
+		}
+		return output.toByteArray();
+	}
+
+	private void controlField(String tag, String data) {
+		int start = fields.size();
+		byte[] bytes = data.getBytes(StandardCharsets.US_ASCII);
+		fields.write(bytes, 0, bytes.length);
+		fields.write(FT);
+		entry(tag, start);
+	}
+
+	/**
+	 * Adds a data field.  <code>subfields</code> alternate between codes (<code>Character</code>) and values
+	 * (<code>String</code>s whose chars are their bytes).
+	 */
+	private void dataField(String tag, String indicators, Object... subfields) {
+		int start = fields.size();
+		fields.write(indicators.charAt(0));
+		fields.write(indicators.charAt(1));
+		for( int i = 0; i < subfields.length; i += 2 ) {
+			fields.write(SD);
+			fields.write((Character)subfields[i]);
+			byte[] value = ((String)subfields[i + 1]).getBytes(StandardCharsets.ISO_8859_1);
+			fields.write(value, 0, value.length);
+		}
+		fields.write(FT);
+		entry(tag, start);
+	}
+
+	private void entry(String tag, int start) {
+		byte[] bytes = String.format("%s%04d%05d", tag, fields.size() - start, start).getBytes(StandardCharsets.US_ASCII);
+		directory.write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Makes a run of words, one in ten of them accented.  The result's chars are its bytes.
+	 */
+	private String title(int words, boolean marc8) {
+		StringBuilder text = new StringBuilder();
+		for( int w = 0; w < words; w++ ) {
+			if ( w > 0 ) {
+				text.append(' ');
+			}
+			if ( random.nextInt(10) == 0 ) {
+				byte[] word = ( marc8 ? MARC8_ACCENTED : UTF8_ACCENTED )[random.nextInt(UTF8_ACCENTED.length)];
+				text.append( new String(word, StandardCharsets.ISO_8859_1) );
+			} else {
+				text.append( WORDS[random.nextInt(WORDS.length)] );
+			}
+		}
+		if ( text.length() > 0 ) {
+			text.setCharAt(0, Character.toUpperCase(text.charAt(0)));
+		}
+		return text.toString();
+	}
+
+	private byte[] assemble(boolean marc8) {
+		int base = 24 + directory.size() + 1;
+		int length = base + fields.size() + 1;
+		byte[] record = new byte[length];
+		String leader = String.format("%05dnam %c22%05d a 4500", length, marc8 ? ' ' : 'a', base);
+		System.arraycopy(leader.getBytes(StandardCharsets.US_ASCII), 0, record, 0, 24);
+		byte[] entries = directory.toByteArray();
+		System.arraycopy(entries, 0, record, 24, entries.length);
+		record[base - 1] = FT;
+		byte[] data = fields.toByteArray();
+		System.arraycopy(data, 0, record, base, data.length);
+		record[length - 1] = RawRecordReader.RECORD_TERMINATOR;
+		return record;
+	}
+
+	/**
+	 * Writes a file of synthetic records.
+	 * <p>
+	 *  Usage: <code>SyntheticCorpus file megabytes [recordSize] [spread] [marc8Fraction] [seed]</code>
+	 * </p>
+	 */
+	public static void main(String[] args) throws IOException {
+		if ( args.length < 2 ) {
+			System.err.println("Usage: SyntheticCorpus file megabytes [recordSize] [spread] [marc8Fraction] [seed]");
+			System.exit(1);
+		}
+		long bytes = Long.parseLong(args[1]) * 1024 * 1024;
+		SyntheticCorpus corpus = new SyntheticCorpus( args.length > 5 ? Long.parseLong(args[5]) : 1L );
+		if ( args.length > 2 ) {
+			corpus.setRecordSize( Integer.parseInt(args[2]) );
+		}
+		if ( args.length > 3 ) {
+			corpus.setSizeSpread( Double.parseDouble(args[3]) );
+		}
+		if ( args.length > 4 ) {
+			corpus.setMarc8Fraction( Double.parseDouble(args[4]) );
+		}
+		long start = System.currentTimeMillis();
+		long records;
+		try( OutputStream output = new BufferedOutputStream(new FileOutputStream(args[0]), 1024 * 1024) ) {
+			records = corpus.writeTo(output, bytes);
+		}
+		System.out.printf("%d records in %dms: %s%n", records, System.currentTimeMillis() - start, Arrays.toString(args));
+	}
+}
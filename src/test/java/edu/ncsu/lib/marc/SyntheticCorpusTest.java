@@ -0,0 +1,50 @@
+package edu.ncsu.lib.marc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class SyntheticCorpusTest {
+
+	@Test
+	public void testRecordsAreWellFormed() throws IOException {
+		byte[] corpus = new SyntheticCorpus(7).setRecordSize(2000).setMarc8Fraction(0.25).generate(1024 * 1024);
+		assertTrue(corpus.length >= 1024 * 1024);
+		assertArrayEquals(corpus, new SyntheticCorpus(7).setRecordSize(2000).setMarc8Fraction(0.25).generate(1024 * 1024));
+
+		RawRecordReader reader = new RawRecordReader(new ByteArrayInputStream(corpus), 1024);
+		long records = 0;
+		long total = 0;
+		for( byte[] record = reader.next(); record != null; record = reader.next() ) {
+			MarcRecordView view = new MarcRecordView(record);
+			assertEquals(String.format("syn%09d", records + 1), view.getControlNumber());
+			assertEquals(record.length, Integer.parseInt( new String(record, 0, 5, "US-ASCII") ));
+			records++;
+			total += record.length;
+		}
+		long mean = total / records;
+		assertTrue("mean record size " + mean, mean > 1500 && mean < 3000);
+
+		// the UTF-8 records take the direct path, and the MARC-8 ones (with no escape sequences) go to marc4j
+		MarcTransformer transformer = new MarcTransformer();
+		assertEquals(records, transformer.toJSON(new ByteArrayInputStream(corpus), new ByteArrayOutputStream()));
+		long marc4j = transformer.getStatistics().get(ConversionStatistics.Path.MARC4J);
+		assertTrue("MARC-8 records: " + marc4j, marc4j > records / 8 && marc4j < records / 2);
+		assertEquals(records - marc4j, transformer.getStatistics().get(ConversionStatistics.Path.UNICODE));
+	}
+
+	@Test
+	public void testFixedSizeRecords() {
+		SyntheticCorpus corpus = new SyntheticCorpus(1).setRecordSize(800).setSizeSpread(0);
+		for( int i = 0; i < 100; i++ ) {
+			int length = corpus.nextRecord().length;
+			assertTrue("record of " + length, length >= 780 && length <= 900);
+		}
+	}
+}